@@ -9,7 +9,8 @@ function outCommand = addIntentExtra(inCommand, name, value)
 % inCommand : string indicating the shell command so far.
 % name : string indicating the indicator of the value's purpose, must match
 %           one that is expected by devCam in the device.
-% value : string or integer of data to add to this command
+% value : string, integer, or vector of integers of data to add to this
+%           command. Vectors are sent as an int array extra.
 %
 % - - Output - -
 % outCommand : string of the constructed command with data
@@ -17,7 +18,10 @@ function outCommand = addIntentExtra(inCommand, name, value)
 % 
 % Rob Sumner - May 2015
 
-if isnumeric(value)
+if isnumeric(value) && numel(value)>1
+    outCommand = fullcommand(inCommand,'--eia',name,strjoin(arrayfun(@num2str,value(:)','UniformOutput',false),','));
+
+elseif isnumeric(value)
     outCommand = fullcommand(inCommand,'--ei',name,num2str(value));
     
 elseif ischar(value)
@@ -0,0 +1,61 @@
+function [frame, metadata] = burstFrame(filename, index, i)
+% [frame, metadata] = burstFrame(filename, index, i)
+%
+% Reads frame i out of a .burst container file generated by devCam.
+%
+% Only the bytes of the requested frame are touched, by memory-mapping
+% them, so single frames can be read quickly even out of very large
+% designs.
+%
+% - - Input - -
+% filename : the .burst container file
+% index : the container's frame index, as returned by burstIndex
+% i : number of the frame in the index
+%
+% - - Output - -
+% frame : the decoded frame. YUV_420_888 frames are returned as a struct
+%         with fields y, u, v as from yuvRead, JPEG frames as from imread,
+%         and RAW_SENSOR frames as from dngRead.
+% metadata : the frame's CaptureResult, as a JSON string. Use loadjson to
+%         turn it into a struct.
+%
+% See also burstIndex
+
+entry = index(i);
+m = memmapfile(filename,'Format','uint8','Offset',entry.offset,...
+    'Repeat',entry.length);
+bytes = m.Data;
+
+m = memmapfile(filename,'Format','uint8','Offset',entry.metadataOffset,...
+    'Repeat',entry.metadataLength);
+metadata = char(m.Data');
+
+% The frame's bytes are exactly those of the file it would otherwise have
+% been saved as, so reuse the usual readers on a temporary copy.
+switch entry.format
+    case 35
+        ext = '.yuv';
+    case 256
+        ext = '.jpg';
+    case 32
+        ext = '.dng';
+    otherwise
+        frame = bytes;
+        return
+end
+tmp = [tempname ext];
+f = fopen(tmp,'w');
+fwrite(f,bytes);
+fclose(f);
+
+switch entry.format
+    case 35
+        [frame.y, frame.u, frame.v] = yuvRead(tmp);
+    case 256
+        frame = imread(tmp);
+    case 32
+        frame = dngRead(tmp);
+end
+delete(tmp);
+
+end
@@ -0,0 +1,64 @@
+function index = burstIndex(filename)
+% index = burstIndex()
+% index = burstIndex(filename)
+%
+% Reads the frame index of a .burst container file generated by devCam,
+% which holds all frames of a design in a single file.
+%
+% If no filename is supplied, prompts user to select a .burst file.
+%
+% - - Output - -
+% index : struct array, one element per frame in the order they were
+%         written, with fields
+%           offset, length : byte position and size of the frame
+%           format : ImageFormat of the frame (JPEG = 256, RAW_SENSOR = 32,
+%                    YUV_420_888 = 35)
+%           timestamp : sensor timestamp of the frame, in ns
+%           metadataOffset, metadataLength : byte position and size of the
+%                    frame's CaptureResult, as a JSON string
+%
+% The container ends with a 16-byte footer: the byte offset of the index,
+% the number of frames, and the magic number 'DCBI'. Each index entry is
+% 40 bytes. All values are big-endian.
+%
+% See also burstFrame
+
+if nargin==0
+    [fn fp] = uigetfile('*.burst');
+    filename = [fp fn];
+end
+
+f = fopen(filename,'r','ieee-be');
+fseek(f,0,'eof');
+fileSize = ftell(f);
+
+% The header identifies the file, the footer tells where the index is.
+fseek(f,0,'bof');
+magic = fread(f,8,'*char')';
+if ~strcmp(magic,'DEVCAMBC')
+    fclose(f);
+    error('Not a devCam container file.');
+end
+
+fseek(f,fileSize-16,'bof');
+indexOffset = fread(f,1,'int64');
+count = fread(f,1,'int32');
+if ~strcmp(fread(f,4,'*char')','DCBI')
+    fclose(f);
+    error('Container has no index, it was probably not closed.');
+end
+
+index = struct('offset',{},'length',{},'format',{},'timestamp',{},...
+    'metadataOffset',{},'metadataLength',{});
+fseek(f,indexOffset,'bof');
+for i = 1:count
+    index(i).offset = fread(f,1,'int64');
+    index(i).length = fread(f,1,'int64');
+    index(i).format = fread(f,1,'int32');
+    index(i).timestamp = fread(f,1,'*int64'); % keep full ns precision
+    index(i).metadataOffset = fread(f,1,'int64');
+    index(i).metadataLength = fread(f,1,'int32');
+end
+fclose(f);
+
+end
@@ -25,5 +25,7 @@ consts.remote_dir = '/mnt/shell/emulated/0/Pictures/devCam/';
 consts.am_pre = 'am start -n com.devcam/.RemoteCaptureActivity'; % common pre-amble for RemoteCapture commands
 consts.START_INTENT = '-a REMOTE_START'; % intent to start RemoteCapture preview window on device
 consts.CAPTURE_INTENT = '-a CAPTURE_REQUEST'; % intent to initiate an actual capture on device
+consts.STREAM_INTENT = '-a STREAM_REQUEST'; % intent to initiate a streaming capture on device
+consts.STOP_STREAM = 'am broadcast -a STOP_STREAM'; % broadcast to end a streaming capture
 
 end % end function
\ No newline at end of file
@@ -0,0 +1,60 @@
+function [raw, info] = prawRead(filename)
+% [raw, info] = prawRead()
+% [raw, info] = prawRead(filename)
+%
+% Reads a .praw file generated by devCam, a RAW_SENSOR frame stored with
+% only as many bits per pixel as the sensor's white level needs. Puts out
+% the raw sensor samples as a uint16 matrix, as they were in the 16-bit
+% RAW_SENSOR buffer (no black level subtraction or demosaicing), and the
+% header as a struct.
+%
+% If no filename is supplied, prompts user to select a .praw file.
+%
+% The file starts with the characters 'DPRW' and a 344-byte big-endian
+% header: version, width, height, bits per sample, bytes per row, CFA
+% arrangement (0 = RGGB, 1 = GRBG, 2 = GBRG, 3 = BGGR), white level, the
+% black level of the 2x2 CFA cell, the reference illuminants, the sensor
+% timestamp, and the color matrices of the frame and the sensor as 32-bit
+% floats. The rows of packed samples follow, each starting on a whole
+% byte, with sample x at bits x*bits... of the row counting from the least
+% significant bit of its first byte.
+
+if nargin==0
+    [fn fp] = uigetfile('*.praw');
+    filename = [fp fn];
+end
+
+f = fopen(filename,'r','ieee-be');
+if fread(f,1,'uint32') ~= 1146114647   % 'DPRW'
+    fclose(f);
+    error('Not a devCam .praw file: %s',filename);
+end
+info.version = fread(f,1,'int32');
+info.width = fread(f,1,'int32');
+info.height = fread(f,1,'int32');
+info.bitsPerSample = fread(f,1,'int32');
+info.rowBytes = fread(f,1,'int32');
+info.cfaArrangement = fread(f,1,'int32');
+info.whiteLevel = fread(f,1,'int32');
+info.blackLevel = reshape(fread(f,4,'int32'),2,2)'; % as laid out on the sensor
+info.referenceIlluminant1 = fread(f,1,'int32');
+info.referenceIlluminant2 = fread(f,1,'int32');
+info.timestamp = fread(f,1,'int64');
+info.neutralColorPoint = fread(f,3,'float32')';
+info.colorCorrectionGains = fread(f,4,'float32')';
+matrices = {'colorCorrectionTransform','colorTransform1','colorTransform2', ...
+    'forwardMatrix1','forwardMatrix2','calibrationTransform1','calibrationTransform2'};
+for m = 1:numel(matrices)
+    info.(matrices{m}) = reshape(fread(f,9,'float32'),3,3)'; % stored row-major
+end
+packed = fread(f,[info.rowBytes info.height],'uint8=>double');
+fclose(f);
+
+% Each sample lies within the 3 bytes starting at its first bit.
+packed = [packed; zeros(2,info.height)];
+bitOffset = (0:info.width-1)'*info.bitsPerSample;
+b = floor(bitOffset/8) + 1;
+shift = mod(bitOffset,8);
+words = packed(b,:) + 256*packed(b+1,:) + 65536*packed(b+2,:);
+words = floor(words ./ repmat(2.^shift,1,info.height));
+raw = uint16(mod(words, 2^info.bitsPerSample))';
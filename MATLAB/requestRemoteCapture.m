@@ -1,5 +1,11 @@
-function requestRemoteCapture(captureDesign,designName, format, width, height, processing,targetDir)
+function requestRemoteCapture(captureDesign,designName, format, width, height, processing,targetDir,container,compress,packedRaw,accumulate,recordEvents,priming)
 % requestRemoteCapture(captureDesign,designName, format, width, height, processing,targetDir)
+% requestRemoteCapture(captureDesign,designName, format, width, height, processing,targetDir,container)
+% requestRemoteCapture(captureDesign,designName, format, width, height, processing,targetDir,container,compress)
+% requestRemoteCapture(captureDesign,designName, format, width, height, processing,targetDir,container,compress,packedRaw)
+% requestRemoteCapture(captureDesign,designName, format, width, height, processing,targetDir,container,compress,packedRaw,accumulate)
+% requestRemoteCapture(captureDesign,designName, format, width, height, processing,targetDir,container,compress,packedRaw,accumulate,recordEvents)
+% requestRemoteCapture(captureDesign,designName, format, width, height, processing,targetDir,container,compress,packedRaw,accumulate,recordEvents,priming)
 %
 % Request the attached device capture the input Capture Design (exposure
 % sequence) in the desired format and size. The result will be saved on the
@@ -24,6 +30,10 @@ function requestRemoteCapture(captureDesign,designName, format, width, height, p
 % designName : string name to label this capture design as.
 % format : integer value indicating the desired output image format.
 %           JPEG = 256, RAW_SENSOR = 32, YUV_420_888 = 35
+%           May also be a vector of formats, e.g. [256 32], in which case
+%           every frame is captured into all of them at once. The first is
+%           captured at width x height, the others at the largest size the
+%           device offers for them.
 % width, height :  integer values indicating target capture dimensions. It
 %                 is the user's responsibility to make sure these are valid
 %                 for the device and format requested.
@@ -32,6 +42,36 @@ function requestRemoteCapture(captureDesign,designName, format, width, height, p
 % targetDir : string path to local dir you want the output data put into. A
 %             new subdirectory of name designName will be created with the 
 %             output data of the capture process.
+% container : optional logical, true to have all frames saved into a single
+%             .burst container file instead of one file each. Read it with
+%             burstIndex and burstFrame. Default false.
+% compress : optional logical, true to have RAW and YUV frames saved to
+%             files of their own losslessly compressed, as .dng.dcz and
+%             .yuv.dcz files. Turn them back into .dng and .yuv files with
+%             the host tool: java com.devcam.host.Decompress <dir>
+%             Default false.
+% packedRaw : optional logical, true to have RAW_SENSOR frames saved as
+%             .praw files at the sensor's bit depth instead of .dng. Read
+%             them with prawRead. Default false.
+% accumulate : optional integer, 1 to have the RAW and YUV frames of the
+%             design averaged on the device and only the mean saved, as
+%             <designName>-merged.dng (or .praw, .yuv), 2 to also save the
+%             per-pixel variance over the frames as <designName>-merged.var,
+%             which varRead reads. Meant for designs of many short frames,
+%             e.g. split exposures. Only designs whose exposures are all
+%             the same, and whose sums fit in the app's memory, are merged;
+%             the frames of any other are saved one by one. Default 0.
+% recordEvents : optional logical, true to have the order and timing of
+%             the camera's events during the capture recorded, as
+%             <designName>_events.bin, for replaying the capture on the
+%             host: java com.devcam.host.CaptureReplay <events.bin>
+%             Default false.
+% priming : optional logical, false to capture without the unsaved frames
+%             devCam puts in front of each change of settings so that it
+%             has come through by the saved frame. Frames that still carry
+%             an earlier exposure's settings are then marked with
+%             "devcam.settingsApplied": false in the capture metadata.
+%             Default true.
 %
 %
 % Rob Sumner - May 2015
@@ -63,10 +103,31 @@ adbshell(fullcommand(consts.am_pre,consts.START_INTENT));
 command = consts.am_pre; % pre-amble
 command = fullcommand(command,consts.CAPTURE_INTENT); % tell it to capture
 command = addIntentExtra(command,'DESIGN_NAME',designName); % this and the following are required
-command = addIntentExtra(command,'FORMAT',format);
+command = addIntentExtra(command,'FORMAT',format(1));
+if numel(format)>1
+    command = addIntentExtra(command,'EXTRA_FORMATS',format(2:end));
+end
 command = addIntentExtra(command,'HEIGHT',height);
 command = addIntentExtra(command,'WIDTH',width);
 command = addIntentExtra(command,'PROCESSING_SETTING',processing);
+if nargin>7 && container
+    command = addIntentExtra(command,'CONTAINER',1);
+end
+if nargin>8 && compress
+    command = addIntentExtra(command,'COMPRESS',1);
+end
+if nargin>9 && packedRaw
+    command = addIntentExtra(command,'PACKED_RAW',1);
+end
+if nargin>10 && accumulate>0
+    command = addIntentExtra(command,'ACCUMULATE',accumulate);
+end
+if nargin>11 && recordEvents
+    command = addIntentExtra(command,'RECORD_EVENTS',1);
+end
+if nargin>12 && ~priming
+    command = addIntentExtra(command,'SETTINGS_PRIMING',0);
+end
 success = adbshell(command);
 
 
@@ -0,0 +1,56 @@
+function requestRemoteStream(captureDesign,designName, format, width, height, processing, nFrames, durationMs)
+% requestRemoteStream(captureDesign,designName, format, width, height, processing, nFrames, durationMs)
+%
+% Request the attached device capture the input Capture Design over and
+% over as a stream, e.g. alternating exposures for HDR video. The stream
+% stops after nFrames frames or durationMs milliseconds, whichever comes
+% first, or when stopRemoteStream() is called. A value of 0 means no limit.
+%
+% Unlike requestRemoteCapture(), this does not wait for the outputs: pull
+% them with adbpull() once the 'captureflag' file is gone from the device.
+% Along with the frames, devCam writes a designName_streaming.txt report
+% of the sustained frame rate, dropped frames and storage bandwidth.
+%
+%
+% - - Input - -
+% captureDesign, designName, format, width, height, processing : as for
+%           requestRemoteCapture(). Only a single format is supported.
+% nFrames : integer number of frames after which to stop, 0 for no limit.
+% durationMs : integer number of milliseconds after which to stop, 0 for
+%           no limit.
+%
+
+consts = devCamConstants(); % load relevant paths
+
+% Put the Capture Design .json on the device.
+if isstruct(captureDesign)
+    localJson = [designName '.json'];
+    savejson('',captureDesign,localJson);
+else
+    localJson = captureDesign;
+end
+adbshell(fullcommand('rm -r',consts.remote_dir,'Captured/',designName));
+adbpush(localJson,'Designs');
+
+% Start the RemoteCaptureActivity
+adbshell(fullcommand(consts.am_pre,consts.START_INTENT));
+
+% - - Now tell devCam to stream that design - -
+command = consts.am_pre; % pre-amble
+command = fullcommand(command,consts.STREAM_INTENT); % tell it to stream
+command = addIntentExtra(command,'DESIGN_NAME',designName);
+command = addIntentExtra(command,'FORMAT',format);
+command = addIntentExtra(command,'HEIGHT',height);
+command = addIntentExtra(command,'WIDTH',width);
+command = addIntentExtra(command,'PROCESSING_SETTING',processing);
+command = addIntentExtra(command,'STREAM_FRAMES',nFrames);
+command = addIntentExtra(command,'STREAM_DURATION_MS',durationMs);
+if adbshell(command)
+    disp('Stream command successfully sent.')
+end
+
+if isstruct(captureDesign)
+    system(fullcommand('rm',localJson));
+end
+
+end % end function
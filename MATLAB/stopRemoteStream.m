@@ -0,0 +1,10 @@
+function stopRemoteStream()
+% stopRemoteStream()
+%
+% End a streaming capture started by requestRemoteStream(). Frames already
+% captured are still written out before the 'captureflag' file disappears.
+
+consts = devCamConstants(); % load relevant paths
+adbshell(consts.STOP_STREAM);
+
+end % end function
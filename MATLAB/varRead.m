@@ -0,0 +1,36 @@
+function [planes, info] = varRead(filename)
+% [planes, info] = varRead()
+% [planes, info] = varRead(filename)
+%
+% Reads a .var file generated by devCam when merging the frames of a design
+% on the device, the variance of every sample over the frames that were
+% averaged into the merged frame saved next to it. Puts out a cell array of
+% single matrices, one per plane of the merged frame (one for RAW, Y, U
+% and V for YUV), and the header as a struct.
+%
+% If no filename is supplied, prompts user to select a .var file.
+%
+% The file starts with the characters 'DVAR' and a big-endian header:
+% version, number of frames, number of planes, and the width and height of
+% each plane. The planes follow as 32-bit floats, row after row.
+
+if nargin==0
+    [fn fp] = uigetfile('*.var');
+    filename = [fp fn];
+end
+
+f = fopen(filename,'r','ieee-be');
+if fread(f,1,'uint32') ~= 1146503506   % 'DVAR'
+    fclose(f);
+    error('Not a devCam .var file: %s',filename);
+end
+info.version = fread(f,1,'int32');
+info.numFrames = fread(f,1,'int32');
+numPlanes = fread(f,1,'int32');
+info.sizes = fread(f,[2 numPlanes],'int32')'; % width, height of each plane
+
+planes = cell(1,numPlanes);
+for p = 1:numPlanes
+    planes{p} = fread(f,[info.sizes(p,1) info.sizes(p,2)],'float32=>single')';
+end
+fclose(f);
@@ -11,7 +11,16 @@ function [y, u, v] = yuvRead(filename)
 % Note the output Y matrix will be twice the size of the U, V matrices
 % because they were downsampled. 
 %
-% devCam saves the YUV_420_888 images as an uncompressed series of
+% devCam now saves YUV_420_888 images in version 2 of its .yuv format,
+% which starts with the characters 'DYUV'. A 56-byte header of 32-bit
+% ints records the version, width, height and layout flags, then the pixel
+% stride, row stride and number of bytes of each of the Y, U, V planes,
+% which follow uncompressed. Sample (col,row) of a plane is at byte
+% row*rowStride + col*pixelStride of it. Samples missing at the end of a
+% plane are filled in by repeating the last sample present.
+%
+% Files from earlier versions of devCam are read as before:
+% devCam saved the YUV_420_888 images as an uncompressed series of
 % integer values. 
 % The first two values are the image width and height, resp., in pixels. 
 % The third and fourth values are, resp., pixel and row strides of the 
@@ -31,6 +40,31 @@ f = fopen(filename);
 bytes = fread(f);  % Reads each byte in as a double value. 
 fclose(f);
 
+% Version 2 files describe every plane, so no guessing is needed.
+if bytes2int(bytes(1:4)) == 1146705238   % 'DYUV'
+    w = bytes2int(bytes(9:12));
+    h = bytes2int(bytes(13:16));
+    planeSizes = [w h; ceil(w/2) ceil(h/2); ceil(w/2) ceil(h/2)];
+    planes = cell(1,3);
+    planeStart = 57; % first byte after the header
+    for p = 1:3
+        info = 20 + 12*(p-1); % location of this plane's strides and byte count
+        pixel_stride = bytes2int(bytes(info+1:info+4));
+        row_stride = bytes2int(bytes(info+5:info+8));
+        count = bytes2int(bytes(info+9:info+12));
+        data = bytes(planeStart:planeStart+count-1);
+        planeStart = planeStart + count;
+        
+        [c, r] = meshgrid(0:planeSizes(p,1)-1, 0:planeSizes(p,2)-1);
+        idx = min(r*row_stride + c*pixel_stride + 1, count);
+        planes{p} = data(idx);
+    end
+    y = planes{1};
+    u = planes{2};
+    v = planes{3};
+    return
+end
+
 % Get the width and height of the image so we know where the planes begin
 % and end in the sequence of integers that follow. Get the row/pixel
 % stride, too. 
@@ -0,0 +1,429 @@
+/* Class for merging the frames of one output stream of a design into a single saved frame on the
+ * device, instead of saving each of them, see FrameAccumulator.
+ *
+ * Meant for designs of N frames taken to be averaged, e.g. those from
+ * CaptureDesign.Creator.splitExposureTime() and burst(). Each paired frame is handed over through
+ * add(), whose Runnable is to be posted to the ImageSaver thread like an ImageSaver. It sums the
+ * frame in on a pool of worker threads and closes the Image. Once the design's last frame is in,
+ * the rounded mean is saved the way ImageSaver would have saved a frame, under the one filename
+ * every frame of the stream is recorded with, and optionally the per-sample variance next to it as
+ * a .var file (see VarianceFormat).
+ *
+ * If given a ProxyCache, the proxy of the merged frame is put in it as the design's frame 1.
+ *
+ * Only RAW_SENSOR and YUV_420_888 frames can be merged. A merged RAW frame carries the
+ * CaptureResult of the first frame in its DNG tags or .praw header. Merged frames are not
+ * compressed.
+ *
+ * The WriteOutCallback is called once per frame, as for ImageSavers, the last time after the merged
+ * frame is saved.
+ */
+
+package com.devcam;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.DngCreator;
+import android.media.Image;
+import android.util.Log;
+import android.util.Size;
+
+import com.devcam.io.Crc32c;
+import com.devcam.io.DesignJournal;
+import com.devcam.io.DesignManifest;
+import com.devcam.io.DesignStatistics;
+import com.devcam.io.FrameAccumulator;
+import com.devcam.io.FrameStatistics;
+import com.devcam.io.PackedRawFormat;
+import com.devcam.io.PackedRawWriter;
+import com.devcam.io.ProxyCache;
+import com.devcam.io.ProxyFrame;
+import com.devcam.io.VarianceFormat;
+import com.devcam.io.YuvFormat;
+import com.devcam.io.YuvWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CheckedOutputStream;
+
+class BurstAccumulator {
+
+    // Tiles per worker thread, so that uneven workers still finish about together.
+    private static final int TILES_PER_WORKER = 4;
+    // Share of the free heap the sums may take, leaving the rest to the Images and the app.
+    private static final double HEAP_SHARE = 0.5;
+
+    private final CameraCharacteristics mCamChars;
+    private final File SAVE_DIR;
+    private final String mFilename;
+    private final int mNumFrames;
+    private final ImageSaver.WriteOutCallback mRegisteredCallback;
+    private ExecutorService mPool;
+    private int mNumWorkers;
+    private boolean mKeepVariance = false;
+    private boolean mPackRaw = false;
+    private int mYuvFlags = YuvFormat.FLAG_COMPACT_ROWS;
+    private DesignManifest mManifest;
+    private DesignStatistics mDesignStatistics;
+    private DesignJournal mJournal;
+    private ProxyCache mProxyCache;
+    private String mProxyDesign;
+
+    // Made on the first frame, which the merged frame takes its size and metadata from.
+    private FrameAccumulator mAccumulator;
+    private int mFormat;
+    private int mWidth;
+    private int mHeight;
+    private long mTimestamp;
+    private CaptureResult mFirstResult;
+    private PackedRawFormat.Header mRawHeader;
+    private int mFramesIn = 0;
+    private boolean mFailed = false;
+
+
+    /* Constructor.
+     * - the CameraCharacteristics of the device, for saving RAW frames
+     * - the directory to save the merged frame in
+     * - the name of the merged frame's file, *including extension*
+     * - how many frames of the stream are in the design
+     */
+    public BurstAccumulator(CameraCharacteristics camChars, File saveDir, String filename, int numFrames,
+                            ImageSaver.WriteOutCallback callback){
+        mCamChars = camChars;
+        SAVE_DIR = saveDir;
+        mFilename = filename;
+        mNumFrames = numFrames;
+        mRegisteredCallback = callback;
+    }
+
+    public String getFilename(){
+        return mFilename;
+    }
+
+    /* Sum the frames on the given pool of worker threads. Must be set before the first frame. */
+    public void setPool(ExecutorService pool, int numWorkers){
+        mPool = pool;
+        mNumWorkers = Math.max(1, numWorkers);
+    }
+    /* Also save the variance of every sample over the frames. */
+    public void setKeepVariance(boolean keepVariance){
+        mKeepVariance = keepVariance;
+    }
+    public void setPackRaw(boolean packRaw){
+        mPackRaw = packRaw;
+    }
+    public void setYuvFlags(int flags){
+        mYuvFlags = flags;
+    }
+    public void setManifest(DesignManifest manifest){
+        mManifest = manifest;
+    }
+    public void setStatistics(DesignStatistics statistics){
+        mDesignStatistics = statistics;
+    }
+    public void setJournal(DesignJournal journal){
+        mJournal = journal;
+    }
+    public void setProxyCache(ProxyCache cache, String designName){
+        mProxyCache = cache;
+        mProxyDesign = designName;
+    }
+
+
+    /* static int[][] planeSizes(int, int, int)
+     *
+     * {widths, heights} of the planes of a frame of the given ImageFormat and size.
+     */
+    private static int[][] planeSizes(int format, int width, int height){
+        if (format==ImageFormat.RAW_SENSOR){
+            return new int[][]{{width}, {height}};
+        } else if (format==ImageFormat.YUV_420_888){
+            int chromaWidth = (width + 1)/2;
+            int chromaHeight = (height + 1)/2;
+            return new int[][]{{width, chromaWidth, chromaWidth}, {height, chromaHeight, chromaHeight}};
+        }
+        throw new IllegalArgumentException("Can't accumulate frames of format " + format);
+    }
+
+    // The largest sample of the format: the sensor's white level for RAW frames.
+    private static int maxSample(int format, CameraCharacteristics camChars){
+        if (format==ImageFormat.RAW_SENSOR){
+            Integer whiteLevel = camChars.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+            return (whiteLevel!=null) ? whiteLevel : 0xFFFF;
+        }
+        return 0xFF;
+    }
+
+
+    /* static String whyNotAccumulate(List<Exposure>, List<Integer>, List<Size>, boolean, CameraCharacteristics)
+     *
+     * Why the frames of a design, in the given output streams, should not be merged, or null if
+     * they can be. Only frames that are all taken the same can be averaged into something
+     * meaningful, so designs whose exposures differ, e.g. brackets, are turned down, as are those
+     * whose sums would not fit in the memory left to the app, along with the merged frame's buffer.
+     */
+    static String whyNotAccumulate(List<Exposure> exposures, List<Integer> formats, List<Size> sizes,
+                                   boolean keepVariance, CameraCharacteristics camChars){
+        for (Exposure exposure : exposures){
+            if (!sameSettings(exposure, exposures.get(0))){
+                return "its exposures are not all the same";
+            }
+        }
+        long needed = 0;
+        for (int i=0; i<formats.size(); i++){
+            int format = formats.get(i);
+            if (!canAccumulate(format)){
+                continue;
+            }
+            int[][] planes = planeSizes(format, sizes.get(i).getWidth(), sizes.get(i).getHeight());
+            needed += FrameAccumulator.bytesNeeded(planes[0], planes[1], maxSample(format, camChars),
+                    exposures.size(), keepVariance);
+            needed += 2L*sizes.get(i).getWidth()*sizes.get(i).getHeight(); // the merged frame
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        if (needed>HEAP_SHARE*available){
+            return "merging takes " + needed/(1024*1024) + " MB, but only " + available/(1024*1024) + " MB are free";
+        }
+        return null;
+    }
+
+    // Whether the two exposures are taken with the same settings, explicit or variable.
+    private static boolean sameSettings(Exposure a, Exposure b){
+        return same(a.hasVariableExposureTime() ? a.getExposureTimeString() : a.getExposureTime(),
+                        b.hasVariableExposureTime() ? b.getExposureTimeString() : b.getExposureTime())
+                && same(a.hasVariableSensitivity() ? a.getSensitivityString() : a.getSensitivity(),
+                        b.hasVariableSensitivity() ? b.getSensitivityString() : b.getSensitivity())
+                && same(a.hasVariableAperture() ? a.getApertureString() : a.getAperture(),
+                        b.hasVariableAperture() ? b.getApertureString() : b.getAperture())
+                && same(a.hasVariableFocalLength() ? a.getFocalLengthString() : a.getFocalLength(),
+                        b.hasVariableFocalLength() ? b.getFocalLengthString() : b.getFocalLength())
+                && same(a.hasVariableFocusDistance() ? a.getFocusDistanceString() : a.getFocusDistance(),
+                        b.hasVariableFocusDistance() ? b.getFocusDistanceString() : b.getFocusDistance());
+    }
+
+    private static boolean same(Object a, Object b){
+        return (a==null) ? b==null : a.equals(b);
+    }
+
+
+    /* static boolean canAccumulate(int)
+     *
+     * Whether frames of the given ImageFormat can be merged.
+     */
+    static boolean canAccumulate(int imageFormat){
+        return imageFormat==ImageFormat.RAW_SENSOR || imageFormat==ImageFormat.YUV_420_888;
+    }
+
+    /* static String mergedFilename(String, String)
+     *
+     * The name of the merged frame of the design with the given name, for a file type extension.
+     */
+    static String mergedFilename(String designName, String fileType){
+        return designName + "-merged" + fileType;
+    }
+
+    /* static String varianceFilename(String)
+     *
+     * The name of the variance file saved next to the merged frame of the given name.
+     */
+    static String varianceFilename(String mergedFilename){
+        int dot = mergedFilename.lastIndexOf('.');
+        return ((dot>0) ? mergedFilename.substring(0, dot) : mergedFilename) + VarianceFormat.EXTENSION;
+    }
+
+
+    /* Runnable add(Image, CaptureResult)
+     *
+     * The action of summing in one frame, to be posted to the ImageSaver thread. The Image is closed
+     * once it is summed.
+     */
+    public Runnable add(final Image image, final CaptureResult result){
+        return new Runnable() {
+            @Override
+            public void run() {
+                accumulate(image, result);
+            }
+        };
+    }
+
+
+    private void accumulate(Image image, CaptureResult result){
+        Log.v(DevCam.APP_TAG, "Accumulating image w/timestamp: " + image.getTimestamp()/1000 + " into " + mFilename);
+        int format = image.getFormat();
+        try {
+            if (!mFailed){
+                if (mAccumulator==null){
+                    begin(image, result);
+                }
+                Image.Plane[] planes = image.getPlanes();
+                ByteBuffer[] buffers = new ByteBuffer[planes.length];
+                int[] pixelStrides = new int[planes.length];
+                int[] rowStrides = new int[planes.length];
+                for (int p=0; p<planes.length; p++){
+                    buffers[p] = planes[p].getBuffer();
+                    pixelStrides[p] = planes[p].getPixelStride();
+                    rowStrides[p] = planes[p].getRowStride();
+                }
+                mAccumulator.add(buffers, pixelStrides, rowStrides);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            mFailed = true;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            mFailed = true;
+        } finally {
+            image.close(); // close this to free up buffer for other images
+        }
+
+        mFramesIn++;
+        if (mFramesIn==mNumFrames && !mFailed){
+            mFailed = !saveMerged();
+        }
+        if (mRegisteredCallback!=null) {
+            mRegisteredCallback.onImageSaved(!mFailed, mFilename, format);
+        }
+    }
+
+
+    private void begin(Image image, CaptureResult result){
+        mFormat = image.getFormat();
+        mWidth = image.getWidth();
+        mHeight = image.getHeight();
+        mTimestamp = image.getTimestamp();
+        mFirstResult = result;
+
+        int[][] planes = planeSizes(mFormat, mWidth, mHeight);
+        if (mFormat==ImageFormat.RAW_SENSOR && mPackRaw){
+            mRawHeader = ImageSaver.packedRawHeader(image, mCamChars, result);
+        }
+        mAccumulator = new FrameAccumulator(planes[0], planes[1], (mFormat==ImageFormat.RAW_SENSOR) ? 2 : 1,
+                maxSample(mFormat, mCamChars), mNumFrames, mKeepVariance, mPool, TILES_PER_WORKER*mNumWorkers);
+    }
+
+
+    /* boolean saveMerged()
+     *
+     * Save the merged frame, and the variance if kept, recording them in the manifest, journal and
+     * statistics as ImageSaver would. Returns whether it all went well.
+     */
+    private boolean saveMerged(){
+        if (!(SAVE_DIR.mkdir() || SAVE_DIR.isDirectory())){
+            Log.v(DevCam.APP_TAG,"Could not create/verify image directory " + SAVE_DIR);
+            return false;
+        }
+        Log.v(DevCam.APP_TAG, "Saving " + mFilename + ", merged from " + mAccumulator.getFrameCount() + " frames.");
+
+        FrameStatistics statistics = ImageSaver.newFrameStatistics(mFormat, mCamChars);
+        try {
+            Crc32c crc = new Crc32c();
+            long length = writeFile(mFilename, crc, statistics, false);
+            DesignManifest.Entry saved = new DesignManifest.Entry(mFilename, DesignManifest.WHOLE_FILE,
+                    length, crc.getValue(), mTimestamp);
+            if (mManifest!=null){
+                mManifest.add(saved);
+            }
+            if (mJournal!=null){
+                mJournal.frameSaved(mFilename, saved, null);
+            }
+            Log.v(DevCam.APP_TAG, "Frame statistics of " + mFilename + ": " + statistics);
+            if (mDesignStatistics!=null){
+                mDesignStatistics.add(mFilename, statistics);
+            }
+
+            if (mAccumulator.keepsVariance()){
+                String varianceName = varianceFilename(mFilename);
+                Crc32c varianceCrc = new Crc32c();
+                long varianceLength = writeFile(varianceName, varianceCrc, null, true);
+                if (mManifest!=null){
+                    mManifest.add(new DesignManifest.Entry(varianceName, DesignManifest.WHOLE_FILE,
+                            varianceLength, varianceCrc.getValue(), mTimestamp));
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+
+    private long writeFile(String filename, Crc32c crc, FrameStatistics statistics, boolean variance) throws IOException {
+        File file = new File(SAVE_DIR, filename);
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(file), 64*1024);
+        try {
+            OutputStream out = new CheckedOutputStream(output, crc);
+            if (variance){
+                mAccumulator.writeVariance(out);
+            } else {
+                writeMean(out, statistics);
+            }
+            out.flush();
+        } finally {
+            output.close();
+        }
+        return file.length();
+    }
+
+
+    /* void writeMean(OutputStream, FrameStatistics)
+     *
+     * Write the merged frame in the file format ImageSaver would write a frame of its format in.
+     */
+    private void writeMean(OutputStream output, FrameStatistics statistics) throws IOException {
+        if (mFormat==ImageFormat.RAW_SENSOR){
+            // DngCreator wants the samples in a direct buffer.
+            ByteBuffer samples = ByteBuffer.allocateDirect(2*mWidth*mHeight).order(ByteOrder.LITTLE_ENDIAN);
+            mAccumulator.getMean(0, samples);
+            if (mPackRaw){
+                PackedRawWriter packer = new PackedRawWriter();
+                packer.setStatistics(statistics);
+                packer.write(output, mRawHeader, samples, 2, 2*mWidth);
+            } else {
+                DngCreator dc = new DngCreator(mCamChars, mFirstResult);
+                dc.writeByteBuffer(output, new Size(mWidth, mHeight), samples, 0);
+                statistics.addRawPlane(samples, 2, 2*mWidth, mWidth, mHeight);
+            }
+            putProxy(ImageSaver.rawProxy(samples, 2, 2*mWidth, mWidth, mHeight, mCamChars));
+        } else {
+            ByteBuffer[] planes = new ByteBuffer[YuvFormat.NUM_PLANES];
+            int[] pixelStrides = new int[YuvFormat.NUM_PLANES];
+            int[] rowStrides = new int[YuvFormat.NUM_PLANES];
+            for (int p=0; p<YuvFormat.NUM_PLANES; p++){
+                planes[p] = ByteBuffer.allocate(mAccumulator.getWidth(p)*mAccumulator.getHeight(p));
+                mAccumulator.getMean(p, planes[p]);
+                pixelStrides[p] = 1;
+                rowStrides[p] = mAccumulator.getWidth(p);
+            }
+            YuvWriter yuvWriter = new YuvWriter(mYuvFlags);
+            yuvWriter.setStatistics(statistics);
+            yuvWriter.write(output, mWidth, mHeight, planes, pixelStrides, rowStrides);
+            putProxy(ProxyFrame.fromYuv(planes, pixelStrides, rowStrides, mWidth, mHeight,
+                    ProxyFrame.DEFAULT_MAX_SIZE));
+        }
+    }
+
+
+    // A merged frame without a proxy is still saved, so failing here is only logged.
+    private void putProxy(ProxyFrame proxy){
+        if (mProxyCache==null){
+            return;
+        }
+        try {
+            mProxyCache.put(mProxyDesign, 1, proxy);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.v(DevCam.APP_TAG, "Could not make a proxy of " + mFilename);
+        }
+    }
+
+}
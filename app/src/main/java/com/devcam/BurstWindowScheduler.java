@@ -0,0 +1,203 @@
+/* Helper class for capturing designs that are longer than the output ImageReaders can hold.
+ *
+ * An ImageReader can only hand out a fixed number of Images at once, and each one stays out until
+ * the ImageSaver has written and closed it. If a whole design is submitted as a single burst, any
+ * design with more frames than that stalls or crashes once the ImageReader runs out of buffers.
+ *
+ * Instead, DevCam asks the scheduler for the burst in "windows": consecutive runs of requests with
+ * no more design frames than there are free output buffers. Each time the user reports that the
+ * saver freed an output buffer, the scheduler checks whether enough buffers are free again to
+ * release the next window. In steady state the camera therefore captures exactly as fast as the
+ * saver can write, which is the fastest frame rate the device can sustain for the design.
+ *
+ * To keep from sending a burst for every single freed buffer, the next window waits until the
+ * saver has freed about MIN_WINDOW_PERIOD_NS worth of buffers at its measured throughput, bounded
+ * by half of the buffers.
+ */
+
+package com.devcam;
+
+import android.hardware.camera2.CaptureRequest;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class BurstWindowScheduler {
+
+    // Least time a window should cover at the saver's measured throughput.
+    final static long MIN_WINDOW_PERIOD_NS = 100000000L; // 100 ms
+    // Weight of the newest interval in the running average of the time between freed buffers.
+    final static double RATE_SMOOTHING = 0.2;
+
+    private int mCapacity = 0; // frames the output ImageReaders can hold, 0 = no flow control
+    private int mNumStreams = 1;
+
+    private List<CaptureRequest> mRequests = new ArrayList<CaptureRequest>();
+    private int mNextRequest;
+    private int mFreeFrames;
+    // Images freed of each output stream, keyed by ImageFormat, and how many whole frames they
+    // have been counted as so far: as many as the stream with the fewest freed.
+    private Map<Integer,Integer> mFreedImages = new HashMap<Integer,Integer>();
+    private int mFreedImageFrames;
+
+    private long mLastFreedTime = -1;
+    private double mFreeIntervalNs = -1; // running average time between freed frames
+
+    private int mNumWindows;
+
+
+    // - - Setters and Getters - -
+    void setCapacity(int capacity){
+        mCapacity = capacity;
+    }
+    boolean isEnabled(){
+        return mCapacity>0;
+    }
+    int getNumWindows(){
+        return mNumWindows;
+    }
+
+    /* double getSaveThroughput()
+     *
+     * Measured frames per second the saver frees output buffers at, or 0 if not measured yet.
+     */
+    double getSaveThroughput(){
+        return (mFreeIntervalNs>0)? 1e9/mFreeIntervalNs : 0;
+    }
+
+
+    /* void startBurst(List<CaptureRequest>, int)
+     *
+     * Take over the full list of requests of a design, to be handed out in windows. All output
+     * buffers are assumed free at this point.
+     */
+    void startBurst(List<CaptureRequest> requests, int numStreams){
+        mRequests = requests;
+        mNumStreams = Math.max(1,numStreams);
+        mNextRequest = 0;
+        mFreeFrames = mCapacity;
+        mFreedImages = new HashMap<Integer,Integer>();
+        mFreedImageFrames = 0;
+        mNumWindows = 0;
+    }
+
+    boolean hasMoreRequests(){
+        return mNextRequest<mRequests.size();
+    }
+
+
+    /* void releaseImage(int)
+     *
+     * Count one output Image of the stream of the given ImageFormat as closed. Every stream has an
+     * ImageReader of its own, so a frame's buffers are only all free again once the stream that has
+     * freed the fewest Images has freed one more, however many the other streams have freed.
+     */
+    void releaseImage(int format){
+        Integer freed = mFreedImages.get(format);
+        mFreedImages.put(format, (freed==null) ? 1 : freed+1);
+        if (mFreedImages.size()<mNumStreams){
+            return;
+        }
+        int leastFreed = Integer.MAX_VALUE;
+        for (int streamFreed : mFreedImages.values()){
+            leastFreed = Math.min(leastFreed, streamFreed);
+        }
+        while (mFreedImageFrames<leastFreed){
+            mFreedImageFrames++;
+            releaseFrame();
+        }
+    }
+
+
+    /* void releaseFrame()
+     *
+     * Count one frame's worth of output buffers as free again, e.g. because its capture failed and
+     * no Image will ever come, or because all its Images were written.
+     */
+    void releaseFrame(){
+        mFreeFrames = Math.min(mCapacity, mFreeFrames+1);
+
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (mLastFreedTime>=0){
+            long interval = now - mLastFreedTime;
+            mFreeIntervalNs = (mFreeIntervalNs<0)? interval
+                    : (1-RATE_SMOOTHING)*mFreeIntervalNs + RATE_SMOOTHING*interval;
+        }
+        mLastFreedTime = now;
+    }
+
+
+    /* List<CaptureRequest> nextWindow(boolean)
+     *
+     * The next run of requests to submit, or an empty list if it should wait for more buffers. The
+     * first window is released right away, later ones once enough buffers are free; pass whether
+     * the pipeline has gone idle, in which case whatever fits is released.
+     */
+    List<CaptureRequest> nextWindow(boolean idle){
+        List<CaptureRequest> window = new ArrayList<CaptureRequest>();
+        if (!hasMoreRequests()){
+            return window;
+        }
+
+        int remaining = countDesignFrames(mNextRequest, mRequests.size());
+        if (mNumWindows>0 && !idle && mFreeFrames<Math.min(remaining, releaseThreshold())){
+            return window;
+        }
+
+        int designFrames = 0;
+        while (mNextRequest<mRequests.size()){
+            CaptureRequest request = mRequests.get(mNextRequest);
+            // Stop before the next design frame, or its priming frames, would overrun the buffers.
+            if (designFrames==mFreeFrames){
+                break;
+            }
+            window.add(request);
+            if (!isPriming(request)){
+                designFrames++;
+            }
+            mNextRequest++;
+        }
+        mFreeFrames -= designFrames;
+        if (!window.isEmpty()){
+            mNumWindows++;
+            Log.v(DevCam.APP_TAG,"Releasing burst window " + mNumWindows + " of " + designFrames
+                    + " frames. Saver throughput: " + String.format("%.1f", getSaveThroughput()) + " fps.");
+        }
+        return window;
+    }
+
+
+    /* int releaseThreshold()
+     *
+     * How many buffers should be free before the next window is worth sending.
+     */
+    private int releaseThreshold(){
+        int threshold = Math.max(1, mCapacity/2);
+        if (mFreeIntervalNs>0){
+            int byThroughput = (int) Math.ceil(MIN_WINDOW_PERIOD_NS/mFreeIntervalNs);
+            threshold = Math.min(threshold, Math.max(1, byThroughput));
+        }
+        return threshold;
+    }
+
+    private int countDesignFrames(int from, int to){
+        int n = 0;
+        for (int i=from; i<to; i++){
+            if (!isPriming(mRequests.get(i))){
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static boolean isPriming(CaptureRequest request){
+        Object tag = request.getTag();
+        return (tag instanceof SettingsSyncScheduler.FrameTag)
+                && ((SettingsSyncScheduler.FrameTag) tag).priming;
+    }
+
+}
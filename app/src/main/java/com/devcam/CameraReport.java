@@ -54,11 +54,15 @@ import android.net.Uri;
 import android.util.JsonWriter;
 import android.util.Log;
 
+import com.devcam.io.DesignStatistics;
+import com.devcam.io.FrameStatistics;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.lang.reflect.Array;
 import java.text.DecimalFormat;
 import java.util.HashMap;
@@ -635,6 +639,28 @@ final public class CameraReport {
 
 
 
+    // Same as writeCaptureResultToFile(), but as a String, e.g. for storing the metadata of a
+    // frame right next to it in a container file.
+    static String captureResultToJson(CaptureResult result){
+        StringWriter string = new StringWriter();
+        try {
+            JsonWriter writer = new JsonWriter(string);
+            writer.beginObject();
+            for (CaptureResult.Key<?> key : result.getKeys()){
+                writer.name(key.getName());
+                writer.value(cameraConstantStringer(key.getName(),
+                        result.get(key)));
+            }
+            writer.endObject();
+            writer.close();
+        } catch (IOException ioe){
+            ioe.printStackTrace();
+        }
+        return string.toString();
+    }
+
+
+
     // Sometimes I want to write an array of CaptureResults to an array of
     // objects in a JSON.
     static void writeCaptureResultsToFile(List<CaptureResult> results,
@@ -683,6 +709,27 @@ final public class CameraReport {
     static void writeCaptureResultsToFile(List<CaptureResult> results,
                                           List<String> imageFileNames,
                                           File file){
+        writeCaptureResultsToFile(results, imageFileNames, null, file);
+    }
+
+    // Same, along with the brightness statistics gathered while saving the
+    // frames, if they are all saved by now. A frame's statistics go in its
+    // "devcam.frameStatistics" field, an object with one member per file of
+    // the frame.
+    static void writeCaptureResultsToFile(List<CaptureResult> results,
+                                          List<String> imageFileNames,
+                                          DesignStatistics statistics,
+                                          File file){
+        writeCaptureResultsToFile(results, imageFileNames, statistics, null, file);
+    }
+
+    // Same, and with "devcam.settingsApplied": false in the frames the settings
+    // sync report found not to have been captured with their requested settings.
+    static void writeCaptureResultsToFile(List<CaptureResult> results,
+                                          List<String> imageFileNames,
+                                          DesignStatistics statistics,
+                                          SettingsSyncScheduler.SettingsSyncReport syncReport,
+                                          File file){
 
         try{
             FileOutputStream fostream = new FileOutputStream(file);
@@ -696,6 +743,14 @@ final public class CameraReport {
                     writer.beginObject();
                     writer.name("Filename");
                     writer.value(imageFileNames.get(i));
+                    if (statistics!=null){
+                        writeFrameStatistics(writer, imageFileNames.get(i), statistics);
+                    }
+                    Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                    if (syncReport!=null && timestamp!=null && !syncReport.settingsApplied(timestamp)){
+                        writer.name("devcam.settingsApplied");
+                        writer.value(false);
+                    }
 
                     List<CaptureResult.Key<?>> keys = result.getKeys();
                     for (CaptureResult.Key<?> key : keys){
@@ -721,6 +776,44 @@ final public class CameraReport {
     }
 
 
+    private static void writeFrameStatistics(JsonWriter writer, String filenames,
+                                             DesignStatistics statistics) throws IOException {
+        boolean any = false;
+        for (String filename : filenames.split(",")){
+            FrameStatistics stats = statistics.get(filename);
+            if (stats==null){
+                continue;
+            }
+            if (!any){
+                writer.name("devcam.frameStatistics");
+                writer.beginObject();
+                any = true;
+            }
+            writer.name(filename);
+            writer.beginObject();
+            writer.name("count").value(stats.getCount());
+            writer.name("mean").value(stats.getMean());
+            writer.name("p1").value(stats.getPercentile(1));
+            writer.name("p5").value(stats.getPercentile(5));
+            writer.name("median").value(stats.getPercentile(50));
+            writer.name("p95").value(stats.getPercentile(95));
+            writer.name("p99").value(stats.getPercentile(99));
+            writer.name("clippedLowFraction").value(stats.getClippedLowFraction());
+            writer.name("clippedHighFraction").value(stats.getClippedHighFraction());
+            writer.name("histogram");
+            writer.beginArray();
+            for (long n : stats.getHistogram()){
+                writer.value(n);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        if (any){
+            writer.endObject();
+        }
+    }
+
+
     // Little conversion function to correctly format time units from
     // long value in ns to string representing ms.
     static public String nsToString(long ns){
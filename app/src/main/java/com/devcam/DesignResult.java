@@ -19,35 +19,57 @@
  * Once both elements are available and registered, the DesignResult generates a filename for the
  * frame capture and sends all three pieces back to the main activity thread for whatever action it
  * wants to take- generally writing out of the image via an ImageSaver object.
+ *
+ * A design may also be captured into several output streams at once, e.g. a RAW_SENSOR and a JPEG
+ * ImageReader, so that each frame yields both a DNG and a processed image. In that case every
+ * CaptureResult is paired with one Image from each stream, and each pair is passed on as soon as
+ * it is matched, so no stream waits on the others before its Image can be written and freed.
+ * Streams are told apart by their ImageFormat, so there should be one output stream per format.
+ * Completion is tracked per stream as well as for the design as a whole.
+ *
+ * The matching itself is done by a FramePairing, which has no Android types of its own, so the
+ * host can replay recorded captures through the same logic (see CaptureEventLog).
  */
 
 package com.devcam;
 
 import android.hardware.camera2.CaptureResult;
 import android.media.Image;
-import android.util.Log;
+
+import com.devcam.io.FramePairing;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Set;
+import java.util.TreeMap;
 
 public class DesignResult {
 
 	private int mDesignLength;
-	private List<CaptureResult> mCaptureResults = new CopyOnWriteArrayList<CaptureResult>();
-//	private Map<Long,CaptureResult> mCaptureResults = new HashMap<Long,CaptureResult>();
+	private List<CaptureResult> mCaptureResults = new ArrayList<CaptureResult>();
+    // Index of each frame within the design, by timestamp, as its CaptureResult was recorded.
+    private Map<Long,Integer> mFrameIndices = new HashMap<Long,Integer>();
 	private List<Long> mCaptureTimestamps = new ArrayList<Long>();
-	private List<Image> mImages = new CopyOnWriteArrayList<Image>();
-//	private Map<Long,Image> mImages = new HashMap<Long,Image>();
+	private Set<Long> mCaptureTimestampSet = new HashSet<Long>();
 	private OnCaptureAvailableListener mRegisteredListener;
-    private int mNumAssociated = 0;
+
+    // Matches the Images of each frame, from every output stream, with its CaptureResult.
+    private FramePairing<CaptureResult,Image> mPairing;
+    // Filenames each frame was written to, keyed by frame timestamp, sorted by stream format.
+    private Map<Long,Map<Integer,String>> mFilenames = new HashMap<Long,Map<Integer,String>>();
 
 	// - - - Constructor - - -
 	public DesignResult(int designLength, OnCaptureAvailableListener listener){
+		this(designLength, 1, listener);
+	}
+
+	public DesignResult(int designLength, int numStreams, OnCaptureAvailableListener listener){
 		mDesignLength = designLength;
 		mRegisteredListener = listener;
+		mPairing = new FramePairing<CaptureResult,Image>(designLength, numStreams, mPairingListener);
 	}
 
 
@@ -55,21 +77,37 @@ public class DesignResult {
 	public int getDesignLength(){
 		return mDesignLength;
 	}
-	public CaptureResult getCaptureResult(int i){
+	public synchronized CaptureResult getCaptureResult(int i){
 		return mCaptureResults.get(i);
 	}
-	public List<CaptureResult> getCaptureResults(){
-		return mCaptureResults;
+	public synchronized List<CaptureResult> getCaptureResults(){
+		return new ArrayList<CaptureResult>(mCaptureResults);
 	}
-    public Long getCaptureTimestamp(int i){
+    public synchronized Long getCaptureTimestamp(int i){
         return mCaptureTimestamps.get(i);
     }
+    public int getNumStreams(){
+        return mPairing.getNumStreams();
+    }
 
-	public void recordCaptureTimestamp(Long timestampID){
+    /* int getFrameIndex(CaptureResult)
+     *
+     * Index of a frame within the design, counting CaptureResults in the order they were recorded,
+     * which is the order in which they were captured. Images of the same frame from different
+     * streams share this index, so it can be used to give their files a common name. -1 if the
+     * result was not recorded.
+     */
+    public synchronized int getFrameIndex(CaptureResult result){
+        Integer index = mFrameIndices.get(result.get(CaptureResult.SENSOR_TIMESTAMP));
+        return (index==null) ? -1 : index;
+    }
+
+	public synchronized void recordCaptureTimestamp(Long timestampID){
 		mCaptureTimestamps.add(timestampID);
+		mCaptureTimestampSet.add(timestampID);
 	}
-	public boolean containsCaptureTimestamp(Long timestampID){
-		return mCaptureTimestamps.contains(timestampID);
+	public synchronized boolean containsCaptureTimestamp(Long timestampID){
+		return mCaptureTimestampSet.contains(timestampID);
 	}
 
 
@@ -82,26 +120,16 @@ public class DesignResult {
      * in.
      *
      */
-	public void recordCaptureResult(CaptureResult result){
+	public synchronized void recordCaptureResult(CaptureResult result){
+		Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+		mFrameIndices.put(timestamp, mCaptureResults.size());
 		mCaptureResults.add(result);
 		//Log.v(DevCamActivity.APP_TAG, mCaptureResults.size() + " CaptureResults Recorded.");
 
-		for (int i=0; i<mImages.size(); i++){
-			Log.v(DevCamActivity.APP_TAG,"Comparing with stored Image " + i);
-			if (mImages.get(i).getTimestamp()==result.get(CaptureResult.SENSOR_TIMESTAMP)){
-                // Send back to the main Activity.
-                if (null!=mRegisteredListener) {
-                    mRegisteredListener.onCaptureAvailable(mImages.get(i), result);
-                }
-				mImages.remove(i); // remove from List because we can't access this image once it is close()'d by the ImageSaver
-				//Log.v(DevCamActivity.APP_TAG,mImages.toString());
-
-                mNumAssociated++;
-				checkIfComplete();
-				return;
-			}
-		}
-		//Log.v(DevCamActivity.APP_TAG,"No existing Image found. Storing for later.");
+		// With several output streams there may be an Image waiting from each of them. Paired
+		// Images are dropped by the FramePairing, since they can't be accessed once the ImageSaver
+		// close()'s them.
+		mPairing.recordResult(result, timestamp);
 	}
 
 
@@ -113,53 +141,90 @@ public class DesignResult {
      * saved and the Image buffer freed ASAP. If not, record it for later for when the right
      * CaptureResult comes in.
      */
-	public void recordImage(Image image){
+	public synchronized void recordImage(Image image){
+		mPairing.recordImage(image, image.getTimestamp(), image.getFormat());
+	}
 
-        for (CaptureResult result : mCaptureResults){
-			if (result.get(CaptureResult.SENSOR_TIMESTAMP)==image.getTimestamp()){
 
-                // Send back to the main Activity.
-                if (null!=mRegisteredListener) {
-                    mRegisteredListener.onCaptureAvailable(image, result);
-                }
 
-                mNumAssociated++;
-				checkIfComplete();
-				//Log.v(DevCamActivity.APP_TAG,"Existing CaptureResult matched to Image. Writing out.");
-				return;
-			}
-		}
+    /* Passes matched Image/CaptureResult pairs back to the main Activity, along with the
+     * completion of each stream and of the whole design.
+     */
+    private final FramePairing.Listener<CaptureResult,Image> mPairingListener =
+            new FramePairing.Listener<CaptureResult,Image>() {
+        @Override
+        public void onPaired(Image image, CaptureResult result, int format){
+            if (null!=mRegisteredListener) {
+                mRegisteredListener.onCaptureAvailable(image, result);
+            }
+        }
+
+        @Override
+        public void onStreamCompleted(int format){
+            if (null!=mRegisteredListener) {
+                mRegisteredListener.onStreamCompleted(DesignResult.this, format);
+            }
+        }
 
-        // If there was no CaptureResult associated with this image yet, save it until one is.
-        mImages.add(image);
-		//Log.v(DevCamActivity.APP_TAG,"No existing CaptureResult found. Storing for later.");
-	}
+        /* Once all frames have been captured and paired, inform the main Activity class. */
+        @Override
+        public void onAllPaired(){
+            //Log.v(DevCamActivity.APP_TAG, "DesignResult: Capture Sequence Complete. Saving results. ");
+            if (null!=mRegisteredListener) {
+                mRegisteredListener.onAllCapturesReported(DesignResult.this);
+            }
+        }
+    };
 
 
 
-    /* void checkIfComplete()
+    /* void recordFilename(CaptureResult, int, String)
      *
-     * Function called whenever an Image/CaptureResult pair has been registered, associated, and
-     * passed out for writing to disk. Since a filename is created for that frame only once this
-     * happens, we use the length of the filename list to indicate how many frames of the total
-     * expected number have been captured/saved.
-     * Once all frames have been captured and saved, invoke the CaptureDesignCallback's onFinished()
-     * method to inform the main Activity class.
+     * Record the name of the file a frame's Image of the given format is written to, so the
+     * metadata file can point to all the files of each frame.
      */
+    public synchronized void recordFilename(CaptureResult result, int format, String filename){
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        Map<Integer,String> frameFilenames = mFilenames.get(timestamp);
+        if (frameFilenames==null){
+            frameFilenames = new TreeMap<Integer,String>();
+            mFilenames.put(timestamp, frameFilenames);
+        }
+        frameFilenames.put(format, filename);
+    }
 
-    private void checkIfComplete(){
-        if (mNumAssociated==mDesignLength){
-            //Log.v(DevCamActivity.APP_TAG, "DesignResult: Capture Sequence Complete. Saving results. ");
-            if (null!=mRegisteredListener) {
-                mRegisteredListener.onAllCapturesReported(this);
+
+    /* List<String> getFilenames()
+     *
+     * The filenames of each frame, in the same order as getCaptureResults(). If a frame was written
+     * into several files, one per stream, their names are separated by commas.
+     */
+    public synchronized List<String> getFilenames(){
+        List<String> filenames = new ArrayList<String>();
+        for (CaptureResult result : mCaptureResults){
+            Map<Integer,String> frameFilenames = mFilenames.get(result.get(CaptureResult.SENSOR_TIMESTAMP));
+            if (frameFilenames==null){
+                filenames.add("");
+                continue;
+            }
+            StringBuilder names = new StringBuilder();
+            for (String name : frameFilenames.values()){
+                if (names.length()>0){
+                    names.append(",");
+                }
+                names.append(name);
             }
+            filenames.add(names.toString());
         }
+        return filenames;
     }
 
 
 
 	static public abstract class OnCaptureAvailableListener{
 		public void onCaptureAvailable(Image image, CaptureResult result){};
+        // Every frame of the design has been paired for the output stream of this ImageFormat.
+        public void onStreamCompleted(DesignResult designResult, int format){};
         public void onAllCapturesReported(DesignResult designResult){};
 	}
 
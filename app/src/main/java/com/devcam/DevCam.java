@@ -20,8 +20,10 @@ import android.view.Surface;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -47,11 +49,11 @@ final public class DevCam {
     private boolean outstandingSessionRequest;
     private boolean awaitingCaptureSession;
 
-    // Keep track of the single DevCam instance that is allowed
-    static private DevCam mInstance = null;
+    // Keep track of the DevCam instances that are allowed, one per camera device ID
+    static private final Map<String,DevCam> sInstances = new HashMap<String,DevCam>();
 
     private Context mContext;
-    private String mBackCamId;
+    private String mCameraId;
 
     // Keep track of a callback handler the user must have created.
     private DevCamListener mRegisteredCallback;
@@ -80,6 +82,15 @@ final public class DevCam {
     private boolean mHasPostProcessingControl = false;
     private boolean mReadyFlag = false; // is the DevCam ready for accepting CaptureDesigns?
 
+    // Decides how many unsaved priming frames to put in front of a change of settings, based on
+    // the device's reported settings latency, and checks the results of the saved frames.
+    private SettingsSyncScheduler mSyncScheduler;
+    // Whether to prime at all, kept here too since the scheduler only exists once the camera is open.
+    private boolean mPrimingEnabled = true;
+    // The settings the preview was last seen to run with, which the first Exposure of a burst
+    // changes from.
+    private volatile CaptureResult mLastPreviewResult;
+
 
 
     // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
@@ -225,6 +236,7 @@ final public class DevCam {
                 public void onCaptureCompleted(CameraCaptureSession session,
                                                CaptureRequest request, TotalCaptureResult result){
 //                    Log.v(APP_TAG,"Preview Image ready!");
+                    mLastPreviewResult = result;
                     // Send the auto values back to the main thread for display
                     Message msg =  mMainHandler.obtainMessage(AUTO_RESULTS,result);
                     msg.sendToTarget();
@@ -296,6 +308,13 @@ final public class DevCam {
         void onCaptureSequenceCompleted(){
             Log.v(APP_TAG,"DevCam.StateCallback.onCaptureSequenceCompleted() called.");
         };
+
+        // Once the last frame of the burst has reported back, and before its CaptureResult is
+        // passed on via onCaptureCompleted(), this reports how many priming frames the design
+        // needed and which of its exposures were not captured with the requested settings.
+        void onSettingsSyncReport(SettingsSyncScheduler.SettingsSyncReport report){
+            Log.v(APP_TAG,"DevCam.StateCallback.onSettingsSyncReport() called. " + report);
+        };
     }
 
 
@@ -312,17 +331,71 @@ final public class DevCam {
      *
      */
     static public CameraCharacteristics getCameraCharacteristics(Context context){
+        return getCameraCharacteristics(context, getBackCameraId(context));
+    }
+
+
+    /**
+     * Get the CameraCharacteristics of a specific camera device.
+     *
+     * @param context The Context of the application, usually just the Activity itself.
+     * @param cameraId The ID of the camera device, as listed by getCameraIds().
+     *
+     * @return CameraCharacteristics instance for that camera, or null if it could not be accessed.
+     */
+    static public CameraCharacteristics getCameraCharacteristics(Context context, String cameraId){
         CameraManager cm = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
-        String backCamId;
         CameraCharacteristics camChars = null;
+        try {
+            camChars = cm.getCameraCharacteristics(cameraId);
+        }
+        catch (CameraAccessException cae) {
+            // If we couldn't load the camera, that's a bad sign. Just quit.
+            Log.v(APP_TAG, "Error loading CameraDevice");
+            cae.printStackTrace();
+        }
+        return camChars;
+    }
+
+
+    /**
+     * Get the IDs of all camera devices on this device, each of which can be driven by its own
+     * DevCam instance.
+     *
+     * @param context The Context of the application, usually just the Activity itself.
+     *
+     * @return Array of camera IDs, empty if the cameras could not be listed.
+     */
+    static public String[] getCameraIds(Context context){
+        CameraManager cm = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            return cm.getCameraIdList();
+        } catch (CameraAccessException cae) {
+            Log.v(APP_TAG, "Error listing CameraDevices");
+            cae.printStackTrace();
+            return new String[0];
+        }
+    }
+
+
+    /**
+     * Get the ID of the camera DevCam uses by default: the first backward facing one, or the last
+     * camera listed if there is none.
+     *
+     * @param context The Context of the application, usually just the Activity itself.
+     *
+     * @return The ID of the default camera, or null if the cameras could not be listed.
+     */
+    static public String getBackCameraId(Context context){
+        CameraManager cm = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        String backCamId = null;
         try {
             // ASSUMING there is one backward facing camera, and that it is the
-            // device we want to use, find the ID for it and its capabilities.
+            // device we want to use, find the ID for it.
             String[] deviceList = cm.getCameraIdList();
             for (int i=0; i<deviceList.length; i++){
                 backCamId = deviceList[i];
-                camChars = cm.getCameraCharacteristics(backCamId);
-                if (camChars.get(CameraCharacteristics.LENS_FACING)
+                if (cm.getCameraCharacteristics(backCamId).get(CameraCharacteristics.LENS_FACING)
                         == CameraMetadata.LENS_FACING_BACK){
                     break;
                 }
@@ -333,7 +406,7 @@ final public class DevCam {
             Log.v(APP_TAG, "Error loading CameraDevice");
             cae.printStackTrace();
         }
-        return camChars;
+        return backCamId;
     }
 
 
@@ -408,8 +481,9 @@ final public class DevCam {
 
 
     /**
-     * Generate and return a DevCam instance for the main Activity to use. DevCam uses a singular-
-     * instance model and future calls to this function will only return the same DevCam reference.
+     * Generate and return a DevCam instance for the main Activity to use, driving the backward
+     * facing camera. DevCam uses a single-instance-per-camera model and future calls to this
+     * function will only return the same DevCam reference.
      *
      * @param context The Context of the application, typically the Activity itself.
      * @param callback A DevCam.StateCallback instance to register with the DevCam
@@ -418,16 +492,46 @@ final public class DevCam {
      *
      */
     static public DevCam getInstance(Context context,DevCamListener callback){
-        if (mInstance==null){
-            mInstance = new DevCam(context,callback);
-            Log.v(APP_TAG," * New DevCam instance created! *");
+        return getInstance(context, getBackCameraId(context), callback);
+    }
+
+
+    /**
+     * Generate and return the DevCam instance for a specific camera device. Each instance has its
+     * own CameraDevice, CameraCaptureSession and background thread, so instances for different
+     * cameras can capture concurrently without waiting on each other.
+     *
+     * @param context The Context of the application, typically the Activity itself.
+     * @param cameraId The ID of the camera device, as listed by getCameraIds().
+     * @param callback A DevCam.StateCallback instance to register with the DevCam
+     *
+     * @return The single DevCam instance for that camera.
+     */
+    static public DevCam getInstance(Context context, String cameraId, DevCamListener callback){
+        DevCam instance = sInstances.get(cameraId);
+        if (instance==null){
+            instance = new DevCam(context,cameraId,callback);
+            sInstances.put(cameraId,instance);
+            Log.v(APP_TAG," * New DevCam instance created for camera " + cameraId + "! *");
         } else {
-            Log.v(APP_TAG," * Returning old DevCam instance. *");
+            Log.v(APP_TAG," * Returning old DevCam instance for camera " + cameraId + ". *");
         }
-        return mInstance;
+        return instance;
     }
 
 
+    /**
+     * Get the ID of the camera device this DevCam drives.
+     */
+    public String getCameraId(){return mCameraId;}
+
+
+    /**
+     * Get the CameraCharacteristics of the camera device this DevCam drives.
+     */
+    public CameraCharacteristics getCameraCharacteristics(){return mCamChars;}
+
+
 
 
     /**
@@ -439,6 +543,25 @@ final public class DevCam {
     public boolean isReady(){return mReadyFlag;}
 
 
+    /**
+     * Choose whether DevCam inserts unsaved priming frames into a burst whenever the exposure
+     * settings change, so that devices which apply settings with some frames of latency still
+     * capture each saved frame with its requested settings. On by default.
+     *
+     * <p>The number of priming frames per change comes from android.sync.maxLatency. If the latency
+     * is unknown, it is what earlier designs showed the changes to take, or until then
+     * android.request.pipelineMaxDepth. Devices with per-frame control never need any.</p>
+     *
+     * @param enabled Whether to insert priming frames.
+     */
+    public void setSettingsPrimingEnabled(boolean enabled){
+        mPrimingEnabled = enabled;
+        if (mSyncScheduler!=null) {
+            mSyncScheduler.setPrimingEnabled(enabled);
+        }
+    }
+
+
     /**
      * Provide a list of output Surfaces to receive frame data from every preview image generated
      * by DevCam. This overrides any previously registered preview target surfaces.
@@ -489,6 +612,41 @@ final public class DevCam {
 
 
 
+    /**
+     * Tell DevCam how many frames the output Surfaces can hold at once, i.e. the number of Images
+     * each output ImageReader can have acquired. Designs with more frames than that are then
+     * captured in windows which are released as output buffers get freed, see releaseOutputImage().
+     *
+     * <p>Pass 0 to capture every design as a single burst again, which is the default.</p>
+     *
+     * @param frames Number of frames the output ImageReaders can hold, or 0.
+     */
+    public void setOutputBufferCapacity(int frames){
+        mWindowScheduler.setCapacity(frames);
+    }
+
+
+    /**
+     * Report that an Image from one of the output Surfaces has been closed, e.g. once it has been
+     * written out, so its buffer can be used for another frame. Only needed if an output buffer
+     * capacity was set. Can be called from any thread.
+     *
+     * @param format ImageFormat of the Image, telling which output Surface's buffer was freed.
+     */
+    public void releaseOutputImage(final int format){
+        if (mBackgroundHandler!=null) {
+            mBackgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mWindowScheduler.releaseImage(format);
+                    submitNextWindow();
+                }
+            });
+        }
+    }
+
+
+
     /**
      * Begins the process for capturing the desired set of exposures as a burst.
      *
@@ -503,6 +661,56 @@ final public class DevCam {
      *
      */
     public void capture(CaptureDesign design){
+        mStreaming = false;
+        startCapture(design);
+    }
+
+
+
+    /**
+     * Begins capturing the desired set of exposures over and over as a repeating burst, e.g. two
+     * alternating exposures for HDR video, until one of the given limits is reached or
+     * stopStreaming() is called.
+     *
+     * <p>Design frames are reported through onCaptureStarted() and onCaptureCompleted() as with
+     * capture(), but with no end known ahead of time, so they should be collected with a
+     * StreamingCapture rather than a DesignResult. onCaptureSequenceCompleted() is called once the
+     * last frame of the stream has been reported. Any auto values of the design are determined once,
+     * at the start of the stream, and the pipeline is primed with its first exposure's settings once
+     * as well, so changes of settings within the stream show up in the SettingsSyncReport instead.
+     * Frames past maxFrames that were already in flight are not reported.</p>
+     *
+     * @param design The sequence of exposures to cycle through, as a CaptureDesign.
+     * @param maxFrames Number of design frames after which to stop, or 0 for no limit.
+     * @param maxDurationMs Milliseconds after which to stop, or 0 for no limit.
+     */
+    public void captureStreaming(CaptureDesign design, int maxFrames, long maxDurationMs){
+        mStreaming = true;
+        mStreamFrameLimit = maxFrames;
+        mStreamDurationLimitMs = maxDurationMs;
+        startCapture(design);
+    }
+
+
+
+    /**
+     * Stop a stream started with captureStreaming(). Frames already in flight are still reported,
+     * followed by onCaptureSequenceCompleted().
+     */
+    public void stopStreaming(){
+        if (mBackgroundHandler!=null){
+            mBackgroundHandler.post(mStopStreamRunnable);
+        }
+    }
+
+
+
+    /* void startCapture(CaptureDesign)
+     *
+     * Common start of both single and streaming captures: check the DevCam can capture the design
+     * and go through the auto-routines if the design needs them.
+     */
+    private void startCapture(CaptureDesign design){
 
         mDesign = design;
 
@@ -616,31 +824,23 @@ final public class DevCam {
 
 
     /**
-     * DevCam constructor, private to enforce single instance rule. Requires a Context in order to
-     * access CameraManager, and a DevCamListener in order to know where to send relevant
-     * information, since a DevCam cannot exist in a void.
+     * DevCam constructor, private to enforce single instance per camera rule. Requires a Context in
+     * order to access CameraManager, the ID of the camera to drive, and a DevCamListener in order
+     * to know where to send relevant information, since a DevCam cannot exist in a void.
      *
      * @param context
+     * @param cameraId
      * @param callback
      */
-    private DevCam(Context context,DevCamListener callback){
+    private DevCam(Context context,String cameraId,DevCamListener callback){
         mContext = context;
+        mCameraId = cameraId;
         mRegisteredCallback = callback;
 
-        // Find the ID for the camera we are going to use, but don't try to access it yet.
+        // Find the capabilities of the camera we are going to use, but don't try to access it yet.
         CameraManager cm = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
         try {
-            // ASSUMING there is one backward facing camera, and that it is the
-            // device we want to use, find the ID for it and its capabilities.
-            String[] deviceList = cm.getCameraIdList();
-            for (int i=0; i<deviceList.length; i++){
-                mBackCamId = deviceList[i];
-                mCamChars = cm.getCameraCharacteristics(mBackCamId);
-                if (mCamChars.get(CameraCharacteristics.LENS_FACING)
-                        == CameraMetadata.LENS_FACING_BACK){
-                    break;
-                }
-            }
+            mCamChars = cm.getCameraCharacteristics(mCameraId);
 
             // Catch inadequate cameras, those which will not allow manual setting of exposure
             // settings and/or processing settings
@@ -657,6 +857,9 @@ final public class DevCam {
                 mRegisteredCallback.onCameraDeviceError(INADEQUATE_CAMERA);
                 // SOMETHING ELSE HERE TO MAKE SURE CAMERA ISN'T ACTUALLY USED? Sloppy, fix this
             }
+
+            mSyncScheduler = new SettingsSyncScheduler(mCamChars);
+            mSyncScheduler.setPrimingEnabled(mPrimingEnabled);
         }
         catch (CameraAccessException cae) {
             // If we couldn't load the camera, that's a bad sign. Just quit.
@@ -722,7 +925,7 @@ final public class DevCam {
         // Set up background threads so as not to block the main UI thread.
         // One for all the camera callbacks.
         if (null==mBackgroundThread){
-            mBackgroundThread = new HandlerThread("devCam CameraBackground");
+            mBackgroundThread = new HandlerThread("devCam CameraBackground " + mCameraId);
             mBackgroundThread.start();
             mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
         }
@@ -746,7 +949,7 @@ final public class DevCam {
             if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
                 throw new RuntimeException("Time out waiting to lock camera opening.");
             }
-            cm.openCamera(mBackCamId, CDSC, mBackgroundHandler);
+            cm.openCamera(mCameraId, CDSC, mBackgroundHandler);
             Log.v(APP_TAG, "Trying to open camera...");
         }
         catch (CameraAccessException cae) {
@@ -874,6 +1077,9 @@ final public class DevCam {
 
 
     private int mNumCaptured;
+    private int mBurstLength; // Number of requests in the burst, including priming frames
+    private int mNumSubmitted; // Number of requests of the burst submitted so far, see submitNextWindow()
+    private final BurstWindowScheduler mWindowScheduler = new BurstWindowScheduler();
     private CaptureRequest.Builder mCaptureCRB;
 
     // State variable and possible static values for the auto-focus/exposure state machine
@@ -886,6 +1092,17 @@ final public class DevCam {
 
     private CaptureDesign mDesign;
 
+    // State of a streaming capture, see captureStreaming().
+    private boolean mStreaming;
+    private int mStreamFrameLimit;
+    private long mStreamDurationLimitMs;
+    private int mStreamFramesStarted;
+    private int mStreamFramesCompleted;
+    // Timestamp of the last frame within the frame limit, once it has started, or -1.
+    private long mStreamLastTimestamp;
+    private int mStreamSequenceId;
+    private boolean mStreamStopRequested;
+
 
 
     /* void captureSequenceBurst()
@@ -907,6 +1124,8 @@ final public class DevCam {
 
         Log.v(DevCamActivity.APP_TAG, "- - - - - Capturing Exposure Sequence as a Burst.");
         List<CaptureRequest> burstRequests = new ArrayList<CaptureRequest>();
+        // A stream is only primed once, ahead of its repeating burst, rather than on every cycle.
+        List<CaptureRequest> streamPrimingRequests = new ArrayList<CaptureRequest>();
 
         // Though some of them may have been originally derived from the scene, all parameter values
         // are now explicitly set. So make sure control modes are both OFF (leave AWB on)
@@ -918,7 +1137,12 @@ final public class DevCam {
             mCaptureCRB.addTarget(s);
         }
 
+        mSyncScheduler.startDesign(design);
+
         Iterator<Exposure> localExposureIt = design.getExposures().iterator();
+        Exposure previous = null;
+        CaptureResult preview = mLastPreviewResult;
+        int exposureIndex = 0;
         while (localExposureIt.hasNext()){
             Exposure next = localExposureIt.next();
             // don't change *_MODE settings, just values, to avoid state resets
@@ -928,10 +1152,73 @@ final public class DevCam {
             mCaptureCRB.set(CaptureRequest.LENS_FOCAL_LENGTH, next.getFocalLength());
             mCaptureCRB.set(CaptureRequest.LENS_FOCUS_DISTANCE, next.getFocusDistance());
 
+            // If the settings just changed and the device takes some frames to apply them, first
+            // push the new settings through the pipeline with frames that only go to the preview
+            // Surfaces, so they are never paired with an Image and saved.
+            // Each frame is tagged with how far after the change it is, so the results can show
+            // how many frames the change really took, if the change is large enough to be seen in
+            // them. The first exposure changes from the preview's settings, as last reported.
+            // A stream only primes its first exposure: priming the changes within it would be
+            // repeated on every cycle, and its design frames are checked all the same.
+            int nPriming = (mStreaming && previous!=null) ? 0 : mSyncScheduler.primingFramesFor(previous, next);
+            Exposure before = (previous!=null) ? previous : (preview!=null) ? new Exposure(preview) : null;
+            boolean observable = SettingsSyncScheduler.observableChange(before, next);
+            if (nPriming>0) {
+                for (Surface s : mOutputSurfaces){
+                    mCaptureCRB.removeTarget(s);
+                }
+                for (int i=0; i<nPriming; i++){
+                    mCaptureCRB.setTag(new SettingsSyncScheduler.FrameTag(exposureIndex, true, observable ? i : -1));
+                    (mStreaming ? streamPrimingRequests : burstRequests).add(mCaptureCRB.build());
+                }
+                for (Surface s : mOutputSurfaces){
+                    mCaptureCRB.addTarget(s);
+                }
+            }
+
+            // The first exposure of a stream comes after the priming only once, and after the last
+            // exposure on every other cycle, so it is left out of the latency learned.
+            int sinceChange = observable ? nPriming : -1;
+            if (mStreaming && previous==null){
+                sinceChange = -1;
+            }
+            mCaptureCRB.setTag(new SettingsSyncScheduler.FrameTag(exposureIndex, false, sinceChange));
             burstRequests.add(mCaptureCRB.build());
+
+            previous = next;
+            exposureIndex++;
         }
+        mBurstLength = burstRequests.size();
+        Log.v(DevCamActivity.APP_TAG, "Burst of " + design.getExposures().size() + " exposures uses "
+                + (mBurstLength + streamPrimingRequests.size() - design.getExposures().size()) + " priming frames.");
 
         try {
+            if (mStreaming) {
+                // Prime the first exposure once, then cycle the burst until told to stop. Captures
+                // go ahead of a repeating burst, so the priming frames come first. Frames are
+                // counted as they start, while a duration limit is simply a timer.
+                Log.v(DevCamActivity.APP_TAG, "Streaming the burst as a repeating burst.");
+                mStreamFramesStarted = 0;
+                mStreamFramesCompleted = 0;
+                mStreamLastTimestamp = -1;
+                mStreamStopRequested = false;
+                if (!streamPrimingRequests.isEmpty()) {
+                    mCaptureSession.captureBurst(streamPrimingRequests, streamCCB, mBackgroundHandler);
+                }
+                mStreamSequenceId = mCaptureSession.setRepeatingBurst(burstRequests, streamCCB, mBackgroundHandler);
+                if (mStreamDurationLimitMs>0) {
+                    mBackgroundHandler.postDelayed(mStopStreamRunnable, mStreamDurationLimitMs);
+                }
+                return;
+            }
+            // If the output can't hold the whole burst, hand it to the camera a window at a time.
+            if (mWindowScheduler.isEnabled()) {
+                mWindowScheduler.startBurst(burstRequests, mOutputSurfaces.size());
+                mNumSubmitted = 0;
+                submitNextWindow();
+                return;
+            }
+            mNumSubmitted = mBurstLength;
             mCaptureSession.captureBurst(burstRequests,frameCCB, mBackgroundHandler);
         } catch (CameraAccessException cae) {
             cae.printStackTrace();
@@ -944,6 +1231,34 @@ final public class DevCam {
 
 
 
+    /* void submitNextWindow()
+     *
+     * Submit the next window of the current burst, if there are output buffers enough for it. Called
+     * whenever a buffer is freed or a frame completes, on the background thread.
+     */
+    private void submitNextWindow(){
+        if (mBurstLength==0 || mStreaming || !mWindowScheduler.hasMoreRequests()){
+            return;
+        }
+        boolean idle = (mNumCaptured==mNumSubmitted);
+        List<CaptureRequest> window = mWindowScheduler.nextWindow(idle);
+        if (window.isEmpty()){
+            return;
+        }
+        try {
+            mNumSubmitted += window.size();
+            mCaptureSession.captureBurst(window, frameCCB, mBackgroundHandler);
+        } catch (CameraAccessException cae) {
+            cae.printStackTrace();
+            mRegisteredCallback.onCameraDeviceError(CAE);
+            mReadyFlag = true;
+        }
+    }
+
+
+
+
+
     /* CaptureRequest.Builder makeDesignCrb(CameraDevice)
      *
      * Creates the CaptureRequest.Builder for our capture process, assigning the relevant processing
@@ -1130,6 +1445,11 @@ final public class DevCam {
             // so that later steps, such as the ImageReader, can identify which images are wanted
             // and which are from the auto-convergence process.
 
+            // Priming frames are not part of the design, so the user never hears about them.
+            if (isPrimingFrame(request)){
+                return;
+            }
+
             mRegisteredCallback.onCaptureStarted(timestamp);
 
             //mDesign.getDesignResult().recordCaptureTimestamp(timestamp);  *** put outside this class
@@ -1140,21 +1460,43 @@ final public class DevCam {
                                        CaptureRequest request, TotalCaptureResult result){
             Log.v(DevCamActivity.APP_TAG,"Frame capture completed, capture metadata available.");
 
-            // Store the result for later matching with an Image and writing out
+            mNumCaptured++;
+            boolean lastFrame = (mNumCaptured==mBurstLength);
+
+            // Priming frames only get counted, and are otherwise forgotten about. Design frames get
+            // their reported settings checked against what was requested.
+            boolean priming = isPrimingFrame(request);
+            if (priming){
+                mSyncScheduler.recordPrimingFrame((SettingsSyncScheduler.FrameTag) request.getTag(), result);
+            } else {
+                mSyncScheduler.verifyResult((SettingsSyncScheduler.FrameTag) request.getTag(), result);
+            }
 
-            mRegisteredCallback.onCaptureCompleted(result);
+            // Make sure the report is out before the last result is, since that can be what
+            // completes the DesignResult.
+            if (lastFrame){
+                mRegisteredCallback.onSettingsSyncReport(mSyncScheduler.getReport());
+            }
+
+            // Store the result for later matching with an Image and writing out
+            if (!priming) {
+                mRegisteredCallback.onCaptureCompleted(result);
+            }
 //            mDesign.getDesignResult().recordCaptureResult(result);  *** put outside this class
 
             // If we have just captured the last image in the sequence, we can skip the following
             // code and return here. The camera device is done for the time being, and the whole
             // capturing process will signal its end from the DesignResult object when the last
             // Image/CaptureResult pair has been recorded and written out.
-            mNumCaptured++;
-            if (mNumCaptured==mDesign.getExposures().size()){
+            if (lastFrame){
                 Log.v(DevCamActivity.APP_TAG,"That was the last exposure to capture!");
                 captureCleanup();
                 return;
             }
+
+            // If the burst is going out in windows and the camera just ran dry, see if the next
+            // one fits now.
+            submitNextWindow();
         }
 
         @Override
@@ -1165,7 +1507,7 @@ final public class DevCam {
             // SLOPPY, NEED TO FIX, so that it doesn't refer to a DIR it doesn't know exists
 
             // If the capture failed, write out a JSON file with the metadata about it.
-            File file = new File(DevCamActivity.APP_DIR,"Failed_CaptureRequest_"+".json");
+            File file = new File(DevCamActivity.APP_DIR,"Failed_CaptureRequest_"+mCameraId+".json");
 
             CameraReport.writeCaptureRequestToFile(request, file);
 
@@ -1176,15 +1518,127 @@ final public class DevCam {
 
             //Also let the CaptureDesign know not to wait any more for this frame.
             mNumCaptured++;
-            if (mNumCaptured==mDesign.getExposures().size()){
+            if (isPrimingFrame(request)){
+                mSyncScheduler.recordPrimingFrame((SettingsSyncScheduler.FrameTag) request.getTag(), null);
+            } else if (!failure.wasImageCaptured()){
+                // No Image will come to take up and later free the output buffers of this frame.
+                mWindowScheduler.releaseFrame();
+            }
+            if (mNumCaptured==mBurstLength){
                 Log.v(DevCamActivity.APP_TAG,"That was the last exposure to capture!");
+                mRegisteredCallback.onSettingsSyncReport(mSyncScheduler.getReport());
+                captureCleanup();
+                return;
+            }
+            submitNextWindow();
+        }
+    };
+
+
+    /* CaptureCallback for the frames of a repeating burst started by captureStreaming(). Works like
+     * frameCCB, except that the end of the capture is set by the frame/duration limits or a stop
+     * command, and comes with the end of the repeating sequence.
+     */
+    private CameraCaptureSession.CaptureCallback streamCCB = new CameraCaptureSession.CaptureCallback() {
+        // Note this callback will be running on background thread.
+
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber){
+            // Frames still in flight after reaching the frame limit are not part of the stream.
+            if (isPrimingFrame(request) || mStreamLastTimestamp>=0){
+                return;
+            }
+            mStreamFramesStarted++;
+            mRegisteredCallback.onCaptureStarted(timestamp);
+
+            // Stop as soon as the last frame is under way, rather than once it is done, so fewer
+            // frames past the limit are captured only to be dropped.
+            if (mStreamFrameLimit>0 && mStreamFramesStarted==mStreamFrameLimit){
+                Log.v(DevCamActivity.APP_TAG,"Reached the frame limit of the stream.");
+                mStreamLastTimestamp = timestamp;
+                mStopStreamRunnable.run();
+            }
+        }
+
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session,
+                                       CaptureRequest request, TotalCaptureResult result){
+            if (isPrimingFrame(request)){
+                mSyncScheduler.recordPrimingFrame((SettingsSyncScheduler.FrameTag) request.getTag(), result);
+                return;
+            }
+
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (mStreamLastTimestamp>=0 && timestamp!=null && timestamp>mStreamLastTimestamp){
+                return;
+            }
+
+            mSyncScheduler.verifyResult((SettingsSyncScheduler.FrameTag) request.getTag(), result);
+            mStreamFramesCompleted++;
+            mRegisteredCallback.onCaptureCompleted(result);
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session,
+                                    CaptureRequest request, CaptureFailure failure){
+            Log.v(DevCamActivity.APP_TAG,"!!! Frame capture failure while streaming. Reason: " + failure.getReason());
+            if (isPrimingFrame(request)){
+                mSyncScheduler.recordPrimingFrame((SettingsSyncScheduler.FrameTag) request.getTag(), null);
+            }
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(CameraCaptureSession session, int sequenceId, long frameNumber){
+            if (sequenceId==mStreamSequenceId){
+                Log.v(DevCamActivity.APP_TAG,"Stream completed after " + mStreamFramesCompleted + " frames.");
+                mRegisteredCallback.onSettingsSyncReport(mSyncScheduler.getReport());
                 captureCleanup();
+            }
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(CameraCaptureSession session, int sequenceId){
+            if (sequenceId==mStreamSequenceId){
+                Log.v(DevCamActivity.APP_TAG,"Stream aborted before any frames were captured.");
+                mRegisteredCallback.onSettingsSyncReport(mSyncScheduler.getReport());
+                captureCleanup();
+            }
+        }
+    };
+
+
+    /* Ends the repeating burst of a stream. Always runs on the background thread, so it doesn't race
+     * with the capture callbacks.
+     */
+    private final Runnable mStopStreamRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mStreaming || mReadyFlag || mStreamStopRequested || mCaptureSession==null){
                 return;
             }
+            mStreamStopRequested = true;
+            mBackgroundHandler.removeCallbacks(this);
+            try {
+                Log.v(DevCamActivity.APP_TAG,"Stopping the stream.");
+                mCaptureSession.stopRepeating();
+            } catch (CameraAccessException cae){
+                cae.printStackTrace();
+                mRegisteredCallback.onCameraDeviceError(CAE);
+            }
         }
     };
 
 
+    /**
+     * Whether a CaptureRequest of the current burst only primes the pipeline with new settings.
+     */
+    private boolean isPrimingFrame(CaptureRequest request){
+        Object tag = request.getTag();
+        return (tag instanceof SettingsSyncScheduler.FrameTag)
+                && ((SettingsSyncScheduler.FrameTag) tag).priming;
+    }
+
+
     /**
      * Perform clean-up methods to restore standard state of DevCam after a CaptureDesign has been
      * fully captured.
@@ -1193,8 +1647,11 @@ final public class DevCam {
         Log.v(APP_TAG,"*internal* DevCam.captureCleanup() called.");
         mReadyFlag = true; // The device is now ready for capture again
         mNumCaptured = 0;
+        mBurstLength = 0;
+        mNumSubmitted = 0;
         mDesign = null;
         state = null;
+        mStreaming = false;
 
         mRegisteredCallback.onCaptureSequenceCompleted();
 
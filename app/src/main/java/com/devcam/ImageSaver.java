@@ -4,33 +4,111 @@
  * to close those images to free the buffers so future images can be saved.
  *
  * Saves JPEG format images as .jpg
- *       RAW_SENSOR format images as .dng (using the DngCreator class)
- *       YUV_420_888 format images as our own .yuv class.
+ *       RAW_SENSOR format images as .dng (using the DngCreator class), or optionally as our own
+ *           bit-packed .praw class (see PackedRawFormat), at the bit depth of the sensor
+ *       YUV_420_888 format images as our own .yuv class (see YuvFormat), by default with the row
+ *           padding of the planes dropped.
+ *
+ * Instead of each into a file of its own, frames can also be appended to a single container file
+ * for the whole design (see BurstContainer), along with their CaptureResult metadata. The bytes
+ * written for a frame are the same either way.
+ *
+ * A CRC-32C checksum is computed over the frame's bytes as they are written, and recorded along
+ * with their length in the design's manifest, if one was given (see DesignManifest).
+ *
+ * RAW_SENSOR and YUV_420_888 frames saved to files of their own can also be losslessly compressed
+ * on a pool of worker threads on the way out (see CompressedFrame). The filename should then end in
+ * CompressedFrame.EXTENSION. The checksum is of the compressed bytes, as they are in the file.
+ *
+ * In the same pass that writes a RAW_SENSOR or YUV_420_888 frame, its brightness statistics are
+ * gathered (see FrameStatistics), and recorded in the design's statistics, if given, and in the
+ * frame's metadata record in the container.
+ *
+ * If given a ProxyCache, a small proxy of the frame is made for reviewing it on the device (see
+ * ProxyFrame) before the Image is closed: box-filtered down from the planes of RAW_SENSOR and
+ * YUV_420_888 frames, and decoded from the Exif thumbnail of JPEG frames.
  */
 
 package com.devcam;
 
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.DngCreator;
+import android.hardware.camera2.params.BlackLevelPattern;
+import android.hardware.camera2.params.ColorSpaceTransform;
+import android.hardware.camera2.params.RggbChannelVector;
 import android.media.Image;
 import android.util.Log;
+import android.util.Rational;
 
+import com.devcam.io.BurstContainer;
+import com.devcam.io.BurstContainerWriter;
+import com.devcam.io.CompressedFrame;
+import com.devcam.io.Crc32c;
+import com.devcam.io.DesignJournal;
+import com.devcam.io.DesignManifest;
+import com.devcam.io.DesignStatistics;
+import com.devcam.io.FrameStatistics;
+import com.devcam.io.JpegThumbnail;
+import com.devcam.io.PackedRawFormat;
+import com.devcam.io.PackedRawWriter;
+import com.devcam.io.ParallelCompressingOutputStream;
+import com.devcam.io.ProxyCache;
+import com.devcam.io.ProxyFrame;
+import com.devcam.io.YuvFormat;
+import com.devcam.io.YuvWriter;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CheckedOutputStream;
 
 class ImageSaver implements Runnable {
 
 	private final Image mImage;
+	private final int mFormat; // of the Image, which can't be asked once it is closed
 	private final CaptureResult mCaptureResult;
 	private final String mFilename;
 	private final CameraCharacteristics mCamChars;
 	private final File SAVE_DIR;
+    private final BurstContainerWriter mContainer;
     private final WriteOutCallback mRegisteredCallback;
+    private int mYuvFlags = YuvFormat.FLAG_COMPACT_ROWS;
+    private DesignManifest mManifest;
+    private DesignJournal mJournal;
+    private ExecutorService mCompressionPool;
+    private int mCompressionWorkers;
+    private boolean mPackRaw = false;
+    private DesignStatistics mDesignStatistics;
+    private ProxyCache mProxyCache;
+    private String mProxyDesign;
+    private int mProxyFrame;
+
+    // The ImageSaver thread packs every RAW frame with the same writer and header, so none are
+    // allocated per frame.
+    private static final ThreadLocal<PackedRawWriter> sPackedRawWriter = new ThreadLocal<PackedRawWriter>(){
+        @Override
+        protected PackedRawWriter initialValue(){
+            return new PackedRawWriter();
+        }
+    };
+    private static final ThreadLocal<PackedRawFormat.Header> sPackedRawHeader = new ThreadLocal<PackedRawFormat.Header>(){
+        @Override
+        protected PackedRawFormat.Header initialValue(){
+            return new PackedRawFormat.Header();
+        }
+    };
+    // Likewise for YUV frames, made again only if the plane layout asked for changes.
+    private static final ThreadLocal<YuvWriter> sYuvWriter = new ThreadLocal<YuvWriter>();
 
 
     /* Constructor for this "action" class.
@@ -43,14 +121,108 @@ class ImageSaver implements Runnable {
      */
 
 	public ImageSaver(Image image, CaptureResult captureResult, CameraCharacteristics camChars, File saveDir, String filename, WriteOutCallback callback) {
+		this(image, captureResult, camChars, saveDir, filename, null, callback);
+	}
+
+    /* Constructor for appending the frame to a container instead. The filename is then only used
+     * to identify the frame in the callback.
+     */
+	public ImageSaver(Image image, CaptureResult captureResult, CameraCharacteristics camChars, BurstContainerWriter container, String filename, WriteOutCallback callback) {
+		this(image, captureResult, camChars, container.getFile().getParentFile(), filename, container, callback);
+	}
+
+	private ImageSaver(Image image, CaptureResult captureResult, CameraCharacteristics camChars, File saveDir, String filename, BurstContainerWriter container, WriteOutCallback callback) {
 		mImage = image;
+		mFormat = image.getFormat();
 		mCaptureResult = captureResult;
 		mFilename = filename;
 		mCamChars = camChars;
 		SAVE_DIR = saveDir;
+        mContainer = container;
         mRegisteredCallback = callback;
 	}
 
+    /* void setManifest(DesignManifest)
+     *
+     * Have the length and CRC-32C checksum of the written frame recorded in the design's manifest.
+     */
+    public void setManifest(DesignManifest manifest){
+        mManifest = manifest;
+    }
+
+    /* void setStatistics(DesignStatistics)
+     *
+     * Have the brightness statistics of the written frame recorded in the design's statistics.
+     */
+    public void setStatistics(DesignStatistics statistics){
+        mDesignStatistics = statistics;
+    }
+
+    /* void setProxyCache(ProxyCache, String, int)
+     *
+     * Have a proxy of the frame put in the cache, as the given frame number of the given design.
+     */
+    public void setProxyCache(ProxyCache cache, String designName, int frame){
+        mProxyCache = cache;
+        mProxyDesign = designName;
+        mProxyFrame = frame;
+    }
+
+    /* void setJournal(DesignJournal)
+     *
+     * Have the design's journal record when the frame is completely written.
+     */
+    public void setJournal(DesignJournal journal){
+        mJournal = journal;
+    }
+
+    /* void setCompression(ExecutorService, int)
+     *
+     * Have RAW_SENSOR and YUV_420_888 frames compressed on the given pool of worker threads. Frames
+     * appended to a container, and JPEG frames, are never compressed.
+     */
+    public void setCompression(ExecutorService pool, int numWorkers){
+        mCompressionPool = pool;
+        mCompressionWorkers = numWorkers;
+    }
+
+    /* static boolean willCompress(boolean, int)
+     *
+     * Whether frames of this file format (see fileFormat()) are compressed when compression is on,
+     * so that the caller can name their files accordingly. Packed RAW frames are not.
+     */
+    static boolean willCompress(boolean compressionOn, int fileFormat){
+        return compressionOn && CompressedFrame.filterDistance(fileFormat)>0;
+    }
+
+    /* void setPackRaw(boolean)
+     *
+     * Save RAW_SENSOR frames as bit-packed .praw files instead of .dng.
+     */
+    public void setPackRaw(boolean packRaw){
+        mPackRaw = packRaw;
+    }
+
+    /* static int fileFormat(int, boolean)
+     *
+     * What the frame of the given ImageFormat is saved as: the ImageFormat itself, or
+     * BurstContainer.FORMAT_PACKED_RAW for RAW_SENSOR frames when packing them.
+     */
+    static int fileFormat(int imageFormat, boolean packRaw){
+        return (packRaw && imageFormat==ImageFormat.RAW_SENSOR) ? BurstContainer.FORMAT_PACKED_RAW : imageFormat;
+    }
+
+    /* void setYuvFlags(int)
+     *
+     * Choose how the planes of YUV_420_888 frames are rearranged on writing, as YuvFormat.FLAG_*
+     * values. 0 writes the plane buffers exactly as they are.
+     */
+    public void setYuvFlags(int flags){
+        mYuvFlags = flags;
+    }
+
+	// CaptureReplay.save() and writeFrame() on the host copy this save path, since it can't run
+	// there, to replay recorded captures through it. Keep them in step with any change made here.
 	@Override
 	public void run() {
 		Log.v(DevCamActivity.APP_TAG, "ImageSaver running on image w/timestamp: " + mImage.getTimestamp()/1000);
@@ -62,125 +234,423 @@ class ImageSaver implements Runnable {
 			return;
 		}
 
-        // Assemble variables to put things
-		File file = new File(SAVE_DIR, mFilename);
-		FileOutputStream output = null;
+		OutputStream output = null;
+        RandomAccessFile file = null;
+        ParallelCompressingOutputStream compressor = null;
+        boolean success = false;
+		try {
+            // The checksum is taken of the bytes on their way out, so the data is only gone over once.
+            Crc32c crc = new Crc32c();
+            FrameStatistics statistics = newFrameStatistics(mImage.getFormat(), mCamChars);
+            if (mContainer!=null){
+                // The container hands out a stream for the frame, which is only valid until
+                // the frame is ended, and must not be closed.
+                writeImage(new CheckedOutputStream(mContainer.beginFrame(fileFormat(mImage.getFormat(), mPackRaw), mImage.getTimestamp()), crc), statistics);
+                String metadata = DesignStatistics.withStatistics(CameraReport.captureResultToJson(mCaptureResult), statistics);
+                BurstContainer.Entry entry = mContainer.endFrame(metadata.getBytes("UTF-8"));
+                recordSaved(new DesignManifest.Entry(mContainer.getFile().getName(), entry.getOffset(),
+                        entry.getLength(), crc.getValue(), mImage.getTimestamp()), entry);
+            } else {
+                // Reserve the file's expected length up front, rather than grow it write by
+                // write, then cut it back to what was written.
+                file = new RandomAccessFile(new File(SAVE_DIR, mFilename), "rw");
+                StorageAdmission.preallocate(file, estimateFileSize(mImage));
+                output = new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), 64*1024);
+                if (mCompressionPool!=null && willCompress(true, fileFormat(mImage.getFormat(), mPackRaw))){
+                    compressor = new ParallelCompressingOutputStream(new CheckedOutputStream(output, crc),
+                            mCompressionPool, mCompressionWorkers, CompressedFrame.filterDistance(mImage.getFormat()));
+                    writeImage(compressor, statistics);
+                    compressor.finish();
+                } else {
+                    writeImage(new CheckedOutputStream(output, crc), statistics);
+                }
+                output.flush();
+                long length = file.getChannel().position();
+                file.setLength(length);
+                recordSaved(new DesignManifest.Entry(mFilename, DesignManifest.WHOLE_FILE,
+                        length, crc.getValue(), mImage.getTimestamp()), null);
+            }
+            if (statistics!=null){
+                Log.v(DevCam.APP_TAG, "Frame statistics of " + mFilename + ": " + statistics);
+                if (mDesignStatistics!=null){
+                    mDesignStatistics.add(mFilename, statistics);
+                }
+            }
+            success = true;
+            putProxy();
+		} catch (IOException e) {
+			e.printStackTrace();
+            abortContainerFrame();
+            if (compressor!=null){
+                compressor.abort();
+            }
+		} finally {
+			Log.v(DevCam.APP_TAG,"Freeing buffer of image w/timestamp: " + mImage.getTimestamp()/1000);
+            mImage.close(); // close this to free up buffer for other images
+            if (null != output) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    success = false;
+                }
+            }
+            if (null != file) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                // Don't leave a preallocated file behind, padded with zeros past what was written.
+                if (!success && !new File(SAVE_DIR, mFilename).delete()){
+                    Log.v(DevCam.APP_TAG, "Could not delete the unfinished " + mFilename);
+                }
+            }
+            if (mRegisteredCallback!=null) {
+                mRegisteredCallback.onImageSaved(success, mFilename, mFormat); //let the main Activity know we're done
+            }
+        }
+	}
+
+
+
+    // A frame without a proxy is still saved, so failing here is only logged.
+    private void putProxy(){
+        if (mProxyCache==null){
+            return;
+        }
+        try {
+            mProxyCache.put(mProxyDesign, mProxyFrame, makeProxy(mImage, mCamChars));
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.v(DevCam.APP_TAG, "Could not make a proxy of " + mFilename);
+        }
+    }
+
+    private void recordSaved(DesignManifest.Entry saved, BurstContainer.Entry containerEntry){
+        if (mManifest!=null){
+            mManifest.add(saved);
+        }
+        if (mJournal!=null){
+            mJournal.frameSaved(mFilename, saved, containerEntry);
+        }
+    }
+
+    private void abortContainerFrame(){
+        if (mContainer!=null){
+            try {
+                mContainer.abortFrame();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+
+    /* void writeImage(OutputStream, FrameStatistics)
+     *
+     * Write the Image's data to the stream, in the devCam file format for its ImageFormat, gathering
+     * its statistics on the way if given an object for them.
+     */
+    private void writeImage(OutputStream output, FrameStatistics statistics) throws IOException {
 		ByteBuffer buffer;
 		byte[] bytes;
-        boolean success = false;
 
 		switch (mImage.getFormat()){
 
         // Saving JPEG is fairly straightforward, just get the one plane of compressed data.
         case ImageFormat.JPEG:
-			buffer = mImage.getPlanes()[0].getBuffer();
+			// Read through a duplicate, since the plane's buffer is the one the proxy is made from
+			// afterwards, and must not be moved.
+			buffer = mImage.getPlanes()[0].getBuffer().duplicate();
 			bytes = new byte[buffer.remaining()]; // makes byte array large enough to hold image
 			buffer.get(bytes); // copies image from buffer to byte array
-			try {
-				output = new FileOutputStream(file);
-				output.write(bytes);	// write the byte array to file
-                success = true;
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} finally {
-				Log.v(DevCam.APP_TAG,"Freeing buffer of image w/timestamp: " + mImage.getTimestamp()/1000);
-                mImage.close(); // close this to free up buffer for other images
-                if (null != output) {
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                if (mRegisteredCallback!=null) {
-                    mRegisteredCallback.onImageSaved(success, mFilename); //let the main Activity know we're done
-                }
-            }
+			output.write(bytes);	// write the byte array to file
 			break;
 
-        // Saving RAW_SENSOR just uses the built-in DngCreator, which is nice
+        // Saving RAW_SENSOR just uses the built-in DngCreator, which is nice, unless packing the
+        // samples at the sensor's bit depth, with a header of what the DNG tags would say.
 		case ImageFormat.RAW_SENSOR:
+			if (mPackRaw){
+				Image.Plane plane = mImage.getPlanes()[0];
+				PackedRawWriter packer = sPackedRawWriter.get();
+				packer.setStatistics(statistics);
+				try {
+					packer.write(output, packedRawHeader(mImage, mCamChars, mCaptureResult, sPackedRawHeader.get()),
+							plane.getBuffer(), plane.getPixelStride(), plane.getRowStride());
+				} finally {
+					packer.setStatistics(null);
+				}
+				break;
+			}
 			DngCreator dc = new DngCreator(mCamChars,mCaptureResult);
-
-			try {
-				output = new FileOutputStream(file);
-				dc.writeImage(output, mImage);
-                success = true;
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} finally {
-				Log.v(DevCam.APP_TAG,"Freeing buffer of image w/timestamp: " + mImage.getTimestamp()/1000);
-                mImage.close(); // close this to free up buffer for other images
-                if (null != output) {
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                if (mRegisteredCallback!=null) {
-                    mRegisteredCallback.onImageSaved(success, mFilename); //let the main Activity know we're done
-                }
-            }
+			dc.writeImage(output, mImage);
+			// DngCreator writes the samples itself, so they are gone over once more, in memory.
+			if (statistics!=null){
+				Image.Plane rawPlane = mImage.getPlanes()[0];
+				statistics.addRawPlane(rawPlane.getBuffer(), rawPlane.getPixelStride(),
+						rawPlane.getRowStride(), mImage.getWidth(), mImage.getHeight());
+			}
 			break;
 
-        // YUV_420_888 images are saved in a format of our own devising. First write out the
-        // information necessary to reconstruct the image, all as ints: width, height, U-,V-plane
-        // pixel strides, and U-,V-plane row strides. (Y-plane will have pixel-stride 1 always.)
-        // Then directly place the three planes of byte data, uncompressed.
-        //
-        // Note the YUV_420_888 format does not guarantee the last pixel makes it in these planes,
-        // so some cases are necessary at the decoding end, based on the number of bytes present.
-        // An alternative would be to also encode, prior to each plane of bytes, how many bytes are
-        // in the following plane. Perhaps in the future.
+        // YUV_420_888 images are saved in a format of our own devising, see YuvFormat. A header
+        // records the size of the image and the strides and byte count of each plane, since the
+        // YUV_420_888 format does not guarantee the last pixel makes it in these planes. Then the
+        // three planes of byte data follow, uncompressed, rearranged according to mYuvFlags.
 		case ImageFormat.YUV_420_888:
-			// "prebuffer" simply contains the meta information about the following planes.
-			ByteBuffer prebuffer = ByteBuffer.allocate(16);
-			prebuffer.putInt(mImage.getWidth())
-			.putInt(mImage.getHeight())
-			.putInt(mImage.getPlanes()[1].getPixelStride())
-			.putInt(mImage.getPlanes()[1].getRowStride());
-
+			Image.Plane[] planes = mImage.getPlanes();
+			ByteBuffer[] buffers = new ByteBuffer[planes.length];
+			int[] pixelStrides = new int[planes.length];
+			int[] rowStrides = new int[planes.length];
+			for (int i = 0; i<planes.length; i++){
+				buffers[i] = planes[i].getBuffer();
+				pixelStrides[i] = planes[i].getPixelStride();
+				rowStrides[i] = planes[i].getRowStride();
+			}
+			YuvWriter yuvWriter = sYuvWriter.get();
+			if (yuvWriter==null || yuvWriter.getFlags()!=mYuvFlags){
+				yuvWriter = new YuvWriter(mYuvFlags);
+				sYuvWriter.set(yuvWriter);
+			}
+			yuvWriter.setStatistics(statistics);
 			try {
-				output = new FileOutputStream(file);
-				output.write(prebuffer.array()); // write meta information to file
-                // Now write the actual planes.
-				for (int i = 0; i<3; i++){
-					buffer = mImage.getPlanes()[i].getBuffer();
-					bytes = new byte[buffer.remaining()]; // makes byte array large enough to hold image
-					buffer.get(bytes); // copies image from buffer to byte array
-					output.write(bytes);	// write the byte array to file
-				}
-                success = true;
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
+				yuvWriter.write(output, mImage.getWidth(), mImage.getHeight(),
+						buffers, pixelStrides, rowStrides);
 			} finally {
-                Log.v(DevCam.APP_TAG,"Freeing buffer of image w/timestamp: " + mImage.getTimestamp()/1000);
-                mImage.close(); // close this to free up buffer for other images
-				if (null != output) {
-					try {
-						output.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
-                if (mRegisteredCallback!=null) {
-                    mRegisteredCallback.onImageSaved(success, mFilename); //let the main Activity know we're done
-                }
+				yuvWriter.setStatistics(null);
 			}
 			break;
 
-			default:
-				Log.v(DevCam.APP_TAG,"ImageSaver: format not recognized.");
+		default:
+			throw new IOException("ImageSaver: format not recognized.");
 		}
+    }
 
-	}
+
+
+    /* static ProxyFrame makeProxy(Image, CameraCharacteristics)
+     *
+     * A proxy of the Image, for reviewing it on the device. JPEG frames without an Exif thumbnail
+     * are decoded at a fraction of their size instead.
+     */
+    static ProxyFrame makeProxy(Image image, CameraCharacteristics camChars) throws IOException {
+        Image.Plane[] planes = image.getPlanes();
+        switch (image.getFormat()){
+            case ImageFormat.YUV_420_888:
+                ByteBuffer[] buffers = new ByteBuffer[planes.length];
+                int[] pixelStrides = new int[planes.length];
+                int[] rowStrides = new int[planes.length];
+                for (int i = 0; i<planes.length; i++){
+                    buffers[i] = planes[i].getBuffer();
+                    pixelStrides[i] = planes[i].getPixelStride();
+                    rowStrides[i] = planes[i].getRowStride();
+                }
+                return ProxyFrame.fromYuv(buffers, pixelStrides, rowStrides, image.getWidth(),
+                        image.getHeight(), ProxyFrame.DEFAULT_MAX_SIZE);
+            case ImageFormat.RAW_SENSOR:
+                return rawProxy(planes[0].getBuffer(), planes[0].getPixelStride(), planes[0].getRowStride(),
+                        image.getWidth(), image.getHeight(), camChars);
+            case ImageFormat.JPEG:
+                ByteBuffer jpeg = planes[0].getBuffer();
+                ByteBuffer thumbnail = JpegThumbnail.find(jpeg);
+                Bitmap bitmap = null;
+                if (thumbnail!=null){
+                    byte[] bytes = new byte[thumbnail.remaining()];
+                    thumbnail.get(bytes);
+                    bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+                }
+                if (bitmap==null){
+                    byte[] bytes = new byte[jpeg.remaining()];
+                    jpeg.duplicate().get(bytes);
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = Integer.highestOneBit(ProxyFrame.decimationFactor(
+                            image.getWidth(), image.getHeight(), ProxyFrame.DEFAULT_MAX_SIZE));
+                    bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+                }
+                if (bitmap==null){
+                    throw new IOException("Could not decode JPEG for its proxy.");
+                }
+                int[] pixels = new int[bitmap.getWidth()*bitmap.getHeight()];
+                bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+                ProxyFrame proxy = ProxyFrame.fromPixels(pixels, bitmap.getWidth(), bitmap.getHeight(),
+                        ProxyFrame.DEFAULT_MAX_SIZE);
+                bitmap.recycle();
+                return proxy;
+        }
+        throw new IOException("ImageSaver: format not recognized.");
+    }
+
+    /* static ProxyFrame rawProxy(ByteBuffer, int, int, int, int, CameraCharacteristics)
+     *
+     * A proxy of a RAW_SENSOR plane of the given camera's sensor.
+     */
+    static ProxyFrame rawProxy(ByteBuffer plane, int pixelStride, int rowStride, int width, int height,
+                               CameraCharacteristics camChars){
+        Integer whiteLevel = camChars.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+        Integer cfa = camChars.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
+        return ProxyFrame.fromRaw(plane, pixelStride, rowStride, width, height,
+                (cfa!=null) ? cfa : -1, averageBlackLevel(camChars),
+                (whiteLevel!=null) ? whiteLevel : 0xFFFF, ProxyFrame.DEFAULT_MAX_SIZE);
+    }
+
+    private static int averageBlackLevel(CameraCharacteristics camChars){
+        BlackLevelPattern black = camChars.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+        int blackLevel = 0;
+        if (black!=null){
+            for (int i=0; i<4; i++){
+                blackLevel += black.getOffsetForIndex(i%2, i/2);
+            }
+            blackLevel /= 4;
+        }
+        return blackLevel;
+    }
+
+
+
+    /* static FrameStatistics newFrameStatistics(int, CameraCharacteristics)
+     *
+     * Empty statistics for the samples of an Image of the given format, or null for JPEG frames,
+     * whose samples are never decoded on the device.
+     */
+    static FrameStatistics newFrameStatistics(int imageFormat, CameraCharacteristics camChars){
+        switch (imageFormat){
+            case ImageFormat.YUV_420_888:
+                return new FrameStatistics();
+            case ImageFormat.RAW_SENSOR:
+                Integer whiteLevel = camChars.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+                return new FrameStatistics(averageBlackLevel(camChars), (whiteLevel!=null) ? whiteLevel : 0xFFFF);
+        }
+        return null;
+    }
+
+
+
+    /* static PackedRawFormat.Header packedRawHeader(Image, CameraCharacteristics, CaptureResult)
+     *
+     * Gather what a .praw header records about a RAW_SENSOR frame. Whatever the device doesn't
+     * report is left at 0.
+     */
+    static PackedRawFormat.Header packedRawHeader(Image image, CameraCharacteristics camChars, CaptureResult result){
+        return packedRawHeader(image, camChars, result, new PackedRawFormat.Header());
+    }
+
+    /* static PackedRawFormat.Header packedRawHeader(Image, CameraCharacteristics, CaptureResult, PackedRawFormat.Header)
+     *
+     * As above, but filling in the given header, whatever it held before, rather than a new one.
+     */
+    static PackedRawFormat.Header packedRawHeader(Image image, CameraCharacteristics camChars, CaptureResult result,
+                                                  PackedRawFormat.Header header){
+        clearArrays(header);
+        header.width = image.getWidth();
+        header.height = image.getHeight();
+        header.timestamp = image.getTimestamp();
+
+        Integer whiteLevel = camChars.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+        header.whiteLevel = (whiteLevel!=null) ? whiteLevel : 0xFFFF;
+        Integer cfa = camChars.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
+        header.cfaArrangement = (cfa!=null) ? cfa : 0;
+        BlackLevelPattern black = camChars.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+        if (black!=null){
+            for (int i=0; i<4; i++){
+                header.blackLevel[i] = black.getOffsetForIndex(i%2, i/2);
+            }
+        }
+        Integer illuminant1 = camChars.get(CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT1);
+        header.referenceIlluminant1 = (illuminant1!=null) ? illuminant1 : 0;
+        Byte illuminant2 = camChars.get(CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT2);
+        header.referenceIlluminant2 = (illuminant2!=null) ? illuminant2 : 0;
+        copyMatrix(camChars.get(CameraCharacteristics.SENSOR_COLOR_TRANSFORM1), header.colorTransform1);
+        copyMatrix(camChars.get(CameraCharacteristics.SENSOR_COLOR_TRANSFORM2), header.colorTransform2);
+        copyMatrix(camChars.get(CameraCharacteristics.SENSOR_FORWARD_MATRIX1), header.forwardMatrix1);
+        copyMatrix(camChars.get(CameraCharacteristics.SENSOR_FORWARD_MATRIX2), header.forwardMatrix2);
+        copyMatrix(camChars.get(CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM1), header.calibrationTransform1);
+        copyMatrix(camChars.get(CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM2), header.calibrationTransform2);
+
+        Rational[] neutral = result.get(CaptureResult.SENSOR_NEUTRAL_COLOR_POINT);
+        if (neutral!=null){
+            for (int i=0; i<Math.min(neutral.length, header.neutralColorPoint.length); i++){
+                header.neutralColorPoint[i] = neutral[i].floatValue();
+            }
+        }
+        RggbChannelVector gains = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
+        if (gains!=null){
+            for (int i=0; i<4; i++){
+                header.colorCorrectionGains[i] = gains.getComponent(i);
+            }
+        }
+        copyMatrix(result.get(CaptureResult.COLOR_CORRECTION_TRANSFORM), header.colorCorrectionTransform);
+        return header;
+    }
+
+    private static void clearArrays(PackedRawFormat.Header header){
+        Arrays.fill(header.blackLevel, 0);
+        Arrays.fill(header.neutralColorPoint, 0);
+        Arrays.fill(header.colorCorrectionGains, 0);
+        Arrays.fill(header.colorCorrectionTransform, 0);
+        Arrays.fill(header.colorTransform1, 0);
+        Arrays.fill(header.colorTransform2, 0);
+        Arrays.fill(header.forwardMatrix1, 0);
+        Arrays.fill(header.forwardMatrix2, 0);
+        Arrays.fill(header.calibrationTransform1, 0);
+        Arrays.fill(header.calibrationTransform2, 0);
+    }
+
+    private static void copyMatrix(ColorSpaceTransform transform, float[] matrix){
+        if (transform==null){
+            return;
+        }
+        for (int row=0; row<3; row++){
+            for (int col=0; col<3; col++){
+                matrix[3*row + col] = transform.getElement(col, row).floatValue();
+            }
+        }
+    }
+
+
+
+    /* static long estimateFileSize(int, int, int)
+     *
+     * Rough number of bytes an Image of this format and size takes up once saved, for reserving
+     * space ahead of time. JPEG sizes depend on the scene, so assume a generous 1 byte per pixel.
+     * YUV rows may be padded, which isn't known before there is an Image, so assume they are
+     * padded out to a whole MAX_ROW_ALIGNMENT bytes, and interleaved chroma planes written whole.
+     */
+    static long estimateFileSize(int format, int width, int height){
+        long pixels = (long) width*height;
+        switch (format){
+            case ImageFormat.JPEG:
+                return pixels;
+            case ImageFormat.RAW_SENSOR:
+                return 2*pixels + 64*1024; // 16-bit samples plus the DNG tags and thumbnail
+            case ImageFormat.YUV_420_888:
+                long rowStride = (width + MAX_ROW_ALIGNMENT - 1)/MAX_ROW_ALIGNMENT*MAX_ROW_ALIGNMENT;
+                return YuvFormat.HEADER_SIZE + 2*rowStride*height;
+        }
+        return 2*pixels;
+    }
+
+    // Row alignment of YUV planes assumed when their strides are not known yet.
+    static final int MAX_ROW_ALIGNMENT = 256;
+
+
+    /* static long estimateFileSize(Image)
+     *
+     * The same, for an Image at hand. Files are preallocated to this length and cut back once
+     * written, so it should not fall short: a YUV frame's planes, padding and all, are at most a row
+     * stride per row of each plane.
+     */
+    static long estimateFileSize(Image image){
+        if (image.getFormat()!=ImageFormat.YUV_420_888){
+            return estimateFileSize(image.getFormat(), image.getWidth(), image.getHeight());
+        }
+        Image.Plane[] planes = image.getPlanes();
+        long bytes = YuvFormat.HEADER_SIZE;
+        for (int p=0; p<planes.length; p++){
+            bytes += (long) planes[p].getRowStride()*YuvFormat.planeHeight(p, image.getHeight());
+        }
+        return bytes;
+    }
 
 
 
@@ -190,8 +660,9 @@ class ImageSaver implements Runnable {
      * are saved.
      */
     static abstract class WriteOutCallback{
-        abstract void onImageSaved(boolean success,String filename);
+        // The format is the ImageFormat of the Image that was saved, and has now been closed.
+        abstract void onImageSaved(boolean success,String filename,int format);
     }
 
 
-}
\ No newline at end of file
+}
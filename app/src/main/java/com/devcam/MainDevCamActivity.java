@@ -30,10 +30,23 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.devcam.io.BurstContainer;
+import com.devcam.io.BurstContainerWriter;
+import com.devcam.io.CompressedFrame;
+import com.devcam.io.DesignJournal;
+import com.devcam.io.DesignManifest;
+import com.devcam.io.DesignStatistics;
+import com.devcam.io.JournalRecovery;
+import com.devcam.io.PackedRawFormat;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class MainDevCamActivity extends Activity{
@@ -68,6 +81,7 @@ public class MainDevCamActivity extends Activity{
     private Button mCaptureButton;
     private Button mOutputFormatButton;
     private Button mSettingsButton;
+    private Button mReviewButton;
     private Button mOutputSizeButton;
     private Button mProcessingButton;
     private Button mSplitAmountButton;
@@ -107,6 +121,14 @@ public class MainDevCamActivity extends Activity{
     private boolean mInadequateCameraFlag;
 
     boolean mUseDelay = false; // flag reflecting state of the delay switch
+    boolean mUseContainer = false; // flag for saving all frames of a design into a single file
+    boolean mUseCompression = false; // flag for losslessly compressing RAW and YUV frames
+    boolean mUsePackedRaw = false; // flag for saving RAW frames bit-packed as .praw instead of .dng
+    boolean mUseAccumulation = false; // flag for merging the RAW and YUV frames of a design on the device
+
+    // Number of threads frames are compressed and accumulated on, and the pool of them.
+    final static int NUM_WORKERS = Runtime.getRuntime().availableProcessors();
+    private ExecutorService mWorkerPool;
 
     // This simply holds the user options for displaying parameters. They are loaded in onResume().
     ExposureArrayAdapter.DisplayOptionBundle mDisplayOptions = new ExposureArrayAdapter.DisplayOptionBundle();
@@ -114,8 +136,23 @@ public class MainDevCamActivity extends Activity{
     // The CaptureDesign the app is working with at the moment
     private CaptureDesign mDesign = new CaptureDesign();
     private DesignResult mDesignResult;
-    private List<String> mWrittenFilenames;
     private CaptureDesign mNextDesign = new CaptureDesign();
+    private SettingsSyncScheduler.SettingsSyncReport mSyncReport;
+    // Container file the frames of the current design are appended to, if using one.
+    private BurstContainerWriter mContainer;
+    // Checksums of the frames of the current design, as they are written.
+    private DesignManifest mManifest;
+    // Brightness statistics of the frames of the current design, as they are written.
+    private DesignStatistics mStatistics;
+    // Accumulators merging the frames of the current design, by ImageFormat, if merging them.
+    private Map<Integer,BurstAccumulator> mAccumulators = new HashMap<Integer,BurstAccumulator>();
+    // Whether the frames of the current design are merged, which it may not be even when
+    // mUseAccumulation is set, see BurstAccumulator.whyNotAccumulate().
+    private boolean mAccumulateDesign = false;
+    // Directory of the design being saved, which stays put when mDesign moves on to the next one.
+    private File mSaveDir;
+    // Record of the current design's progress, for recovering it should the app die.
+    private DesignJournal mJournal;
 
     // Keep track of how many image files have been written out, which may happen much later
     // than the event of them being saved.
@@ -157,17 +194,30 @@ public class MainDevCamActivity extends Activity{
     ImageSaver.WriteOutCallback mWriteOutCallback = new ImageSaver.WriteOutCallback() {
 
         @Override
-        void onImageSaved(boolean success, String filename) {
+        void onImageSaved(boolean success, String filename, int format) {
+            boolean inContainer = (mContainer != null);
 
             // Now check to see if all of the images have been saved. If so, we can restore control
             // to the user and remove the "Saving images" sign.
             mNumImagesLeftToSave--;
+            mDevCam.releaseOutputImage(format); // its buffer is free for another frame of the design
             Log.v(APP_TAG,"Writeout of image: " + filename + " : " + success);
             Log.v(APP_TAG, mNumImagesLeftToSave + " image files left to save.");
 
             if (mNumImagesLeftToSave ==0) {
                 Log.v(APP_TAG, "Done saving images. Restore control to app.");
 
+                // Write the container's index now that all frames are in.
+                if (mContainer != null) {
+                    closeContainer();
+                }
+                writeManifest();
+                writeStatistics();
+                if (mJournal != null) {
+                    mJournal.complete();
+                    mJournal = null;
+                }
+
                 // Remove "saving images" sign from sight.
                 // Must be done in main thread, which created the View.
                 mMainHandler.post(new Runnable() {
@@ -179,10 +229,12 @@ public class MainDevCamActivity extends Activity{
                 setButtonsClickable(true);
             }
 
-            // Register the saved Image with the file system
-            File IM_SAVE_DIR = new File(CAPTURE_DIR,mDesign.getDesignName());
-            File imFile = new File(IM_SAVE_DIR,filename);
-            CameraReport.addFileToMTP(mContext, imFile.getAbsolutePath());
+            // Register the saved Image with the file system, unless it went into the container,
+            // which is registered as a whole.
+            if (!inContainer) {
+                File imFile = new File(mSaveDir, filename);
+                CameraReport.addFileToMTP(mContext, imFile.getAbsolutePath());
+            }
 
 
         }
@@ -206,21 +258,82 @@ public class MainDevCamActivity extends Activity{
                     fileType = ".yuv";
                     break;
                 case ImageFormat.RAW_SENSOR:
-                    fileType = ".dng";
+                    fileType = mUsePackedRaw ? PackedRawFormat.EXTENSION : ".dng";
                     break;
             }
 
-            // Record the filename for later, with counter based on number already saved.
-            String filename = mDesign.getDesignName() + "-" + (mWrittenFilenames.size()+1) + fileType;
-            mWrittenFilenames.add(filename);
+            // RAW and YUV frames may be merged into one instead of saved one by one, in which case
+            // every frame of the stream is recorded with the merged frame's filename.
+            if (mAccumulateDesign && BurstAccumulator.canAccumulate(image.getFormat())) {
+                BurstAccumulator accumulator = accumulatorFor(image.getFormat(), fileType);
+                mDesignResult.recordFilename(result, image.getFormat(), accumulator.getFilename());
+                if (mJournal != null) {
+                    mJournal.framePaired(mDesignResult.getFrameIndex(result), image.getTimestamp(),
+                            accumulator.getFilename(), CameraReport.captureResultToJson(result));
+                }
+                mImageSaverHandler.post(accumulator.add(image, result));
+                return;
+            }
+
+            // Record the filename for later, with counter based on the frame's place in the design,
+            // so that the files of a frame from different output streams share a number.
+            // RAW and YUV frames in files of their own may be compressed, see CompressedFrame.
+            boolean compress = (mContainer == null) && ImageSaver.willCompress(mUseCompression,
+                    ImageSaver.fileFormat(image.getFormat(), mUsePackedRaw));
+            if (compress) {
+                fileType += CompressedFrame.EXTENSION;
+            }
+            String filename = mDesign.getDesignName() + "-" + (mDesignResult.getFrameIndex(result)+1) + fileType;
+            mDesignResult.recordFilename(result, image.getFormat(), filename);
 
             File IM_SAVE_DIR = new File(CAPTURE_DIR,mDesign.getDesignName());
             IM_SAVE_DIR.mkdir();
 
             // Post the images to be saved on another thread
-            mImageSaverHandler.post(new ImageSaver(image, result, mCamChars, IM_SAVE_DIR, filename, mWriteOutCallback));
+            ImageSaver saver;
+            if (mContainer != null) {
+                saver = new ImageSaver(image, result, mCamChars, mContainer, filename, mWriteOutCallback);
+            } else {
+                saver = new ImageSaver(image, result, mCamChars, IM_SAVE_DIR, filename, mWriteOutCallback);
+            }
+            if (compress) {
+                saver.setCompression(mWorkerPool, NUM_WORKERS);
+            }
+            saver.setPackRaw(mUsePackedRaw);
+            saver.setManifest(mManifest);
+            saver.setStatistics(mStatistics);
+            saver.setProxyCache(ReviewActivity.getProxyCache(mContext), mDesign.getDesignName(),
+                    mDesignResult.getFrameIndex(result)+1);
+            if (mJournal != null) {
+                mJournal.framePaired(mDesignResult.getFrameIndex(result), image.getTimestamp(),
+                        filename, CameraReport.captureResultToJson(result));
+                saver.setJournal(mJournal);
+            }
+            mImageSaverHandler.post(saver);
         };
 
+        /* BurstAccumulator accumulatorFor(int, String)
+         *
+         * The accumulator merging the current design's frames of the given ImageFormat, made on its
+         * first frame.
+         */
+        private BurstAccumulator accumulatorFor(int format, String fileType){
+            BurstAccumulator accumulator = mAccumulators.get(format);
+            if (accumulator == null) {
+                accumulator = new BurstAccumulator(mCamChars, mSaveDir,
+                        BurstAccumulator.mergedFilename(mDesign.getDesignName(), fileType),
+                        mDesign.getExposures().size(), mWriteOutCallback);
+                accumulator.setPool(mWorkerPool, NUM_WORKERS);
+                accumulator.setPackRaw(mUsePackedRaw);
+                accumulator.setManifest(mManifest);
+                accumulator.setStatistics(mStatistics);
+                accumulator.setJournal(mJournal);
+                accumulator.setProxyCache(ReviewActivity.getProxyCache(mContext), mDesign.getDesignName());
+                mAccumulators.put(format, accumulator);
+            }
+            return accumulator;
+        }
+
         @Override
         public void onAllCapturesReported(final DesignResult designResult){
             Log.v(DevCam.APP_TAG,"All Images+Metadata have been paired by DesignResult. ");
@@ -232,7 +345,7 @@ public class MainDevCamActivity extends Activity{
 
             // First, save JSON file with array of metadata
             File metadataFile = new File(IM_SAVE_DIR,mDesign.getDesignName() + "_capture_metadata"+".json");
-            CameraReport.writeCaptureResultsToFile(mDesignResult.getCaptureResults(),mWrittenFilenames, metadataFile);
+            CameraReport.writeCaptureResultsToFile(mDesignResult.getCaptureResults(),mDesignResult.getFilenames(), null, mSyncReport, metadataFile);
             CameraReport.addFileToMTP(mContext, metadataFile.getAbsolutePath());
 
             // Now, write out a txt file with the information of the original
@@ -241,6 +354,14 @@ public class MainDevCamActivity extends Activity{
             mDesign.writeOut(requestFile);
             CameraReport.addFileToMTP(mContext, requestFile.getAbsolutePath());
 
+            // Also record how many frames were spent getting the settings applied
+            if (mSyncReport!=null) {
+                File syncFile = new File(IM_SAVE_DIR, mDesign.getDesignName() + "_settings_sync" + ".txt");
+                mSyncReport.writeOut(syncFile);
+                CameraReport.addFileToMTP(mContext, syncFile.getAbsolutePath());
+                mSyncReport = null;
+            }
+
             // Replace old design now that it is done
             mDesign = mNextDesign;
             mDesignResult = null;
@@ -293,6 +414,10 @@ public class MainDevCamActivity extends Activity{
             super.onCaptureCompleted(result);
             mDesignResult.recordCaptureResult(result);
         };
+        void onSettingsSyncReport(SettingsSyncScheduler.SettingsSyncReport report){
+            super.onSettingsSyncReport(report);
+            mSyncReport = report;
+        };
         void onCaptureSequenceCompleted(){
             super.onCaptureSequenceCompleted();
 
@@ -341,6 +466,7 @@ public class MainDevCamActivity extends Activity{
         mProcessingButton.setClickable(onoff);
         mSplitAmountButton.setClickable(onoff);
         mSettingsButton.setClickable(onoff);
+        mReviewButton.setClickable(onoff);
     }
 
     /* void updateConstraintViews()
@@ -388,6 +514,100 @@ public class MainDevCamActivity extends Activity{
     }
 
 
+    /* void openContainer(long)
+     *
+     * Create the container file for the current design, preallocated to the expected size of all
+     * of its frames. If it can't be created, fall back to saving every frame to its own file.
+     */
+    private void openContainer(long designBytes){
+        File IM_SAVE_DIR = new File(CAPTURE_DIR,mDesign.getDesignName());
+        IM_SAVE_DIR.mkdirs();
+        try {
+            mContainer = new BurstContainerWriter(
+                    new File(IM_SAVE_DIR, mDesign.getDesignName() + BurstContainer.EXTENSION),
+                    designBytes, StorageAdmission.CONTAINER_ALLOCATOR);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            mContainer = null;
+        }
+    }
+
+    /* void openJournal()
+     *
+     * Start the journal of the current design, so that what gets saved of it can be recovered
+     * should the app die before it is finished.
+     */
+    private void openJournal(){
+        File IM_SAVE_DIR = new File(CAPTURE_DIR,mDesign.getDesignName());
+        IM_SAVE_DIR.mkdirs();
+        try {
+            mJournal = new DesignJournal(new File(IM_SAVE_DIR, mDesign.getDesignName() + DesignJournal.FILE_SUFFIX),
+                    (mContainer != null) ? mContainer.getFile().getName() : null);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            mJournal = null;
+        }
+    }
+
+    /* void recoverCutShortDesigns()
+     *
+     * Finish off any designs whose saving was cut short the last time devCam ran, and register
+     * their regenerated metadata files with the file system.
+     */
+    private void recoverCutShortDesigns(){
+        for (JournalRecovery.Report report : JournalRecovery.recoverAll(CAPTURE_DIR)) {
+            Log.v(APP_TAG, report.toString());
+            for (File file : report.getWrittenFiles()) {
+                CameraReport.addFileToMTP(mContext, file.getAbsolutePath());
+            }
+        }
+    }
+
+    /* void writeManifest()
+     *
+     * Write out the checksums of all frames of the current design and register the manifest with
+     * the file system.
+     */
+    private void writeManifest(){
+        File manifestFile = new File(mSaveDir, mSaveDir.getName() + DesignManifest.FILE_SUFFIX);
+        try {
+            mManifest.writeOut(manifestFile);
+            CameraReport.addFileToMTP(mContext, manifestFile.getAbsolutePath());
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /* void writeStatistics()
+     *
+     * Write out the brightness statistics of all frames of the design just saved, which were not
+     * all in yet when its capture metadata was written, and register them with the file system.
+     */
+    private void writeStatistics(){
+        File statisticsFile = new File(mSaveDir, mSaveDir.getName() + DesignStatistics.FILE_SUFFIX);
+        try {
+            mStatistics.writeOut(statisticsFile);
+            CameraReport.addFileToMTP(mContext, statisticsFile.getAbsolutePath());
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /* void closeContainer()
+     *
+     * Finish off the container file of the current design and register it with the file system.
+     */
+    private void closeContainer(){
+        try {
+            mContainer.close();
+            CameraReport.addFileToMTP(mContext, mContainer.getFile().getAbsolutePath());
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        mContainer = null;
+    }
+
+
     /* int imageBufferSizer()
      *
      * Function to determine the number of Images we should allocate space for in the ImageReader.
@@ -399,7 +619,8 @@ public class MainDevCamActivity extends Activity{
      *
      * Right now the function is fairly sloppy, though it seems that a Nexus 5 can actually use 30
      * and work successfully. Much larger numbers don't throw an error, but do crash the application
-     * later on.
+     * later on. Designs with more exposures than this are still fine, since DevCam is told how many
+     * frames the ImageReader holds and only submits as many as have free buffers.
      */
     int imageBufferSizer(){
         return Math.min(30,mDesign.getExposures().size())+2;
@@ -547,6 +768,8 @@ public class MainDevCamActivity extends Activity{
 
 
         mDevCam = DevCam.getInstance(this,mDevCamCallback);
+        // The instance is shared with RemoteCaptureActivity, whose requests may have turned it off.
+        mDevCam.setSettingsPrimingEnabled(true);
 
     }
 
@@ -561,6 +784,10 @@ public class MainDevCamActivity extends Activity{
         // Load the user settings for the use of delay and the display of parameters
         SharedPreferences settings = this.getSharedPreferences(APP_TAG,Context.MODE_MULTI_PROCESS);
         mUseDelay = settings.getBoolean(SettingsActivity.USE_DELAY_KEY,false);
+        mUseContainer = settings.getBoolean(SettingsActivity.USE_CONTAINER_KEY,false);
+        mUseCompression = settings.getBoolean(SettingsActivity.USE_COMPRESSION_KEY,false);
+        mUsePackedRaw = settings.getBoolean(SettingsActivity.USE_PACKED_RAW_KEY,false);
+        mUseAccumulation = settings.getBoolean(SettingsActivity.USE_ACCUMULATION_KEY,false);
         mDisplayOptions.showExposureTime = settings.getBoolean(SettingsActivity.SHOW_EXPOSURE_TIME,true);
         mDisplayOptions.showAperture = settings.getBoolean(SettingsActivity.SHOW_APERTURE,false);
         mDisplayOptions.showSensitivity = settings.getBoolean(SettingsActivity.SHOW_SENSITIVITY,true);
@@ -771,6 +998,15 @@ public class MainDevCamActivity extends Activity{
             }
         });
 
+        // Set up the review button, which shows the proxies of the last design captured
+        mReviewButton = (Button) findViewById(R.id.reviewButton);
+        mReviewButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                startActivity(new Intent(mContext, ReviewActivity.class));
+            }
+        });
+
 
         // Set up output format button
         mOutputFormatButton = (Button) findViewById(R.id.Button_formatChoice);
@@ -860,6 +1096,32 @@ public class MainDevCamActivity extends Activity{
             public void onClick(View v) {
                 if (mDesign.getExposures().size() > 0) {
                     if (mDevCam.isReady()) {
+                        // Make sure everything the design will write fits in storage, before the
+                        // camera spends any time on it.
+                        List<Integer> formats = new ArrayList<Integer>();
+                        List<Size> sizes = new ArrayList<Size>();
+                        formats.add(mOutputFormats.get(mOutputFormatInd));
+                        sizes.add(mOutputSizes[mOutputSizeInd]);
+                        final long designBytes = StorageAdmission.estimateDesignBytes(formats, sizes, mDesign.getExposures().size());
+                        if (!StorageAdmission.admit(CAPTURE_DIR, designBytes)) {
+                            Toast.makeText(mContext, "Not enough free space for this design ("
+                                    + StorageAdmission.toMB(designBytes) + " MB needed).", Toast.LENGTH_LONG).show();
+                            return;
+                        }
+
+                        // Only designs of identical exposures, whose sums fit in memory, are merged.
+                        mAccumulateDesign = mUseAccumulation;
+                        if (mAccumulateDesign) {
+                            String reason = BurstAccumulator.whyNotAccumulate(mDesign.getExposures(), formats, sizes,
+                                    false, mCamChars);
+                            if (reason != null) {
+                                Log.v(APP_TAG, "Not merging the frames of design " + mDesign.getDesignName()
+                                        + ", as " + reason + ". Saving them one by one instead.");
+                                Toast.makeText(mContext, "Not merging bursts, as " + reason + ".", Toast.LENGTH_LONG).show();
+                                mAccumulateDesign = false;
+                            }
+                        }
+
                         // Turn off the buttons so the user doesn't accidentally mess up capture
                         setButtonsClickable(false);
 
@@ -870,7 +1132,6 @@ public class MainDevCamActivity extends Activity{
 
                         mDesignResult = new DesignResult(mDesign.getExposures().size(),mOnCaptureAvailableListener);
                         Log.v(APP_TAG,"1111mDesignResult allocated.1111");
-                        mWrittenFilenames = new ArrayList<String>();
 
                         // But first, check to see if we should use a delay timer or not.
                         long delay = (mUseDelay) ? 5000 : 0;
@@ -890,6 +1151,16 @@ public class MainDevCamActivity extends Activity{
                                 // get copied that way.
                                 mNextDesign = new CaptureDesign(mDesign);
 
+                                if (mUseContainer) {
+                                    openContainer(designBytes);
+                                }
+                                mSaveDir = new File(CAPTURE_DIR, mDesign.getDesignName());
+                                mManifest = new DesignManifest();
+                                mStatistics = new DesignStatistics();
+                                mAccumulators = new HashMap<Integer,BurstAccumulator>();
+                                openJournal();
+                                dropProxies(mDesign.getDesignName());
+
                                 mDevCam.capture(mDesign);
 
 
@@ -914,6 +1185,21 @@ public class MainDevCamActivity extends Activity{
     }
 
 
+    /* void dropProxies(String)
+     *
+     * Clear out the proxies of an earlier design of the same name before the new frames come in,
+     * on the ImageSaver thread, so it happens before any of them are saved.
+     */
+    private void dropProxies(final String designName){
+        mImageSaverHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ReviewActivity.getProxyCache(mContext).removeDesign(designName);
+            }
+        });
+    }
+
+
     /* void establishActiveResources()
      *
      * Establishes the resources that need to be set up every time the activity
@@ -936,6 +1222,19 @@ public class MainDevCamActivity extends Activity{
             mImageSaverHandler = new Handler(mImageSaverThread.getLooper());
         }
 
+        // And a pool of workers for compressing and accumulating frames, fed by the ImageSaver thread.
+        if (null==mWorkerPool){
+            mWorkerPool = Executors.newFixedThreadPool(NUM_WORKERS);
+        }
+
+        // Before anything new is saved, tidy up after designs the app died in the middle of.
+        mImageSaverHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                recoverCutShortDesigns();
+            }
+        });
+
 
         // Establish output surface (ImageReader) resources and register our callback with it.
         mImageReader = ImageReader.newInstance(
@@ -948,6 +1247,8 @@ public class MainDevCamActivity extends Activity{
         surfaces.add(mImageReader.getSurface());
 
         mDevCam.registerOutputSurfaces(surfaces);
+        // Leave one Image of headroom, so acquiring never fails while a frame is being released.
+        mDevCam.setOutputBufferCapacity(mImageReader.getMaxImages()-1);
 
 
 
@@ -1075,6 +1376,12 @@ public class MainDevCamActivity extends Activity{
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+
+        // Nothing is left for the compression workers once the ImageSaver thread has finished.
+        if (null!=mWorkerPool){
+            mWorkerPool.shutdown();
+            mWorkerPool = null;
+        }
     }
 
 
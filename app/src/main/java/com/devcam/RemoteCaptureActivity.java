@@ -2,8 +2,10 @@ package com.devcam;
 
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CaptureResult;
@@ -22,11 +24,25 @@ import android.view.View;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.devcam.io.BurstContainer;
+import com.devcam.io.BurstContainerWriter;
+import com.devcam.io.CaptureEventLog;
+import com.devcam.io.CompressedFrame;
+import com.devcam.io.DesignJournal;
+import com.devcam.io.DesignManifest;
+import com.devcam.io.DesignStatistics;
+import com.devcam.io.JournalRecovery;
+import com.devcam.io.PackedRawFormat;
+import com.devcam.io.YuvFormat;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class RemoteCaptureActivity extends Activity {
 
@@ -45,11 +61,49 @@ public class RemoteCaptureActivity extends Activity {
     final String WIDTH = "WIDTH";
     final String HEIGHT = "HEIGHT";
     final String FORMAT = "FORMAT";
+    // Optional int array of further formats to capture each frame into at the same time, e.g. a
+    // RAW_SENSOR stream next to a JPEG one. Each is captured at the largest size available for it.
+    // Not used by STREAM_REQUEST, which writes a single output stream.
+    final String EXTRA_FORMATS = "EXTRA_FORMATS";
     final String DESIGN_NAME = "DESIGN_NAME";
     final String CAPTURE_REQUEST = "CAPTURE_REQUEST";
-
-    private List<String> mWrittenFilenames ;
-    ImageReader mImageReader;
+    // Streaming requests take the same extras as CAPTURE_REQUEST, plus optional limits. Without
+    // limits, the stream runs until a STOP_STREAM broadcast is received.
+    final String STREAM_REQUEST = "STREAM_REQUEST";
+    final String STREAM_FRAMES = "STREAM_FRAMES";
+    final String STREAM_DURATION_MS = "STREAM_DURATION_MS";
+    final String STOP_STREAM = "STOP_STREAM";
+    // Optional int, 1 to save all frames of a (non-streaming) design into a single container file
+    // instead of one file per frame.
+    final String CONTAINER = "CONTAINER";
+    // Optional int of YuvFormat.FLAG_* values for how to lay out the planes of saved .yuv files.
+    // Defaults to dropping the row padding, 0 keeps the plane buffers exactly as they are.
+    final String YUV_LAYOUT = "YUV_LAYOUT";
+    // Optional int, 1 to losslessly compress RAW and YUV frames saved to files of their own (see
+    // CompressedFrame). Their files then end in .dcz.
+    final String COMPRESS = "COMPRESS";
+    // Optional int, 1 to save RAW_SENSOR frames bit-packed at the sensor's bit depth as .praw files
+    // (see PackedRawFormat) instead of .dng. Applies to streaming requests too.
+    final String PACKED_RAW = "PACKED_RAW";
+    // Optional int, 1 to merge the RAW and YUV frames of a (non-streaming) design into one saved
+    // frame each on the device (see BurstAccumulator), 2 to also save their per-sample variance.
+    // Only designs of identical exposures whose sums fit in memory are merged, see whyNotAccumulate().
+    final String ACCUMULATE = "ACCUMULATE";
+    // Optional int, 1 to record the camera events of a (non-streaming) design, in the order and
+    // with the timing they came in, for replaying on the host (see CaptureEventLog).
+    final String RECORD_EVENTS = "RECORD_EVENTS";
+    // Optional int, 0 to capture without the unsaved priming frames DevCam puts in front of changes
+    // of settings (see SettingsSyncScheduler). Frames may then carry an earlier exposure's settings,
+    // which their metadata flags. Default 1.
+    final String SETTINGS_PRIMING = "SETTINGS_PRIMING";
+
+    // Number of frames allowed to wait for the stream writer before frames get dropped.
+    final static int STREAM_MAX_PENDING_SAVES = 8;
+
+    // Number of threads frames are compressed and accumulated on.
+    final static int NUM_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    List<ImageReader> mImageReaders = new ArrayList<ImageReader>();
     TextView textView;
 
     protected Handler mMainHandler;
@@ -62,6 +116,33 @@ public class RemoteCaptureActivity extends Activity {
 
     CaptureDesign mDesign;
     DesignResult mDesignResult;
+    SettingsSyncScheduler.SettingsSyncReport mSyncReport;
+
+    // Set instead of mDesignResult while streaming.
+    StreamingCapture mStreamingCapture;
+    boolean mStreamingRequested = false;
+    int mStreamFrames;
+    long mStreamDurationMs;
+
+    // Container file the frames of the current design are appended to, if using one.
+    private BurstContainerWriter mContainer;
+    // Checksums of the frames of the current design, as they are written.
+    private DesignManifest mManifest;
+    // Brightness statistics of the frames of the current design, as they are written.
+    private DesignStatistics mStatistics;
+    // Record of the current design's progress, for recovering it should the app die.
+    private DesignJournal mJournal;
+    // Record of the camera events of the current design, if recording them.
+    private CaptureEventLog.Writer mEventLog;
+    int mYuvFlags = YuvFormat.FLAG_COMPACT_ROWS;
+    boolean mUseCompression = false;
+    boolean mUsePackedRaw = false;
+    int mAccumulate = 0;
+    // Accumulators merging the frames of the current design, by ImageFormat, if merging them.
+    private Map<Integer,BurstAccumulator> mAccumulators = new HashMap<Integer,BurstAccumulator>();
+    // Format of the stream proxies of the frames are made from, for reviewing them: the first one.
+    int mProxyFormat;
+    private ExecutorService mWorkerPool;
 
     boolean mWaitingToCapture = false;
     int mNumToSave;
@@ -95,7 +176,16 @@ public class RemoteCaptureActivity extends Activity {
                     return;
                 }
 
-                mDevCam.capture(mDesign);
+                if (mStreamingRequested) {
+                    mStreamingCapture = new StreamingCapture(new File(CAPTURE_DIR, mDesign.getDesignName()),
+                            mDesign.getDesignName(), mCamChars, STREAM_MAX_PENDING_SAVES, mStreamingListener);
+                    mStreamingCapture.setPackRaw(mUsePackedRaw);
+                    mStreamingCapture.setFrameLimit(mStreamFrames);
+                    mStreamingCapture.start();
+                    mDevCam.captureStreaming(mDesign, mStreamFrames, mStreamDurationMs);
+                } else {
+                    mDevCam.capture(mDesign);
+                }
                 mWaitingToCapture = false;
 
                 mMainHandler.post(new Runnable() {
@@ -120,19 +210,40 @@ public class RemoteCaptureActivity extends Activity {
         void onCaptureStarted(Long timestamp) {
             super.onCaptureStarted(timestamp);
 
-            mDesignResult.recordCaptureTimestamp(timestamp);
+            if (mStreamingCapture == null) {
+                if (mEventLog != null) {
+                    mEventLog.captureStarted(timestamp);
+                }
+                mDesignResult.recordCaptureTimestamp(timestamp);
+            }
         }
 
         @Override
         void onCaptureCompleted(CaptureResult result) {
             super.onCaptureCompleted(result);
 
-            mDesignResult.recordCaptureResult(result);
+            if (mStreamingCapture != null) {
+                mStreamingCapture.recordCaptureResult(result);
+            } else {
+                if (mEventLog != null) {
+                    mEventLog.captureCompleted(result.get(CaptureResult.SENSOR_TIMESTAMP), result.getFrameNumber());
+                }
+                mDesignResult.recordCaptureResult(result);
+            }
+        }
+
+        @Override
+        void onSettingsSyncReport(SettingsSyncScheduler.SettingsSyncReport report) {
+            super.onSettingsSyncReport(report);
+            mSyncReport = report;
         }
 
         @Override
         void onCaptureSequenceCompleted() {
             super.onCaptureSequenceCompleted();
+            if (mStreamingCapture != null) {
+                mStreamingCapture.finish();
+            }
             mMainHandler.post(new Runnable() {
                 public void run() {
                     textView.setText("Saving Images.");
@@ -189,6 +300,7 @@ public class RemoteCaptureActivity extends Activity {
         super.onResume();
         Log.v(DevCam.APP_TAG, "RemoteCaptureActivity onResume().");
         establishActiveResources();
+        registerReceiver(mStopStreamReceiver, new IntentFilter(STOP_STREAM));
 
         parseIntent();
     }
@@ -198,6 +310,7 @@ public class RemoteCaptureActivity extends Activity {
         super.onPause();
         Log.v(DevCam.APP_TAG, "RemoteCaptureActivity onPause().");
         mPreviewSurfaceView.setVisibility(View.GONE);
+        unregisterReceiver(mStopStreamReceiver);
         freeImageSaverResources();
         mDevCam.stopCam();
     }
@@ -229,7 +342,7 @@ public class RemoteCaptureActivity extends Activity {
         }
 
         Log.v(DevCam.APP_TAG, "Parsing Intent.");
-        if (action.equals(CAPTURE_REQUEST)) {
+        if (action.equals(CAPTURE_REQUEST) || action.equals(STREAM_REQUEST)) {
               Log.v(DevCam.APP_TAG,"Intent was for Capture Request");
 //            if (mDevCam.isReady()) {
 //                Log.v(DevCam.APP_TAG,"DevCam is ready, so process capture request!");
@@ -277,6 +390,40 @@ public class RemoteCaptureActivity extends Activity {
         }
         Log.v(DevCam.APP_TAG, "Format: " + CameraReport.cameraConstantStringer("android.graphics.ImageFormat", format));
 
+        mStreamingRequested = STREAM_REQUEST.equals(intent.getAction());
+        mStreamFrames = intent.getIntExtra(STREAM_FRAMES, 0);
+        mStreamDurationMs = intent.getIntExtra(STREAM_DURATION_MS, 0);
+        if (mStreamingRequested) {
+            Log.v(DevCam.APP_TAG, "Streaming, frame limit: " + mStreamFrames + ", duration limit (ms): " + mStreamDurationMs);
+        }
+
+        List<Integer> formats = new ArrayList<Integer>();
+        List<Size> sizes = new ArrayList<Size>();
+        formats.add(format);
+        sizes.add(new Size(width,height));
+        int[] extraFormats = intent.getIntArrayExtra(EXTRA_FORMATS);
+        if (extraFormats != null && mStreamingRequested) {
+            // StreamingCapture pairs one Image per frame, so a stream has only the one output.
+            Log.v(DevCam.APP_TAG, "Ignoring Extra Formats, streams are captured in one format only");
+        } else if (extraFormats != null) {
+            for (int extraFormat : extraFormats) {
+                Size[] available = mStreamMap.getOutputSizes(extraFormat);
+                if (formats.contains(extraFormat) || available == null || available.length == 0) {
+                    Log.v(DevCam.APP_TAG, "Skipping unusable extra format " + extraFormat);
+                    continue;
+                }
+                Size largest = available[0];
+                for (Size size : available) {
+                    if (size.getWidth()*size.getHeight() > largest.getWidth()*largest.getHeight()) {
+                        largest = size;
+                    }
+                }
+                formats.add(extraFormat);
+                sizes.add(largest);
+                Log.v(DevCam.APP_TAG, "Extra Format: " + CameraReport.cameraConstantStringer("android.graphics.ImageFormat", extraFormat) + " at " + largest);
+            }
+        }
+
         String designName = intent.getStringExtra(DESIGN_NAME);
         if (designName == null) {
             Log.v(DevCam.APP_TAG, "No Design Name in Intent");
@@ -291,27 +438,84 @@ public class RemoteCaptureActivity extends Activity {
             mDesign = CaptureDesign.Creator.loadDesignFromJson(designFile);
             mDesign.setDesignName(designName);
             mDesign.setProcessingSetting(CaptureDesign.ProcessingChoice.getChoiceByIndex(processingSetting));
-            mDesignResult = new DesignResult(mDesign.getExposures().size(),mOnCaptureAvailableListener);
-            mWrittenFilenames = new ArrayList<String>();
+            mDesignResult = new DesignResult(mDesign.getExposures().size(),formats.size(),mOnCaptureAvailableListener);
 
-            mNumImagesLeftToSave = mDesign.getExposures().size();
+            mNumImagesLeftToSave = mDesign.getExposures().size()*formats.size();
+
+            // Turn the design down before the camera is touched if its output can't fit. A stream
+            // without a frame limit is only checked for one pass through the design.
+            int numFrames = mDesign.getExposures().size();
+            if (mStreamingRequested && mStreamFrames > 0) {
+                numFrames = mStreamFrames;
+            }
+            long designBytes = StorageAdmission.estimateDesignBytes(formats, sizes, numFrames);
+            if (!StorageAdmission.admit(CAPTURE_DIR, designBytes)) {
+                Log.v(DevCam.APP_TAG, "Not enough free space for design " + designName + ", capture request ignored.");
+                return;
+            }
 
             Log.v(DevCam.APP_TAG,"CaptureDesign created.");
 
-            // Establish output surface (ImageReader) resources and register our callback with it.
-            mImageReader = ImageReader.newInstance(width,height,format,
-                    imageBufferSizer(mDesign));  // defer to auxiliary function to determine size of allocation
-            mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
-                @Override
-                public void onImageAvailable(ImageReader reader) {
-                    Log.v(DevCam.APP_TAG, "IMAGE READY! Saving to DesignResult.");
-                    Image image = reader.acquireNextImage();
-                    mDesignResult.recordImage(image);
-                }
-            }, mImageSaverHandler);
+            // Establish output surface (ImageReader) resources, one per stream, and register our
+            // callback with them. They all feed the same DesignResult, which pairs them by timestamp.
+            closeImageReaders();
+            List<Surface> outputSurfaces = new ArrayList<Surface>();
+            for (int i=0; i<formats.size(); i++) {
+                ImageReader reader = ImageReader.newInstance(sizes.get(i).getWidth(), sizes.get(i).getHeight(),
+                        formats.get(i),
+                        mStreamingRequested ? STREAM_MAX_PENDING_SAVES + 4 // frames waiting to be written, plus some in flight
+                                : imageBufferSizer(mDesign));  // defer to auxiliary function to determine size of allocation
+                reader.setOnImageAvailableListener(mOnImageAvailableListener, mImageSaverHandler);
+                mImageReaders.add(reader);
+                outputSurfaces.add(reader.getSurface());
+            }
 
+            mYuvFlags = intent.getIntExtra(YUV_LAYOUT, YuvFormat.FLAG_COMPACT_ROWS);
+            mUseCompression = !mStreamingRequested && intent.getIntExtra(COMPRESS, 0) == 1;
+            mUsePackedRaw = intent.getIntExtra(PACKED_RAW, 0) == 1;
+            mAccumulate = mStreamingRequested ? 0 : intent.getIntExtra(ACCUMULATE, 0);
+            if (mAccumulate > 0) {
+                String reason = BurstAccumulator.whyNotAccumulate(mDesign.getExposures(), formats, sizes,
+                        mAccumulate == 2, mCamChars);
+                if (reason != null) {
+                    Log.v(DevCam.APP_TAG, "Not merging the frames of design " + designName + ", as " + reason
+                            + ". Saving them one by one instead.");
+                    mAccumulate = 0;
+                }
+            }
+            mAccumulators = new HashMap<Integer,BurstAccumulator>();
+            mProxyFormat = formats.get(0);
+            if (!mStreamingRequested) {
+                final String reviewedName = mDesign.getDesignName();
+                mImageSaverHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ReviewActivity.getProxyCache(mContext).removeDesign(reviewedName);
+                    }
+                });
+            }
+            mManifest = new DesignManifest();
+            mStatistics = new DesignStatistics();
+            if (!mStreamingRequested && intent.getIntExtra(CONTAINER, 0) == 1) {
+                openContainer(designBytes);
+            }
+            if (!mStreamingRequested) {
+                openJournal();
+            }
+            // Any log of a design cut short is left as it is.
+            if (mEventLog != null) {
+                mEventLog.close();
+                mEventLog = null;
+            }
+            if (!mStreamingRequested && intent.getIntExtra(RECORD_EVENTS, 0) == 1) {
+                openEventLog();
+            }
 
-            mDevCam.registerOutputSurfaces(Arrays.asList(mImageReader.getSurface()));
+            mDevCam.setSettingsPrimingEnabled(intent.getIntExtra(SETTINGS_PRIMING, 1) != 0);
+            mDevCam.registerOutputSurfaces(outputSurfaces);
+            // Streams drop frames rather than wait for buffers. Otherwise leave one Image of
+            // headroom, so acquiring never fails while a frame is being released.
+            mDevCam.setOutputBufferCapacity(mStreamingRequested ? 0 : imageBufferSizer(mDesign)-1);
             mWaitingToCapture = true;
             Log.v(DevCam.APP_TAG,"Output surface created and registered with DevCam. Waiting for updated CaptureSession.");
 
@@ -326,6 +530,151 @@ public class RemoteCaptureActivity extends Activity {
 
 
 
+    /* void openContainer(long)
+     *
+     * Create the container file for the current design, preallocated to the expected size of all
+     * frames of all its output streams. If it can't be created, fall back to saving every frame to
+     * its own file.
+     */
+    private void openContainer(long designBytes){
+        File IM_SAVE_DIR = new File(CAPTURE_DIR,mDesign.getDesignName());
+        IM_SAVE_DIR.mkdirs();
+        try {
+            mContainer = new BurstContainerWriter(
+                    new File(IM_SAVE_DIR, mDesign.getDesignName() + BurstContainer.EXTENSION),
+                    designBytes, StorageAdmission.CONTAINER_ALLOCATOR);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            mContainer = null;
+        }
+    }
+
+    /* void openJournal()
+     *
+     * Start the journal of the current design, so that what gets saved of it can be recovered
+     * should the app die before it is finished.
+     */
+    private void openJournal(){
+        File IM_SAVE_DIR = new File(CAPTURE_DIR,mDesign.getDesignName());
+        IM_SAVE_DIR.mkdirs();
+        try {
+            mJournal = new DesignJournal(new File(IM_SAVE_DIR, mDesign.getDesignName() + DesignJournal.FILE_SUFFIX),
+                    (mContainer != null) ? mContainer.getFile().getName() : null);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            mJournal = null;
+        }
+    }
+
+    /* void openEventLog()
+     *
+     * Start recording the camera events of the current design. If the log can't be created, the
+     * design is captured all the same.
+     */
+    private void openEventLog(){
+        File IM_SAVE_DIR = new File(CAPTURE_DIR,mDesign.getDesignName());
+        IM_SAVE_DIR.mkdirs();
+        try {
+            mEventLog = new CaptureEventLog.Writer(new File(IM_SAVE_DIR, mDesign.getDesignName() + CaptureEventLog.FILE_SUFFIX));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            mEventLog = null;
+        }
+    }
+
+    /* void recoverCutShortDesigns()
+     *
+     * Finish off any designs whose saving was cut short the last time devCam ran, and register
+     * their regenerated metadata files with the file system.
+     */
+    private void recoverCutShortDesigns(){
+        for (JournalRecovery.Report report : JournalRecovery.recoverAll(CAPTURE_DIR)) {
+            Log.v(DevCam.APP_TAG, report.toString());
+            for (File file : report.getWrittenFiles()) {
+                CameraReport.addFileToMTP(mContext, file.getAbsolutePath());
+            }
+        }
+    }
+
+    /* void writeStatistics(DesignStatistics)
+     *
+     * Write out the brightness statistics of all frames of the current design and register them
+     * with the file system.
+     */
+    private void writeStatistics(DesignStatistics statistics){
+        File statisticsFile = new File(new File(CAPTURE_DIR,mDesign.getDesignName()),
+                mDesign.getDesignName() + DesignStatistics.FILE_SUFFIX);
+        try {
+            statistics.writeOut(statisticsFile);
+            CameraReport.addFileToMTP(mContext, statisticsFile.getAbsolutePath());
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /* void writeManifest(DesignManifest)
+     *
+     * Write out the checksums of all frames of the current design and register the manifest with
+     * the file system.
+     */
+    private void writeManifest(DesignManifest manifest){
+        File manifestFile = new File(new File(CAPTURE_DIR,mDesign.getDesignName()),
+                mDesign.getDesignName() + DesignManifest.FILE_SUFFIX);
+        try {
+            manifest.writeOut(manifestFile);
+            CameraReport.addFileToMTP(mContext, manifestFile.getAbsolutePath());
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /* void closeContainer()
+     *
+     * Finish off the container file of the current design and register it with the file system.
+     */
+    private void closeContainer(){
+        try {
+            mContainer.close();
+            CameraReport.addFileToMTP(mContext, mContainer.getFile().getAbsolutePath());
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        mContainer = null;
+    }
+
+
+
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Log.v(DevCam.APP_TAG, "IMAGE READY! Saving to DesignResult.");
+                    Image image = reader.acquireNextImage();
+                    if (mStreamingCapture != null) {
+                        mStreamingCapture.recordImage(image);
+                    } else {
+                        if (mEventLog != null) {
+                            recordImageEvent(image);
+                        }
+                        mDesignResult.recordImage(image);
+                    }
+                }
+            };
+
+
+    /* void recordImageEvent(Image)
+     *
+     * Record the arrival of an Image, with the number of bytes in its planes.
+     */
+    private void recordImageEvent(Image image){
+        long size = 0;
+        for (Image.Plane plane : image.getPlanes()) {
+            size += plane.getBuffer().remaining();
+        }
+        mEventLog.imageAvailable(image.getTimestamp(), image.getFormat(), image.getWidth(), image.getHeight(), size);
+    }
+
+
     /* int imageBufferSizer()
      *
      * Function to determine the number of Images we should allocate space for in the ImageReader.
@@ -337,7 +686,8 @@ public class RemoteCaptureActivity extends Activity {
      *
      * Right now the function is fairly sloppy, though it seems that a Nexus 5 can actually use 30
      * and work successfully. Much larger numbers don't throw an error, but do crash the application
-     * later on.
+     * later on. Designs with more exposures than this are still fine, since DevCam is told how many
+     * frames the ImageReader holds and only submits as many as have free buffers.
      */
     int imageBufferSizer(CaptureDesign design){
         return Math.min(30,design.getExposures().size())+2;
@@ -370,6 +720,19 @@ public class RemoteCaptureActivity extends Activity {
             mImageSaverHandler = new Handler(mImageSaverThread.getLooper());
         }
 
+        // And a pool of workers for compressing and accumulating frames, fed by the ImageSaver thread.
+        if (null==mWorkerPool){
+            mWorkerPool = Executors.newFixedThreadPool(NUM_WORKERS);
+        }
+
+        // Before anything new is saved, tidy up after designs the app died in the middle of.
+        mImageSaverHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                recoverCutShortDesigns();
+            }
+        });
+
         // Set up the SurfaceHolder of the appropriate View for being a
         // preview. Doing so initiates the loading of the camera, once the
         // SurfaceHolder.Callback is invoked.
@@ -483,9 +846,7 @@ public class RemoteCaptureActivity extends Activity {
     private void freeImageSaverResources() {
         Log.v(DevCam.APP_TAG,"freeImageSaverResources() called.");
 
-        if (mImageReader!=null) {
-            mImageReader.close();
-        }
+        closeImageReaders();
 
         mImageSaverThread.quitSafely();
         try {
@@ -495,9 +856,76 @@ public class RemoteCaptureActivity extends Activity {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+
+        // Nothing is left for the compression workers once the ImageSaver thread has finished.
+        if (null!=mWorkerPool){
+            mWorkerPool.shutdown();
+            mWorkerPool = null;
+        }
+    }
+
+
+    private void closeImageReaders(){
+        for (ImageReader reader : mImageReaders) {
+            reader.close();
+        }
+        mImageReaders.clear();
     }
 
 
+    /* Receiver for the STOP_STREAM broadcast, which ends a stream without a limit. A broadcast is used
+     * rather than an Activity Intent since the latter would pause the Activity, closing the camera.
+     */
+    private final BroadcastReceiver mStopStreamReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.v(DevCam.APP_TAG, "Received request to stop streaming.");
+            mDevCam.stopStreaming();
+        }
+    };
+
+
+    StreamingCapture.StreamingListener mStreamingListener = new StreamingCapture.StreamingListener() {
+
+        @Override
+        public void onFrameSaved(File file) {
+            CameraReport.addFileToMTP(mContext, file.getAbsolutePath());
+        }
+
+        @Override
+        public void onStreamingFinished(StreamingCapture.StreamingReport report) {
+            File IM_SAVE_DIR = new File(CAPTURE_DIR,mDesign.getDesignName());
+
+            File reportFile = new File(IM_SAVE_DIR,mDesign.getDesignName() + "_streaming" + ".txt");
+            report.writeOut(reportFile);
+            CameraReport.addFileToMTP(mContext, reportFile.getAbsolutePath());
+            writeManifest(mStreamingCapture.getManifest());
+            writeStatistics(mStreamingCapture.getStatistics());
+
+            File requestFile = new File(IM_SAVE_DIR,mDesign.getDesignName()+"_design_request"+".txt");
+            mDesign.writeOut(requestFile);
+            CameraReport.addFileToMTP(mContext, requestFile.getAbsolutePath());
+
+            if (mSyncReport!=null) {
+                File syncFile = new File(IM_SAVE_DIR, mDesign.getDesignName() + "_settings_sync" + ".txt");
+                mSyncReport.writeOut(syncFile);
+                CameraReport.addFileToMTP(mContext, syncFile.getAbsolutePath());
+                mSyncReport = null;
+            }
+
+            mStreamingCapture = null;
+            mFlagFile.delete();
+
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    textView.setText(R.string.remote_default_text);
+                }
+            });
+        }
+    };
+
+
     DesignResult.OnCaptureAvailableListener mOnCaptureAvailableListener = new DesignResult.OnCaptureAvailableListener(){
 
         @Override
@@ -514,19 +942,93 @@ public class RemoteCaptureActivity extends Activity {
                     fileType = ".yuv";
                     break;
                 case ImageFormat.RAW_SENSOR:
-                    fileType = ".dng";
+                    fileType = mUsePackedRaw ? PackedRawFormat.EXTENSION : ".dng";
                     break;
             }
 
-            // Record the filename for later, with counter based on number already saved.
-            String filename = mDesign.getDesignName() + "-" + (mWrittenFilenames.size()+1) + fileType;
-            mWrittenFilenames.add(filename);
+            // RAW and YUV frames may be merged into one instead of saved one by one, in which case
+            // every frame of the stream is recorded with the merged frame's filename.
+            if (mAccumulate > 0 && BurstAccumulator.canAccumulate(image.getFormat())) {
+                BurstAccumulator accumulator = accumulatorFor(image.getFormat(), fileType);
+                mDesignResult.recordFilename(result, image.getFormat(), accumulator.getFilename());
+                if (mJournal != null) {
+                    mJournal.framePaired(mDesignResult.getFrameIndex(result), image.getTimestamp(),
+                            accumulator.getFilename(), CameraReport.captureResultToJson(result));
+                }
+                mImageSaverHandler.post(accumulator.add(image, result));
+                return;
+            }
+
+            // Record the filename for later, with counter based on the frame's place in the design,
+            // so that the files of a frame from different output streams share a number.
+            // RAW and YUV frames in files of their own may be compressed, see CompressedFrame.
+            boolean compress = (mContainer == null) && ImageSaver.willCompress(mUseCompression,
+                    ImageSaver.fileFormat(image.getFormat(), mUsePackedRaw));
+            if (compress) {
+                fileType += CompressedFrame.EXTENSION;
+            }
+            String filename = mDesign.getDesignName() + "-" + (mDesignResult.getFrameIndex(result)+1) + fileType;
+            mDesignResult.recordFilename(result, image.getFormat(), filename);
 
             File IM_SAVE_DIR = new File(CAPTURE_DIR,mDesign.getDesignName());
             IM_SAVE_DIR.mkdir();
 
             // Post the images to be saved on another thread
-            mImageSaverHandler.post(new ImageSaver(image, result, mCamChars, IM_SAVE_DIR, filename, mWriteOutCallback));
+            ImageSaver saver;
+            if (mContainer != null) {
+                saver = new ImageSaver(image, result, mCamChars, mContainer, filename, mWriteOutCallback);
+            } else {
+                saver = new ImageSaver(image, result, mCamChars, IM_SAVE_DIR, filename, mWriteOutCallback);
+            }
+            saver.setYuvFlags(mYuvFlags);
+            if (compress) {
+                saver.setCompression(mWorkerPool, NUM_WORKERS);
+            }
+            saver.setPackRaw(mUsePackedRaw);
+            saver.setManifest(mManifest);
+            saver.setStatistics(mStatistics);
+            if (image.getFormat() == mProxyFormat) {
+                saver.setProxyCache(ReviewActivity.getProxyCache(mContext), mDesign.getDesignName(),
+                        mDesignResult.getFrameIndex(result)+1);
+            }
+            if (mJournal != null) {
+                mJournal.framePaired(mDesignResult.getFrameIndex(result), image.getTimestamp(),
+                        filename, CameraReport.captureResultToJson(result));
+                saver.setJournal(mJournal);
+            }
+            mImageSaverHandler.post(saver);
+        };
+
+        /* BurstAccumulator accumulatorFor(int, String)
+         *
+         * The accumulator merging the current design's frames of the given ImageFormat, made on its
+         * first frame.
+         */
+        private BurstAccumulator accumulatorFor(int format, String fileType){
+            BurstAccumulator accumulator = mAccumulators.get(format);
+            if (accumulator == null) {
+                accumulator = new BurstAccumulator(mCamChars, new File(CAPTURE_DIR,mDesign.getDesignName()),
+                        BurstAccumulator.mergedFilename(mDesign.getDesignName(), fileType),
+                        mDesign.getExposures().size(), mWriteOutCallback);
+                accumulator.setPool(mWorkerPool, NUM_WORKERS);
+                accumulator.setKeepVariance(mAccumulate == 2);
+                accumulator.setPackRaw(mUsePackedRaw);
+                accumulator.setYuvFlags(mYuvFlags);
+                accumulator.setManifest(mManifest);
+                accumulator.setStatistics(mStatistics);
+                accumulator.setJournal(mJournal);
+                if (format == mProxyFormat) {
+                    accumulator.setProxyCache(ReviewActivity.getProxyCache(mContext), mDesign.getDesignName());
+                }
+                mAccumulators.put(format, accumulator);
+            }
+            return accumulator;
+        }
+
+        @Override
+        public void onStreamCompleted(DesignResult designResult, int format) {
+            Log.v(DevCam.APP_TAG,"All " + CameraReport.cameraConstantStringer("android.graphics.ImageFormat", format)
+                    + " Images have been paired by DesignResult.");
         };
 
         @Override
@@ -539,11 +1041,13 @@ public class RemoteCaptureActivity extends Activity {
     ImageSaver.WriteOutCallback mWriteOutCallback = new ImageSaver.WriteOutCallback() {
 
         @Override
-        void onImageSaved(boolean success, String filename) {
+        void onImageSaved(boolean success, String filename, int format) {
+            boolean inContainer = (mContainer != null);
 
             // Now check to see if all of the images have been saved. If so, we can restore control
             // to the user and remove the "Saving images" sign.
             mNumImagesLeftToSave--;
+            mDevCam.releaseOutputImage(format); // its buffer is free for another frame of the design
             Log.v(DevCam.APP_TAG, "Writeout of image: " + filename + " : " + success);
             Log.v(DevCam.APP_TAG, mNumImagesLeftToSave + " image files left to save.");
 
@@ -553,9 +1057,16 @@ public class RemoteCaptureActivity extends Activity {
                 // Here, save the metadata and the request itself, and register them with the system
                 File IM_SAVE_DIR = new File(CAPTURE_DIR,mDesign.getDesignName());
 
+                // Write the container's index now that all frames are in.
+                if (mContainer != null) {
+                    closeContainer();
+                }
+                writeManifest(mManifest);
+                writeStatistics(mStatistics);
+
                 // First, save JSON file with array of metadata
                 File metadataFile = new File(IM_SAVE_DIR,mDesign.getDesignName() + "_capture_metadata" + ".json");
-                CameraReport.writeCaptureResultsToFile(mDesignResult.getCaptureResults(),mWrittenFilenames, metadataFile);
+                CameraReport.writeCaptureResultsToFile(mDesignResult.getCaptureResults(),mDesignResult.getFilenames(), mStatistics, mSyncReport, metadataFile);
                 CameraReport.addFileToMTP(mContext, metadataFile.getAbsolutePath());
 
                 // Now, write out a txt file with the information of the original
@@ -564,6 +1075,26 @@ public class RemoteCaptureActivity extends Activity {
                 mDesign.writeOut(requestFile);
                 CameraReport.addFileToMTP(mContext, requestFile.getAbsolutePath());
 
+                // Also record how many frames were spent getting the settings applied
+                if (mSyncReport!=null) {
+                    File syncFile = new File(IM_SAVE_DIR, mDesign.getDesignName() + "_settings_sync" + ".txt");
+                    mSyncReport.writeOut(syncFile);
+                    CameraReport.addFileToMTP(mContext, syncFile.getAbsolutePath());
+                    mSyncReport = null;
+                }
+
+                if (mEventLog != null) {
+                    mEventLog.close();
+                    CameraReport.addFileToMTP(mContext, mEventLog.getFile().getAbsolutePath());
+                    mEventLog = null;
+                }
+
+                // Everything about the design is saved, so its journal is no longer needed.
+                if (mJournal != null) {
+                    mJournal.complete();
+                    mJournal = null;
+                }
+
                 mFlagFile.delete();
 
                 mMainHandler.post(new Runnable() {
@@ -574,11 +1105,13 @@ public class RemoteCaptureActivity extends Activity {
                 });
             }
 
-            // Register the saved Image with the file system
-            File IM_SAVE_DIR = new File(CAPTURE_DIR,mDesign.getDesignName());
-            File imFile = new File(IM_SAVE_DIR,filename);
-            CameraReport.addFileToMTP(mContext, imFile.getAbsolutePath());
-
+            // Register the saved Image with the file system, unless it went into the container,
+            // which is registered as a whole.
+            if (!inContainer) {
+                File IM_SAVE_DIR = new File(CAPTURE_DIR, mDesign.getDesignName());
+                File imFile = new File(IM_SAVE_DIR, filename);
+                CameraReport.addFileToMTP(mContext, imFile.getAbsolutePath());
+            }
 
         }
     };
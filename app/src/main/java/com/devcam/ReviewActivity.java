@@ -0,0 +1,141 @@
+/* Activity for reviewing the frames of a captured design on the device, from the small proxies of
+ * them made while they were saved (see ProxyFrame), so a whole design can be scrolled through
+ * without decoding any of its full-size files.
+ *
+ * The design to review is passed as a String extra, TAG_DESIGN_NAME. Without one, the design most
+ * recently reviewed or captured is shown.
+ *
+ * The proxies of all designs are kept in one ProxyCache, shared by the whole app, which the
+ * capturing activities fill.
+ */
+
+package com.devcam;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.GridView;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.devcam.io.ProxyCache;
+import com.devcam.io.ProxyFrame;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReviewActivity extends Activity {
+
+    public final static String TAG_DESIGN_NAME = "DESIGN_NAME";
+
+    // Bounds of the proxy cache, in memory and on disk.
+    final static long PROXY_CACHE_MEMORY_BYTES = 16*1024*1024;
+    final static long PROXY_CACHE_DISK_BYTES = 64*1024*1024;
+
+    private static ProxyCache sProxyCache;
+
+    private String mDesignName;
+    private List<Integer> mFrames = new ArrayList<Integer>();
+
+
+    /* static ProxyCache getProxyCache(Context)
+     *
+     * The app's cache of proxies, kept in its cache directory, made on first use.
+     */
+    static synchronized ProxyCache getProxyCache(Context context){
+        if (sProxyCache==null){
+            sProxyCache = new ProxyCache(new File(context.getApplicationContext().getCacheDir(), "proxies"),
+                    PROXY_CACHE_MEMORY_BYTES, PROXY_CACHE_DISK_BYTES);
+        }
+        return sProxyCache;
+    }
+
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        Log.v(DevCamActivity.APP_TAG, "ReviewActivity Created.");
+
+        // Hide the action bar so the activity gets the full screen
+        getActionBar().hide();
+
+        setContentView(R.layout.review_layout);
+
+        ProxyCache cache = getProxyCache(this);
+        mDesignName = getIntent().getStringExtra(TAG_DESIGN_NAME);
+        if (mDesignName==null){
+            List<String> designs = cache.getDesigns();
+            mDesignName = designs.isEmpty() ? null : designs.get(0);
+        }
+        if (mDesignName!=null){
+            mFrames = cache.getFrames(mDesignName);
+        }
+
+        TextView title = (TextView) findViewById(R.id.reviewTitleTextView);
+        if (mDesignName==null || mFrames.isEmpty()){
+            title.setText("No frames to review yet.");
+        } else {
+            title.setText(mDesignName + ": " + mFrames.size() + " frames");
+        }
+
+        GridView grid = (GridView) findViewById(R.id.reviewGridView);
+        grid.setAdapter(new ProxyAdapter(cache));
+    }
+
+
+
+    /* Adapter making a cell of the grid for each frame with a proxy, from the cache, which keeps
+     * the ones scrolled past recently in memory.
+     */
+    private class ProxyAdapter extends BaseAdapter {
+
+        private final ProxyCache mCache;
+        private final LayoutInflater mInflater;
+
+        ProxyAdapter(ProxyCache cache){
+            mCache = cache;
+            mInflater = LayoutInflater.from(ReviewActivity.this);
+        }
+
+        @Override
+        public int getCount(){
+            return mFrames.size();
+        }
+
+        @Override
+        public Object getItem(int position){
+            return mFrames.get(position);
+        }
+
+        @Override
+        public long getItemId(int position){
+            return mFrames.get(position);
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent){
+            View cell = (convertView!=null) ? convertView : mInflater.inflate(R.layout.review_item, parent, false);
+            ImageView image = (ImageView) cell.findViewById(R.id.reviewProxyImageView);
+            TextView label = (TextView) cell.findViewById(R.id.reviewFrameTextView);
+
+            int frame = mFrames.get(position);
+            label.setText(mDesignName + "-" + frame);
+            ProxyFrame proxy = mCache.get(mDesignName, frame);
+            if (proxy!=null){
+                image.setImageBitmap(Bitmap.createBitmap(proxy.getPixels(), proxy.getWidth(),
+                        proxy.getHeight(), Bitmap.Config.ARGB_8888));
+            } else {
+                image.setImageBitmap(null);
+            }
+            return cell;
+        }
+    }
+
+}
@@ -20,6 +20,10 @@ public class SettingsActivity extends Activity {
     static final String SHOW_FOCUS_DISTANCE = "SHOW_FOCUS_DISTANCE";
     static final String SHOW_FOCAL_LENGTH = "SHOW_FOCAL_LENGTH";
     static final String USE_DELAY_KEY = "USE_DELAY";
+    static final String USE_CONTAINER_KEY = "USE_CONTAINER";
+    static final String USE_COMPRESSION_KEY = "USE_COMPRESSION";
+    static final String USE_PACKED_RAW_KEY = "USE_PACKED_RAW";
+    static final String USE_ACCUMULATION_KEY = "USE_ACCUMULATION";
 
     Button mOKbutton;
     CheckBox mExposureTimeBox;
@@ -27,6 +31,10 @@ public class SettingsActivity extends Activity {
     CheckBox mSensitivityBox;
     CheckBox mFocusDistanceBox;
     CheckBox mFocalLengthBox;
+    CheckBox mContainerBox;
+    CheckBox mCompressionBox;
+    CheckBox mPackedRawBox;
+    CheckBox mAccumulationBox;
     Switch mSwitch;
 
     @Override
@@ -45,6 +53,10 @@ public class SettingsActivity extends Activity {
         mSensitivityBox = (CheckBox) findViewById(R.id.sensitivityCheckBox);
         mFocusDistanceBox = (CheckBox) findViewById(R.id.focusDistanceCheckBox);
         mFocalLengthBox = (CheckBox) findViewById(R.id.focalLengthCheckBox);
+        mContainerBox = (CheckBox) findViewById(R.id.containerCheckBox);
+        mCompressionBox = (CheckBox) findViewById(R.id.compressionCheckBox);
+        mPackedRawBox = (CheckBox) findViewById(R.id.packedRawCheckBox);
+        mAccumulationBox = (CheckBox) findViewById(R.id.accumulationCheckBox);
         mSwitch = (Switch) findViewById(R.id.delaySwitch);
 
         SharedPreferences settings = getSharedPreferences(DevCamActivity.APP_TAG, Context.MODE_MULTI_PROCESS);
@@ -54,6 +66,10 @@ public class SettingsActivity extends Activity {
         mSensitivityBox.setChecked(settings.getBoolean(SHOW_SENSITIVITY, true));
         mFocusDistanceBox.setChecked(settings.getBoolean(SHOW_FOCUS_DISTANCE,true));
         mFocalLengthBox.setChecked(settings.getBoolean(SHOW_FOCAL_LENGTH,false)); // often fixed
+        mContainerBox.setChecked(settings.getBoolean(USE_CONTAINER_KEY,false));
+        mCompressionBox.setChecked(settings.getBoolean(USE_COMPRESSION_KEY,false));
+        mPackedRawBox.setChecked(settings.getBoolean(USE_PACKED_RAW_KEY,false));
+        mAccumulationBox.setChecked(settings.getBoolean(USE_ACCUMULATION_KEY,false));
         mSwitch.setChecked(settings.getBoolean(USE_DELAY_KEY,false));
 
         // Set up the "OK" Button to send settings back to main function
@@ -68,6 +84,10 @@ public class SettingsActivity extends Activity {
                 editor.putBoolean(SHOW_FOCAL_LENGTH,mFocalLengthBox.isChecked());
                 editor.putBoolean(SHOW_FOCUS_DISTANCE,mFocusDistanceBox.isChecked());
                 editor.putBoolean(USE_DELAY_KEY,mSwitch.isChecked());
+                editor.putBoolean(USE_CONTAINER_KEY,mContainerBox.isChecked());
+                editor.putBoolean(USE_COMPRESSION_KEY,mCompressionBox.isChecked());
+                editor.putBoolean(USE_PACKED_RAW_KEY,mPackedRawBox.isChecked());
+                editor.putBoolean(USE_ACCUMULATION_KEY,mAccumulationBox.isChecked());
                 editor.commit();
                 finish();
             }
@@ -0,0 +1,369 @@
+/* Helper class for making sure the settings requested for each Exposure of a CaptureDesign are the
+ * ones the camera device actually applies to the frame that gets saved.
+ *
+ * On many devices a change in sensor/lens settings does not take effect on the very next frame,
+ * but only some number of frames later. The device reports this number via
+ * android.sync.maxLatency, or reports UNKNOWN, in which case the only bound available is
+ * android.request.pipelineMaxDepth. If we submit a burst where every request changes the settings,
+ * the saved frames can therefore carry settings from some earlier request.
+ *
+ * To get around this, whenever the settings change between consecutive Exposures of a burst, the
+ * DevCam inserts "priming" frames with the new settings, which only go to the preview Surfaces and
+ * are never saved. The scheduler decides how many are needed, tags every request so the capture
+ * callbacks can tell priming frames from design frames, checks each design frame's CaptureResult
+ * against the Exposure it was meant to capture, and tallies the frames wasted along the way.
+ *
+ * Priming a device of UNKNOWN latency with a whole pipeline's depth of frames at every change is
+ * the most it can cost, so instead the results of the frames after each change are watched for
+ * when the new settings actually show up. How many frames that took, at most, is then what later
+ * designs are primed with. Only changes larger than the tolerances the results are checked to can
+ * be seen this way, since a frame still carrying the old settings would pass for the new ones. A design frame that still comes out with the wrong settings raises it
+ * for next time, and is flagged by its timestamp in the report, so it can be told apart from the
+ * good ones in the design's metadata.
+ */
+
+package com.devcam;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureResult;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+final class SettingsSyncScheduler {
+
+    // Relative amount by which a reported exposure time/ISO may differ from the requested value
+    // and still count as applied. Sensors quantize both to their own step sizes.
+    final static float RELATIVE_TOLERANCE = 0.02f;
+    // Absolute tolerance on focus distance, in diopters.
+    final static float FOCUS_TOLERANCE = 0.05f;
+
+    private final int mPipelineMaxDepth;
+    private final int mSyncMaxLatency;
+    private boolean mPrimingEnabled = true;
+    // Frames it took the settings to show up after a change, at most, as seen in the results of an
+    // UNKNOWN latency device, or -1 before any change was seen through.
+    private int mObservedLatency = -1;
+    // The Exposure whose settings were last seen to have come through, after the change to them.
+    private int mSettledExposure = -1;
+
+    // The Exposures of the design currently being captured, for checking results against.
+    private List<Exposure> mExposures;
+    private SettingsSyncReport mReport;
+
+
+    // - - - Constructor - - -
+    SettingsSyncScheduler(CameraCharacteristics camChars){
+        Byte depth = camChars.get(CameraCharacteristics.REQUEST_PIPELINE_MAX_DEPTH);
+        mPipelineMaxDepth = (depth==null)? 0 : depth.intValue();
+        Integer latency = camChars.get(CameraCharacteristics.SYNC_MAX_LATENCY);
+        mSyncMaxLatency = (latency==null)? CameraMetadata.SYNC_MAX_LATENCY_UNKNOWN : latency;
+        Log.v(DevCam.APP_TAG,"SettingsSyncScheduler: pipelineMaxDepth = " + mPipelineMaxDepth
+                + ", syncMaxLatency = " + mSyncMaxLatency);
+    }
+
+
+    // - - Setters and Getters - -
+    void setPrimingEnabled(boolean enabled){
+        mPrimingEnabled = enabled;
+    }
+    boolean isPrimingEnabled(){
+        return mPrimingEnabled;
+    }
+    int getPipelineMaxDepth(){
+        return mPipelineMaxDepth;
+    }
+    int getSyncMaxLatency(){
+        return mSyncMaxLatency;
+    }
+    int getObservedLatency(){
+        return mObservedLatency;
+    }
+    SettingsSyncReport getReport(){
+        return mReport;
+    }
+
+
+    /* int getSettingsLatency()
+     *
+     * Number of frames it may take the device for a change of settings to show up in its output.
+     * PER_FRAME_CONTROL devices need none. If the device does not know, go by what earlier designs
+     * showed it to take, and until there is that, by the depth of its pipeline, since no request can
+     * be in flight for longer than that.
+     */
+    int getSettingsLatency(){
+        if (mSyncMaxLatency==CameraMetadata.SYNC_MAX_LATENCY_PER_FRAME_CONTROL){
+            return 0;
+        } else if (mSyncMaxLatency==CameraMetadata.SYNC_MAX_LATENCY_UNKNOWN){
+            return (mObservedLatency>=0)? mObservedLatency : mPipelineMaxDepth;
+        }
+        return mSyncMaxLatency;
+    }
+
+
+    /* void startDesign(CaptureDesign)
+     *
+     * Reset the bookkeeping for a new design. Call this before building the burst, once all of the
+     * design's Exposure values are explicit.
+     */
+    void startDesign(CaptureDesign design){
+        mExposures = design.getExposures();
+        mSettledExposure = -1;
+        mReport = new SettingsSyncReport(design.getDesignName(),mExposures.size(),
+                getSettingsLatency(),mPipelineMaxDepth,mSyncMaxLatency);
+        mReport.mObservedLatency = mObservedLatency;
+    }
+
+
+    /* int primingFramesFor(Exposure, Exposure)
+     *
+     * How many unsaved frames must be put in front of the next Exposure so that it is captured with
+     * its own settings. The first Exposure of a burst always follows the preview/auto settings, so
+     * pass null as the previous Exposure in that case.
+     */
+    int primingFramesFor(Exposure previous, Exposure next){
+        if (!mPrimingEnabled || !settingsChange(previous,next)){
+            return 0;
+        }
+        return getSettingsLatency();
+    }
+
+    /* Whether the settings change for the next Exposure, as they always do for the first. */
+    static boolean settingsChange(Exposure previous, Exposure next){
+        return previous==null || settingsDiffer(previous,next);
+    }
+
+    /* boolean observableChange(Exposure, Exposure)
+     *
+     * Whether the results of the frames after a change from the settings before (null if they are
+     * not known) to those of the next Exposure can show when the change came through. Only such
+     * changes are watched to learn the latency, see observe().
+     */
+    static boolean observableChange(Exposure before, Exposure next){
+        return before!=null && !settingsApplied(next, before.getExposureTime(), before.getSensitivity(),
+                before.getAperture(), before.getFocalLength(), before.getFocusDistance());
+    }
+
+
+    /* void recordPrimingFrame(FrameTag, CaptureResult)
+     *
+     * Count a priming frame that made it through the pipeline, and see whether the settings it
+     * primes have come through yet. Pass a null result for a frame that failed.
+     */
+    void recordPrimingFrame(FrameTag tag, CaptureResult result){
+        mReport.mPrimingFrames++;
+        if (result!=null){
+            observe(tag, settingsApplied(mExposures.get(tag.exposureIndex),result));
+        }
+    }
+
+
+    /* boolean verifyResult(FrameTag, CaptureResult)
+     *
+     * Compare the settings the device reports for a design frame with those of the Exposure it
+     * was requested for. Mismatches are recorded in the report by their index in the design and
+     * their timestamp, which flags the frame in the design's metadata.
+     */
+    boolean verifyResult(FrameTag tag, CaptureResult result){
+        Exposure requested = mExposures.get(tag.exposureIndex);
+        boolean applied = settingsApplied(requested,result);
+        if (!applied){
+            Log.v(DevCam.APP_TAG,"Exposure " + tag.exposureIndex + " was not captured with its requested settings.");
+            mReport.mMismatchedExposures.add(tag.exposureIndex);
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (timestamp!=null){
+                mReport.mMismatchedTimestamps.add(timestamp);
+            }
+        }
+        observe(tag, applied);
+        return applied;
+    }
+
+
+    /* void observe(FrameTag, boolean)
+     *
+     * Learn the latency of an UNKNOWN latency device from whether the settings of a frame following
+     * a change came through. Results come in the order the frames were captured, so the first frame
+     * after a change that has its settings applied tells how many frames the change took. A design
+     * frame without them means it took more than it was primed for. Frames are only tagged with
+     * how far after a change they are if the change is an observableChange().
+     */
+    private void observe(FrameTag tag, boolean applied){
+        if (mSyncMaxLatency!=CameraMetadata.SYNC_MAX_LATENCY_UNKNOWN || tag.sinceChange<0){
+            return;
+        }
+        int latency = mObservedLatency;
+        if (applied && mSettledExposure!=tag.exposureIndex){
+            mSettledExposure = tag.exposureIndex;
+            latency = Math.max(latency, tag.sinceChange);
+        } else if (!applied && !tag.priming){
+            latency = Math.min(mPipelineMaxDepth, Math.max(latency, tag.sinceChange + 1));
+        }
+        if (latency!=mObservedLatency){
+            Log.v(DevCam.APP_TAG,"Settings were seen to take " + latency + " frames to come through.");
+            mObservedLatency = latency;
+            mReport.mObservedLatency = latency;
+        }
+    }
+
+
+    /* static boolean settingsDiffer(Exposure, Exposure)
+     *
+     * Whether moving from one explicit Exposure to another changes any of the settings DevCam puts
+     * in a CaptureRequest.
+     */
+    static boolean settingsDiffer(Exposure a, Exposure b){
+        return !equalOrNull(a.getExposureTime(),b.getExposureTime())
+                || !equalOrNull(a.getSensitivity(),b.getSensitivity())
+                || !equalOrNull(a.getAperture(),b.getAperture())
+                || !equalOrNull(a.getFocalLength(),b.getFocalLength())
+                || !equalOrNull(a.getFocusDistance(),b.getFocusDistance());
+    }
+
+
+    /* static boolean settingsApplied(Exposure, CaptureResult)
+     *
+     * Whether the values reported in a CaptureResult match the explicit values of an Exposure, to
+     * within the tolerances above. Values the device does not report are not held against it.
+     */
+    static boolean settingsApplied(Exposure e, CaptureResult result){
+        return settingsApplied(e, result.get(CaptureResult.SENSOR_EXPOSURE_TIME),
+                result.get(CaptureResult.SENSOR_SENSITIVITY), result.get(CaptureResult.LENS_APERTURE),
+                result.get(CaptureResult.LENS_FOCAL_LENGTH), result.get(CaptureResult.LENS_FOCUS_DISTANCE));
+    }
+
+    private static boolean settingsApplied(Exposure e, Long exposureTime, Integer sensitivity,
+                                           Float aperture, Float focalLength, Float focusDistance){
+        if (exposureTime!=null && e.getExposureTime()!=null
+                && !withinRelative(exposureTime,e.getExposureTime())){
+            return false;
+        }
+        if (sensitivity!=null && e.getSensitivity()!=null
+                && !withinRelative(sensitivity,e.getSensitivity())){
+            return false;
+        }
+        if (aperture!=null && e.getAperture()!=null
+                && !withinRelative(aperture,e.getAperture())){
+            return false;
+        }
+        if (focalLength!=null && e.getFocalLength()!=null
+                && !withinRelative(focalLength,e.getFocalLength())){
+            return false;
+        }
+        if (focusDistance!=null && e.getFocusDistance()!=null
+                && Math.abs(focusDistance-e.getFocusDistance())>FOCUS_TOLERANCE){
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean withinRelative(double actual, double requested){
+        return Math.abs(actual-requested) <= RELATIVE_TOLERANCE*Math.abs(requested);
+    }
+
+    private static boolean equalOrNull(Object a, Object b){
+        return (a==null)? b==null : a.equals(b);
+    }
+
+
+
+    /* Tag attached to each CaptureRequest of a burst via CaptureRequest.Builder.setTag(), so that
+     * the capture callbacks know which Exposure a frame belongs to, whether it is only priming
+     * the pipeline, and how many frames after a change of settings it is.
+     */
+    static final class FrameTag {
+        final int exposureIndex;
+        final boolean priming;
+        // Frames since the settings last changed, 0 for the first with the new ones, or -1 if they
+        // did not change for this Exposure.
+        final int sinceChange;
+
+        FrameTag(int exposureIndex, boolean priming, int sinceChange){
+            this.exposureIndex = exposureIndex;
+            this.priming = priming;
+            this.sinceChange = sinceChange;
+        }
+    }
+
+
+
+    /* Summary of how many frames a design cost beyond its own Exposures, and which of its Exposures
+     * still did not get their requested settings.
+     */
+    static final class SettingsSyncReport {
+        private final String mDesignName;
+        private final int mDesignLength;
+        private final int mSettingsLatency;
+        private final int mPipelineMaxDepth;
+        private final int mSyncMaxLatency;
+        private int mPrimingFrames = 0;
+        private int mObservedLatency = -1;
+        private final List<Integer> mMismatchedExposures = new ArrayList<Integer>();
+        private final Set<Long> mMismatchedTimestamps = new HashSet<Long>();
+
+        SettingsSyncReport(String designName, int designLength, int settingsLatency,
+                           int pipelineMaxDepth, int syncMaxLatency){
+            mDesignName = designName;
+            mDesignLength = designLength;
+            mSettingsLatency = settingsLatency;
+            mPipelineMaxDepth = pipelineMaxDepth;
+            mSyncMaxLatency = syncMaxLatency;
+        }
+
+        int getPrimingFrames(){
+            return mPrimingFrames;
+        }
+        List<Integer> getMismatchedExposures(){
+            return mMismatchedExposures;
+        }
+        // Whether the frame of this timestamp was captured with the settings requested for it.
+        boolean settingsApplied(long timestamp){
+            return !mMismatchedTimestamps.contains(timestamp);
+        }
+
+        // Frames that were captured but did not yield a usable design frame.
+        int getWastedFrames(){
+            return mPrimingFrames + mMismatchedExposures.size();
+        }
+
+        @Override
+        public String toString(){
+            return "Design " + mDesignName + ": " + mDesignLength + " exposures, "
+                    + mPrimingFrames + " priming frames, "
+                    + mMismatchedExposures.size() + " exposures with unapplied settings, "
+                    + getWastedFrames() + " wasted frames.";
+        }
+
+        /* void writeOut(File)
+         *
+         * Write the report as a small text file, to sit next to the design_request file.
+         */
+        void writeOut(File file){
+            try {
+                FileWriter writer = new FileWriter(file);
+                writer.write("Design name: " + mDesignName + "\n");
+                writer.write("android.request.pipelineMaxDepth: " + mPipelineMaxDepth + "\n");
+                writer.write("android.sync.maxLatency: " + mSyncMaxLatency + "\n");
+                writer.write("Priming frames per settings change: " + mSettingsLatency + "\n");
+                if (mObservedLatency>=0){
+                    writer.write("Frames settings were seen to take: " + mObservedLatency + "\n");
+                }
+                writer.write("Design exposures: " + mDesignLength + "\n");
+                writer.write("Priming frames: " + mPrimingFrames + "\n");
+                writer.write("Exposures with unapplied settings: " + mMismatchedExposures + "\n");
+                writer.write("Wasted frames: " + getWastedFrames() + "\n");
+                writer.close();
+            } catch (IOException ioe){
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+/* Helper class for deciding, before a design is captured, whether its output will fit in storage.
+ *
+ * Without this check, running out of space only shows up when an ImageSaver fails to write a
+ * frame, after the frames have already been captured. Instead, the output of the whole design is
+ * estimated from the format, size and number of its frames, and compared with the free space on
+ * the volume it is going to be saved to. A design that can't fit is turned down before the camera
+ * is asked to capture anything.
+ *
+ * The estimates err on the large side (see ImageSaver.estimateFileSize()), and RESERVE_BYTES are
+ * always kept free, so that the design's metadata files and the rest of the system still fit.
+ *
+ * Output files are also given their expected length up front with preallocate(), which reserves
+ * the blocks with posix_fallocate(), so the file system can lay the file out in one go instead of
+ * extending it write by write. Setting the length alone would only make a sparse file, so it is
+ * just the fallback for file systems that don't support fallocate.
+ */
+
+package com.devcam;
+
+import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+import android.util.Size;
+
+import com.devcam.io.BurstContainerWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+final class StorageAdmission {
+
+    // Space to leave free on the volume, beyond the design's own output.
+    final static long RESERVE_BYTES = 32L*1024*1024;
+    // Allowance for each frame's entry in the metadata files written alongside the frames.
+    final static long METADATA_BYTES_PER_FRAME = 8*1024;
+
+    private StorageAdmission(){}
+
+
+    /* long estimateDesignBytes(List<Integer>, List<Size>, int)
+     *
+     * Expected bytes written for numFrames frames, each captured into every one of the given
+     * output formats at the matching size.
+     */
+    static long estimateDesignBytes(List<Integer> formats, List<Size> sizes, int numFrames){
+        long frameBytes = METADATA_BYTES_PER_FRAME;
+        for (int i=0; i<formats.size(); i++){
+            frameBytes += ImageSaver.estimateFileSize(formats.get(i),
+                    sizes.get(i).getWidth(), sizes.get(i).getHeight());
+        }
+        return frameBytes*numFrames;
+    }
+
+
+    /* long getFreeBytes(File)
+     *
+     * Bytes available to the app on the volume holding the given file or directory. If it does
+     * not exist yet, the nearest parent directory that does is asked instead.
+     */
+    static long getFreeBytes(File file){
+        while (file!=null && !file.exists()){
+            file = file.getParentFile();
+        }
+        if (file==null){
+            return 0;
+        }
+        try {
+            return new StatFs(file.getPath()).getAvailableBytes();
+        } catch (IllegalArgumentException iae){
+            iae.printStackTrace();
+            return 0;
+        }
+    }
+
+
+    /* boolean admit(File, long)
+     *
+     * Whether the given number of bytes can be written to the directory, keeping RESERVE_BYTES
+     * free.
+     */
+    static boolean admit(File dir, long bytes){
+        long free = getFreeBytes(dir);
+        boolean fits = bytes + RESERVE_BYTES <= free;
+        Log.v(DevCam.APP_TAG,"Design output estimated at " + toMB(bytes) + " MB, "
+                + toMB(free) + " MB free in " + dir + ": " + (fits ? "admitted." : "rejected."));
+        return fits;
+    }
+
+
+    /* void preallocate(RandomAccessFile, long)
+     *
+     * Reserve the blocks of the file up to the given length, which it is extended to. Where the
+     * file system can't, the length is only set.
+     */
+    static void preallocate(RandomAccessFile file, long length) throws IOException {
+        try {
+            Os.posix_fallocate(file.getFD(), 0, length);
+        } catch (ErrnoException ee){
+            Log.v(DevCam.APP_TAG,"Could not preallocate " + toMB(length) + " MB: " + ee.getMessage());
+            file.setLength(length);
+        }
+    }
+
+    // For the containers of designs, preallocated in the same way.
+    static final BurstContainerWriter.Allocator CONTAINER_ALLOCATOR = new BurstContainerWriter.Allocator() {
+        @Override
+        public void allocate(RandomAccessFile file, long length) throws IOException {
+            preallocate(file, length);
+        }
+    };
+
+
+    static String toMB(long bytes){
+        return String.format("%.1f", bytes/(1024.0*1024.0));
+    }
+
+}
@@ -0,0 +1,425 @@
+/* StreamingCapture class, the counterpart of DesignResult for designs that are captured in a loop
+ * via DevCam.captureStreaming(), e.g. two alternating exposures repeated for minutes as an HDR
+ * video.
+ *
+ * A DesignResult keeps every CaptureResult and waits for a known number of frames, which does not
+ * work for a stream of unknown length. Instead, a StreamingCapture pairs each Image with its
+ * CaptureResult by timestamp and forgets both as soon as the pair is handed to an ImageSaver.
+ *
+ * The ImageSavers run on the StreamingCapture's own writer thread, and at most a fixed number of
+ * frames may be waiting there at once. When the writer falls behind and that limit is reached, new
+ * frames are dropped (their Images closed right away) instead of holding on to ImageReader buffers
+ * and stalling the camera. Frames whose Image never arrived from the ImageReader are counted as
+ * dropped as well. Frames still in flight once the stream reached its frame limit are not part of
+ * it, and their Images are closed as they come in.
+ *
+ * Once DevCam reports the stream is over, finish() waits for the last frames to be written and
+ * reports the sustained frame rate, the dropped frames and the storage bandwidth as a
+ * StreamingReport.
+ */
+
+package com.devcam;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureResult;
+import android.media.Image;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.devcam.io.DesignManifest;
+import com.devcam.io.DesignStatistics;
+import com.devcam.io.PackedRawFormat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class StreamingCapture {
+
+    // How long to wait after the stream ended for Images of the last frames to come in.
+    final static long FINISH_TIMEOUT_MS = 1000;
+
+    private final File mSaveDir;
+    private final String mDesignName;
+    private final CameraCharacteristics mCamChars;
+    private final int mMaxPendingSaves;
+    private final StreamingListener mRegisteredListener;
+    private final DesignManifest mManifest = new DesignManifest();
+    private final DesignStatistics mStatistics = new DesignStatistics();
+    private boolean mPackRaw = false;
+    private int mFrameLimit = 0;
+    // Timestamp of the last frame within the frame limit, once its result is in, or -1.
+    private long mLastFrameTimestamp = -1;
+
+    private HandlerThread mWriterThread;
+    private Handler mWriterHandler;
+
+    // Unpaired halves of frames, by timestamp. Images and results each arrive in capture order, so
+    // once a frame is paired, anything older left in here will never find its other half.
+    private final TreeMap<Long,Image> mImages = new TreeMap<Long,Image>();
+    private final TreeMap<Long,CaptureResult> mCaptureResults = new TreeMap<Long,CaptureResult>();
+
+    private int mPendingSaves;
+    private int mFramesCaptured;
+    private int mFramesQueued;
+    private int mFramesSaved;
+    private int mFramesDropped;
+    private int mFramesFailed;
+    private long mBytesWritten;
+    private long mFirstTimestamp = -1;
+    private long mLastTimestamp = -1;
+    private long mStartTime;
+    private boolean mFinishing;
+    private boolean mFinished;
+
+
+    // - - - Constructor - - -
+    public StreamingCapture(File saveDir, String designName, CameraCharacteristics camChars,
+                            int maxPendingSaves, StreamingListener listener){
+        mSaveDir = saveDir;
+        mDesignName = designName;
+        mCamChars = camChars;
+        mMaxPendingSaves = maxPendingSaves;
+        mRegisteredListener = listener;
+    }
+
+
+    /* void setPackRaw(boolean)
+     *
+     * Save RAW_SENSOR frames as bit-packed .praw files instead of .dng, which takes less of the
+     * storage bandwidth. Call before start().
+     */
+    public void setPackRaw(boolean packRaw){
+        mPackRaw = packRaw;
+    }
+
+
+    /* void setFrameLimit(int)
+     *
+     * The number of frames the stream was asked for, or 0 for no limit, as given to
+     * DevCam.captureStreaming(). Call before start().
+     */
+    public void setFrameLimit(int maxFrames){
+        mFrameLimit = maxFrames;
+    }
+
+
+    /* void start()
+     *
+     * Set up the writer thread. Call this before asking DevCam to start streaming.
+     */
+    public void start(){
+        mSaveDir.mkdirs();
+        mWriterThread = new HandlerThread("devCam StreamWriter");
+        mWriterThread.start();
+        mWriterHandler = new Handler(mWriterThread.getLooper());
+        mStartTime = SystemClock.elapsedRealtimeNanos();
+    }
+
+
+    /* void recordCaptureResult(CaptureResult)
+     *
+     * Call with every CaptureResult DevCam reports from the stream.
+     */
+    public synchronized void recordCaptureResult(CaptureResult result){
+        if (mFinished){
+            return;
+        }
+        mFramesCaptured++;
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (mFrameLimit>0 && mFramesCaptured==mFrameLimit){
+            // Any newer Image already in is from a frame past the limit, and never gets a result.
+            mLastFrameTimestamp = timestamp;
+            Iterator<Image> imageIt = mImages.tailMap(timestamp, false).values().iterator();
+            while (imageIt.hasNext()){
+                imageIt.next().close();
+                imageIt.remove();
+            }
+        }
+        Image image = mImages.remove(timestamp);
+        if (image!=null){
+            pair(image, result);
+        } else {
+            mCaptureResults.put(timestamp, result);
+        }
+    }
+
+
+    /* void recordImage(Image)
+     *
+     * Call with every Image acquired from the output ImageReader while streaming.
+     */
+    public synchronized void recordImage(Image image){
+        if (mFinished || (mLastFrameTimestamp>=0 && image.getTimestamp()>mLastFrameTimestamp)){
+            image.close();
+            return;
+        }
+        CaptureResult result = mCaptureResults.remove(image.getTimestamp());
+        if (result!=null){
+            pair(image, result);
+        } else {
+            mImages.put(image.getTimestamp(), image);
+        }
+    }
+
+
+    /* void pair(Image, CaptureResult)
+     *
+     * Queue a complete frame for writing, unless the writer is too far behind, in which case the
+     * frame is dropped on the spot to give its buffer back to the ImageReader.
+     */
+    private void pair(Image image, CaptureResult result){
+        long timestamp = image.getTimestamp();
+        discardOlderThan(timestamp);
+
+        if (mFirstTimestamp<0){
+            mFirstTimestamp = timestamp;
+        }
+        mLastTimestamp = timestamp;
+
+        if (mPendingSaves>=mMaxPendingSaves){
+            Log.v(DevCam.APP_TAG,"Stream writer is behind, dropping frame " + timestamp);
+            image.close();
+            mFramesDropped++;
+            return;
+        }
+
+        mPendingSaves++;
+        mFramesQueued++;
+        String filename = mDesignName + "-" + mFramesQueued + fileType(image.getFormat());
+        ImageSaver saver = new ImageSaver(image, result, mCamChars, mSaveDir, filename, mWriteOutCallback);
+        saver.setPackRaw(mPackRaw);
+        saver.setManifest(mManifest);
+        saver.setStatistics(mStatistics);
+        mWriterHandler.post(saver);
+    }
+
+
+    /* void discardOlderThan(long)
+     *
+     * Drop what is left of frames older than the given timestamp, which can no longer be paired.
+     */
+    private void discardOlderThan(long timestamp){
+        Iterator<Map.Entry<Long,CaptureResult>> resultIt = mCaptureResults.headMap(timestamp).entrySet().iterator();
+        while (resultIt.hasNext()){
+            resultIt.next();
+            resultIt.remove();
+            mFramesDropped++;
+        }
+        Iterator<Map.Entry<Long,Image>> imageIt = mImages.headMap(timestamp).entrySet().iterator();
+        while (imageIt.hasNext()){
+            imageIt.next().getValue().close();
+            imageIt.remove();
+        }
+    }
+
+
+    private final ImageSaver.WriteOutCallback mWriteOutCallback = new ImageSaver.WriteOutCallback() {
+        @Override
+        void onImageSaved(boolean success, String filename, int format) {
+            File file = new File(mSaveDir, filename);
+            synchronized (StreamingCapture.this) {
+                mPendingSaves--;
+                if (success) {
+                    mFramesSaved++;
+                    mBytesWritten += file.length();
+                } else {
+                    mFramesFailed++;
+                }
+            }
+            if (success) {
+                mRegisteredListener.onFrameSaved(file);
+            }
+            checkIfFinished();
+        }
+    };
+
+
+    /* DesignManifest getManifest()
+     *
+     * Checksums of the frames saved so far.
+     */
+    public DesignManifest getManifest(){
+        return mManifest;
+    }
+
+    /* DesignStatistics getStatistics()
+     *
+     * Brightness statistics of the frames saved so far.
+     */
+    public DesignStatistics getStatistics(){
+        return mStatistics;
+    }
+
+
+    /* void finish()
+     *
+     * Call once DevCam reports the end of the stream (onCaptureSequenceCompleted()). The report is
+     * delivered once every frame still in flight has been written, or dropped after a timeout.
+     */
+    public void finish(){
+        synchronized (this) {
+            mFinishing = true;
+        }
+        mWriterHandler.postDelayed(mFinishTimeout, FINISH_TIMEOUT_MS);
+        checkIfFinished();
+    }
+
+    private final Runnable mFinishTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (StreamingCapture.this) {
+                mFramesDropped += mCaptureResults.size();
+                mCaptureResults.clear();
+            }
+            checkIfFinished();
+        }
+    };
+
+
+    /* void checkIfFinished()
+     *
+     * Once the stream is over, no CaptureResult waits for its Image any more and nothing is left to
+     * write, close up shop and report.
+     */
+    private void checkIfFinished(){
+        StreamingReport report;
+        synchronized (this) {
+            if (!mFinishing || mFinished || !mCaptureResults.isEmpty() || mPendingSaves>0){
+                return;
+            }
+            mFinished = true;
+            for (Image image : mImages.values()){
+                image.close();
+            }
+            mImages.clear();
+            report = new StreamingReport(this);
+        }
+        mWriterHandler.removeCallbacks(mFinishTimeout);
+        mWriterThread.quitSafely();
+        Log.v(DevCam.APP_TAG,"Streaming capture finished. " + report);
+        mRegisteredListener.onStreamingFinished(report);
+    }
+
+
+    private String fileType(int format){
+        switch (format){
+            case ImageFormat.JPEG:
+                return ".jpg";
+            case ImageFormat.YUV_420_888:
+                return ".yuv";
+            case ImageFormat.RAW_SENSOR:
+                return mPackRaw ? PackedRawFormat.EXTENSION : ".dng";
+        }
+        return "";
+    }
+
+
+
+    /* Listener for the main Activity to hear about written frames and the end of the stream. Note
+     * these are called on the StreamingCapture's writer thread.
+     */
+    static public abstract class StreamingListener {
+        public void onFrameSaved(File file){};
+        public void onStreamingFinished(StreamingReport report){};
+    }
+
+
+
+    /**
+     * Summary of how a streaming capture kept up: the frame rate it sustained, the frames it lost
+     * and how fast it wrote to storage.
+     */
+    static public final class StreamingReport {
+        private final String mDesignName;
+        private final int mFramesCaptured;
+        private final int mFramesSaved;
+        private final int mFramesDropped;
+        private final int mFramesFailed;
+        private final long mBytesWritten;
+        private final long mSensorDuration; // ns between first and last paired frame
+        private final long mWallDuration; // ns from start() until everything was written
+
+        private StreamingReport(StreamingCapture capture){
+            mDesignName = capture.mDesignName;
+            mFramesCaptured = capture.mFramesCaptured;
+            mFramesSaved = capture.mFramesSaved;
+            mFramesDropped = capture.mFramesDropped;
+            mFramesFailed = capture.mFramesFailed;
+            mBytesWritten = capture.mBytesWritten;
+            mSensorDuration = (capture.mFirstTimestamp<0)? 0 : capture.mLastTimestamp - capture.mFirstTimestamp;
+            mWallDuration = SystemClock.elapsedRealtimeNanos() - capture.mStartTime;
+        }
+
+        public int getFramesCaptured(){
+            return mFramesCaptured;
+        }
+        public int getFramesSaved(){
+            return mFramesSaved;
+        }
+        public int getFramesDropped(){
+            return mFramesDropped;
+        }
+        public int getFramesFailed(){
+            return mFramesFailed;
+        }
+        public long getBytesWritten(){
+            return mBytesWritten;
+        }
+
+        // Frames actually written per second of sensor time.
+        public double getSustainedFps(){
+            if (mSensorDuration<=0){
+                return 0;
+            }
+            return (mFramesSaved-1)*1e9/mSensorDuration;
+        }
+
+        // Bytes written per second of wall time, including waiting for the writer to catch up.
+        public double getBandwidth(){
+            if (mWallDuration<=0){
+                return 0;
+            }
+            return mBytesWritten*1e9/mWallDuration;
+        }
+
+        @Override
+        public String toString(){
+            return "Stream " + mDesignName + ": " + mFramesCaptured + " frames captured, "
+                    + mFramesSaved + " saved, " + mFramesDropped + " dropped, "
+                    + mFramesFailed + " failed to write. "
+                    + String.format("%.2f", getSustainedFps()) + " fps sustained, "
+                    + String.format("%.2f", getBandwidth()/1e6) + " MB/s written.";
+        }
+
+        /* void writeOut(File)
+         *
+         * Write the report as a small text file, to sit next to the written frames.
+         */
+        public void writeOut(File file){
+            try {
+                FileWriter writer = new FileWriter(file);
+                writer.write("Design name: " + mDesignName + "\n");
+                writer.write("Frames captured: " + mFramesCaptured + "\n");
+                writer.write("Frames saved: " + mFramesSaved + "\n");
+                writer.write("Frames dropped: " + mFramesDropped + "\n");
+                writer.write("Frames failed to write: " + mFramesFailed + "\n");
+                writer.write("Sensor duration: " + CameraReport.nsToString(mSensorDuration) + "\n");
+                writer.write("Wall duration: " + CameraReport.nsToString(mWallDuration) + "\n");
+                writer.write("Sustained fps: " + String.format("%.3f", getSustainedFps()) + "\n");
+                writer.write("Bytes written: " + mBytesWritten + "\n");
+                writer.write("Bandwidth (MB/s): " + String.format("%.3f", getBandwidth()/1e6) + "\n");
+                writer.close();
+            } catch (IOException ioe){
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/* BurstContainer class, describing devCam's single-file container for all frames of a design.
+ *
+ * Instead of one file per frame, the container holds every frame of a design back-to-back in one
+ * file, each followed by its CaptureResult metadata as JSON, with an index of all frames at the
+ * end. All values are big-endian, like the header of devCam's .yuv files.
+ *
+ * Layout:
+ *   Header (16 bytes):  magic "DEVCAMBC" | int version | int reserved
+ *   Frames:             frame bytes | metadata bytes, for each frame in the order written
+ *   Index (40 bytes per frame):
+ *                       long offset | long length | int format | long timestamp
+ *                       | long metadata offset | int metadata length
+ *   Footer (16 bytes):  long index offset | int number of frames | int magic "DCBI"
+ *
+ * The frame bytes are exactly what would otherwise be written to the frame's own .jpg, .dng or
+ * .yuv file, so a frame can be cut out of the container and read with the usual tools. The format
+ * is the android.graphics.ImageFormat value of the frame, or FORMAT_PACKED_RAW for RAW_SENSOR frames
+ * stored as .praw, and the timestamp its sensor timestamp.
+ */
+
+package com.devcam.io;
+
+public final class BurstContainer {
+
+    public static final String EXTENSION = ".burst";
+
+    static final byte[] MAGIC = {'D','E','V','C','A','M','B','C'};
+    static final int FOOTER_MAGIC = 0x44434249; // "DCBI"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int ENTRY_SIZE = 40;
+    static final int FOOTER_SIZE = 16;
+
+    // Values of android.graphics.ImageFormat, which is not available off the device.
+    public static final int FORMAT_RAW_SENSOR = 32;
+    public static final int FORMAT_YUV_420_888 = 35;
+    public static final int FORMAT_JPEG = 256;
+    // Not an ImageFormat: RAW_SENSOR frames stored as .praw rather than .dng (see PackedRawFormat).
+    public static final int FORMAT_PACKED_RAW = 0x10000 | FORMAT_RAW_SENSOR;
+
+    private BurstContainer(){}
+
+
+    /* String fileType(int)
+     *
+     * The extension the frame would have had as a file of its own.
+     */
+    public static String fileType(int format){
+        switch (format){
+            case FORMAT_JPEG:
+                return ".jpg";
+            case FORMAT_YUV_420_888:
+                return ".yuv";
+            case FORMAT_RAW_SENSOR:
+                return ".dng";
+            case FORMAT_PACKED_RAW:
+                return PackedRawFormat.EXTENSION;
+        }
+        return ".bin";
+    }
+
+
+
+    /**
+     * Index entry of one frame in a container.
+     */
+    public static final class Entry {
+        private final long mOffset;
+        private final long mLength;
+        private final int mFormat;
+        private final long mTimestamp;
+        private final long mMetadataOffset;
+        private final int mMetadataLength;
+
+        public Entry(long offset, long length, int format, long timestamp,
+                     long metadataOffset, int metadataLength){
+            mOffset = offset;
+            mLength = length;
+            mFormat = format;
+            mTimestamp = timestamp;
+            mMetadataOffset = metadataOffset;
+            mMetadataLength = metadataLength;
+        }
+
+        public long getOffset(){
+            return mOffset;
+        }
+        public long getLength(){
+            return mLength;
+        }
+        public int getFormat(){
+            return mFormat;
+        }
+        public long getTimestamp(){
+            return mTimestamp;
+        }
+        public long getMetadataOffset(){
+            return mMetadataOffset;
+        }
+        public int getMetadataLength(){
+            return mMetadataLength;
+        }
+
+        @Override
+        public String toString(){
+            return "format " + mFormat + ", timestamp " + mTimestamp + ", " + mLength
+                    + " bytes at " + mOffset + ", " + mMetadataLength + " bytes metadata";
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/* BurstContainerReader class, for random access to the frames of a devCam container file, see
+ * BurstContainer for the layout.
+ *
+ * Only the index is read when the container is opened. Frames are memory-mapped on request, so
+ * reading one frame of a large design costs no more than reading that frame's own file would.
+ *
+ * Can also be run on its own to list a container's frames, or to extract them back into the
+ * separate files devCam would otherwise have written, with the same names:
+ *
+ *   java com.devcam.io.BurstContainerReader <container> [output dir]
+ */
+
+package com.devcam.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BurstContainerReader implements Closeable {
+
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final List<BurstContainer.Entry> mEntries;
+
+
+    // - - - Constructor - - -
+    public BurstContainerReader(File file) throws IOException {
+        mRaf = new RandomAccessFile(file, "r");
+        mChannel = mRaf.getChannel();
+        try {
+            mEntries = readIndex();
+        } catch (IOException ioe){
+            mRaf.close();
+            throw ioe;
+        }
+    }
+
+
+    private List<BurstContainer.Entry> readIndex() throws IOException {
+        long size = mChannel.size();
+        if (size < BurstContainer.HEADER_SIZE + BurstContainer.FOOTER_SIZE){
+            throw new IOException("File too short to be a container.");
+        }
+
+        ByteBuffer header = readAt(0, BurstContainer.HEADER_SIZE);
+        byte[] magic = new byte[BurstContainer.MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, BurstContainer.MAGIC)){
+            throw new IOException("Not a devCam container.");
+        }
+        int version = header.getInt();
+        if (version!=BurstContainer.VERSION){
+            throw new IOException("Unsupported container version " + version);
+        }
+
+        ByteBuffer footer = readAt(size - BurstContainer.FOOTER_SIZE, BurstContainer.FOOTER_SIZE);
+        long indexOffset = footer.getLong();
+        int count = footer.getInt();
+        if (footer.getInt()!=BurstContainer.FOOTER_MAGIC){
+            throw new IOException("Container has no index, it was probably not closed.");
+        }
+        if (count<0 || indexOffset + (long) count*BurstContainer.ENTRY_SIZE != size - BurstContainer.FOOTER_SIZE){
+            throw new IOException("Container index is corrupt.");
+        }
+
+        ByteBuffer index = readAt(indexOffset, count*BurstContainer.ENTRY_SIZE);
+        List<BurstContainer.Entry> entries = new ArrayList<BurstContainer.Entry>(count);
+        for (int i=0; i<count; i++){
+            entries.add(new BurstContainer.Entry(index.getLong(), index.getLong(), index.getInt(),
+                    index.getLong(), index.getLong(), index.getInt()));
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+
+    private ByteBuffer readAt(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()){
+            if (mChannel.read(buffer, position + buffer.position())<0){
+                throw new IOException("Unexpected end of container.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    // - - Setters and Getters - -
+    public int getFrameCount(){
+        return mEntries.size();
+    }
+    public BurstContainer.Entry getEntry(int i){
+        return mEntries.get(i);
+    }
+    public List<BurstContainer.Entry> getEntries(){
+        return mEntries;
+    }
+
+
+    /* MappedByteBuffer mapFrame(int)
+     *
+     * Memory-map the bytes of frame i, read-only. The mapping stays valid after close().
+     */
+    public MappedByteBuffer mapFrame(int i) throws IOException {
+        BurstContainer.Entry e = mEntries.get(i);
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, e.getOffset(), e.getLength());
+    }
+
+
+    /* String readMetadata(int)
+     *
+     * The CaptureResult metadata of frame i, as the JSON object it was written as.
+     */
+    public String readMetadata(int i) throws IOException {
+        BurstContainer.Entry e = mEntries.get(i);
+        ByteBuffer bytes = readAt(e.getMetadataOffset(), e.getMetadataLength());
+        return new String(bytes.array(), Charset.forName("UTF-8"));
+    }
+
+
+    /* void extractFrame(int, File)
+     *
+     * Write frame i out as a file of its own.
+     */
+    public void extractFrame(int i, File file) throws IOException {
+        ByteBuffer frame = mapFrame(i);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            while (frame.hasRemaining()){
+                channel.write(frame);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        mRaf.close();
+    }
+
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length<1){
+            System.err.println("Usage: BurstContainerReader <container> [output dir]");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        BurstContainerReader reader = new BurstContainerReader(file);
+        try {
+            String name = file.getName();
+            if (name.endsWith(BurstContainer.EXTENSION)){
+                name = name.substring(0, name.length() - BurstContainer.EXTENSION.length());
+            }
+            File outDir = (args.length>1)? new File(args[1]) : null;
+            if (outDir!=null){
+                outDir.mkdirs();
+            }
+            // Frames are stored in the order they were written, which need not be the order they
+            // were captured in. Number them by capture time, as devCam does for separate files,
+            // so the files of one frame from several output streams share a number.
+            List<Long> timestamps = new ArrayList<Long>();
+            for (BurstContainer.Entry e : reader.getEntries()){
+                if (!timestamps.contains(e.getTimestamp())){
+                    timestamps.add(e.getTimestamp());
+                }
+            }
+            Collections.sort(timestamps);
+
+            for (int i=0; i<reader.getFrameCount(); i++){
+                BurstContainer.Entry e = reader.getEntry(i);
+                int frameNumber = timestamps.indexOf(e.getTimestamp()) + 1;
+                System.out.println(frameNumber + ": " + e);
+                if (outDir!=null){
+                    reader.extractFrame(i, new File(outDir,
+                            name + "-" + frameNumber + BurstContainer.fileType(e.getFormat())));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+/* BurstContainerWriter class, for appending the frames of a design to a single container file, see
+ * BurstContainer for the layout.
+ *
+ * The file can be preallocated to the expected size of the whole design when it is opened, so that
+ * the file system does not have to grow it frame by frame, and is cut back to its actual size when
+ * the index is written on close(). Reserving the blocks takes a call this package can't make without
+ * Android (posix_fallocate), so it is done by an Allocator given to the constructor. Without one,
+ * the file's length is only set, which on most file systems makes a sparse file and reserves
+ * nothing.
+ *
+ * A frame is written either at once with appendFrame(), or by streaming it with beginFrame(),
+ * which hands out an OutputStream for encoders that write to one (e.g. DngCreator), and
+ * endFrame(). Only one frame can be in progress at a time.
+ */
+
+package com.devcam.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class BurstContainerWriter implements Closeable {
+
+    private static final int STREAM_BUFFER_SIZE = 64*1024;
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final List<BurstContainer.Entry> mEntries = new ArrayList<BurstContainer.Entry>();
+
+    // State of the frame being streamed in, if any.
+    private OutputStream mFrameStream;
+    private long mFrameOffset;
+    private int mFrameFormat;
+    private long mFrameTimestamp;
+
+    private boolean mClosed = false;
+
+
+    // - - - Constructor - - -
+    /**
+     * Create a new container file, replacing any existing one.
+     *
+     * @param file The container file to write.
+     * @param preallocateBytes Expected size of all frames and metadata, or 0 to not preallocate.
+     */
+    public BurstContainerWriter(File file, long preallocateBytes) throws IOException {
+        this(file, preallocateBytes, null);
+    }
+
+    /**
+     * @param allocator Reserves the preallocated space, or null to only set the file's length.
+     */
+    public BurstContainerWriter(File file, long preallocateBytes, Allocator allocator) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "rw");
+        mRaf.setLength(0);
+        if (preallocateBytes>0){
+            long length = BurstContainer.HEADER_SIZE + preallocateBytes;
+            if (allocator!=null){
+                allocator.allocate(mRaf, length);
+            } else {
+                mRaf.setLength(length);
+            }
+        }
+        mChannel = mRaf.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(BurstContainer.HEADER_SIZE);
+        header.put(BurstContainer.MAGIC).putInt(BurstContainer.VERSION).putInt(0);
+        header.flip();
+        writeFully(header);
+    }
+
+
+    // - - Setters and Getters - -
+    public File getFile(){
+        return mFile;
+    }
+    public synchronized int getFrameCount(){
+        return mEntries.size();
+    }
+    public synchronized List<BurstContainer.Entry> getEntries(){
+        return Collections.unmodifiableList(new ArrayList<BurstContainer.Entry>(mEntries));
+    }
+
+
+    /* BurstContainer.Entry appendFrame(int, long, ByteBuffer, byte[])
+     *
+     * Write a whole frame, whose bytes are the remaining bytes of the given buffer, along with its
+     * metadata.
+     */
+    public synchronized BurstContainer.Entry appendFrame(int format, long timestamp,
+                                                         ByteBuffer frame, byte[] metadata) throws IOException {
+        beginFrame(format, timestamp);
+        mFrameStream.flush();
+        writeFully(frame);
+        return endFrame(metadata);
+    }
+
+
+    /* OutputStream beginFrame(int, long)
+     *
+     * Start a new frame, and get the stream to write its bytes to. The stream must not be closed or
+     * used after endFrame().
+     */
+    public synchronized OutputStream beginFrame(int format, long timestamp) throws IOException {
+        if (mClosed){
+            throw new IOException("Container already closed.");
+        }
+        if (mFrameStream!=null){
+            throw new IllegalStateException("Previous frame was not ended.");
+        }
+        mFrameOffset = mChannel.position();
+        mFrameFormat = format;
+        mFrameTimestamp = timestamp;
+        mFrameStream = new BufferedOutputStream(new ChannelOutputStream(), STREAM_BUFFER_SIZE);
+        return mFrameStream;
+    }
+
+
+    /* BurstContainer.Entry endFrame(byte[])
+     *
+     * Finish the frame started with beginFrame(), write its metadata right after it and index it.
+     */
+    public synchronized BurstContainer.Entry endFrame(byte[] metadata) throws IOException {
+        if (mFrameStream==null){
+            throw new IllegalStateException("No frame was begun.");
+        }
+        mFrameStream.flush();
+        mFrameStream = null;
+
+        long metadataOffset = mChannel.position();
+        long length = metadataOffset - mFrameOffset;
+        if (metadata==null){
+            metadata = new byte[0];
+        }
+        writeFully(ByteBuffer.wrap(metadata));
+
+        BurstContainer.Entry entry = new BurstContainer.Entry(mFrameOffset, length, mFrameFormat,
+                mFrameTimestamp, metadataOffset, metadata.length);
+        mEntries.add(entry);
+        return entry;
+    }
+
+
+    /* void abortFrame()
+     *
+     * Drop the frame started with beginFrame(), e.g. after it failed to write. The next frame
+     * takes its place in the file.
+     */
+    public synchronized void abortFrame() throws IOException {
+        if (mFrameStream==null){
+            return;
+        }
+        mFrameStream = null;
+        mChannel.position(mFrameOffset);
+    }
+
+
+    /* void close()
+     *
+     * Write the index and footer after the last frame, cut off any preallocated space left over
+     * and close the file. A frame still in progress is dropped.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed){
+            return;
+        }
+        mClosed = true;
+        try {
+            abortFrame();
+            writeIndex(mRaf, mChannel.position(), mEntries);
+        } finally {
+            mRaf.close();
+        }
+    }
+
+
+    /* static void recover(File, List<BurstContainer.Entry>)
+     *
+     * Give a container that was never closed, e.g. because the app was killed while writing it, an
+     * index of the given frames, which are known to have been written completely. Anything after
+     * the last of them is cut off.
+     */
+    public static void recover(File file, List<BurstContainer.Entry> entries) throws IOException {
+        long end = BurstContainer.HEADER_SIZE;
+        for (BurstContainer.Entry e : entries){
+            end = Math.max(end, e.getMetadataOffset() + e.getMetadataLength());
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            writeIndex(raf, end, entries);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /* Write the index and footer at the given offset, and end the file right after them.
+     */
+    private static void writeIndex(RandomAccessFile raf, long indexOffset,
+                                   List<BurstContainer.Entry> entries) throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(entries.size()*BurstContainer.ENTRY_SIZE
+                + BurstContainer.FOOTER_SIZE);
+        for (BurstContainer.Entry e : entries){
+            index.putLong(e.getOffset())
+                    .putLong(e.getLength())
+                    .putInt(e.getFormat())
+                    .putLong(e.getTimestamp())
+                    .putLong(e.getMetadataOffset())
+                    .putInt(e.getMetadataLength());
+        }
+        index.putLong(indexOffset).putInt(entries.size()).putInt(BurstContainer.FOOTER_MAGIC);
+        index.flip();
+
+        FileChannel channel = raf.getChannel();
+        long position = indexOffset;
+        while (index.hasRemaining()){
+            position += channel.write(index, position);
+        }
+        raf.setLength(position);
+        channel.force(true);
+    }
+
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()){
+            mChannel.write(buffer);
+        }
+    }
+
+
+    /* Reserves the blocks of a file up to the given length, extending it to that length.
+     */
+    public static abstract class Allocator {
+        public abstract void allocate(RandomAccessFile file, long length) throws IOException;
+    }
+
+
+    /* Unbuffered stream writing straight to the container at its current position.
+     */
+    private class ChannelOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeFully(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+}
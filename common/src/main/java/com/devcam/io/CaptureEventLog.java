@@ -0,0 +1,252 @@
+/* CaptureEventLog class, a compact record of the camera events of a design as they came in on the
+ * device, so that the order and timing of a real capture can be replayed on the host, without the
+ * phone (see com.devcam.host.CaptureReplay).
+ *
+ * Which of onCaptureStarted(), onCaptureCompleted() and onImageAvailable() comes first for a frame,
+ * and how far apart, differs from device to device and from format to format, and it is what the
+ * pairing of frames (see FramePairing) and the saving of them have to keep up with. The log,
+ * <design>_events.bin next to the frames, holds one record per event:
+ *
+ *   type  time  timestamp  [frame number | format  width  height  size]
+ *
+ * where type is a byte, STARTED, COMPLETED or IMAGE, time the ns since the previous event, and
+ * timestamp the frame's sensor timestamp, as the difference from that of the previous event.
+ * COMPLETED records carry the frame number of the CaptureResult, IMAGE records the ImageFormat and
+ * size of the Image and the number of bytes in its planes. All numbers are unsigned LEB128
+ * varints, the timestamp difference zig-zag coded first, so a record is usually 5 to 15 bytes.
+ * The file starts with the int MAGIC and the int VERSION.
+ *
+ * Recording an event only appends a few bytes to a buffer, so it adds next to nothing to the
+ * camera's callbacks. Problems writing the log are reported but never stop the design from being
+ * saved, and a record cut short by the app dying is ignored on reading.
+ */
+
+package com.devcam.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CaptureEventLog {
+
+    public static final String FILE_SUFFIX = "_events.bin";
+    static final int MAGIC = 0x44434556; // "DCEV"
+    static final int VERSION = 1;
+
+    public static final int STARTED = 1;
+    public static final int COMPLETED = 2;
+    public static final int IMAGE = 3;
+
+    // Frame number of events that do not have one.
+    public static final long NO_FRAME_NUMBER = -1;
+
+
+    /* One camera event, as read back from a log. */
+    public static class Event {
+        public final int type;
+        public final long time; // ns since the first event of the log
+        public final long timestamp; // sensor timestamp of the frame
+        public final long frameNumber; // of COMPLETED events, NO_FRAME_NUMBER otherwise
+        public final int format; // ImageFormat, of IMAGE events
+        public final int width;
+        public final int height;
+        public final long size; // bytes in the Image's planes
+
+        Event(int type, long time, long timestamp, long frameNumber, int format, int width, int height, long size){
+            this.type = type;
+            this.time = time;
+            this.timestamp = timestamp;
+            this.frameNumber = frameNumber;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.size = size;
+        }
+
+        @Override
+        public String toString(){
+            String name = (type==STARTED) ? "started" : (type==COMPLETED) ? "completed" : "image";
+            String details = (type==COMPLETED) ? " frame " + frameNumber
+                    : (type==IMAGE) ? " format " + format + " " + width + "x" + height + " " + size + " B" : "";
+            return time + " ns: " + name + " " + timestamp + details;
+        }
+    }
+
+
+
+    /* Writer class, for recording the events of a design as they happen. Events can be recorded
+     * from several threads at once, e.g. the camera's callback thread and the ImageSaver thread,
+     * and are written in the order they are recorded.
+     */
+    public static class Writer {
+        private final File mFile;
+        private OutputStream mOutput;
+        private final byte[] mRecord = new byte[64];
+        private long mLastTime;
+        private long mLastTimestamp = 0;
+        private boolean mFirst = true;
+
+        // - - - Constructor - - -
+        /* Start a new log, replacing any old one. */
+        public Writer(File file) throws IOException {
+            mFile = file;
+            mOutput = new BufferedOutputStream(new FileOutputStream(file), 8*1024);
+            DataOutputStream header = new DataOutputStream(mOutput);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+        }
+
+        public File getFile(){
+            return mFile;
+        }
+
+        public void captureStarted(long timestamp){
+            record(STARTED, timestamp, 0, 0, 0, 0);
+        }
+
+        public void captureCompleted(long timestamp, long frameNumber){
+            record(COMPLETED, timestamp, frameNumber, 0, 0, 0);
+        }
+
+        public void imageAvailable(long timestamp, int format, int width, int height, long size){
+            record(IMAGE, timestamp, format, width, height, size);
+        }
+
+
+        private synchronized void record(int type, long timestamp, long a, long b, long c, long d){
+            long now = System.nanoTime();
+            if (mOutput==null){
+                return;
+            }
+            if (mFirst){
+                mLastTime = now;
+                mFirst = false;
+            }
+            int n = 0;
+            mRecord[n++] = (byte) type;
+            n = putVarint(mRecord, n, Math.max(0, now - mLastTime));
+            long delta = timestamp - mLastTimestamp;
+            n = putVarint(mRecord, n, (delta << 1) ^ (delta >> 63));
+            if (type==COMPLETED){
+                n = putVarint(mRecord, n, a);
+            } else if (type==IMAGE){
+                n = putVarint(mRecord, n, a);
+                n = putVarint(mRecord, n, b);
+                n = putVarint(mRecord, n, c);
+                n = putVarint(mRecord, n, d);
+            }
+            mLastTime = now;
+            mLastTimestamp = timestamp;
+            try {
+                mOutput.write(mRecord, 0, n);
+            } catch (IOException ioe){
+                ioe.printStackTrace();
+                close();
+            }
+        }
+
+        /* void close()
+         *
+         * Stop recording, and write out what is left of the log.
+         */
+        public synchronized void close(){
+            if (mOutput==null){
+                return;
+            }
+            try {
+                mOutput.close();
+            } catch (IOException ioe){
+                ioe.printStackTrace();
+            }
+            mOutput = null;
+        }
+    }
+
+
+    private static int putVarint(byte[] buffer, int offset, long value){
+        while ((value & ~0x7FL)!=0){
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static long readVarint(InputStream input) throws IOException {
+        long value = 0;
+        for (int shift=0; shift<64; shift+=7){
+            int b = input.read();
+            if (b<0){
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80)==0){
+                return value;
+            }
+        }
+        throw new IOException("Varint too long.");
+    }
+
+
+
+    /* static List<Event> read(File)
+     *
+     * The events of a log, in the order they were recorded.
+     */
+    public static List<Event> read(File file) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64*1024));
+        List<Event> events = new ArrayList<Event>();
+        try {
+            if (input.readInt()!=MAGIC){
+                throw new IOException(file + " is not a capture event log.");
+            }
+            int version = input.readInt();
+            if (version!=VERSION){
+                throw new IOException("Unknown capture event log version " + version + " in " + file);
+            }
+            long time = 0;
+            long timestamp = 0;
+            int type;
+            while ((type = input.read())>=0){
+                try {
+                    time += readVarint(input);
+                    long zigzag = readVarint(input);
+                    timestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+                    switch (type){
+                        case STARTED:
+                            events.add(new Event(type, time, timestamp, NO_FRAME_NUMBER, 0, 0, 0, 0));
+                            break;
+                        case COMPLETED:
+                            events.add(new Event(type, time, timestamp, readVarint(input), 0, 0, 0, 0));
+                            break;
+                        case IMAGE:
+                            int format = (int) readVarint(input);
+                            int width = (int) readVarint(input);
+                            int height = (int) readVarint(input);
+                            events.add(new Event(type, time, timestamp, NO_FRAME_NUMBER, format, width, height,
+                                    readVarint(input)));
+                            break;
+                        default:
+                            throw new IOException("Unknown event type " + type + " in " + file);
+                    }
+                } catch (EOFException eofe){
+                    break; // a record cut short
+                }
+            }
+        } finally {
+            input.close();
+        }
+        return events;
+    }
+
+}
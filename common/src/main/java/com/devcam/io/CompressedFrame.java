@@ -0,0 +1,145 @@
+/* CompressedFrame class, describing devCam's losslessly compressed frame files (.dcz).
+ *
+ * A .dcz file holds exactly the bytes of a .dng or .yuv file, compressed. The bytes are cut into
+ * chunks of a fixed size, and every chunk is compressed on its own, so that the chunks of one
+ * frame can be compressed, and decompressed, on several cores at once.
+ *
+ * Each chunk is first run through a delta filter: every byte has the byte "filter distance" bytes
+ * before it in the same chunk subtracted from it. Picking the distance so that this is the same
+ * color channel of the previous pixel (e.g. 4 bytes for 16-bit Bayer RAW data, 1 for YUV planes)
+ * turns smooth image content into runs of small values, which Deflate then squeezes well even at
+ * its fastest level. A chunk that doesn't get smaller is stored as it is.
+ *
+ * Layout, all values big-endian:
+ *   Header (16 bytes):  magic "DCZ1" | int version | int chunk size | int filter distance
+ *   Chunks:             int raw length | int stored length | byte method | stored bytes
+ *   End:                a chunk with raw length 0
+ *
+ * The original file is named by dropping the ".dcz" extension.
+ */
+
+package com.devcam.io;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class CompressedFrame {
+
+    public static final String EXTENSION = ".dcz";
+
+    static final int MAGIC = 0x44435A31; // "DCZ1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int CHUNK_HEADER_SIZE = 9;
+
+    static final byte METHOD_STORED = 0;
+    static final byte METHOD_DELTA_DEFLATE = 1;
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024*1024;
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    // Filter distances for the frame formats worth compressing.
+    public static final int FILTER_RAW_SENSOR = 4; // 16-bit samples, same Bayer color two pixels back
+    public static final int FILTER_YUV = 1;
+
+    private CompressedFrame(){}
+
+
+    /* static int filterDistance(int)
+     *
+     * The delta filter distance for frames of the given format, or 0 if frames of that format are
+     * already compressed (JPEG) and not worth compressing again.
+     */
+    public static int filterDistance(int format){
+        switch (format){
+            case BurstContainer.FORMAT_RAW_SENSOR:
+                return FILTER_RAW_SENSOR;
+            case BurstContainer.FORMAT_YUV_420_888:
+                return FILTER_YUV;
+        }
+        return 0;
+    }
+
+
+    /* static Chunk compressChunk(byte[], int, int, int)
+     *
+     * Filter and compress one chunk. The input is left untouched.
+     */
+    static Chunk compressChunk(byte[] raw, int length, int distance, int level){
+        byte[] filtered = new byte[length];
+        System.arraycopy(raw, 0, filtered, 0, length);
+        for (int i=length-1; i>=distance; i--){
+            filtered[i] -= filtered[i-distance];
+        }
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(filtered, 0, length);
+            deflater.finish();
+            // Worth keeping only if it comes out smaller, so give it no more room than that.
+            byte[] out = new byte[length];
+            int n = 0;
+            while (!deflater.finished() && n<out.length){
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            if (!deflater.finished()){
+                return new Chunk(length, METHOD_STORED, raw, length);
+            }
+            return new Chunk(length, METHOD_DELTA_DEFLATE, out, n);
+        } finally {
+            deflater.end();
+        }
+    }
+
+
+    /* static void decompressChunk(byte, byte[], int, int, int, byte[])
+     *
+     * Undo compressChunk() into the given array, which must hold at least the raw length.
+     */
+    static void decompressChunk(byte method, byte[] stored, int storedLength, int rawLength,
+                                int distance, byte[] raw) throws DataFormatException {
+        if (method==METHOD_STORED){
+            System.arraycopy(stored, 0, raw, 0, rawLength);
+            return;
+        }
+        if (method!=METHOD_DELTA_DEFLATE){
+            throw new DataFormatException("Unknown chunk method " + method);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(stored, 0, storedLength);
+            int n = 0;
+            while (n<rawLength){
+                int k = inflater.inflate(raw, n, rawLength - n);
+                if (k==0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())){
+                    throw new DataFormatException("Chunk ended early.");
+                }
+                n += k;
+            }
+        } finally {
+            inflater.end();
+        }
+        for (int i=distance; i<rawLength; i++){
+            raw[i] += raw[i-distance];
+        }
+    }
+
+
+    /* One compressed chunk, ready to be written.
+     */
+    static final class Chunk {
+        final int rawLength;
+        final byte method;
+        final byte[] stored;
+        final int storedLength;
+
+        Chunk(int rawLength, byte method, byte[] stored, int storedLength){
+            this.rawLength = rawLength;
+            this.method = method;
+            this.stored = stored;
+            this.storedLength = storedLength;
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+/* CompressedFrameReader class, for getting the original bytes back out of a .dcz compressed frame
+ * (see CompressedFrame).
+ *
+ * openStream() decompresses a .dcz stream on the fly, one chunk at a time, e.g. to feed it straight
+ * to a YuvReader. decompress() turns a whole .dcz file back into the original file, decompressing
+ * its chunks on a pool of worker threads.
+ */
+
+package com.devcam.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+
+public final class CompressedFrameReader {
+
+    private CompressedFrameReader(){}
+
+
+    /* static File originalFile(File)
+     *
+     * Where the original of a .dcz file goes: the same name without the extension.
+     */
+    public static File originalFile(File compressed){
+        String name = compressed.getName();
+        if (name.endsWith(CompressedFrame.EXTENSION)){
+            name = name.substring(0, name.length() - CompressedFrame.EXTENSION.length());
+        } else {
+            name = name + ".raw";
+        }
+        return new File(compressed.getParentFile(), name);
+    }
+
+
+    /* static InputStream openStream(InputStream)
+     *
+     * Read the original bytes of the .dcz data in the given stream.
+     */
+    public static InputStream openStream(InputStream input) throws IOException {
+        return new DecompressingInputStream(new DataInputStream(input));
+    }
+
+
+    /* static long decompress(File, File, ExecutorService, int)
+     *
+     * Write the original bytes of the .dcz file to the given file, decompressing up to a few chunks
+     * per worker at once. Returns the number of bytes written.
+     */
+    public static long decompress(File compressed, File original, ExecutorService pool,
+                                  int numWorkers) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(compressed), 256*1024));
+        OutputStream output = new FileOutputStream(original);
+        try {
+            final int distance = readHeader(input);
+            int maxInFlight = Math.max(1, numWorkers)*ParallelCompressingOutputStream.CHUNKS_IN_FLIGHT_PER_WORKER;
+            ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+            long written = 0;
+            boolean done = false;
+            while (!done || !inFlight.isEmpty()){
+                if (!done && inFlight.size()<maxInFlight){
+                    final int rawLength = input.readInt();
+                    if (rawLength==0){
+                        done = true;
+                        continue;
+                    }
+                    final int storedLength = input.readInt();
+                    final byte method = input.readByte();
+                    final byte[] stored = new byte[storedLength];
+                    input.readFully(stored);
+                    inFlight.add(pool.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws DataFormatException {
+                            byte[] raw = new byte[rawLength];
+                            CompressedFrame.decompressChunk(method, stored, storedLength, rawLength, distance, raw);
+                            return raw;
+                        }
+                    }));
+                    continue;
+                }
+                byte[] raw = get(inFlight.poll());
+                output.write(raw);
+                written += raw.length;
+            }
+            return written;
+        } finally {
+            input.close();
+            output.close();
+        }
+    }
+
+
+    private static byte[] get(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decompressing.");
+        } catch (ExecutionException ee){
+            throw new IOException(ee.getCause());
+        }
+    }
+
+
+    /* Check the header, and return the filter distance.
+     */
+    static int readHeader(DataInputStream input) throws IOException {
+        if (input.readInt()!=CompressedFrame.MAGIC){
+            throw new IOException("Not a devCam compressed frame.");
+        }
+        int version = input.readInt();
+        if (version!=CompressedFrame.VERSION){
+            throw new IOException("Unsupported compressed frame version " + version);
+        }
+        input.readInt(); // chunk size, only needed for writing
+        return input.readInt();
+    }
+
+
+
+    /* Decompresses one chunk at a time as it is read.
+     */
+    private static class DecompressingInputStream extends InputStream {
+        private final DataInputStream mInput;
+        private final int mDistance;
+        private byte[] mStored = new byte[0];
+        private byte[] mRaw = new byte[0];
+        private int mRawLength = 0;
+        private int mRawPosition = 0;
+        private boolean mEnded = false;
+
+        DecompressingInputStream(DataInputStream input) throws IOException {
+            mInput = input;
+            mDistance = readHeader(input);
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (mEnded){
+                return false;
+            }
+            int rawLength = mInput.readInt();
+            if (rawLength==0){
+                mEnded = true;
+                return false;
+            }
+            int storedLength = mInput.readInt();
+            byte method = mInput.readByte();
+            if (mStored.length<storedLength){
+                mStored = new byte[storedLength];
+            }
+            if (mRaw.length<rawLength){
+                mRaw = new byte[rawLength];
+            }
+            mInput.readFully(mStored, 0, storedLength);
+            try {
+                CompressedFrame.decompressChunk(method, mStored, storedLength, rawLength, mDistance, mRaw);
+            } catch (DataFormatException dfe){
+                throw new IOException(dfe);
+            }
+            mRawLength = rawLength;
+            mRawPosition = 0;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1)<0) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len==0){
+                return 0;
+            }
+            while (mRawPosition==mRawLength){
+                if (!nextChunk()){
+                    return -1;
+                }
+            }
+            int n = Math.min(len, mRawLength - mRawPosition);
+            System.arraycopy(mRaw, mRawPosition, b, off, n);
+            mRawPosition += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+/* DesignJournal class, an append-only record of the progress of a design while it is being saved,
+ * so that whatever was saved can be recovered if the app dies before the design is finished (see
+ * JournalRecovery).
+ *
+ * Otherwise, all that is known about the frames of a design until the last one is written lives in
+ * memory, and the metadata and manifest files are only written at the very end. The journal,
+ * <design>_journal.txt next to the frames, records instead
+ *   - when the design starts: which container file it is saved to, if any,
+ *   - as each frame is paired with its CaptureResult: its place in the design, file name,
+ *     timestamp and CaptureResult metadata,
+ *   - as each frame is completely written: its length and checksum, and where it is in the
+ *     container.
+ * Once the design is finished and its metadata files are written, the journal is deleted. A
+ * journal found later therefore always belongs to a design that was cut short.
+ *
+ * Every record is a single line of tab-separated fields, written to the file with one write() and
+ * no buffering, so a record is in the file system as soon as it is added, even if the app is then
+ * killed. Only a crash of the whole device can lose the last records, and a record cut short
+ * that way is ignored on reading.
+ *
+ *   B  version  container file, or "-"
+ *   P  frame index  timestamp  file  CaptureResult as a JSON object
+ *   S  file  offset  length  crc32c  timestamp  [format  metadata offset  metadata length]
+ *
+ * The file of an S record is always the frame's own file name, as in its P record. The other S
+ * fields are those of the frame's DesignManifest entry, followed, for frames in a container, by
+ * the rest of its BurstContainer entry.
+ *
+ * Problems writing the journal are reported but never stop the design from being saved.
+ *
+ * Journals still open in this process are kept track of, so that recovery never mistakes the design
+ * being saved right now for one that was cut short.
+ */
+
+package com.devcam.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+public class DesignJournal {
+
+    public static final String FILE_SUFFIX = "_journal.txt";
+    static final int VERSION = 1;
+
+    static final String BEGIN = "B";
+    static final String PAIRED = "P";
+    static final String SAVED = "S";
+    static final String NONE = "-";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Set<File> sOpenJournals = new HashSet<File>();
+
+    private final File mFile;
+    private FileOutputStream mOutput;
+
+
+    // - - - Constructor - - -
+    /**
+     * Start a new journal, replacing any old one.
+     *
+     * @param file The journal file, <design>_journal.txt in the design's directory.
+     * @param containerName Name of the container file the frames go into, or null if they are
+     *                      saved as files of their own.
+     */
+    public DesignJournal(File file, String containerName) throws IOException {
+        mFile = file.getAbsoluteFile();
+        synchronized (sOpenJournals){
+            sOpenJournals.add(mFile);
+        }
+        mOutput = new FileOutputStream(file);
+        append(BEGIN, String.valueOf(VERSION), (containerName==null) ? NONE : containerName);
+    }
+
+    public File getFile(){
+        return mFile;
+    }
+
+    /* static boolean isOpen(File)
+     *
+     * Whether the journal is still being written by this process.
+     */
+    static boolean isOpen(File file){
+        synchronized (sOpenJournals){
+            return sOpenJournals.contains(file.getAbsoluteFile());
+        }
+    }
+
+
+    /* void framePaired(int, long, String, String)
+     *
+     * Record that a frame was paired with its CaptureResult and is about to be written to the
+     * given file.
+     */
+    public void framePaired(int frameIndex, long timestamp, String filename, String metadataJson){
+        append(PAIRED, String.valueOf(frameIndex), String.valueOf(timestamp), filename, metadataJson);
+    }
+
+
+    /* void frameSaved(String, DesignManifest.Entry, BurstContainer.Entry)
+     *
+     * Record that the frame paired as the given file was completely written. Pass its container
+     * entry if it went into one, null otherwise.
+     */
+    public void frameSaved(String filename, DesignManifest.Entry saved, BurstContainer.Entry containerEntry){
+        String offset = saved.isWholeFile() ? NONE : String.valueOf(saved.getOffset());
+        if (containerEntry==null){
+            append(SAVED, filename, offset, String.valueOf(saved.getLength()),
+                    Crc32c.toHex(saved.getCrc32c()), String.valueOf(saved.getTimestamp()));
+        } else {
+            append(SAVED, filename, offset, String.valueOf(saved.getLength()),
+                    Crc32c.toHex(saved.getCrc32c()), String.valueOf(saved.getTimestamp()),
+                    String.valueOf(containerEntry.getFormat()),
+                    String.valueOf(containerEntry.getMetadataOffset()),
+                    String.valueOf(containerEntry.getMetadataLength()));
+        }
+    }
+
+
+    /* void complete()
+     *
+     * The design is finished and its metadata files are written, so the journal is no longer
+     * needed.
+     */
+    public synchronized void complete(){
+        close();
+        if (!mFile.delete()){
+            System.err.println("Could not delete finished journal " + mFile);
+        }
+    }
+
+
+    /* void close()
+     *
+     * Stop recording, leaving the journal for recovery.
+     */
+    public synchronized void close(){
+        if (mOutput==null){
+            return;
+        }
+        try {
+            mOutput.close();
+        } catch (IOException ioe){
+            ioe.printStackTrace();
+        }
+        mOutput = null;
+        synchronized (sOpenJournals){
+            sOpenJournals.remove(mFile);
+        }
+    }
+
+
+    private synchronized void append(String... fields){
+        if (mOutput==null){
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        for (int i=0; i<fields.length; i++){
+            if (i>0){
+                line.append('\t');
+            }
+            line.append(fields[i]);
+        }
+        line.append('\n');
+        try {
+            mOutput.write(line.toString().getBytes(UTF8));
+        } catch (IOException ioe){
+            ioe.printStackTrace();
+        }
+    }
+
+}
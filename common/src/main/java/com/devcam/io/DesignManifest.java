@@ -0,0 +1,160 @@
+/* DesignManifest class, the list of every file devCam wrote for a design, with the length and
+ * CRC-32C checksum of each, so a copy of the design's directory can be checked for missing,
+ * truncated or corrupted files (see com.devcam.host.ManifestVerifier).
+ *
+ * The manifest is a text file, <design>_manifest.txt, next to the design's frames. After two
+ * comment lines, it has one tab-separated line per frame:
+ *
+ *   crc32c  length  timestamp  offset  file
+ *
+ * where crc32c is eight hex digits, timestamp the frame's sensor timestamp, and file the name of
+ * the file, relative to the manifest. For frames that are files of their own the offset is "-", and
+ * the file must be exactly length bytes long. For frames in a container file, it is the byte offset
+ * of the frame within the container.
+ *
+ * Entries can be added from several threads at once, e.g. by ImageSavers.
+ */
+
+package com.devcam.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class DesignManifest {
+
+    public static final String FILE_SUFFIX = "_manifest.txt";
+    public static final long WHOLE_FILE = -1;
+
+    private static final String HEADER = "# devCam design manifest v1";
+    private static final String COLUMNS = "# crc32c\tlength\ttimestamp\toffset\tfile";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+
+
+    // - - Setters and Getters - -
+    public synchronized void add(Entry entry){
+        mEntries.add(entry);
+    }
+    public synchronized List<Entry> getEntries(){
+        return Collections.unmodifiableList(new ArrayList<Entry>(mEntries));
+    }
+    public synchronized int size(){
+        return mEntries.size();
+    }
+
+
+    /* void writeOut(File)
+     *
+     * Write the manifest to the given file.
+     */
+    public void writeOut(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+        try {
+            writer.write(HEADER + "\n");
+            writer.write(COLUMNS + "\n");
+            for (Entry e : getEntries()){
+                writer.write(Crc32c.toHex(e.getCrc32c()) + "\t" + e.getLength() + "\t" + e.getTimestamp()
+                        + "\t" + (e.isWholeFile() ? "-" : String.valueOf(e.getOffset()))
+                        + "\t" + e.getFilename() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+
+    /* static DesignManifest read(File)
+     *
+     * Read a manifest written by writeOut().
+     */
+    public static DesignManifest read(File file) throws IOException {
+        DesignManifest manifest = new DesignManifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line = reader.readLine();
+            if (line==null || !line.equals(HEADER)){
+                throw new IOException("Not a devCam design manifest: " + file);
+            }
+            int lineNumber = 1;
+            while ((line = reader.readLine())!=null){
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")){
+                    continue;
+                }
+                String[] fields = line.split("\t", 5);
+                if (fields.length!=5){
+                    throw new IOException("Malformed manifest line " + lineNumber + " in " + file);
+                }
+                try {
+                    manifest.add(new Entry(fields[4],
+                            fields[3].equals("-") ? WHOLE_FILE : Long.parseLong(fields[3]),
+                            Long.parseLong(fields[1]), Long.parseLong(fields[0], 16),
+                            Long.parseLong(fields[2])));
+                } catch (NumberFormatException nfe){
+                    throw new IOException("Malformed manifest line " + lineNumber + " in " + file);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+
+
+    /**
+     * One frame written for the design.
+     */
+    public static final class Entry {
+        private final String mFilename;
+        private final long mOffset;
+        private final long mLength;
+        private final long mCrc32c;
+        private final long mTimestamp;
+
+        public Entry(String filename, long offset, long length, long crc32c, long timestamp){
+            mFilename = filename;
+            mOffset = offset;
+            mLength = length;
+            mCrc32c = crc32c;
+            mTimestamp = timestamp;
+        }
+
+        public String getFilename(){
+            return mFilename;
+        }
+        public long getOffset(){
+            return mOffset;
+        }
+        public boolean isWholeFile(){
+            return mOffset==WHOLE_FILE;
+        }
+        public long getLength(){
+            return mLength;
+        }
+        public long getCrc32c(){
+            return mCrc32c;
+        }
+        public long getTimestamp(){
+            return mTimestamp;
+        }
+
+        @Override
+        public String toString(){
+            return mFilename + (isWholeFile() ? "" : "@" + mOffset);
+        }
+    }
+
+}
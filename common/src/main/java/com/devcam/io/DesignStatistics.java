@@ -0,0 +1,84 @@
+/* DesignStatistics class, the FrameStatistics of every frame of a design, by file name, as they are
+ * gathered while the frames are written.
+ *
+ * The design's _capture_metadata.json is written as soon as all CaptureResults are in, which is
+ * before the last frames are written, so the statistics are written next to it once the design is
+ * saved, as <design>_frame_statistics.json: an array of one object per frame, with a "Filename"
+ * field naming its file, as in the capture metadata, then the fields of FrameStatistics.toJson().
+ * Frames in a container also carry their statistics in their metadata record in the container.
+ *
+ * Frames can be added from several threads at once, e.g. by ImageSavers.
+ */
+
+package com.devcam.io;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class DesignStatistics {
+
+    public static final String FILE_SUFFIX = "_frame_statistics.json";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Map<String,FrameStatistics> mFrames = new LinkedHashMap<String,FrameStatistics>();
+
+
+    // - - Setters and Getters - -
+    public synchronized void add(String filename, FrameStatistics statistics){
+        mFrames.put(filename, statistics);
+    }
+    public synchronized FrameStatistics get(String filename){
+        return mFrames.get(filename);
+    }
+    public synchronized Map<String,FrameStatistics> getFrames(){
+        return Collections.unmodifiableMap(new LinkedHashMap<String,FrameStatistics>(mFrames));
+    }
+    public synchronized int size(){
+        return mFrames.size();
+    }
+
+
+    /* static String withStatistics(String, FrameStatistics)
+     *
+     * Add the statistics to a frame's metadata JSON object, as its "devcam.frameStatistics" field.
+     */
+    public static String withStatistics(String metadataJson, FrameStatistics statistics){
+        String json = metadataJson.trim();
+        if (statistics==null || !json.startsWith("{")){
+            return metadataJson;
+        }
+        String body = json.substring(1).trim();
+        return "{\"devcam.frameStatistics\":" + statistics.toJson() + (body.equals("}") ? "" : ",") + body;
+    }
+
+
+    /* void writeOut(File)
+     *
+     * Write the statistics of all frames to the given file.
+     */
+    public void writeOut(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+        try {
+            writer.write("[\n");
+            boolean first = true;
+            for (Map.Entry<String,FrameStatistics> e : getFrames().entrySet()){
+                writer.write((first ? "" : ",\n") + "{\"Filename\":\"" + e.getKey() + "\","
+                        + e.getValue().toJson().substring(1));
+                first = false;
+            }
+            writer.write("\n]\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+}
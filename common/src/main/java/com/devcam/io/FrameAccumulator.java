@@ -0,0 +1,312 @@
+/* FrameAccumulator class, for merging a burst of frames of the same size into one by summing them
+ * sample by sample as they come in, so that only the merged frame has to be written.
+ *
+ * Designs made by CaptureDesign.Creator.splitExposureTime() and burst() take N frames to be
+ * averaged. Instead of writing all N, each frame is added into a 32-bit sum per sample, and its
+ * Image can be let go of right after. Once all are in, the rounded mean of every sample is the
+ * merged frame, and optionally the variance of every sample over the burst, for which the squares
+ * are summed as well: in 32 bits if the largest sample squared, times the most frames, fits, e.g.
+ * for 8-bit YUV or 10-bit RAW samples, and in 64 bits otherwise.
+ *
+ * Frames are given as planes of 8-bit (e.g. YUV_420_888) or 16-bit little-endian (RAW_SENSOR)
+ * samples, with their strides, as in an android.media.Image, so the accumulator does not depend on
+ * Android itself. The planes are cut into bands of rows, the tiles, which are added on the given
+ * pool of worker threads in parallel. add() returns once the whole frame is added.
+ *
+ * Samples a plane is missing at its end, as YUV_420_888 does not guarantee the last pixel, are
+ * taken to be the last sample present, as YuvReader does.
+ *
+ * Memory: 4 bytes per sample for the sums, plus 4 or 8 for the squares if keeping the variance, see
+ * bytesNeeded(). The variance is written out row by row, without a copy of the planes.
+ */
+
+package com.devcam.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class FrameAccumulator {
+
+    // Most frames that can be summed without overflowing the 32-bit sums of 16-bit samples.
+    public static final int MAX_FRAMES_16_BIT = Integer.MAX_VALUE/0xFFFF;
+
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private final int mBytesPerSample;
+    private final int[][] mSums;
+    private final int[][] mSquares32;
+    private final long[][] mSquares;
+    private final int mMaxFrames;
+    private final ExecutorService mPool;
+    private final List<Tile> mTiles = new ArrayList<Tile>();
+
+    private int mFrameCount = 0;
+
+    // The frame being added, for the tiles to read.
+    private ByteBuffer[] mPlanes;
+    private int[] mPixelStrides;
+    private int[] mRowStrides;
+
+
+    // - - - Constructor - - -
+    /**
+     * @param widths Samples across each plane.
+     * @param heights Rows of each plane.
+     * @param bytesPerSample 1 for 8-bit samples, 2 for 16-bit little-endian ones.
+     * @param keepVariance Whether to sum the squares too, for getVariance().
+     * @param pool Worker threads to add the tiles on.
+     * @param numTiles Roughly how many tiles to cut the frame into, e.g. a few per worker.
+     */
+    public FrameAccumulator(int[] widths, int[] heights, int bytesPerSample, boolean keepVariance,
+                            ExecutorService pool, int numTiles){
+        this(widths, heights, bytesPerSample, (bytesPerSample==1) ? 0xFF : 0xFFFF,
+                (bytesPerSample==1) ? Integer.MAX_VALUE/0xFF : MAX_FRAMES_16_BIT, keepVariance, pool, numTiles);
+    }
+
+    /**
+     * As above, for samples no larger than maxSample, e.g. the white level of a RAW sensor, and at
+     * most maxFrames frames, so the squares can be summed in 32 bits where they fit. Larger samples
+     * are added as they are, but may overflow the sums of squares.
+     */
+    public FrameAccumulator(int[] widths, int[] heights, int bytesPerSample, int maxSample, int maxFrames,
+                            boolean keepVariance, ExecutorService pool, int numTiles){
+        if (bytesPerSample!=1 && bytesPerSample!=2){
+            throw new IllegalArgumentException("Samples are 1 or 2 bytes.");
+        }
+        mWidths = widths.clone();
+        mHeights = heights.clone();
+        mBytesPerSample = bytesPerSample;
+        mMaxFrames = maxFrames;
+        mPool = pool;
+        mSums = new int[widths.length][];
+        boolean narrow = squaresFitIn32Bits(maxSample, maxFrames);
+        mSquares32 = (keepVariance && narrow) ? new int[widths.length][] : null;
+        mSquares = (keepVariance && !narrow) ? new long[widths.length][] : null;
+
+        long totalRows = 0;
+        for (int p=0; p<widths.length; p++){
+            mSums[p] = new int[widths[p]*heights[p]];
+            if (mSquares32!=null){
+                mSquares32[p] = new int[widths[p]*heights[p]];
+            } else if (mSquares!=null){
+                mSquares[p] = new long[widths[p]*heights[p]];
+            }
+            totalRows += heights[p];
+        }
+        // Bands of about equal numbers of rows, never spanning planes.
+        int rowsPerTile = (int) Math.max(1, (totalRows + numTiles - 1)/Math.max(1, numTiles));
+        for (int p=0; p<widths.length; p++){
+            for (int row=0; row<heights[p]; row+=rowsPerTile){
+                mTiles.add(new Tile(p, row, Math.min(heights[p], row + rowsPerTile)));
+            }
+        }
+    }
+
+
+    private static boolean squaresFitIn32Bits(int maxSample, int maxFrames){
+        return (long) maxSample*maxSample*maxFrames<=Integer.MAX_VALUE;
+    }
+
+    /* static long bytesNeeded(int[], int[], int, int, boolean)
+     *
+     * The bytes of heap an accumulator of planes of these sizes takes, for making sure it fits
+     * before making one.
+     */
+    public static long bytesNeeded(int[] widths, int[] heights, int maxSample, int maxFrames, boolean keepVariance){
+        long samples = 0;
+        for (int p=0; p<widths.length; p++){
+            samples += (long) widths[p]*heights[p];
+        }
+        int bytesPerSample = 4;
+        if (keepVariance){
+            bytesPerSample += squaresFitIn32Bits(maxSample, maxFrames) ? 4 : 8;
+        }
+        return samples*bytesPerSample;
+    }
+
+
+    // - - Setters and Getters - -
+    public int getFrameCount(){
+        return mFrameCount;
+    }
+    public int getNumPlanes(){
+        return mWidths.length;
+    }
+    public int getWidth(int p){
+        return mWidths[p];
+    }
+    public int getHeight(int p){
+        return mHeights[p];
+    }
+    public int getBytesPerSample(){
+        return mBytesPerSample;
+    }
+    public boolean keepsVariance(){
+        return mSquares32!=null || mSquares!=null;
+    }
+
+
+    /* void add(ByteBuffer[], int[], int[])
+     *
+     * Add a frame, given as its planes and their strides. The buffers are not moved, and can be let
+     * go of once this returns.
+     */
+    public synchronized void add(ByteBuffer[] planes, int[] pixelStrides, int[] rowStrides) throws IOException {
+        if (planes.length!=mWidths.length){
+            throw new IllegalArgumentException("Expected " + mWidths.length + " planes.");
+        }
+        if ((mBytesPerSample==2 && mFrameCount>=MAX_FRAMES_16_BIT) || mFrameCount>=mMaxFrames){
+            throw new IllegalStateException("Too many frames to sum.");
+        }
+        mPlanes = new ByteBuffer[planes.length];
+        for (int p=0; p<planes.length; p++){
+            // Every tile reads with absolute gets from its own view of the plane.
+            mPlanes[p] = planes[p].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mPixelStrides = pixelStrides;
+        mRowStrides = rowStrides;
+        try {
+            for (Future<Void> done : mPool.invokeAll(mTiles)){
+                done.get();
+            }
+        } catch (InterruptedException ie){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while adding a frame.");
+        } catch (ExecutionException ee){
+            throw new IOException(ee.getCause());
+        } finally {
+            mPlanes = null;
+        }
+        mFrameCount++;
+    }
+
+
+    /* void getMean(int, ByteBuffer)
+     *
+     * Put the rounded mean of every sample of plane p into the buffer, at its position, in the same
+     * sample size as the frames, row after row without padding. The buffer's position is not moved.
+     */
+    public void getMean(int p, ByteBuffer out){
+        ByteBuffer mean = out.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = out.position();
+        int n = Math.max(1, mFrameCount);
+        int[] sums = mSums[p];
+        for (int i=0; i<sums.length; i++){
+            int v = (int) (((long) sums[i]*2 + n)/(2L*n));
+            if (mBytesPerSample==1){
+                mean.put(start + i, (byte) v);
+            } else {
+                mean.putShort(start + 2*i, (short) v);
+            }
+        }
+    }
+
+
+    /* float[] getVariance(int)
+     *
+     * The variance of every sample of plane p over the frames added, row after row, or null if the
+     * variance isn't kept.
+     */
+    public float[] getVariance(int p){
+        if (!keepsVariance()){
+            return null;
+        }
+        float[] variance = new float[mSums[p].length];
+        for (int i=0; i<variance.length; i++){
+            variance[i] = varianceAt(p, i);
+        }
+        return variance;
+    }
+
+    private float varianceAt(int p, int i){
+        if (mFrameCount<2){
+            return 0;
+        }
+        double n = mFrameCount;
+        double sum = mSums[p][i];
+        double squares = (mSquares32!=null) ? mSquares32[p][i] : mSquares[p][i];
+        return (float) Math.max(0, (squares - sum*sum/n)/(n - 1));
+    }
+
+
+    /* void writeVariance(OutputStream)
+     *
+     * Write the variance of all planes to the stream, in the format described by VarianceFormat.
+     * The stream is not closed.
+     */
+    public void writeVariance(OutputStream output) throws IOException {
+        if (!keepsVariance()){
+            throw new IllegalStateException("The variance is not being kept.");
+        }
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(VarianceFormat.MAGIC);
+        out.writeInt(VarianceFormat.VERSION);
+        out.writeInt(mFrameCount);
+        out.writeInt(mWidths.length);
+        for (int p=0; p<mWidths.length; p++){
+            out.writeInt(mWidths[p]);
+            out.writeInt(mHeights[p]);
+        }
+        for (int p=0; p<mWidths.length; p++){
+            for (int i=0; i<mSums[p].length; i++){
+                out.writeFloat(varianceAt(p, i));
+            }
+        }
+        out.flush();
+    }
+
+
+
+    /* A band of rows of one plane, added by one worker.
+     */
+    private class Tile implements Callable<Void> {
+        final int plane;
+        final int firstRow;
+        final int endRow;
+
+        Tile(int plane, int firstRow, int endRow){
+            this.plane = plane;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        public Void call(){
+            ByteBuffer samples = mPlanes[plane];
+            int start = samples.position();
+            int last = samples.limit() - mBytesPerSample; // byte of the last whole sample
+            int pixelStride = mPixelStrides[plane];
+            int rowStride = mRowStrides[plane];
+            int width = mWidths[plane];
+            int[] sums = mSums[plane];
+            int[] squares32 = (mSquares32!=null) ? mSquares32[plane] : null;
+            long[] squares = (mSquares!=null) ? mSquares[plane] : null;
+
+            for (int row=firstRow; row<endRow; row++){
+                int in = start + row*rowStride;
+                int out = row*width;
+                for (int x=0; x<width; x++, in+=pixelStride, out++){
+                    int at = Math.min(in, last);
+                    int v = (mBytesPerSample==1) ? (samples.get(at) & 0xFF) : (samples.getShort(at) & 0xFFFF);
+                    sums[out] += v;
+                    if (squares32!=null){
+                        squares32[out] += v*v;
+                    } else if (squares!=null){
+                        squares[out] += (long) v*v;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+/* FramePairing class, the matching of each frame's Images with its CaptureResult by sensor
+ * timestamp, as DesignResult does it, apart from the Android types themselves, so the same logic
+ * can be driven on the host (see com.devcam.host.CaptureReplay).
+ *
+ * Results and images are recorded as they come in, in whatever order the device delivers them.
+ * Whenever one of them completes a pair, the pair is passed to the listener at once, so the Image
+ * can be written and freed as soon as possible. A frame may be captured into several output
+ * streams, told apart by their ImageFormat, in which case each result is paired with one image of
+ * every stream. Completion is tracked per stream as well as for the design as a whole.
+ *
+ * Results and waiting images are kept by timestamp, and a result is let go of as soon as all its
+ * streams are paired, so pairing a frame takes the same time however long the design.
+ *
+ * R is the type of the results and I of the images; the timestamps and formats are given
+ * alongside them.
+ */
+
+package com.devcam.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FramePairing<R,I> {
+
+    private final int mDesignLength;
+    private final int mNumStreams;
+    private final Listener<R,I> mListener;
+
+    // Results still waiting for an image of some stream, by timestamp. A result is let go of once
+    // it has been paired with an image of every stream.
+    private final Map<Long,PendingResult<R>> mResults = new HashMap<Long,PendingResult<R>>();
+    // Images waiting for their result, by timestamp, with their formats.
+    private final Map<Long,List<PendingImage<I>>> mImages = new HashMap<Long,List<PendingImage<I>>>();
+    private int mNumWaiting = 0;
+
+    private int mNumPaired = 0;
+    // How many frames of each stream (keyed by ImageFormat) have been paired so far.
+    private final Map<Integer,Integer> mNumPairedByStream = new HashMap<Integer,Integer>();
+
+
+    // - - - Constructor - - -
+    public FramePairing(int designLength, int numStreams, Listener<R,I> listener){
+        mDesignLength = designLength;
+        mNumStreams = numStreams;
+        mListener = listener;
+    }
+
+
+    // - - Getters - -
+    public int getDesignLength(){
+        return mDesignLength;
+    }
+    public int getNumStreams(){
+        return mNumStreams;
+    }
+    public synchronized int getNumPaired(){
+        return mNumPaired;
+    }
+    /* The number of images recorded and not yet paired. */
+    public synchronized int getNumWaiting(){
+        return mNumWaiting;
+    }
+
+
+    /* void recordResult(R, long)
+     *
+     * Record a frame's result, and pair it with any of its images that came in before it.
+     */
+    public synchronized void recordResult(R result, long timestamp){
+        PendingResult<R> pending = new PendingResult<R>(result);
+
+        // With several output streams there may be an image waiting from each of them.
+        List<PendingImage<I>> images = mImages.remove(timestamp);
+        if (images!=null){
+            mNumWaiting -= images.size();
+            for (PendingImage<I> image : images){
+                pending.paired++;
+                pair(image.image, image.format, result);
+            }
+        }
+        if (pending.paired<mNumStreams){
+            mResults.put(timestamp, pending);
+        }
+    }
+
+
+    /* void recordImage(I, long, int)
+     *
+     * Record an image of the given ImageFormat, and pair it with its result if that is already in,
+     * or keep it until the result is.
+     */
+    public synchronized void recordImage(I image, long timestamp, int format){
+        PendingResult<R> pending = mResults.get(timestamp);
+        if (pending!=null){
+            if (++pending.paired>=mNumStreams){
+                mResults.remove(timestamp);
+            }
+            pair(image, format, pending.result);
+            return;
+        }
+        List<PendingImage<I>> images = mImages.get(timestamp);
+        if (images==null){
+            images = new ArrayList<PendingImage<I>>(mNumStreams);
+            mImages.put(timestamp, images);
+        }
+        images.add(new PendingImage<I>(image, format));
+        mNumWaiting++;
+    }
+
+
+    /* void pair(I, int, R)
+     *
+     * Pass a matched pair to the listener, and count it towards the completion of its stream and of
+     * the whole design.
+     */
+    private void pair(I image, int format, R result){
+        if (mListener!=null){
+            mListener.onPaired(image, result, format);
+        }
+
+        Integer streamCount = mNumPairedByStream.get(format);
+        streamCount = (streamCount==null) ? 1 : streamCount+1;
+        mNumPairedByStream.put(format, streamCount);
+        if (streamCount==mDesignLength && mListener!=null){
+            mListener.onStreamCompleted(format);
+        }
+
+        mNumPaired++;
+        if (mNumPaired==mDesignLength*mNumStreams && mListener!=null){
+            mListener.onAllPaired();
+        }
+    }
+
+
+
+    /* A result, with the number of images paired with it so far. */
+    private static final class PendingResult<R> {
+        final R result;
+        int paired = 0;
+
+        PendingResult(R result){
+            this.result = result;
+        }
+    }
+
+    /* An image waiting for its result, with its format. */
+    private static final class PendingImage<I> {
+        final I image;
+        final int format;
+
+        PendingImage(I image, int format){
+            this.image = image;
+            this.format = format;
+        }
+    }
+
+
+    public static abstract class Listener<R,I> {
+        public void onPaired(I image, R result, int format){};
+        // Every frame of the design has been paired for the output stream of this ImageFormat.
+        public void onStreamCompleted(int format){};
+        public void onAllPaired(){};
+    }
+
+}
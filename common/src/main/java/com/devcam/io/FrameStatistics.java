@@ -0,0 +1,189 @@
+/* FrameStatistics class, brightness statistics of one frame, gathered sample by sample while the
+ * frame is being written, so that judging its exposure needs no second read of the image.
+ *
+ * Samples are put on a common 0-255 scale and counted into a 256-bin histogram. For YUV frames the
+ * samples are those of the Y plane as they are. For RAW frames they are the sensor samples of all
+ * color channels, mapped linearly from the black level (0) to the white level (255), so the
+ * statistics are of the raw signal rather than of a rendered luminance.
+ *
+ * From the histogram and running sums come the mean, percentiles, and the fractions of samples
+ * clipped at the bottom (at or below black) and top (at or above white) of the range.
+ *
+ * All accumulators are fixed-size primitives allocated with the object, so adding samples never
+ * allocates. An object is meant to be filled by one thread, then read.
+ */
+
+package com.devcam.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+public class FrameStatistics {
+
+    public static final int NUM_BINS = 256;
+
+    // Fixed-point scale for mapping RAW samples to bins.
+    private static final int SCALE_SHIFT = 16;
+
+    private final long[] mHistogram = new long[NUM_BINS];
+    private long mCount = 0;
+    private long mSum = 0; // of samples on the 0-255 scale
+    private long mClippedLow = 0;
+    private long mClippedHigh = 0;
+
+    private final int mBlackLevel;
+    private final int mWhiteLevel;
+    private final long mScale;
+
+
+    // - - - Constructors - - -
+    /* For 8-bit samples, e.g. the Y plane of a YUV frame. */
+    public FrameStatistics(){
+        this(0, NUM_BINS-1);
+    }
+
+    /**
+     * @param blackLevel Sample value of no light. Samples at or below it count as clipped low.
+     * @param whiteLevel Highest sample value. Samples at or above it count as clipped high.
+     */
+    public FrameStatistics(int blackLevel, int whiteLevel){
+        mBlackLevel = blackLevel;
+        mWhiteLevel = Math.max(blackLevel+1, whiteLevel);
+        mScale = ((long) (NUM_BINS-1) << SCALE_SHIFT)/(mWhiteLevel - mBlackLevel);
+    }
+
+
+    /* void addByteSamples(byte[], int, int, int)
+     *
+     * Add count 8-bit samples from the array, starting at offset, stride bytes apart.
+     */
+    public void addByteSamples(byte[] samples, int offset, int count, int stride){
+        long sum = 0;
+        long low = 0;
+        long high = 0;
+        int end = offset + count*stride;
+        for (int i=offset; i<end; i+=stride){
+            int v = samples[i] & 0xFF;
+            mHistogram[v]++;
+            sum += v;
+            if (v==0){
+                low++;
+            } else if (v==NUM_BINS-1){
+                high++;
+            }
+        }
+        mCount += count;
+        mSum += sum;
+        mClippedLow += low;
+        mClippedHigh += high;
+    }
+
+
+    /* void addRawSample(int)
+     *
+     * Add one sensor sample, between the black and white levels given on construction.
+     */
+    public void addRawSample(int v){
+        int bin;
+        if (v<=mBlackLevel){
+            bin = 0;
+            mClippedLow++;
+        } else if (v>=mWhiteLevel){
+            bin = NUM_BINS-1;
+            mClippedHigh++;
+        } else {
+            bin = (int) (((v - mBlackLevel)*mScale) >>> SCALE_SHIFT);
+        }
+        mHistogram[bin]++;
+        mSum += bin;
+        mCount++;
+    }
+
+
+    /* void addRawPlane(ByteBuffer, int, int, int, int)
+     *
+     * Add every sample of a RAW_SENSOR plane of 16-bit little-endian samples. The buffer is not
+     * moved.
+     */
+    public void addRawPlane(ByteBuffer plane, int pixelStride, int rowStride, int width, int height){
+        ByteBuffer samples = (plane.order()==ByteOrder.LITTLE_ENDIAN) ? plane
+                : plane.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = plane.position();
+        for (int y=0; y<height; y++){
+            int row = start + y*rowStride;
+            for (int x=0; x<width; x++){
+                addRawSample(samples.getShort(row + x*pixelStride) & 0xFFFF);
+            }
+        }
+    }
+
+
+    // - - Setters and Getters - -
+    public long getCount(){
+        return mCount;
+    }
+    public long[] getHistogram(){
+        return mHistogram.clone();
+    }
+    /* Mean sample, on the 0-255 scale. */
+    public double getMean(){
+        return (mCount==0) ? 0 : (double) mSum/mCount;
+    }
+    public double getClippedLowFraction(){
+        return (mCount==0) ? 0 : (double) mClippedLow/mCount;
+    }
+    public double getClippedHighFraction(){
+        return (mCount==0) ? 0 : (double) mClippedHigh/mCount;
+    }
+
+
+    /* int getPercentile(double)
+     *
+     * The lowest bin at or below which the given percentage (0-100) of the samples lie.
+     */
+    public int getPercentile(double percent){
+        if (mCount==0){
+            return 0;
+        }
+        long target = (long) Math.ceil(mCount*Math.max(0, Math.min(100, percent))/100.0);
+        long seen = 0;
+        for (int bin=0; bin<NUM_BINS; bin++){
+            seen += mHistogram[bin];
+            if (seen>=Math.max(1, target)){
+                return bin;
+            }
+        }
+        return NUM_BINS-1;
+    }
+
+
+    /* String toJson()
+     *
+     * The statistics as a JSON object.
+     */
+    public String toJson(){
+        StringBuilder json = new StringBuilder(8*NUM_BINS);
+        json.append(String.format(Locale.US,
+                "{\"count\":%d,\"mean\":%.3f,\"p1\":%d,\"p5\":%d,\"median\":%d,\"p95\":%d,\"p99\":%d,"
+                        + "\"clippedLowFraction\":%.6f,\"clippedHighFraction\":%.6f,\"histogram\":[",
+                mCount, getMean(), getPercentile(1), getPercentile(5), getPercentile(50),
+                getPercentile(95), getPercentile(99), getClippedLowFraction(), getClippedHighFraction()));
+        for (int bin=0; bin<NUM_BINS; bin++){
+            if (bin>0){
+                json.append(',');
+            }
+            json.append(mHistogram[bin]);
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    @Override
+    public String toString(){
+        return String.format(Locale.US, "mean %.1f, median %d, p99 %d, %.2f%% clipped low, %.2f%% clipped high",
+                getMean(), getPercentile(50), getPercentile(99),
+                100*getClippedLowFraction(), 100*getClippedHighFraction());
+    }
+
+}
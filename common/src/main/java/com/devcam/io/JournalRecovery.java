@@ -0,0 +1,311 @@
+/* JournalRecovery class, for recovering what was saved of designs that were cut short, e.g.
+ * because the app was killed while saving them (see DesignJournal).
+ *
+ * For each design whose journal is still there:
+ *   - Frames the journal records as completely written, and that are still there at the recorded
+ *     length, are kept.
+ *   - Files of frames that were started but never finished are deleted, as their image data is
+ *     gone.
+ *   - A container file that was never closed gets an index of the frames it completely holds.
+ *   - The _capture_metadata.json and _manifest.txt files are written for the frames that were kept,
+ *     just as they would have been for a finished design.
+ *   - Finally the journal is deleted, so the design is only recovered once.
+ *
+ * Run on the device when devCam starts, or on its own on a pulled Captured directory:
+ *
+ *   java com.devcam.io.JournalRecovery <Captured dir | design dir>
+ */
+
+package com.devcam.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class JournalRecovery {
+
+    public static final String METADATA_SUFFIX = "_capture_metadata.json";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private JournalRecovery(){}
+
+
+    /* static List<Report> recoverAll(File)
+     *
+     * Recover every cut-short design in the given directory and its immediate subdirectories.
+     */
+    public static List<Report> recoverAll(File dir){
+        List<Report> reports = new ArrayList<Report>();
+        List<File> dirs = new ArrayList<File>();
+        dirs.add(dir);
+        File[] children = dir.listFiles();
+        if (children!=null){
+            for (File child : children){
+                if (child.isDirectory()){
+                    dirs.add(child);
+                }
+            }
+        }
+        for (File d : dirs){
+            File[] journals = d.listFiles();
+            if (journals==null){
+                continue;
+            }
+            for (File journal : journals){
+                if (journal.isFile() && journal.getName().endsWith(DesignJournal.FILE_SUFFIX)
+                        && !DesignJournal.isOpen(journal)){
+                    try {
+                        reports.add(recover(journal));
+                    } catch (IOException ioe){
+                        ioe.printStackTrace();
+                    }
+                }
+            }
+        }
+        return reports;
+    }
+
+
+    /* static Report recover(File)
+     *
+     * Recover the design the given journal belongs to.
+     */
+    public static Report recover(File journalFile) throws IOException {
+        File dir = journalFile.getAbsoluteFile().getParentFile();
+        String name = journalFile.getName();
+        String designName = name.substring(0, name.length() - DesignJournal.FILE_SUFFIX.length());
+        Report report = new Report(designName);
+
+        String containerName = null;
+        Map<String,Integer> frameOfFile = new LinkedHashMap<String,Integer>();
+        Map<Integer,String> metadataByFrame = new TreeMap<Integer,String>();
+        Map<String,String[]> saved = new LinkedHashMap<String,String[]>();
+
+        // Every complete record ends with a newline. Anything after the last one is a record cut
+        // short by a crash, and is left out.
+        String[] lines = readJournal(journalFile).split("\n", -1);
+        for (int i=0; i<lines.length-1; i++){
+            String[] fields = lines[i].split("\t");
+            try {
+                if (fields[0].equals(DesignJournal.BEGIN) && fields.length==3){
+                    containerName = fields[2].equals(DesignJournal.NONE) ? null : fields[2];
+                } else if (fields[0].equals(DesignJournal.PAIRED) && fields.length==5
+                        && fields[4].endsWith("}")){
+                    int frame = Integer.parseInt(fields[1]);
+                    frameOfFile.put(fields[3], frame);
+                    metadataByFrame.put(frame, fields[4]);
+                } else if (fields[0].equals(DesignJournal.SAVED)
+                        && (fields.length==6 || (fields.length==9 && containerName!=null))){
+                    parseLongs(fields, 3, fields.length);
+                    saved.put(fields[1], fields);
+                }
+            } catch (NumberFormatException nfe){
+                System.err.println("Skipping malformed journal record: " + lines[i]);
+            }
+        }
+
+        // Keep the frames that were completely written, and are still there as written.
+        DesignManifest manifest = new DesignManifest();
+        List<BurstContainer.Entry> containerEntries = new ArrayList<BurstContainer.Entry>();
+        Map<Integer,List<String>> keptFilesByFrame = new TreeMap<Integer,List<String>>();
+        for (Map.Entry<String,Integer> paired : frameOfFile.entrySet()){
+            String filename = paired.getKey();
+            String[] fields = saved.get(filename);
+            boolean kept = false;
+            if (fields!=null){
+                long length = Long.parseLong(fields[3]);
+                long crc = Long.parseLong(fields[4], 16);
+                long timestamp = Long.parseLong(fields[5]);
+                if (fields.length==6){
+                    if (new File(dir, filename).length()==length){
+                        manifest.add(new DesignManifest.Entry(filename, DesignManifest.WHOLE_FILE,
+                                length, crc, timestamp));
+                        kept = true;
+                    }
+                } else {
+                    long offset = Long.parseLong(fields[2]);
+                    manifest.add(new DesignManifest.Entry(containerName, offset, length, crc, timestamp));
+                    containerEntries.add(new BurstContainer.Entry(offset, length, Integer.parseInt(fields[6]),
+                            timestamp, Long.parseLong(fields[7]), Integer.parseInt(fields[8])));
+                    kept = true;
+                }
+            }
+
+            if (kept){
+                List<String> files = keptFilesByFrame.get(paired.getValue());
+                if (files==null){
+                    files = new ArrayList<String>();
+                    keptFilesByFrame.put(paired.getValue(), files);
+                }
+                files.add(filename);
+            } else {
+                report.mFramesLost++;
+                // Started but never finished.
+                File file = new File(dir, filename);
+                if (file.exists() && file.delete()){
+                    report.mDeletedFiles.add(filename);
+                }
+            }
+        }
+        report.mFramesKept = manifest.size();
+
+        if (containerName!=null){
+            File container = new File(dir, containerName);
+            if (container.exists() && !isClosed(container)){
+                BurstContainerWriter.recover(container, containerEntries);
+                report.mRecoveredContainer = containerName;
+            }
+        }
+
+        File metadataFile = new File(dir, designName + METADATA_SUFFIX);
+        writeMetadata(metadataFile, keptFilesByFrame, metadataByFrame);
+        report.mWrittenFiles.add(metadataFile);
+        File manifestFile = new File(dir, designName + DesignManifest.FILE_SUFFIX);
+        manifest.writeOut(manifestFile);
+        report.mWrittenFiles.add(manifestFile);
+
+        if (!journalFile.delete()){
+            throw new IOException("Could not delete recovered journal " + journalFile);
+        }
+        return report;
+    }
+
+
+    private static String readJournal(File file) throws IOException {
+        StringBuilder text = new StringBuilder();
+        Reader reader = new InputStreamReader(new FileInputStream(file), UTF8);
+        try {
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer))>=0){
+                text.append(buffer, 0, n);
+            }
+        } finally {
+            reader.close();
+        }
+        return text.toString();
+    }
+
+
+    private static void parseLongs(String[] fields, int from, int to){
+        for (int i=from; i<to; i++){
+            if (i==4){
+                Long.parseLong(fields[i], 16);
+            } else {
+                Long.parseLong(fields[i]);
+            }
+        }
+    }
+
+
+    private static boolean isClosed(File container){
+        try {
+            new BurstContainerReader(container).close();
+            return true;
+        } catch (IOException ioe){
+            return false;
+        }
+    }
+
+
+    /* Write the metadata of the kept frames in the same form as the _capture_metadata.json of a
+     * finished design: an array of the CaptureResults as objects, each with a "Filename" field
+     * naming the files of the frame.
+     */
+    private static void writeMetadata(File file, Map<Integer,List<String>> keptFilesByFrame,
+                                      Map<Integer,String> metadataByFrame) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF8);
+        try {
+            writer.write("[\n");
+            boolean first = true;
+            for (Map.Entry<Integer,List<String>> e : keptFilesByFrame.entrySet()){
+                String json = metadataByFrame.get(e.getKey()).trim();
+                StringBuilder filenames = new StringBuilder();
+                for (String f : e.getValue()){
+                    if (filenames.length()>0){
+                        filenames.append(",");
+                    }
+                    filenames.append(f);
+                }
+                String body = json.substring(1).trim();
+                writer.write((first ? "" : ",\n") + "{\"Filename\":\"" + filenames + "\""
+                        + (body.equals("}") ? "" : ",") + body);
+                first = false;
+            }
+            writer.write("\n]\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+
+
+    /**
+     * What was done to recover one design.
+     */
+    public static final class Report {
+        private final String mDesignName;
+        private int mFramesKept;
+        private int mFramesLost;
+        private String mRecoveredContainer;
+        private final List<String> mDeletedFiles = new ArrayList<String>();
+        private final List<File> mWrittenFiles = new ArrayList<File>();
+
+        Report(String designName){
+            mDesignName = designName;
+        }
+
+        public String getDesignName(){
+            return mDesignName;
+        }
+        public int getFramesKept(){
+            return mFramesKept;
+        }
+        public int getFramesLost(){
+            return mFramesLost;
+        }
+        public List<String> getDeletedFiles(){
+            return mDeletedFiles;
+        }
+        /* Metadata files written for the design, e.g. to register them with the file system. */
+        public List<File> getWrittenFiles(){
+            return mWrittenFiles;
+        }
+
+        @Override
+        public String toString(){
+            return "Recovered design " + mDesignName + ": " + mFramesKept + " frames kept, "
+                    + mFramesLost + " lost, " + mDeletedFiles.size() + " partial files deleted"
+                    + ((mRecoveredContainer!=null) ? ", container " + mRecoveredContainer + " re-indexed." : ".");
+        }
+    }
+
+
+
+    public static void main(String[] args){
+        if (args.length<1){
+            System.err.println("Usage: JournalRecovery <Captured dir | design dir>");
+            System.exit(1);
+        }
+        List<Report> reports = recoverAll(new File(args[0]));
+        for (Report report : reports){
+            System.out.println(report);
+        }
+        if (reports.isEmpty()){
+            System.out.println("Nothing to recover.");
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/* JpegThumbnail class, for finding the small thumbnail a camera JPEG carries in its Exif data,
+ * which can be decoded for a proxy of the frame (see ProxyFrame) far faster than the frame itself.
+ *
+ * The thumbnail is a JPEG of its own, in the second IFD (IFD1) of the Exif APP1 segment, at the
+ * offset and of the length its JPEGInterchangeFormat (0x0201) and JPEGInterchangeFormatLength
+ * (0x0202) tags give, counted from the start of the TIFF header. Only the markers before the image
+ * data are looked through, and nothing is decoded.
+ */
+
+package com.devcam.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public final class JpegThumbnail {
+
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private JpegThumbnail(){}
+
+
+    /* static ByteBuffer find(ByteBuffer)
+     *
+     * A view of the bytes of the Exif thumbnail of the JPEG in the buffer, from its position to its
+     * limit, or null if it has none. The buffer is not moved.
+     */
+    public static ByteBuffer find(ByteBuffer jpeg){
+        ByteBuffer in = jpeg.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int start = in.position();
+        int end = in.limit();
+        if (end - start<4 || (in.getShort(start) & 0xFFFF)!=0xFFD8){
+            return null; // not a JPEG
+        }
+        int at = start + 2;
+        while (at + 4<=end){
+            if ((in.get(at) & 0xFF)!=0xFF){
+                return null;
+            }
+            int marker = in.get(at + 1) & 0xFF;
+            if (marker==0xDA || marker==0xD9){
+                return null; // image data begins, with no Exif segment before it
+            }
+            int length = in.getShort(at + 2) & 0xFFFF;
+            int segment = at + 4;
+            if (marker==0xE1 && segment + 6<=end && in.getInt(segment)==0x45786966 && in.getShort(segment + 4)==0){
+                return fromTiff(in, segment + 6, Math.min(end, at + 2 + length));
+            }
+            at += 2 + length;
+        }
+        return null;
+    }
+
+
+    /* static byte[] extract(byte[])
+     *
+     * A copy of the Exif thumbnail of the JPEG, or null if it has none.
+     */
+    public static byte[] extract(byte[] jpeg){
+        ByteBuffer thumbnail = find(ByteBuffer.wrap(jpeg));
+        if (thumbnail==null){
+            return null;
+        }
+        byte[] bytes = new byte[thumbnail.remaining()];
+        thumbnail.get(bytes);
+        return bytes;
+    }
+
+
+    private static ByteBuffer fromTiff(ByteBuffer in, int tiff, int end){
+        if (tiff + 8>end){
+            return null;
+        }
+        ByteBuffer t = in.duplicate();
+        int order = t.getShort(tiff) & 0xFFFF;
+        if (order==0x4949){
+            t.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (order!=0x4D4D){
+            return null;
+        }
+        // IFD0 only leads on to IFD1, past its entries.
+        long ifd0 = t.getInt(tiff + 4) & 0xFFFFFFFFL;
+        if (tiff + ifd0 + 2>end){
+            return null;
+        }
+        int ifd0At = tiff + (int) ifd0;
+        int entries0 = t.getShort(ifd0At) & 0xFFFF;
+        int nextAt = ifd0At + 2 + 12*entries0;
+        if (nextAt + 4>end){
+            return null;
+        }
+        long ifd1 = t.getInt(nextAt) & 0xFFFFFFFFL;
+        if (ifd1==0 || tiff + ifd1 + 2>end){
+            return null;
+        }
+        int ifd1At = tiff + (int) ifd1;
+        int entries1 = t.getShort(ifd1At) & 0xFFFF;
+        long offset = -1;
+        long length = -1;
+        for (int i=0; i<entries1; i++){
+            int entry = ifd1At + 2 + 12*i;
+            if (entry + 12>end){
+                return null;
+            }
+            int tag = t.getShort(entry) & 0xFFFF;
+            if (tag==TAG_THUMBNAIL_OFFSET){
+                offset = t.getInt(entry + 8) & 0xFFFFFFFFL;
+            } else if (tag==TAG_THUMBNAIL_LENGTH){
+                length = t.getInt(entry + 8) & 0xFFFFFFFFL;
+            }
+        }
+        if (offset<0 || length<=0 || tiff + offset + length>end){
+            return null;
+        }
+        ByteBuffer thumbnail = in.duplicate();
+        thumbnail.limit(tiff + (int) (offset + length));
+        thumbnail.position(tiff + (int) offset);
+        return thumbnail.slice();
+    }
+
+}
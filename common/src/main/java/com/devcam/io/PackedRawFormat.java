@@ -0,0 +1,96 @@
+/* PackedRawFormat class, describing devCam's .praw file format for RAW_SENSOR frames stored at the
+ * sensor's real bit depth.
+ *
+ * RAW_SENSOR buffers hold every sample in 16 bits, though most sensors only produce 10 or 12 of
+ * them (see SENSOR_INFO_WHITE_LEVEL). A .praw file stores just as many bits per sample as the white
+ * level needs, along with what is needed to make sense of the samples.
+ *
+ * All header values are big-endian:
+ *   Header (344 bytes):  magic "DPRW" | int version | int width | int height
+ *                        | int bits per sample | int bytes per row | int CFA arrangement
+ *                        | int white level | 4 ints black level, for the 2x2 CFA cell in reading order
+ *                        | int reference illuminant 1 | int reference illuminant 2
+ *                        | long sensor timestamp
+ *                        | 3 floats neutral color point | 4 floats color correction gains (R,Ge,Go,B)
+ *                        | 9 floats color correction transform
+ *                        | 9 floats each, color transform 1, color transform 2, forward matrix 1,
+ *                          forward matrix 2, calibration transform 1, calibration transform 2
+ *   Rows:                height rows of packed samples, each bytes-per-row long.
+ *
+ * Matrices are row-major. Values the device doesn't report are 0. The CFA arrangement and reference
+ * illuminants are the values of the camera2 constants, e.g. 0 = RGGB.
+ *
+ * Within a row, sample x occupies bits x*bits to (x+1)*bits-1 of the row, counting bits from the
+ * least significant of the first byte up, i.e. samples are packed little-endian first. Each row
+ * starts on a whole byte, so the last byte of a row may be padded with zeros.
+ */
+
+package com.devcam.io;
+
+public final class PackedRawFormat {
+
+    public static final String EXTENSION = ".praw";
+
+    public static final int MAGIC = 0x44505257; // "DPRW"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 344;
+
+    static final int MAX_BITS = 16;
+    static final int MATRIX_SIZE = 9;
+
+    private PackedRawFormat(){}
+
+
+    /* static int bitsFor(int)
+     *
+     * Bits per sample needed to hold values up to the given white level.
+     */
+    public static int bitsFor(int whiteLevel){
+        if (whiteLevel<=0){
+            return MAX_BITS;
+        }
+        return Math.min(MAX_BITS, 32 - Integer.numberOfLeadingZeros(whiteLevel));
+    }
+
+    /* static int rowBytes(int, int)
+     *
+     * Bytes taken up by a row of the given number of samples.
+     */
+    public static int rowBytes(int width, int bits){
+        return (int) (((long) width*bits + 7)/8);
+    }
+
+
+
+    /**
+     * What a .praw header says about the frame, as plain values. Those describing the sensor come
+     * from the CameraCharacteristics, the rest from the frame's CaptureResult.
+     */
+    public static final class Header {
+        public int width;
+        public int height;
+        public int bitsPerSample;
+        public int rowBytes;
+        public int cfaArrangement;
+        public int whiteLevel;
+        public int[] blackLevel = new int[4];
+        public int referenceIlluminant1;
+        public int referenceIlluminant2;
+        public long timestamp;
+        public float[] neutralColorPoint = new float[3];
+        public float[] colorCorrectionGains = new float[4];
+        public float[] colorCorrectionTransform = new float[MATRIX_SIZE];
+        public float[] colorTransform1 = new float[MATRIX_SIZE];
+        public float[] colorTransform2 = new float[MATRIX_SIZE];
+        public float[] forwardMatrix1 = new float[MATRIX_SIZE];
+        public float[] forwardMatrix2 = new float[MATRIX_SIZE];
+        public float[] calibrationTransform1 = new float[MATRIX_SIZE];
+        public float[] calibrationTransform2 = new float[MATRIX_SIZE];
+
+        /* Black level of the sample at (x,y). */
+        public int blackLevelAt(int x, int y){
+            return blackLevel[2*(y & 1) + (x & 1)];
+        }
+    }
+
+}
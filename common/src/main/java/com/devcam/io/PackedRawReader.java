@@ -0,0 +1,168 @@
+/* PackedRawReader class, for reading devCam .praw files back into plain arrays of samples, see
+ * PackedRawFormat.
+ *
+ * The header is read when the reader is created. Rows are then unpacked one at a time the same way
+ * they were packed, a 64-bit word at a time, into a short per sample. Samples are at most 16 bits,
+ * so read them as (s & 0xFFFF) if the white level may be 65535.
+ */
+
+package com.devcam.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class PackedRawReader {
+
+    private final DataInputStream mInput;
+    private final PackedRawFormat.Header mHeader;
+
+    private byte[] mRowBuffer = new byte[0];
+    private ByteBuffer mRowWords;
+    private int mNextRow = 0;
+
+
+    // - - - Constructor - - -
+    public PackedRawReader(InputStream input) throws IOException {
+        mInput = new DataInputStream(input);
+        mHeader = readHeader(mInput);
+        ensureRowBuffer(mHeader.rowBytes);
+    }
+
+    public PackedRawFormat.Header getHeader(){
+        return mHeader;
+    }
+
+
+    /* void readRow(short[], int)
+     *
+     * Unpack the next row into the array, starting at the given index.
+     */
+    public void readRow(short[] samples, int offset) throws IOException {
+        if (mNextRow>=mHeader.height){
+            throw new IllegalStateException("All rows have been read.");
+        }
+        mInput.readFully(mRowBuffer, 0, mHeader.rowBytes);
+        unpackRow(samples, offset, mHeader.width, mHeader.bitsPerSample);
+        mNextRow++;
+    }
+
+
+    /* short[] readFrame()
+     *
+     * Unpack all the rows left, as width x height samples in reading order.
+     */
+    public short[] readFrame() throws IOException {
+        short[] samples = new short[mHeader.width*mHeader.height];
+        while (mNextRow<mHeader.height){
+            readRow(samples, mNextRow*mHeader.width);
+        }
+        return samples;
+    }
+
+
+    /* static short[] read(File)
+     *
+     * Read the samples of a whole .praw file. Use the reader itself to get at the header too.
+     */
+    public static short[] read(File file) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(file), 256*1024);
+        try {
+            return new PackedRawReader(input).readFrame();
+        } finally {
+            input.close();
+        }
+    }
+
+
+    /* void unpackRow(short[], int, int, int)
+     *
+     * Unpack the row in the row buffer. Bytes past the end of the row are only ever shifted out.
+     */
+    void unpackRow(short[] samples, int offset, int width, int bits){
+        long mask = (1L << bits) - 1;
+        long word = mRowWords.getLong(0);
+        int left = 64; // bits of word not yet used
+        int in = 8;
+        for (int x=0; x<width; x++){
+            if (left>=bits){
+                samples[offset + x] = (short) (word & mask);
+                word >>>= bits;
+                left -= bits;
+            } else {
+                // The sample continues in the next word.
+                long next = mRowWords.getLong(in);
+                in += 8;
+                samples[offset + x] = (short) ((word | (next << left)) & mask);
+                word = next >>> (bits - left);
+                left = 64 - (bits - left);
+            }
+        }
+    }
+
+    byte[] getRowBuffer(){
+        return mRowBuffer;
+    }
+
+
+    void ensureRowBuffer(int rowBytes){
+        // Room for the whole words read past the end of the row.
+        int length = (rowBytes/8 + 2)*8;
+        if (mRowBuffer.length<length){
+            mRowBuffer = new byte[length];
+            mRowWords = ByteBuffer.wrap(mRowBuffer).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+
+    static PackedRawFormat.Header readHeader(DataInputStream in) throws IOException {
+        if (in.readInt()!=PackedRawFormat.MAGIC){
+            throw new IOException("Not a devCam .praw file.");
+        }
+        int version = in.readInt();
+        if (version!=PackedRawFormat.VERSION){
+            throw new IOException("Unsupported .praw version " + version);
+        }
+        PackedRawFormat.Header header = new PackedRawFormat.Header();
+        header.width = in.readInt();
+        header.height = in.readInt();
+        header.bitsPerSample = in.readInt();
+        header.rowBytes = in.readInt();
+        header.cfaArrangement = in.readInt();
+        header.whiteLevel = in.readInt();
+        for (int i=0; i<4; i++){
+            header.blackLevel[i] = in.readInt();
+        }
+        header.referenceIlluminant1 = in.readInt();
+        header.referenceIlluminant2 = in.readInt();
+        header.timestamp = in.readLong();
+        readFloats(in, header.neutralColorPoint);
+        readFloats(in, header.colorCorrectionGains);
+        readFloats(in, header.colorCorrectionTransform);
+        readFloats(in, header.colorTransform1);
+        readFloats(in, header.colorTransform2);
+        readFloats(in, header.forwardMatrix1);
+        readFloats(in, header.forwardMatrix2);
+        readFloats(in, header.calibrationTransform1);
+        readFloats(in, header.calibrationTransform2);
+
+        if (header.width<0 || header.height<0 || header.bitsPerSample<1
+                || header.bitsPerSample>PackedRawFormat.MAX_BITS
+                || header.rowBytes!=PackedRawFormat.rowBytes(header.width, header.bitsPerSample)){
+            throw new IOException("Corrupt .praw header.");
+        }
+        return header;
+    }
+
+    private static void readFloats(DataInputStream in, float[] values) throws IOException {
+        for (int i=0; i<values.length; i++){
+            values[i] = in.readFloat();
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/* PackedRawWriter class, for writing RAW_SENSOR frames as .praw files, see PackedRawFormat.
+ *
+ * The samples are given as the ByteBuffer of the android.media.Image's one plane, with its strides,
+ * so the writer does not depend on Android itself. Each row is packed into a reused row buffer a
+ * 64-bit word at a time: samples are shifted into a long until it is full, and the long is then
+ * stored whole. Nothing is allocated per row or per sample, so a writer kept around for the next
+ * frame packs it without allocating at all, bar a view of the plane in the right byte order.
+ *
+ * Samples above the white level can't be stored in the bits it needs, and are clipped to it.
+ *
+ * If given a FrameStatistics, every sample is counted into it as it is packed.
+ */
+
+package com.devcam.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class PackedRawWriter {
+
+    private byte[] mRowBuffer = new byte[0];
+    private ByteBuffer mRowWords;
+    private FrameStatistics mStatistics;
+
+
+    /* Gather the statistics of the frames written into the given object, or stop if null. */
+    public void setStatistics(FrameStatistics statistics){
+        mStatistics = statistics;
+    }
+
+
+    /* void write(OutputStream, PackedRawFormat.Header, ByteBuffer, int, int)
+     *
+     * Write one frame to the stream. The bits per sample and bytes per row of the header are filled
+     * in from its white level and width. The plane holds 16-bit samples in native (little-endian)
+     * order, and is not moved. The stream is not closed.
+     */
+    public void write(OutputStream output, PackedRawFormat.Header header,
+                      ByteBuffer plane, int pixelStride, int rowStride) throws IOException {
+        header.bitsPerSample = PackedRawFormat.bitsFor(header.whiteLevel);
+        header.rowBytes = PackedRawFormat.rowBytes(header.width, header.bitsPerSample);
+        writeHeader(output, header);
+
+        ByteBuffer samples = (plane.order()==ByteOrder.LITTLE_ENDIAN) ? plane
+                : plane.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = plane.position();
+        ensureRowBuffer(header.rowBytes);
+        for (int y=0; y<header.height; y++){
+            packRow(samples, start + y*rowStride, pixelStride, header.width, header.bitsPerSample);
+            output.write(mRowBuffer, 0, header.rowBytes);
+        }
+    }
+
+
+    /* void packRow(ByteBuffer, int, int, int, int)
+     *
+     * Pack one row of 16-bit samples, starting at the given byte of the buffer, into the row buffer.
+     */
+    void packRow(ByteBuffer samples, int offset, int pixelStride, int width, int bits){
+        int max = (1 << bits) - 1;
+        FrameStatistics statistics = mStatistics;
+        long word = 0;
+        int filled = 0; // bits of word in use
+        int out = 0;
+        for (int x=0; x<width; x++){
+            int v = samples.getShort(offset + x*pixelStride) & 0xFFFF;
+            if (v>max){
+                v = max;
+            }
+            if (statistics!=null){
+                statistics.addRawSample(v);
+            }
+            word |= ((long) v) << filled;
+            filled += bits;
+            if (filled>=64){
+                mRowWords.putLong(out, word);
+                out += 8;
+                filled -= 64;
+                // What didn't fit of the last sample starts the next word.
+                word = (filled==0) ? 0 : ((long) v) >>> (bits - filled);
+            }
+        }
+        for (; filled>0; filled-=8){
+            mRowBuffer[out++] = (byte) word;
+            word >>>= 8;
+        }
+    }
+
+    byte[] getRowBuffer(){
+        return mRowBuffer;
+    }
+
+
+    void ensureRowBuffer(int rowBytes){
+        // Room for whole words past the end of the row.
+        int length = (rowBytes/8 + 1)*8;
+        if (mRowBuffer.length<length){
+            mRowBuffer = new byte[length];
+            mRowWords = ByteBuffer.wrap(mRowBuffer).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+
+    static void writeHeader(OutputStream output, PackedRawFormat.Header header) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(PackedRawFormat.MAGIC);
+        out.writeInt(PackedRawFormat.VERSION);
+        out.writeInt(header.width);
+        out.writeInt(header.height);
+        out.writeInt(header.bitsPerSample);
+        out.writeInt(header.rowBytes);
+        out.writeInt(header.cfaArrangement);
+        out.writeInt(header.whiteLevel);
+        for (int i=0; i<4; i++){
+            out.writeInt(header.blackLevel[i]);
+        }
+        out.writeInt(header.referenceIlluminant1);
+        out.writeInt(header.referenceIlluminant2);
+        out.writeLong(header.timestamp);
+        writeFloats(out, header.neutralColorPoint, 3);
+        writeFloats(out, header.colorCorrectionGains, 4);
+        writeFloats(out, header.colorCorrectionTransform, PackedRawFormat.MATRIX_SIZE);
+        writeFloats(out, header.colorTransform1, PackedRawFormat.MATRIX_SIZE);
+        writeFloats(out, header.colorTransform2, PackedRawFormat.MATRIX_SIZE);
+        writeFloats(out, header.forwardMatrix1, PackedRawFormat.MATRIX_SIZE);
+        writeFloats(out, header.forwardMatrix2, PackedRawFormat.MATRIX_SIZE);
+        writeFloats(out, header.calibrationTransform1, PackedRawFormat.MATRIX_SIZE);
+        writeFloats(out, header.calibrationTransform2, PackedRawFormat.MATRIX_SIZE);
+        out.flush();
+    }
+
+    private static void writeFloats(DataOutputStream out, float[] values, int count) throws IOException {
+        for (int i=0; i<count; i++){
+            out.writeFloat((values!=null && i<values.length) ? values[i] : 0f);
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/* ParallelCompressingOutputStream class, which writes a .dcz compressed frame (see CompressedFrame)
+ * of all bytes written to it.
+ *
+ * Bytes are gathered into chunks, and each full chunk is handed to the given pool of worker threads
+ * to be compressed, while the next one is filled. Compressed chunks are written to the underlying
+ * stream in order, as they come back. To bound memory, no more than a few chunks per worker are in
+ * flight at once; write() waits for the oldest one when that limit is reached.
+ *
+ * close() writes the last chunk and the end marker, and closes the underlying stream. finish() does
+ * the same without closing it.
+ */
+
+package com.devcam.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class ParallelCompressingOutputStream extends OutputStream {
+
+    // Chunks in flight per worker thread.
+    static final int CHUNKS_IN_FLIGHT_PER_WORKER = 2;
+
+    private final DataOutputStream mOutput;
+    private final ExecutorService mPool;
+    private final int mChunkSize;
+    private final int mDistance;
+    private final int mLevel;
+    private final int mMaxInFlight;
+
+    private final ArrayDeque<Future<CompressedFrame.Chunk>> mInFlight = new ArrayDeque<Future<CompressedFrame.Chunk>>();
+    private byte[] mChunk;
+    private int mChunkFill = 0;
+
+    private long mRawBytes = 0;
+    private long mStoredBytes = CompressedFrame.HEADER_SIZE;
+    private boolean mFinished = false;
+
+
+    // - - - Constructors - - -
+    public ParallelCompressingOutputStream(OutputStream output, ExecutorService pool, int numWorkers,
+                                           int filterDistance) throws IOException {
+        this(output, pool, numWorkers, filterDistance, CompressedFrame.DEFAULT_CHUNK_SIZE,
+                CompressedFrame.DEFAULT_LEVEL);
+    }
+
+    /**
+     * @param output Stream to write the .dcz data to.
+     * @param pool Worker threads to compress the chunks on.
+     * @param numWorkers Number of threads in the pool, to size the number of chunks in flight.
+     * @param filterDistance Delta filter distance, see CompressedFrame.filterDistance().
+     * @param chunkSize Bytes per chunk.
+     * @param level Deflate level, 1 (fastest) to 9.
+     */
+    public ParallelCompressingOutputStream(OutputStream output, ExecutorService pool, int numWorkers,
+                                           int filterDistance, int chunkSize, int level) throws IOException {
+        mOutput = new DataOutputStream(output);
+        mPool = pool;
+        mChunkSize = chunkSize;
+        mDistance = Math.max(1, filterDistance);
+        mLevel = level;
+        mMaxInFlight = Math.max(1, numWorkers)*CHUNKS_IN_FLIGHT_PER_WORKER;
+        mChunk = new byte[chunkSize];
+
+        mOutput.writeInt(CompressedFrame.MAGIC);
+        mOutput.writeInt(CompressedFrame.VERSION);
+        mOutput.writeInt(chunkSize);
+        mOutput.writeInt(mDistance);
+    }
+
+
+    // - - Setters and Getters - -
+    public long getRawBytes(){
+        return mRawBytes;
+    }
+    /* Bytes written to the underlying stream so far, including headers. */
+    public long getStoredBytes(){
+        return mStoredBytes;
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mFinished){
+            throw new IOException("Stream already finished.");
+        }
+        while (len>0){
+            int n = Math.min(len, mChunkSize - mChunkFill);
+            System.arraycopy(b, off, mChunk, mChunkFill, n);
+            mChunkFill += n;
+            off += n;
+            len -= n;
+            if (mChunkFill==mChunkSize){
+                submitChunk();
+            }
+        }
+    }
+
+
+    private void submitChunk() throws IOException {
+        if (mChunkFill==0){
+            return;
+        }
+        final byte[] chunk = mChunk;
+        final int length = mChunkFill;
+        mInFlight.add(mPool.submit(new Callable<CompressedFrame.Chunk>() {
+            @Override
+            public CompressedFrame.Chunk call() {
+                return CompressedFrame.compressChunk(chunk, length, mDistance, mLevel);
+            }
+        }));
+        mRawBytes += length;
+        // The array now belongs to the task.
+        mChunk = new byte[mChunkSize];
+        mChunkFill = 0;
+
+        while (mInFlight.size()>=mMaxInFlight){
+            writeOldestChunk();
+        }
+    }
+
+
+    private void writeOldestChunk() throws IOException {
+        CompressedFrame.Chunk chunk;
+        try {
+            chunk = mInFlight.poll().get();
+        } catch (InterruptedException ie){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing.");
+        } catch (ExecutionException ee){
+            throw new IOException(ee.getCause());
+        }
+        mOutput.writeInt(chunk.rawLength);
+        mOutput.writeInt(chunk.storedLength);
+        mOutput.writeByte(chunk.method);
+        mOutput.write(chunk.stored, 0, chunk.storedLength);
+        mStoredBytes += CompressedFrame.CHUNK_HEADER_SIZE + chunk.storedLength;
+    }
+
+
+    /* void finish()
+     *
+     * Compress and write out everything written so far, and the end marker, without closing the
+     * underlying stream.
+     */
+    public void finish() throws IOException {
+        if (mFinished){
+            return;
+        }
+        submitChunk();
+        while (!mInFlight.isEmpty()){
+            writeOldestChunk();
+        }
+        mOutput.writeInt(0);
+        mStoredBytes += 4;
+        mOutput.flush();
+        mFinished = true;
+    }
+
+    /* Chunks still in flight are not waited for, e.g. after an error. */
+    public void abort(){
+        for (Future<CompressedFrame.Chunk> f : mInFlight){
+            f.cancel(false);
+        }
+        mInFlight.clear();
+        mFinished = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Chunks can only be written whole, so there is nothing to flush before finish().
+        mOutput.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            mOutput.close();
+        }
+    }
+
+}
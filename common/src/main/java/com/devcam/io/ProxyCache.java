@@ -0,0 +1,311 @@
+/* ProxyCache class, keeping the ProxyFrames of captured designs, keyed by design name and frame
+ * number, in a bounded least-recently-used cache in memory backed by a bounded one on disk.
+ *
+ * Proxies are put in as frames are saved, and are written through to disk at once, so that they
+ * outlive the app. The memory cache holds the most recently used ones, up to a number of bytes,
+ * for scrolling through a design without reading at all; the rest are read back from disk on
+ * demand and kept in memory again. The disk cache drops the least recently used proxies once it is
+ * over its own size, judging by the files' modification times, which are touched on every use, so
+ * the order survives restarts.
+ *
+ * On disk a design's proxies are in a directory of its name, as <frame>.prx files, see ProxyFrame.
+ * Each is written to a temporary file next to it first and renamed once complete, so a get() never
+ * reads one half written. The temporary file is made while holding the lock, so the directory is
+ * never empty, and never deleted by a trim, while the proxy is being written.
+ *
+ * All methods can be called from any thread.
+ */
+
+package com.devcam.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ProxyCache {
+
+    public static final String EXTENSION = ".prx";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private final File mDir;
+    private final long mMaxMemoryBytes;
+    private final long mMaxDiskBytes;
+
+    // Both in order of use, least recent first.
+    private final LinkedHashMap<String,ProxyFrame> mMemory = new LinkedHashMap<String,ProxyFrame>(64, 0.75f, true);
+    private final LinkedHashMap<String,Long> mDisk = new LinkedHashMap<String,Long>(64, 0.75f, true);
+    private long mMemoryBytes = 0;
+    private long mDiskBytes = 0;
+
+
+    // - - - Constructor - - -
+    /**
+     * @param dir Directory to keep the proxies in on disk, made if need be. What is already there
+     *            from earlier is picked up.
+     * @param maxMemoryBytes Most bytes of proxies to keep in memory.
+     * @param maxDiskBytes Most bytes of proxy files to keep on disk.
+     */
+    public ProxyCache(File dir, long maxMemoryBytes, long maxDiskBytes){
+        mDir = dir;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxDiskBytes = maxDiskBytes;
+        if (!(dir.mkdirs() || dir.isDirectory())){
+            System.err.println("ProxyCache: could not create " + dir);
+        }
+        loadDiskIndex();
+    }
+
+
+    /* static String key(String, int)
+     *
+     * The key of the proxy of frame number frame (counting from 1, as in the file names) of the
+     * given design.
+     */
+    public static String key(String designName, int frame){
+        return designName + "/" + frame;
+    }
+
+
+    /* void put(String, int, ProxyFrame)
+     *
+     * Keep the proxy of the given frame, replacing any earlier one.
+     */
+    public void put(String designName, int frame, ProxyFrame proxy) throws IOException {
+        String key = key(designName, frame);
+        File file = fileFor(key);
+        File temp;
+        synchronized (this){
+            if (!(file.getParentFile().mkdirs() || file.getParentFile().isDirectory())){
+                throw new IOException("Could not create " + file.getParentFile());
+            }
+            temp = File.createTempFile(file.getName() + "-", TEMP_EXTENSION, file.getParentFile());
+        }
+        boolean written = false;
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 64*1024);
+            try {
+                proxy.write(out);
+            } finally {
+                out.close();
+            }
+            written = true;
+        } finally {
+            if (!written){
+                temp.delete();
+            }
+        }
+        synchronized (this){
+            if (!temp.renameTo(file)){
+                temp.delete();
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+            putInMemory(key, proxy);
+            Long old = mDisk.put(key, file.length());
+            mDiskBytes += file.length() - ((old!=null) ? old : 0);
+            trimDisk();
+        }
+    }
+
+
+    /* ProxyFrame get(String, int)
+     *
+     * The proxy of the given frame, or null if there is none.
+     */
+    public ProxyFrame get(String designName, int frame){
+        String key = key(designName, frame);
+        File file = fileFor(key);
+        synchronized (this){
+            ProxyFrame proxy = mMemory.get(key);
+            if (proxy!=null){
+                mDisk.get(key); // used, for the disk's order too
+                file.setLastModified(System.currentTimeMillis());
+                return proxy;
+            }
+            if (mDisk.get(key)==null){
+                return null;
+            }
+        }
+        ProxyFrame proxy;
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), 64*1024);
+            try {
+                proxy = ProxyFrame.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            remove(key);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        synchronized (this){
+            putInMemory(key, proxy);
+        }
+        return proxy;
+    }
+
+
+    /* List<Integer> getFrames(String)
+     *
+     * The numbers of the frames of the given design that have proxies, in order.
+     */
+    public synchronized List<Integer> getFrames(String designName){
+        List<Integer> frames = new ArrayList<Integer>();
+        String prefix = designName + "/";
+        for (String key : mDisk.keySet()){
+            if (key.startsWith(prefix)){
+                try {
+                    frames.add(Integer.parseInt(key.substring(prefix.length())));
+                } catch (NumberFormatException nfe){
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(frames);
+        return frames;
+    }
+
+
+    /* List<String> getDesigns()
+     *
+     * The names of the designs with proxies, most recently used first.
+     */
+    public synchronized List<String> getDesigns(){
+        List<String> designs = new ArrayList<String>();
+        for (String key : mDisk.keySet()){
+            String design = key.substring(0, key.lastIndexOf('/'));
+            designs.remove(design);
+            designs.add(0, design);
+        }
+        return designs;
+    }
+
+
+    /* void removeDesign(String)
+     *
+     * Drop all proxies of the given design, e.g. before it is captured anew under the same name.
+     */
+    public synchronized void removeDesign(String designName){
+        for (int frame : getFrames(designName)){
+            remove(key(designName, frame));
+        }
+        new File(mDir, designName).delete();
+    }
+
+
+    // - - Setters and Getters - -
+    public synchronized long getMemoryBytes(){
+        return mMemoryBytes;
+    }
+    public synchronized long getDiskBytes(){
+        return mDiskBytes;
+    }
+
+
+
+    private File fileFor(String key){
+        int slash = key.lastIndexOf('/');
+        return new File(new File(mDir, key.substring(0, slash)), key.substring(slash + 1) + EXTENSION);
+    }
+
+    private void putInMemory(String key, ProxyFrame proxy){
+        ProxyFrame old = mMemory.put(key, proxy);
+        mMemoryBytes += proxy.getByteCount() - ((old!=null) ? old.getByteCount() : 0);
+        Iterator<Map.Entry<String,ProxyFrame>> oldest = mMemory.entrySet().iterator();
+        while (mMemoryBytes>mMaxMemoryBytes && oldest.hasNext()){
+            Map.Entry<String,ProxyFrame> e = oldest.next();
+            if (e.getKey().equals(key)){
+                continue; // keep the one just put in, even if it alone is too big
+            }
+            mMemoryBytes -= e.getValue().getByteCount();
+            oldest.remove();
+        }
+    }
+
+    private void trimDisk(){
+        Iterator<Map.Entry<String,Long>> oldest = mDisk.entrySet().iterator();
+        while (mDiskBytes>mMaxDiskBytes && oldest.hasNext()){
+            Map.Entry<String,Long> e = oldest.next();
+            File file = fileFor(e.getKey());
+            file.delete();
+            File designDir = file.getParentFile();
+            String[] left = designDir.list();
+            if (left!=null && left.length==0){
+                designDir.delete();
+            }
+            mDiskBytes -= e.getValue();
+            oldest.remove();
+            ProxyFrame inMemory = mMemory.remove(e.getKey());
+            if (inMemory!=null){
+                mMemoryBytes -= inMemory.getByteCount();
+            }
+        }
+    }
+
+    private synchronized void remove(String key){
+        Long length = mDisk.remove(key);
+        if (length!=null){
+            mDiskBytes -= length;
+        }
+        ProxyFrame inMemory = mMemory.remove(key);
+        if (inMemory!=null){
+            mMemoryBytes -= inMemory.getByteCount();
+        }
+        fileFor(key).delete();
+    }
+
+
+    /* Pick up the proxies already on disk, in the order they were last used. */
+    private void loadDiskIndex(){
+        List<File> files = new ArrayList<File>();
+        File[] designs = mDir.listFiles();
+        if (designs==null){
+            return;
+        }
+        for (File design : designs){
+            File[] proxies = design.listFiles();
+            if (proxies!=null){
+                for (File proxy : proxies){
+                    if (proxy.getName().endsWith(EXTENSION)){
+                        files.add(proxy);
+                    } else if (proxy.getName().endsWith(TEMP_EXTENSION)){
+                        proxy.delete(); // left over from a put() that never finished
+                    }
+                }
+            }
+        }
+        File[] sorted = files.toArray(new File[files.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b){
+                long ta = a.lastModified();
+                long tb = b.lastModified();
+                return (ta<tb) ? -1 : ((ta==tb) ? 0 : 1);
+            }
+        });
+        synchronized (this){
+            for (File file : sorted){
+                String name = file.getName();
+                String key = file.getParentFile().getName() + "/" + name.substring(0, name.length() - EXTENSION.length());
+                mDisk.put(key, file.length());
+                mDiskBytes += file.length();
+            }
+            trimDisk();
+        }
+    }
+
+}
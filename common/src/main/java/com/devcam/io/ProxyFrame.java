@@ -0,0 +1,311 @@
+/* ProxyFrame class, a small downscaled RGB copy of a captured frame, for reviewing a design on the
+ * device without decoding its full-size files. See ProxyCache for where they are kept.
+ *
+ * Proxies of YUV_420_888 frames are made straight from the plane ByteBuffers of the Image, before
+ * it is let go of, by box-filter decimation: every proxy pixel is the mean of the f x f block of Y
+ * samples, and of the chroma samples, it covers, for a whole factor f bringing the frame within the
+ * maximum size. They are converted to RGB with the full-range (JFIF) BT.601 matrix cameras use.
+ * Proxies of RAW_SENSOR frames average each color of the CFA over the block, map the samples from
+ * the black to the white level, and apply a plain 1/2.2 gamma, so they show exposure and framing
+ * rather than true color.
+ *
+ * JPEG frames carry a small thumbnail of their own (see JpegThumbnail), which is decoded on the
+ * device, so proxies can also be made from given pixels.
+ *
+ * The pixels are packed 0xAARRGGBB ints, as android.graphics.Bitmap takes them. On disk a proxy is
+ * big-endian: magic "DPRX" | int version | int width | int height | width x height RGB byte triples.
+ */
+
+package com.devcam.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+public final class ProxyFrame {
+
+    public static final int MAGIC = 0x44505258; // "DPRX"
+    public static final int VERSION = 1;
+
+    // Default largest width or height of a proxy, in pixels.
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mPixels;
+
+
+    // - - - Constructor - - -
+    public ProxyFrame(int width, int height, int[] pixels){
+        if (pixels.length<width*height){
+            throw new IllegalArgumentException("Fewer pixels than " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mPixels = pixels;
+    }
+
+
+    // - - Setters and Getters - -
+    public int getWidth(){
+        return mWidth;
+    }
+    public int getHeight(){
+        return mHeight;
+    }
+    /* The pixels, row after row, as 0xAARRGGBB. Not a copy. */
+    public int[] getPixels(){
+        return mPixels;
+    }
+    /* Roughly the bytes the proxy takes up in memory. */
+    public int getByteCount(){
+        return 4*mPixels.length + 32;
+    }
+
+
+    /* static int decimationFactor(int, int, int)
+     *
+     * The smallest whole factor bringing a frame of the given size within maxSize on both sides.
+     */
+    public static int decimationFactor(int width, int height, int maxSize){
+        int longest = Math.max(width, height);
+        return Math.max(1, (longest + maxSize - 1)/maxSize);
+    }
+
+
+    /* static ProxyFrame fromYuv(ByteBuffer[], int[], int[], int, int, int)
+     *
+     * Make the proxy of a YUV_420_888 frame from its planes and their strides, as given by an
+     * android.media.Image. The buffers are not moved. Samples missing at the ends of the planes
+     * are taken to be the last ones present.
+     */
+    public static ProxyFrame fromYuv(ByteBuffer[] planes, int[] pixelStrides, int[] rowStrides,
+                                     int width, int height, int maxSize){
+        int f = decimationFactor(width, height, maxSize);
+        int pw = Math.max(1, width/f);
+        int ph = Math.max(1, height/f);
+        int[] ySums = new int[pw];
+        int[] uSums = new int[pw];
+        int[] vSums = new int[pw];
+        int[] pixels = new int[pw*ph];
+
+        for (int py=0; py<ph; py++){
+            Arrays.fill(ySums, 0);
+            Arrays.fill(uSums, 0);
+            Arrays.fill(vSums, 0);
+            int y0 = py*f;
+            int y1 = Math.min(height, y0 + f);
+            for (int y=y0; y<y1; y++){
+                sumRow(planes[0], y*rowStrides[0], pixelStrides[0], f, pw*f, ySums);
+            }
+            // The chroma rows and columns the block covers, half as many, at least one.
+            int cf = Math.max(1, f/2);
+            int cy0 = y0/2;
+            int cy1 = Math.max(cy0 + 1, y1/2);
+            for (int cy=cy0; cy<cy1; cy++){
+                sumChromaRow(planes[1], cy*rowStrides[1], pixelStrides[1], f, pw, uSums);
+                sumChromaRow(planes[2], cy*rowStrides[2], pixelStrides[2], f, pw, vSums);
+            }
+            int yCount = f*(y1 - y0);
+            int cCount = cf*(cy1 - cy0);
+            for (int px=0; px<pw; px++){
+                pixels[py*pw + px] = yuvToArgb(ySums[px]/(float) yCount,
+                        uSums[px]/(float) cCount - 128f, vSums[px]/(float) cCount - 128f);
+            }
+        }
+        return new ProxyFrame(pw, ph, pixels);
+    }
+
+    private static void sumRow(ByteBuffer plane, int rowStart, int pixelStride, int f, int count, int[] sums){
+        int start = plane.position();
+        int last = plane.limit() - 1;
+        int at = start + rowStart;
+        for (int x=0; x<count; x++, at+=pixelStride){
+            sums[x/f] += plane.get(Math.min(at, last)) & 0xFF;
+        }
+    }
+
+    private static void sumChromaRow(ByteBuffer plane, int rowStart, int pixelStride, int f, int pw, int[] sums){
+        int start = plane.position();
+        int last = plane.limit() - 1;
+        int cf = Math.max(1, f/2);
+        for (int px=0; px<pw; px++){
+            int cx0 = (px*f)/2;
+            int at = start + rowStart + cx0*pixelStride;
+            int sum = 0;
+            for (int i=0; i<cf; i++, at+=pixelStride){
+                sum += plane.get(Math.min(at, last)) & 0xFF;
+            }
+            sums[px] += sum;
+        }
+    }
+
+    static int yuvToArgb(float y, float u, float v){
+        int r = clamp(y + 1.402f*v);
+        int g = clamp(y - 0.344136f*u - 0.714136f*v);
+        int b = clamp(y + 1.772f*u);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+
+    /* static ProxyFrame fromRaw(ByteBuffer, int, int, int, int, int, int, int, int)
+     *
+     * Make the proxy of a RAW_SENSOR frame of 16-bit little-endian samples, given its plane and
+     * strides, the CFA arrangement as in PackedRawFormat (0 = RGGB, 1 = GRBG, 2 = GBRG, 3 = BGGR,
+     * others shown in gray), and the black and white levels. The buffer is not moved.
+     */
+    public static ProxyFrame fromRaw(ByteBuffer plane, int pixelStride, int rowStride, int width, int height,
+                                     int cfaArrangement, int blackLevel, int whiteLevel, int maxSize){
+        // Blocks are made of whole 2x2 CFA cells.
+        int f = decimationFactor(width, height, maxSize);
+        f += f%2;
+        int pw = Math.max(1, width/f);
+        int ph = Math.max(1, height/f);
+        ByteBuffer samples = (plane.order()==ByteOrder.LITTLE_ENDIAN) ? plane
+                : plane.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = plane.position();
+        int last = plane.limit() - 2;
+        // Which color, 0 R, 1 G, 2 B, each position of the 2x2 cell is.
+        int[] cell;
+        switch (cfaArrangement){
+            case 0: cell = new int[]{0, 1, 1, 2}; break;
+            case 1: cell = new int[]{1, 0, 2, 1}; break;
+            case 2: cell = new int[]{1, 2, 0, 1}; break;
+            case 3: cell = new int[]{2, 1, 1, 0}; break;
+            default: cell = null;
+        }
+        float range = Math.max(1, whiteLevel - blackLevel);
+        long[] sums = new long[3*pw];
+        int[] pixels = new int[pw*ph];
+
+        for (int py=0; py<ph; py++){
+            Arrays.fill(sums, 0);
+            for (int y=py*f; y<Math.min(height, (py+1)*f); y++){
+                int at = start + y*rowStride;
+                for (int x=0; x<pw*f; x++, at+=pixelStride){
+                    int color = (cell==null) ? 1 : cell[2*(y%2) + x%2];
+                    sums[3*(x/f) + color] += samples.getShort(Math.min(at, last)) & 0xFFFF;
+                }
+            }
+            // A block of whole cells holds a quarter R, half G and a quarter B samples.
+            int rows = Math.min(height, (py+1)*f) - py*f;
+            float n = f*rows;
+            for (int px=0; px<pw; px++){
+                int argb;
+                if (cell==null){
+                    int g = gamma((sums[3*px + 1]/n - blackLevel)/range);
+                    argb = 0xFF000000 | (g << 16) | (g << 8) | g;
+                } else {
+                    int r = gamma((sums[3*px]/(n/4) - blackLevel)/range);
+                    int g = gamma((sums[3*px + 1]/(n/2) - blackLevel)/range);
+                    int b = gamma((sums[3*px + 2]/(n/4) - blackLevel)/range);
+                    argb = 0xFF000000 | (r << 16) | (g << 8) | b;
+                }
+                pixels[py*pw + px] = argb;
+            }
+        }
+        return new ProxyFrame(pw, ph, pixels);
+    }
+
+    private static int gamma(float linear){
+        return clamp(255f*(float) Math.pow(Math.max(0f, Math.min(1f, linear)), 1/2.2));
+    }
+
+    private static int clamp(float v){
+        int i = Math.round(v);
+        return (i<0) ? 0 : ((i>255) ? 255 : i);
+    }
+
+
+    /* static ProxyFrame fromPixels(int[], int, int, int)
+     *
+     * Make a proxy from already decoded 0xAARRGGBB pixels, e.g. of a JPEG thumbnail, box-filtering
+     * them down if they are larger than maxSize.
+     */
+    public static ProxyFrame fromPixels(int[] pixels, int width, int height, int maxSize){
+        int f = decimationFactor(width, height, maxSize);
+        if (f==1){
+            return new ProxyFrame(width, height, pixels);
+        }
+        int pw = Math.max(1, width/f);
+        int ph = Math.max(1, height/f);
+        int[] out = new int[pw*ph];
+        for (int py=0; py<ph; py++){
+            for (int px=0; px<pw; px++){
+                int r = 0, g = 0, b = 0, n = 0;
+                for (int y=py*f; y<Math.min(height, (py+1)*f); y++){
+                    for (int x=px*f; x<(px+1)*f; x++){
+                        int c = pixels[y*width + x];
+                        r += (c >> 16) & 0xFF;
+                        g += (c >> 8) & 0xFF;
+                        b += c & 0xFF;
+                        n++;
+                    }
+                }
+                out[py*pw + px] = 0xFF000000 | ((r/n) << 16) | ((g/n) << 8) | (b/n);
+            }
+        }
+        return new ProxyFrame(pw, ph, out);
+    }
+
+
+    /* void write(OutputStream)
+     *
+     * Write the proxy to the stream, which is not closed.
+     */
+    public void write(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(mWidth);
+        out.writeInt(mHeight);
+        byte[] rgb = new byte[3*mWidth];
+        for (int y=0; y<mHeight; y++){
+            for (int x=0; x<mWidth; x++){
+                int c = mPixels[y*mWidth + x];
+                rgb[3*x] = (byte) (c >> 16);
+                rgb[3*x + 1] = (byte) (c >> 8);
+                rgb[3*x + 2] = (byte) c;
+            }
+            out.write(rgb);
+        }
+        out.flush();
+    }
+
+
+    /* static ProxyFrame read(InputStream)
+     *
+     * Read a proxy written by write(). The stream is not closed.
+     */
+    public static ProxyFrame read(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        if (in.readInt()!=MAGIC){
+            throw new IOException("Not a devCam proxy.");
+        }
+        int version = in.readInt();
+        if (version!=VERSION){
+            throw new IOException("Unsupported proxy version " + version);
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        if (width<=0 || height<=0 || (long) width*height>(1<<24)){
+            throw new IOException("Corrupt proxy header.");
+        }
+        int[] pixels = new int[width*height];
+        byte[] rgb = new byte[3*width];
+        for (int y=0; y<height; y++){
+            in.readFully(rgb);
+            for (int x=0; x<width; x++){
+                pixels[y*width + x] = 0xFF000000 | ((rgb[3*x] & 0xFF) << 16)
+                        | ((rgb[3*x + 1] & 0xFF) << 8) | (rgb[3*x + 2] & 0xFF);
+            }
+        }
+        return new ProxyFrame(width, height, pixels);
+    }
+
+}
@@ -0,0 +1,67 @@
+/* VarianceFormat class, describing devCam's .var files, which hold the per-sample variance over a
+ * burst merged on the device (see FrameAccumulator), next to the merged frame itself.
+ *
+ * All values are big-endian:
+ *   Header:   magic "DVAR" | int version | int number of frames | int number of planes
+ *             | int width, int height of each plane
+ *   Planes:   width x height floats per plane, row after row, in the order of the header
+ *
+ * The planes are those of the merged frame: one for RAW_SENSOR, Y, U and V for YUV_420_888. The
+ * variance is of the samples as they were in the frames, with the n-1 denominator.
+ */
+
+package com.devcam.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+public final class VarianceFormat {
+
+    public static final String EXTENSION = ".var";
+
+    public static final int MAGIC = 0x44564152; // "DVAR"
+    public static final int VERSION = 1;
+
+    private VarianceFormat(){}
+
+
+    /* static float[][] read(File)
+     *
+     * The variance planes of a .var file, each row after row.
+     */
+    public static float[][] read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256*1024));
+        try {
+            if (in.readInt()!=MAGIC){
+                throw new IOException("Not a devCam .var file.");
+            }
+            int version = in.readInt();
+            if (version!=VERSION){
+                throw new IOException("Unsupported .var version " + version);
+            }
+            in.readInt(); // number of frames
+            int numPlanes = in.readInt();
+            if (numPlanes<0 || numPlanes>16){
+                throw new IOException("Corrupt .var header.");
+            }
+            int[] sizes = new int[numPlanes];
+            for (int p=0; p<numPlanes; p++){
+                sizes[p] = in.readInt()*in.readInt();
+            }
+            float[][] planes = new float[numPlanes][];
+            for (int p=0; p<numPlanes; p++){
+                planes[p] = new float[sizes[p]];
+                for (int i=0; i<sizes[p]; i++){
+                    planes[p][i] = in.readFloat();
+                }
+            }
+            return planes;
+        } finally {
+            in.close();
+        }
+    }
+
+}
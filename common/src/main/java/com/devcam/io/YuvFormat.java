@@ -0,0 +1,58 @@
+/* YuvFormat class, describing devCam's .yuv file format for YUV_420_888 frames.
+ *
+ * Version 1 files, written by earlier versions of devCam, have a 16-byte header of ints: width,
+ * height, U/V pixel stride, U/V row stride. The raw Y, U and V plane buffers follow, including any
+ * row padding. The Y row stride and the length of each plane are not recorded, and readers have to
+ * guess which planes lost their last pixel from the total number of bytes.
+ *
+ * Version 2 files describe themselves completely. All values are big-endian ints:
+ *   Header (56 bytes):  magic "DYUV" | version | width | height | flags
+ *                       | pixel stride, row stride, byte count of the Y plane
+ *                       | pixel stride, row stride, byte count of the U plane
+ *                       | pixel stride, row stride, byte count of the V plane
+ *   Planes:             Y, U and V plane bytes, each exactly as long as its byte count.
+ *
+ * Sample (col,row) of a plane is at byte row*rowStride + col*pixelStride of the plane, if that is
+ * less than the byte count. The Y plane is width x height samples, the U and V planes are half of
+ * that in each direction, rounded up.
+ *
+ * The flags record how the planes were rearranged on writing:
+ *   FLAG_COMPACT_ROWS   - the padding at the end of each row was dropped, so the row stride is just
+ *                         as long as the row's samples.
+ *   FLAG_PLANAR_CHROMA  - the U and V samples were de-interleaved, so the chroma planes have pixel
+ *                         stride 1 and no row padding.
+ *
+ * A version 1 file can't be mistaken for version 2, since its first int, the width, would have to
+ * be over a billion pixels.
+ */
+
+package com.devcam.io;
+
+public final class YuvFormat {
+
+    public static final int MAGIC = 0x44595556; // "DYUV"
+    public static final int VERSION = 2;
+
+    public static final int V1_HEADER_SIZE = 16;
+    public static final int HEADER_SIZE = 56;
+
+    public static final int FLAG_COMPACT_ROWS = 1;
+    public static final int FLAG_PLANAR_CHROMA = 2;
+
+    public static final int NUM_PLANES = 3;
+
+    private YuvFormat(){}
+
+
+    /* int planeWidth(int, int), int planeHeight(int, int)
+     *
+     * Number of samples across and down plane p of an image of the given size.
+     */
+    public static int planeWidth(int p, int width){
+        return (p==0)? width : (width+1)/2;
+    }
+    public static int planeHeight(int p, int height){
+        return (p==0)? height : (height+1)/2;
+    }
+
+}
@@ -0,0 +1,54 @@
+/* YuvFrame class, holding the three planes of a YUV_420_888 frame as plain, unpadded sample arrays,
+ * as read by YuvReader.
+ *
+ * Sample (col,row) of plane p is at planes[p][row*planeWidth(p) + col]. The U and V planes are half
+ * the size of the Y plane in each direction, rounded up.
+ */
+
+package com.devcam.io;
+
+public final class YuvFrame {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[][] mPlanes;
+
+
+    // - - - Constructor - - -
+    public YuvFrame(int width, int height){
+        mWidth = width;
+        mHeight = height;
+        mPlanes = new byte[YuvFormat.NUM_PLANES][];
+        for (int p=0; p<YuvFormat.NUM_PLANES; p++){
+            mPlanes[p] = new byte[planeWidth(p)*planeHeight(p)];
+        }
+    }
+
+
+    // - - Setters and Getters - -
+    public int getWidth(){
+        return mWidth;
+    }
+    public int getHeight(){
+        return mHeight;
+    }
+    public int planeWidth(int p){
+        return YuvFormat.planeWidth(p, mWidth);
+    }
+    public int planeHeight(int p){
+        return YuvFormat.planeHeight(p, mHeight);
+    }
+    public byte[] getPlane(int p){
+        return mPlanes[p];
+    }
+    public byte[] getY(){
+        return mPlanes[0];
+    }
+    public byte[] getU(){
+        return mPlanes[1];
+    }
+    public byte[] getV(){
+        return mPlanes[2];
+    }
+
+}
@@ -0,0 +1,223 @@
+/* YuvReader class, for reading devCam .yuv files of either version, see YuvFormat.
+ *
+ * The header is read when the reader is created. The planes then follow one after the other with
+ * readPlane(), each copied out of the stream one row at a time, so a frame never has to be held in
+ * its padded, interleaved form.
+ *
+ * Samples that a plane is missing at its end, as YUV_420_888 does not guarantee the last pixel, are
+ * filled in by repeating the last sample present.
+ *
+ * For version 1 files the plane lengths are not recorded, and are worked out from the total length
+ * of the file the same way yuvRead.m does, which needs the length to be known. Without it all planes
+ * are assumed to be complete.
+ */
+
+package com.devcam.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class YuvReader {
+
+    private final DataInputStream mInput;
+
+    private int mVersion;
+    private int mWidth;
+    private int mHeight;
+    private int mFlags;
+    private final int[] mPixelStrides = new int[YuvFormat.NUM_PLANES];
+    private final int[] mRowStrides = new int[YuvFormat.NUM_PLANES];
+    private final int[] mByteCounts = new int[YuvFormat.NUM_PLANES];
+
+    private int mNextPlane = 0;
+    private byte[] mRowBuffer = new byte[0];
+
+
+    // - - - Constructors - - -
+    public YuvReader(InputStream input) throws IOException {
+        this(input, -1);
+    }
+
+    /**
+     * @param input Stream positioned at the start of the .yuv data.
+     * @param length Total number of bytes of the .yuv data, or -1 if not known. Only used for
+     *               version 1 files.
+     */
+    public YuvReader(InputStream input, long length) throws IOException {
+        mInput = new DataInputStream(input);
+        readHeader(length);
+    }
+
+
+    private void readHeader(long length) throws IOException {
+        int first = mInput.readInt();
+        if (first==YuvFormat.MAGIC){
+            mVersion = mInput.readInt();
+            if (mVersion!=YuvFormat.VERSION){
+                throw new IOException("Unsupported .yuv version " + mVersion);
+            }
+            mWidth = mInput.readInt();
+            mHeight = mInput.readInt();
+            mFlags = mInput.readInt();
+            for (int p=0; p<YuvFormat.NUM_PLANES; p++){
+                mPixelStrides[p] = mInput.readInt();
+                mRowStrides[p] = mInput.readInt();
+                mByteCounts[p] = mInput.readInt();
+            }
+        } else {
+            mVersion = 1;
+            mWidth = first;
+            mHeight = mInput.readInt();
+            mFlags = 0;
+            int uvPixelStride = mInput.readInt();
+            int uvRowStride = mInput.readInt();
+            mPixelStrides[0] = 1;
+            mRowStrides[0] = mWidth;
+            mPixelStrides[1] = mPixelStrides[2] = uvPixelStride;
+            mRowStrides[1] = mRowStrides[2] = uvRowStride;
+
+            // Any bytes short of full planes are taken to be the last sample of Y, then of both
+            // U and V, as in yuvRead.m.
+            int yFull = mWidth*mHeight;
+            int uvFull = uvRowStride*YuvFormat.planeHeight(1, mHeight);
+            long data = (length<0)? yFull + 2L*uvFull : length - YuvFormat.V1_HEADER_SIZE;
+            long deficit = Math.max(0, yFull + 2L*uvFull - data);
+            int yShort = (int) (deficit%2);
+            int uvShort = (int) ((deficit - yShort)/2);
+            mByteCounts[0] = yFull - yShort;
+            mByteCounts[1] = uvFull - uvShort;
+            mByteCounts[2] = (int) (data - mByteCounts[0] - mByteCounts[1]);
+        }
+        for (int p=0; p<YuvFormat.NUM_PLANES; p++){
+            if (mByteCounts[p]<0 || mPixelStrides[p]<1 || mRowStrides[p]<0){
+                throw new IOException("Corrupt .yuv header.");
+            }
+        }
+    }
+
+
+    // - - Setters and Getters - -
+    public int getVersion(){
+        return mVersion;
+    }
+    public int getWidth(){
+        return mWidth;
+    }
+    public int getHeight(){
+        return mHeight;
+    }
+    public int getFlags(){
+        return mFlags;
+    }
+    public int getPixelStride(int p){
+        return mPixelStrides[p];
+    }
+    public int getRowStride(int p){
+        return mRowStrides[p];
+    }
+    public int getByteCount(int p){
+        return mByteCounts[p];
+    }
+
+
+    /* int readPlane(byte[])
+     *
+     * Read the next plane from the stream into the given array, as planeWidth x planeHeight samples
+     * without padding. Returns which plane was read: 0 = Y, 1 = U, 2 = V.
+     */
+    public int readPlane(byte[] samples) throws IOException {
+        if (mNextPlane>=YuvFormat.NUM_PLANES){
+            throw new IllegalStateException("All planes have been read.");
+        }
+        int p = mNextPlane++;
+        int cols = YuvFormat.planeWidth(p, mWidth);
+        int rows = YuvFormat.planeHeight(p, mHeight);
+        if (samples.length<cols*rows){
+            throw new IllegalArgumentException("Sample array too small for plane " + p);
+        }
+        int pixelStride = mPixelStrides[p];
+        int rowStride = mRowStrides[p];
+        int count = mByteCounts[p];
+        int rowUsed = (cols-1)*pixelStride + 1;
+        if (rows>1 && rowStride<rowUsed){
+            throw new IOException("Rows of plane " + p + " overlap.");
+        }
+        byte[] row = rowBuffer(rowUsed);
+
+        int position = 0; // within the plane
+        byte last = 0;
+        for (int r=0; r<rows; r++){
+            int rowStart = r*rowStride;
+            int n = Math.max(0, Math.min(rowUsed, count - rowStart));
+            if (n>0){
+                skipFully(rowStart - position);
+                mInput.readFully(row, 0, n);
+                position = rowStart + n;
+            }
+            int out = r*cols;
+            for (int c=0; c<cols; c++){
+                int offset = c*pixelStride;
+                if (offset<n){
+                    last = row[offset];
+                }
+                samples[out + c] = last;
+            }
+        }
+        skipFully(count - position);
+        return p;
+    }
+
+
+    /* YuvFrame readFrame()
+     *
+     * Read all planes that are left into a new YuvFrame.
+     */
+    public YuvFrame readFrame() throws IOException {
+        YuvFrame frame = new YuvFrame(mWidth, mHeight);
+        while (mNextPlane<YuvFormat.NUM_PLANES){
+            readPlane(frame.getPlane(mNextPlane));
+        }
+        return frame;
+    }
+
+
+    /* static YuvFrame read(File)
+     *
+     * Read a whole .yuv file.
+     */
+    public static YuvFrame read(File file) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(file), 64*1024);
+        try {
+            return new YuvReader(input, file.length()).readFrame();
+        } finally {
+            input.close();
+        }
+    }
+
+
+    private void skipFully(long n) throws IOException {
+        while (n>0){
+            long skipped = mInput.skip(n);
+            if (skipped<=0){
+                if (mInput.read()<0){
+                    throw new EOFException("Unexpected end of .yuv data.");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private byte[] rowBuffer(int length){
+        if (mRowBuffer.length<length){
+            mRowBuffer = new byte[length];
+        }
+        return mRowBuffer;
+    }
+
+}
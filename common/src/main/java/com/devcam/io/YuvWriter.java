@@ -0,0 +1,202 @@
+/* YuvWriter class, for writing YUV_420_888 frames as version 2 .yuv files, see YuvFormat.
+ *
+ * The planes are given as the ByteBuffers of an android.media.Image, with their strides, so the
+ * writer does not depend on Android itself. Planes are copied to the stream one row at a time
+ * through a single reused row buffer, never as a whole, and the given ByteBuffers are not moved.
+ *
+ * If given a FrameStatistics, the samples of the Y plane are counted into it from the row buffer as
+ * they are written.
+ */
+
+package com.devcam.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+public class YuvWriter {
+
+    private final int mFlags;
+    private byte[] mRowBuffer = new byte[0];
+    private FrameStatistics mStatistics;
+
+
+    // - - - Constructor - - -
+    /**
+     * @param flags YuvFormat.FLAG_* values for how to rearrange the planes, or 0 to write them as
+     *              they are.
+     */
+    public YuvWriter(int flags){
+        mFlags = flags;
+    }
+
+    public int getFlags(){
+        return mFlags;
+    }
+
+    /* Gather the statistics of the Y plane of the frames written into the given object. */
+    public void setStatistics(FrameStatistics statistics){
+        mStatistics = statistics;
+    }
+
+
+    /* void write(OutputStream, int, int, ByteBuffer[], int[], int[])
+     *
+     * Write one frame to the stream, with the header describing its planes. The stream is not
+     * closed.
+     */
+    public void write(OutputStream output, int width, int height,
+                      ByteBuffer[] planes, int[] pixelStrides, int[] rowStrides) throws IOException {
+        if (planes.length!=YuvFormat.NUM_PLANES){
+            throw new IllegalArgumentException("YUV_420_888 frames have " + YuvFormat.NUM_PLANES + " planes.");
+        }
+
+        PlaneLayout[] layouts = new PlaneLayout[YuvFormat.NUM_PLANES];
+        for (int p=0; p<YuvFormat.NUM_PLANES; p++){
+            layouts[p] = new PlaneLayout(p, width, height, planes[p].remaining(),
+                    pixelStrides[p], rowStrides[p]);
+        }
+
+        DataOutputStream header = new DataOutputStream(output);
+        header.writeInt(YuvFormat.MAGIC);
+        header.writeInt(YuvFormat.VERSION);
+        header.writeInt(width);
+        header.writeInt(height);
+        header.writeInt(mFlags);
+        for (PlaneLayout layout : layouts){
+            header.writeInt(layout.outPixelStride);
+            header.writeInt(layout.outRowStride);
+            header.writeInt(layout.outByteCount);
+        }
+        header.flush();
+
+        for (int p=0; p<YuvFormat.NUM_PLANES; p++){
+            writePlane(output, planes[p].duplicate(), layouts[p], (p==0) ? mStatistics : null);
+        }
+    }
+
+
+    private void writePlane(OutputStream output, ByteBuffer plane, PlaneLayout layout,
+                            FrameStatistics statistics) throws IOException {
+        int start = plane.position();
+        int available = plane.remaining();
+
+        // Nothing to rearrange, so copy the buffer straight through.
+        if (layout.outPixelStride==layout.pixelStride && layout.outRowStride==layout.rowStride
+                && layout.outByteCount==available){
+            // One row at a time, as the reused buffer may be longer than a row of this frame.
+            int rowLength = Math.max(1, layout.rowStride);
+            byte[] row = rowBuffer(rowLength);
+            while (plane.hasRemaining()){
+                int n = Math.min(rowLength, plane.remaining());
+                plane.get(row, 0, n);
+                output.write(row, 0, n);
+                if (statistics!=null){
+                    countSamples(statistics, row, n, layout.cols, layout.pixelStride);
+                }
+            }
+            return;
+        }
+
+        int written = 0;
+        for (int r=0; r<layout.rows && written<layout.outByteCount; r++){
+            int rowStart = r*layout.rowStride;
+            if (layout.outPixelStride==layout.pixelStride){
+                // Only the padding goes, so the used part of the row is copied at once.
+                int n = Math.min(Math.min(layout.outRowStride, available - rowStart),
+                        layout.outByteCount - written);
+                if (n<=0){
+                    break;
+                }
+                byte[] row = rowBuffer(n);
+                plane.position(start + rowStart);
+                plane.get(row, 0, n);
+                output.write(row, 0, n);
+                written += n;
+                if (statistics!=null){
+                    countSamples(statistics, row, n, layout.cols, layout.pixelStride);
+                }
+            } else {
+                // Pick the samples out of the interleaved row.
+                byte[] row = rowBuffer(layout.cols);
+                int n = 0;
+                for (int c=0; c<layout.cols && written+n<layout.outByteCount; c++){
+                    int offset = rowStart + c*layout.pixelStride;
+                    if (offset>=available){
+                        break;
+                    }
+                    row[n++] = plane.get(start + offset);
+                }
+                output.write(row, 0, n);
+                written += n;
+                if (statistics!=null){
+                    statistics.addByteSamples(row, 0, n, 1);
+                }
+            }
+        }
+        // Keep to the byte count in the header, should the buffer not hold the rows it claims to.
+        while (written<layout.outByteCount){
+            output.write(0);
+            written++;
+        }
+    }
+
+
+    /* Count the samples at the start of a row of n bytes. */
+    private static void countSamples(FrameStatistics statistics, byte[] row, int n, int cols, int pixelStride){
+        if (n>0){
+            statistics.addByteSamples(row, 0, Math.min(cols, (n-1)/pixelStride + 1), pixelStride);
+        }
+    }
+
+    private byte[] rowBuffer(int length){
+        if (mRowBuffer.length<length){
+            mRowBuffer = new byte[length];
+        }
+        return mRowBuffer;
+    }
+
+
+
+    /* Strides and length of a plane as given, and as it will be written.
+     */
+    private class PlaneLayout {
+        final int cols;
+        final int rows;
+        final int pixelStride;
+        final int rowStride;
+        final int outPixelStride;
+        final int outRowStride;
+        final int outByteCount;
+
+        PlaneLayout(int p, int width, int height, int available, int pixelStride, int rowStride){
+            this.cols = YuvFormat.planeWidth(p, width);
+            this.rows = YuvFormat.planeHeight(p, height);
+            this.pixelStride = pixelStride;
+            this.rowStride = rowStride;
+
+            boolean deinterleave = (p>0) && (mFlags & YuvFormat.FLAG_PLANAR_CHROMA)!=0;
+            boolean compact = deinterleave || (mFlags & YuvFormat.FLAG_COMPACT_ROWS)!=0;
+            outPixelStride = deinterleave? 1 : pixelStride;
+            if (!compact){
+                outRowStride = rowStride;
+                outByteCount = available;
+                return;
+            }
+
+            // The used part of a row ends with its last sample.
+            outRowStride = (cols-1)*outPixelStride + 1;
+            if (rows==0 || available<=0){
+                outByteCount = 0;
+                return;
+            }
+            // Every row but the last is whole. The last is cut short wherever the buffer ends.
+            int lastRowStart = (rows-1)*rowStride;
+            int lastRowBytes = Math.max(0, Math.min((cols-1)*pixelStride + 1, available - lastRowStart));
+            int lastRowOut = deinterleave? (lastRowBytes + pixelStride - 1)/pixelStride : lastRowBytes;
+            outByteCount = (rows-1)*outRowStride + lastRowOut;
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/* Round trips of frames through BurstContainerWriter and BurstContainerReader.
+ */
+
+package com.devcam.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BurstContainerTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+
+    @Test
+    public void framesReadBack() throws IOException {
+        File file = mFolder.newFile("design" + BurstContainer.EXTENSION);
+        byte[][] frames = {bytes(1000, 1), bytes(1, 2), bytes(70000, 3)};
+        int[] formats = {BurstContainer.FORMAT_YUV_420_888, BurstContainer.FORMAT_JPEG,
+                BurstContainer.FORMAT_PACKED_RAW};
+        long[] timestamps = {1000000001L, 1000000002L, Long.MAX_VALUE};
+
+        // Preallocated for more than is written, so the file must be cut back on closing.
+        BurstContainerWriter writer = new BurstContainerWriter(file, 1 << 20);
+        writer.appendFrame(formats[0], timestamps[0], ByteBuffer.wrap(frames[0]), metadata(0));
+        OutputStream stream = writer.beginFrame(formats[1], timestamps[1]);
+        stream.write(frames[1]);
+        writer.endFrame(metadata(1));
+        stream = writer.beginFrame(formats[2], timestamps[2]);
+        stream.write(frames[2], 0, 5000);
+        stream.write(frames[2], 5000, frames[2].length - 5000);
+        writer.endFrame(null);
+        writer.close();
+
+        BurstContainerReader reader = new BurstContainerReader(file);
+        try {
+            assertEquals(frames.length, reader.getFrameCount());
+            for (int i=0; i<frames.length; i++){
+                BurstContainer.Entry entry = reader.getEntry(i);
+                assertEquals(formats[i], entry.getFormat());
+                assertEquals(timestamps[i], entry.getTimestamp());
+                assertEquals(frames[i].length, entry.getLength());
+                ByteBuffer frame = reader.mapFrame(i);
+                byte[] read = new byte[frame.remaining()];
+                frame.get(read);
+                assertArrayEquals(frames[i], read);
+            }
+            assertEquals(new String(metadata(0), UTF8), reader.readMetadata(0));
+            assertEquals(new String(metadata(1), UTF8), reader.readMetadata(1));
+            assertEquals("", reader.readMetadata(2));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void abortedFrameIsDropped() throws IOException {
+        File file = mFolder.newFile("aborted" + BurstContainer.EXTENSION);
+        byte[] kept = bytes(300, 4);
+
+        BurstContainerWriter writer = new BurstContainerWriter(file, 0);
+        writer.beginFrame(BurstContainer.FORMAT_JPEG, 1).write(bytes(5000, 5));
+        writer.abortFrame();
+        writer.appendFrame(BurstContainer.FORMAT_JPEG, 2, ByteBuffer.wrap(kept), metadata(2));
+        writer.close();
+
+        BurstContainerReader reader = new BurstContainerReader(file);
+        try {
+            assertEquals(1, reader.getFrameCount());
+            assertEquals(2, reader.getEntry(0).getTimestamp());
+            File extracted = mFolder.newFile("extracted.jpg");
+            reader.extractFrame(0, extracted);
+            assertArrayEquals(kept, readFile(extracted));
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    private static byte[] bytes(int length, int seed){
+        byte[] bytes = new byte[length];
+        for (int i=0; i<length; i++){
+            bytes[i] = (byte) (i*31 + seed*17 + (i >> 8));
+        }
+        return bytes;
+    }
+
+    private static byte[] metadata(int i){
+        return ("{\"frame\":" + i + ",\"exposure\":\"1/60 s\"}").getBytes(UTF8);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream input = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n<bytes.length){
+                int read = input.read(bytes, n, bytes.length - n);
+                if (read<0){
+                    break;
+                }
+                n += read;
+            }
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+
+}
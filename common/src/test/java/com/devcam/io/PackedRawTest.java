@@ -0,0 +1,116 @@
+/* Round trips of RAW_SENSOR frames through PackedRawWriter and PackedRawReader, at the bit depths
+ * sensors come in and at widths that do and don't end on a whole 64-bit word.
+ */
+
+package com.devcam.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+public class PackedRawTest {
+
+    private static final int[] WHITE_LEVELS = {255, 1023, 4095, 16383, 65535};
+    private static final int[] WIDTHS = {1, 7, 64, 101};
+
+
+    @Test
+    public void samplesReadBack() throws IOException {
+        for (int whiteLevel : WHITE_LEVELS){
+            for (int width : WIDTHS){
+                roundTrip(width, 5, whiteLevel);
+            }
+        }
+    }
+
+    @Test
+    public void headerReadsBack() throws IOException {
+        PackedRawFormat.Header header = header(40, 30, 1023);
+        header.cfaArrangement = 3;
+        header.blackLevel = new int[]{64, 65, 66, 67};
+        header.referenceIlluminant1 = 21;
+        header.referenceIlluminant2 = 17;
+        header.timestamp = 123456789012345L;
+        header.neutralColorPoint = new float[]{0.5f, 1f, 0.7f};
+        header.colorCorrectionGains = new float[]{2f, 1f, 1f, 1.5f};
+        for (int i=0; i<PackedRawFormat.MATRIX_SIZE; i++){
+            header.forwardMatrix1[i] = i/10f;
+            header.calibrationTransform2[i] = -i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PackedRawWriter().write(out, header, plane(new short[40*30], 40, 40), 2, 80);
+
+        PackedRawFormat.Header read = new PackedRawReader(new ByteArrayInputStream(out.toByteArray())).getHeader();
+        assertEquals(PackedRawFormat.HEADER_SIZE + 30*PackedRawFormat.rowBytes(40, 10), out.size());
+        assertEquals(40, read.width);
+        assertEquals(30, read.height);
+        assertEquals(10, read.bitsPerSample);
+        assertEquals(1023, read.whiteLevel);
+        assertEquals(3, read.cfaArrangement);
+        assertArrayEquals(header.blackLevel, read.blackLevel);
+        assertEquals(21, read.referenceIlluminant1);
+        assertEquals(17, read.referenceIlluminant2);
+        assertEquals(header.timestamp, read.timestamp);
+        assertArrayEquals(header.neutralColorPoint, read.neutralColorPoint, 0f);
+        assertArrayEquals(header.colorCorrectionGains, read.colorCorrectionGains, 0f);
+        assertArrayEquals(header.forwardMatrix1, read.forwardMatrix1, 0f);
+        assertArrayEquals(header.calibrationTransform2, read.calibrationTransform2, 0f);
+    }
+
+    @Test
+    public void samplesAboveTheWhiteLevelAreClipped() throws IOException {
+        short[] samples = {0, 1023, 1024, (short) 0xFFFF};
+        short[] read = readBack(write(header(4, 1, 1023), samples, 4));
+        assertArrayEquals(new short[]{0, 1023, 1023, 1023}, read);
+    }
+
+
+    private static void roundTrip(int width, int height, int whiteLevel) throws IOException {
+        short[] samples = new short[width*height];
+        for (int i=0; i<samples.length; i++){
+            samples[i] = (short) ((i*2654435761L >>> 7) % (whiteLevel + 1));
+        }
+        samples[0] = (short) whiteLevel;
+        // Rows padded out, as RAW_SENSOR planes often are.
+        short[] read = readBack(write(header(width, height, whiteLevel), samples, width + 3));
+        assertArrayEquals(width + "x" + height + " up to " + whiteLevel, samples, read);
+    }
+
+    private static byte[] write(PackedRawFormat.Header header, short[] samples, int rowSamples) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PackedRawWriter().write(out, header, plane(samples, header.width, rowSamples), 2, 2*rowSamples);
+        return out.toByteArray();
+    }
+
+    private static short[] readBack(byte[] file) throws IOException {
+        return new PackedRawReader(new ByteArrayInputStream(file)).readFrame();
+    }
+
+    private static PackedRawFormat.Header header(int width, int height, int whiteLevel){
+        PackedRawFormat.Header header = new PackedRawFormat.Header();
+        header.width = width;
+        header.height = height;
+        header.whiteLevel = whiteLevel;
+        return header;
+    }
+
+    /* The samples as the little-endian plane of an Image, rowSamples to a row. */
+    private static ByteBuffer plane(short[] samples, int width, int rowSamples){
+        int height = samples.length/width;
+        ByteBuffer plane = ByteBuffer.allocate(2*rowSamples*height).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y=0; y<height; y++){
+            for (int x=0; x<width; x++){
+                plane.putShort(2*(y*rowSamples + x), samples[y*width + x]);
+            }
+        }
+        return plane;
+    }
+
+}
@@ -0,0 +1,144 @@
+/* Round trips of YUV_420_888 frames through YuvWriter and YuvReader.
+ *
+ * The frames are laid out the way camera HALs hand them over: Y rows padded out to a row stride,
+ * and U and V interleaved with pixel stride 2, each plane's buffer ending with its last sample
+ * rather than with a whole row. Every combination of flags must read back the same samples.
+ */
+
+package com.devcam.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class YuvWriterTest {
+
+    private static final int[] ALL_FLAGS = {0, YuvFormat.FLAG_COMPACT_ROWS, YuvFormat.FLAG_PLANAR_CHROMA,
+            YuvFormat.FLAG_COMPACT_ROWS | YuvFormat.FLAG_PLANAR_CHROMA};
+
+
+    @Test
+    public void paddedFrameReadsBack() throws IOException {
+        roundTrip(64, 48, 0);
+    }
+
+    @Test
+    public void compactedFramesReadBack() throws IOException {
+        for (int flags : ALL_FLAGS){
+            roundTrip(64, 48, flags);
+        }
+    }
+
+    @Test
+    public void oddSizesReadBack() throws IOException {
+        for (int flags : ALL_FLAGS){
+            roundTrip(37, 23, flags);
+            roundTrip(1, 1, flags);
+            roundTrip(3, 2, flags);
+        }
+    }
+
+    @Test
+    public void compactingDropsThePadding() throws IOException {
+        int width = 37;
+        int height = 23;
+        byte[] padded = write(new Frame(width, height), 0);
+        byte[] compact = write(new Frame(width, height), YuvFormat.FLAG_COMPACT_ROWS | YuvFormat.FLAG_PLANAR_CHROMA);
+        int chroma = YuvFormat.planeWidth(1, width)*YuvFormat.planeHeight(1, height);
+        assertEquals(YuvFormat.HEADER_SIZE + width*height + 2*chroma, compact.length);
+        assertTrue(padded.length>compact.length);
+    }
+
+    @Test
+    public void reusedWriterCountsEveryLumaSample() throws IOException {
+        // A wider frame first, so the writer's row buffer is longer than a row of the narrow one.
+        YuvWriter writer = new YuvWriter(0);
+        assertEquals(320*8, countLuma(writer, new Frame(320, 8)));
+        assertEquals(32*16, countLuma(writer, new Frame(32, 16)));
+    }
+
+    @Test
+    public void planesAreNotMoved() throws IOException {
+        Frame frame = new Frame(37, 23);
+        write(frame, YuvFormat.FLAG_COMPACT_ROWS);
+        for (ByteBuffer plane : frame.planes){
+            assertEquals(0, plane.position());
+        }
+    }
+
+
+    private static void roundTrip(int width, int height, int flags) throws IOException {
+        Frame frame = new Frame(width, height);
+        YuvReader reader = new YuvReader(new ByteArrayInputStream(write(frame, flags)));
+        assertEquals(YuvFormat.VERSION, reader.getVersion());
+        assertEquals(width, reader.getWidth());
+        assertEquals(height, reader.getHeight());
+        assertEquals(flags, reader.getFlags());
+
+        YuvFrame read = reader.readFrame();
+        for (int p=0; p<YuvFormat.NUM_PLANES; p++){
+            assertArrayEquals("plane " + p + " of " + width + "x" + height + ", flags " + flags,
+                    frame.samples[p], read.getPlane(p));
+        }
+    }
+
+    /* The number of Y samples the writer counts as it writes the frame. */
+    private static long countLuma(YuvWriter writer, Frame frame) throws IOException {
+        FrameStatistics statistics = new FrameStatistics();
+        writer.setStatistics(statistics);
+        writer.write(new ByteArrayOutputStream(), frame.width, frame.height, frame.planes,
+                frame.pixelStrides, frame.rowStrides);
+        return statistics.getCount();
+    }
+
+    private static byte[] write(Frame frame, int flags) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new YuvWriter(flags).write(out, frame.width, frame.height, frame.planes, frame.pixelStrides, frame.rowStrides);
+        return out.toByteArray();
+    }
+
+
+    /* A frame of made-up samples, both as plain arrays and as padded, strided plane buffers.
+     */
+    private static class Frame {
+        final int width;
+        final int height;
+        final byte[][] samples = new byte[YuvFormat.NUM_PLANES][];
+        final ByteBuffer[] planes = new ByteBuffer[YuvFormat.NUM_PLANES];
+        final int[] pixelStrides = {1, 2, 2};
+        final int[] rowStrides = new int[YuvFormat.NUM_PLANES];
+
+        Frame(int width, int height){
+            this.width = width;
+            this.height = height;
+            for (int p=0; p<YuvFormat.NUM_PLANES; p++){
+                int cols = YuvFormat.planeWidth(p, width);
+                int rows = YuvFormat.planeHeight(p, height);
+                rowStrides[p] = (cols*pixelStrides[p] + 15) & ~15; // padded to 16 bytes, like most HALs
+                if (rowStrides[p]==cols*pixelStrides[p]){
+                    rowStrides[p] += 16;
+                }
+                samples[p] = new byte[cols*rows];
+                byte[] buffer = new byte[(rows-1)*rowStrides[p] + (cols-1)*pixelStrides[p] + 1];
+                Arrays.fill(buffer, (byte) 0x55); // padding, never to be read back
+                for (int r=0; r<rows; r++){
+                    for (int c=0; c<cols; c++){
+                        byte v = (byte) (7*r + 13*c + 61*p);
+                        samples[p][r*cols + c] = v;
+                        buffer[r*rowStrides[p] + c*pixelStrides[p]] = v;
+                    }
+                }
+                planes[p] = ByteBuffer.wrap(buffer);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+/* AccumulationBenchmark, for measuring how fast frames are summed into a FrameAccumulator, which
+ * has to keep up with the camera for bursts to be merged on the device as they are captured.
+ *
+ *   java com.devcam.host.AccumulationBenchmark [-reps N] [-frames N]
+ *
+ * Runs on synthetic 12 MP frames laid out as a camera hands them over: a RAW_SENSOR plane of 16-bit
+ * samples with row padding, and YUV_420_888 planes with interleaved chroma. Each burst of frames is
+ * summed on 1, 2, 4... worker threads up to the number of processors, with and without summing the
+ * squares for the variance, and the time per frame and the throughput in MB/s of the frames' samples
+ * are reported. Each measurement is the best of several bursts, after warming up, and the mean and
+ * variance of the last are checked against the frames.
+ */
+
+package com.devcam.host;
+
+import com.devcam.io.FrameAccumulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class AccumulationBenchmark {
+
+    static final int WIDTH = 4000;
+    static final int HEIGHT = 3000;
+    static final int ROW_PADDING = 64; // bytes
+    static final int WARMUP_RUNS = 1;
+    static final int TILES_PER_WORKER = 4;
+
+    private final int mReps;
+    private final int mFrames;
+
+
+    // - - - Constructor - - -
+    public AccumulationBenchmark(int reps, int frames){
+        mReps = reps;
+        mFrames = frames;
+    }
+
+
+    /* A frame's planes, as an android.media.Image would give them. */
+    static class Frame {
+        final ByteBuffer[] planes;
+        final int[] pixelStrides;
+        final int[] rowStrides;
+
+        Frame(ByteBuffer[] planes, int[] pixelStrides, int[] rowStrides){
+            this.planes = planes;
+            this.pixelStrides = pixelStrides;
+            this.rowStrides = rowStrides;
+        }
+    }
+
+
+    /* static Frame syntheticRaw(long)
+     *
+     * A RAW_SENSOR frame of 10-bit samples, a gradient plus noise that differs with the seed.
+     */
+    static Frame syntheticRaw(long seed){
+        Random random = new Random(seed);
+        int rowStride = 2*WIDTH + ROW_PADDING;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride*HEIGHT).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y=0; y<HEIGHT; y++){
+            for (int x=0; x<WIDTH; x++){
+                int v = (int) (64 + 800.0*x/WIDTH + 8*random.nextGaussian());
+                buffer.putShort(y*rowStride + 2*x, (short) Math.max(0, Math.min(1023, v)));
+            }
+        }
+        return new Frame(new ByteBuffer[]{buffer}, new int[]{2}, new int[]{rowStride});
+    }
+
+
+    /* static Frame syntheticYuv(long)
+     *
+     * A YUV_420_888 frame, with the U and V planes views of one interleaved buffer, as most devices
+     * give them.
+     */
+    static Frame syntheticYuv(long seed){
+        Random random = new Random(seed);
+        int rowStride = WIDTH + ROW_PADDING;
+        ByteBuffer y = ByteBuffer.allocateDirect(rowStride*HEIGHT);
+        for (int r=0; r<HEIGHT; r++){
+            for (int x=0; x<WIDTH; x++){
+                int v = (int) (16 + 200.0*x/WIDTH + 3*random.nextGaussian());
+                y.put(r*rowStride + x, (byte) Math.max(0, Math.min(255, v)));
+            }
+        }
+        ByteBuffer uv = ByteBuffer.allocateDirect(rowStride*HEIGHT/2);
+        for (int i=0; i<uv.capacity(); i++){
+            uv.put(i, (byte) (128 + 2*random.nextGaussian()));
+        }
+        // Each of U and V is a view of the buffer one byte short of it.
+        ByteBuffer u = uv.duplicate();
+        u.limit(uv.capacity() - 1);
+        ByteBuffer v = uv.duplicate();
+        v.position(1);
+        v = v.slice();
+        return new Frame(new ByteBuffer[]{y, u.slice(), v}, new int[]{1, 2, 2},
+                new int[]{rowStride, rowStride, rowStride});
+    }
+
+
+    /* void run(String, Frame[], int[], int[], int)
+     *
+     * Measure and print the figures for summing the frames, over and over, into accumulators for
+     * planes of the given sizes.
+     */
+    public void run(String name, Frame[] frames, int[] widths, int[] heights, int bytesPerSample) throws IOException {
+        long samples = 0;
+        for (int p=0; p<widths.length; p++){
+            samples += (long) widths[p]*heights[p];
+        }
+        double mb = samples*bytesPerSample/(1024.0*1024.0);
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int workers=1; ; workers=Math.min(2*workers, processors)){
+            for (boolean variance : new boolean[]{false, true}){
+                ExecutorService pool = Executors.newFixedThreadPool(workers);
+                try {
+                    long best = Long.MAX_VALUE;
+                    FrameAccumulator accumulator = null;
+                    for (int r=0; r<WARMUP_RUNS+mReps; r++){
+                        accumulator = new FrameAccumulator(widths, heights, bytesPerSample, variance,
+                                pool, TILES_PER_WORKER*workers);
+                        long t0 = System.nanoTime();
+                        for (int i=0; i<mFrames; i++){
+                            Frame frame = frames[i%frames.length];
+                            accumulator.add(frame.planes, frame.pixelStrides, frame.rowStrides);
+                        }
+                        long t1 = System.nanoTime();
+                        if (r>=WARMUP_RUNS){
+                            best = Math.min(best, t1-t0);
+                        }
+                    }
+                    check(name, accumulator, frames, bytesPerSample);
+
+                    double perFrame = best/1e6/mFrames;
+                    System.out.println(String.format("%-12s %7.1f MB/frame  %2d workers  %-11s %7.1f ms/frame  %7.0f MB/s",
+                            name, mb, workers, variance ? "+ variance" : "", perFrame, mb/(perFrame/1e3)));
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            if (workers==processors){
+                break;
+            }
+        }
+    }
+
+
+    /* void check(String, FrameAccumulator, Frame[], int)
+     *
+     * Make sure the mean and variance of some samples are those of the frames that were summed.
+     */
+    private void check(String name, FrameAccumulator accumulator, Frame[] frames, int bytesPerSample) throws IOException {
+        Random random = new Random(1);
+        for (int p=0; p<accumulator.getNumPlanes(); p++){
+            int width = accumulator.getWidth(p);
+            ByteBuffer mean = ByteBuffer.allocate(width*accumulator.getHeight(p)*bytesPerSample).order(ByteOrder.LITTLE_ENDIAN);
+            accumulator.getMean(p, mean);
+            float[] variance = accumulator.getVariance(p);
+            for (int t=0; t<1000; t++){
+                int x = random.nextInt(width);
+                int y = random.nextInt(accumulator.getHeight(p));
+                double sum = 0;
+                double squares = 0;
+                for (int i=0; i<mFrames; i++){
+                    Frame frame = frames[i%frames.length];
+                    ByteBuffer plane = frame.planes[p].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                    int at = Math.min(y*frame.rowStrides[p] + x*frame.pixelStrides[p], plane.limit() - bytesPerSample);
+                    int v = (bytesPerSample==1) ? (plane.get(at) & 0xFF) : (plane.getShort(at) & 0xFFFF);
+                    sum += v;
+                    squares += (double) v*v;
+                }
+                int i = y*width + x;
+                int m = (bytesPerSample==1) ? (mean.get(i) & 0xFF) : (mean.getShort(2*i) & 0xFFFF);
+                if (Math.abs(m - sum/mFrames)>0.5 + 1e-9){
+                    throw new IOException(name + ": mean of plane " + p + " at (" + x + "," + y + ") is " + m
+                            + ", not " + sum/mFrames);
+                }
+                if (variance!=null && mFrames>1){
+                    double expected = (squares - sum*sum/mFrames)/(mFrames - 1);
+                    if (Math.abs(variance[i] - expected)>1e-3*Math.max(1, expected)){
+                        throw new IOException(name + ": variance of plane " + p + " at (" + x + "," + y + ") is "
+                                + variance[i] + ", not " + expected);
+                    }
+                }
+            }
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException {
+        int reps = 3;
+        int frames = 8;
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-reps") && i+1<args.length){
+                reps = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-frames") && i+1<args.length){
+                frames = Integer.parseInt(args[++i]);
+            }
+        }
+
+        AccumulationBenchmark bench = new AccumulationBenchmark(reps, frames);
+        // A few distinct frames, cycled through, so the variance isn't 0.
+        Frame[] raw = new Frame[4];
+        Frame[] yuv = new Frame[4];
+        for (int i=0; i<raw.length; i++){
+            raw[i] = syntheticRaw(i);
+            yuv[i] = syntheticYuv(i);
+        }
+        bench.run("RAW_SENSOR", raw, new int[]{WIDTH}, new int[]{HEIGHT}, 2);
+        bench.run("YUV_420_888", yuv, new int[]{WIDTH, WIDTH/2, WIDTH/2},
+                new int[]{HEIGHT, HEIGHT/2, HEIGHT/2}, 1);
+    }
+
+}
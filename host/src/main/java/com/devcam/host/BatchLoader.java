@@ -0,0 +1,193 @@
+/* BatchLoader, for running a function over many .yuv frames at once, each mapped (see
+ * MappedYuvFrame) on whichever thread of a pool gets to it, so that thousands of frames of a pulled
+ * Captured directory can be got through using every core.
+ *
+ * Frames are found in .yuv files and in containers (see BurstContainer), whose YUV frames are each
+ * a frame of their own. Mapping a frame reads only its header; the function decides what else is
+ * read. Results come back in the order of the frames, however the work was spread.
+ *
+ *   BatchLoader loader = new BatchLoader(pool);
+ *   List<Double> means = loader.run(BatchLoader.findFrames(dir), new BatchLoader.FrameFunction<Double>(){
+ *       public Double apply(BatchLoader.Source source, MappedYuvFrame frame){ ... }
+ *   });
+ */
+
+package com.devcam.host;
+
+import com.devcam.io.BurstContainer;
+import com.devcam.io.BurstContainerReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class BatchLoader {
+
+    private final ExecutorService mPool;
+
+
+    // - - - Constructor - - -
+    public BatchLoader(ExecutorService pool){
+        mPool = pool;
+    }
+
+
+    /* What is done with each frame, on a thread of the pool. Must be safe to call from several
+     * threads at once.
+     */
+    public static abstract class FrameFunction<T> {
+        public abstract T apply(Source source, MappedYuvFrame frame) throws IOException;
+    }
+
+
+    /* Where a frame is: a .yuv file, or a frame of a container file.
+     */
+    public static final class Source {
+
+        private final File mFile;
+        private final int mIndex;
+        private final String mName;
+
+        /* index is the frame's index in the container, or -1 for a .yuv file. */
+        public Source(File file, int index){
+            this(file, index, (index<0) ? baseName(file, ".yuv") : baseName(file, BurstContainer.EXTENSION) + "-" + index);
+        }
+
+        /* name is what to call the frame in files made from it. */
+        public Source(File file, int index, String name){
+            mFile = file;
+            mIndex = index;
+            mName = name;
+        }
+
+        public File getFile(){
+            return mFile;
+        }
+        public int getIndex(){
+            return mIndex;
+        }
+        public boolean isContainerFrame(){
+            return mIndex>=0;
+        }
+        /* The file's name without its extension, e.g. "design-3", or for a frame of a container
+         * the container's, numbered as if it were a separate file. */
+        public String getName(){
+            return mName;
+        }
+
+        /* Map the frame. */
+        public MappedYuvFrame map() throws IOException {
+            if (mIndex<0){
+                return MappedYuvFrame.map(mFile);
+            }
+            BurstContainerReader reader = new BurstContainerReader(mFile);
+            try {
+                return new MappedYuvFrame(reader.mapFrame(mIndex));
+            } finally {
+                reader.close();
+            }
+        }
+
+        @Override
+        public String toString(){
+            return (mIndex<0) ? mFile.getPath() : mFile.getPath() + "[" + mIndex + "]";
+        }
+    }
+
+
+    /* static List<Source> findFrames(File)
+     *
+     * Every YUV frame in the given file, or in the files of the given directory and of all its
+     * subdirectories, in order of path and then of place in a container.
+     */
+    public static List<Source> findFrames(File file) throws IOException {
+        List<Source> sources = new ArrayList<Source>();
+        addFrames(file, sources);
+        return sources;
+    }
+
+    private static void addFrames(File file, List<Source> sources) throws IOException {
+        if (file.isDirectory()){
+            File[] children = file.listFiles();
+            if (children==null){
+                throw new IOException("Could not list " + file);
+            }
+            Arrays.sort(children);
+            for (File child : children){
+                addFrames(child, sources);
+            }
+        } else if (file.getName().endsWith(".yuv")){
+            sources.add(new Source(file, -1));
+        } else if (file.getName().endsWith(BurstContainer.EXTENSION)){
+            BurstContainerReader reader = new BurstContainerReader(file);
+            try {
+                // Numbered by capture time, as BurstContainerReader extracts them.
+                List<Long> timestamps = new ArrayList<Long>();
+                for (BurstContainer.Entry e : reader.getEntries()){
+                    if (!timestamps.contains(e.getTimestamp())){
+                        timestamps.add(e.getTimestamp());
+                    }
+                }
+                Collections.sort(timestamps);
+                String name = baseName(file, BurstContainer.EXTENSION);
+                for (int i=0; i<reader.getFrameCount(); i++){
+                    BurstContainer.Entry e = reader.getEntry(i);
+                    if (e.getFormat()==BurstContainer.FORMAT_YUV_420_888){
+                        sources.add(new Source(file, i, name + "-" + (timestamps.indexOf(e.getTimestamp()) + 1)));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private static String baseName(File file, String extension){
+        String name = file.getName();
+        return name.endsWith(extension) ? name.substring(0, name.length() - extension.length()) : name;
+    }
+
+
+    /* List<T> run(List<Source>, FrameFunction<T>)
+     *
+     * Map each frame and apply the function to it, in parallel. Results are in the order of the
+     * sources. The first failure is thrown, once all the frames are done with.
+     */
+    public <T> List<T> run(List<Source> sources, final FrameFunction<T> function)
+            throws IOException, InterruptedException {
+        List<Future<T>> futures = new ArrayList<Future<T>>(sources.size());
+        for (final Source source : sources){
+            futures.add(mPool.submit(new Callable<T>() {
+                @Override
+                public T call() throws IOException {
+                    return function.apply(source, source.map());
+                }
+            }));
+        }
+
+        List<T> results = new ArrayList<T>(futures.size());
+        IOException failure = null;
+        for (int i=0; i<futures.size(); i++){
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException ee){
+                results.add(null);
+                if (failure==null){
+                    failure = new IOException(sources.get(i) + ": " + ee.getCause().getMessage(), ee.getCause());
+                }
+            }
+        }
+        if (failure!=null){
+            throw failure;
+        }
+        return results;
+    }
+
+}
@@ -0,0 +1,477 @@
+/* BurstAlign, for finding how the frames of a handheld burst (e.g. a design made by burst or
+ * splitTimeExposures) moved against one of them, so they can be merged.
+ *
+ *   java com.devcam.host.BurstAlign <design dir> [-type dng|praw|yuv] [-reference N] [-tile N]
+ *                                   [-radius N] [-out file.json] [-threads N]
+ *
+ * Each frame is cut into tiles, 16 pixels square by default, and the motion of each tile found
+ * coarse to fine: on a pyramid of successive halvings of the frame (see ImagePyramid), each tile of
+ * the coarsest level is searched for within -radius pixels (4 by default) of where it was in the
+ * reference, by least sum of squared differences, and the motion found is doubled and used as the
+ * start of the search at the next level, down to the frame itself, where it is refined to a
+ * fraction of a pixel by a parabola through the differences either side. With 4 levels, motion of
+ * up to some 60 pixels is found; frames too small for 4 levels of tiles get fewer, and reach less.
+ *
+ * YUV frames are aligned on their luma plane; raw frames (.dng, .praw) on the mean of each 2x2 CFA
+ * cell, which is mostly green, at half their width and height. Vectors are in pixels of the frame
+ * all the same, fractions included, so those of raw frames have to be rounded to even numbers to
+ * keep the CFA's phase when the frames are merged as they are. The frames
+ * are taken in the order of the design's _capture_metadata.json and aligned to the -reference'th
+ * (the first by default). Both pyramids are allocated once, building a frame's pyramid is done a
+ * band at a time and each level's search a row of tiles at a time in parallel, on -threads threads
+ * (all processors by default).
+ *
+ * The vectors are written to <design>_alignment.json in the design's directory unless -out says
+ * otherwise (see MotionField), and the megapixels aligned per second reported at the end.
+ */
+
+package com.devcam.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BurstAlign {
+
+    static final int DEFAULT_TILE = 16;
+    static final int DEFAULT_RADIUS = 4;
+    static final int MAX_LEVELS = 4;
+    // Rows of the frame's level 0 read at a time by one thread.
+    static final int BAND_ROWS = 32;
+
+    private final ExecutorService mPool;
+    private final int mTile;
+    private final int mRadius;
+
+    private ImagePyramid mReference = null;
+    private ImagePyramid mAlternate = null;
+    private String mReferenceName = null;
+    private int mWidth;
+    private int mHeight;
+    private int mScale; // pixels of the frame per pixel of level 0
+
+    // The vectors of each level's tiles, whole pixels of the level, reused frame after frame.
+    private int[][] mVectorX;
+    private int[][] mVectorY;
+
+    // Each thread reuses its buffers for reading frames.
+    private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>(){
+        @Override
+        protected Scratch initialValue(){
+            return new Scratch();
+        }
+    };
+
+    static final class Scratch {
+        float[] values = new float[0];
+        byte[] samples = new byte[0];
+    }
+
+
+    // - - - Constructor - - -
+    /**
+     * @param pool Pool to build the pyramids and search for tiles on.
+     * @param tile Width and height of the tiles, in pixels of level 0.
+     * @param radius How far each tile is searched for around where the level before put it.
+     */
+    public BurstAlign(ExecutorService pool, int tile, int radius){
+        mPool = pool;
+        mTile = tile;
+        mRadius = radius;
+    }
+
+
+    /* void setReference(LinearFrame, String)
+     *
+     * Set the frame the others are aligned to, and its name for the motion fields.
+     */
+    public void setReference(LinearFrame frame, String name) throws IOException, InterruptedException {
+        mScale = (frame.getChannels()==1) ? 2 : 1;
+        int width = frame.getWidth()/mScale;
+        int height = frame.getHeight()/mScale;
+        int levels = 1;
+        while (levels<MAX_LEVELS && (width >> levels)>=2*mTile && (height >> levels)>=2*mTile){
+            levels++;
+        }
+        if (mReference==null || mWidth!=frame.getWidth() || mHeight!=frame.getHeight()){
+            mReference = new ImagePyramid(width, height, levels);
+            mAlternate = new ImagePyramid(width, height, levels);
+            mVectorX = new int[levels][];
+            mVectorY = new int[levels][];
+            for (int l=0; l<levels; l++){
+                int tiles = tilesAcross(l)*tilesDown(l);
+                mVectorX[l] = new int[tiles];
+                mVectorY[l] = new int[tiles];
+            }
+        }
+        mWidth = frame.getWidth();
+        mHeight = frame.getHeight();
+        mReferenceName = name;
+        load(frame, mReference);
+    }
+
+
+    /* MotionField align(LinearFrame, String)
+     *
+     * Find how the tiles of the frame moved from the reference.
+     */
+    public MotionField align(LinearFrame frame, String name) throws IOException, InterruptedException {
+        if (mReference==null){
+            throw new IllegalStateException("No reference frame set.");
+        }
+        if (frame.getWidth()!=mWidth || frame.getHeight()!=mHeight){
+            throw new IOException(name + " is " + frame.getWidth() + "x" + frame.getHeight() + ", not "
+                    + mWidth + "x" + mHeight + " as the reference is.");
+        }
+        load(frame, mAlternate);
+        return align(name);
+    }
+
+
+    /* MotionField align(String)
+     *
+     * Align the alternate pyramid, as loaded, to the reference, coarsest level first.
+     */
+    MotionField align(String name) throws IOException, InterruptedException {
+        for (int l=mReference.getLevels() - 1; l>=0; l--){
+            final int level = l;
+            List<Callable<Void>> rows = new ArrayList<Callable<Void>>();
+            for (int ty=0; ty<tilesDown(l); ty++){
+                final int tileY = ty;
+                rows.add(new Callable<Void>() {
+                    @Override
+                    public Void call(){
+                        for (int tx=0; tx<tilesAcross(level); tx++){
+                            searchTile(level, tx, tileY);
+                        }
+                        return null;
+                    }
+                });
+            }
+            runAll(rows);
+        }
+
+        // Fractions of a pixel at level 0, then in pixels of the frame.
+        final MotionField field = new MotionField(name, mReferenceName, mTile*mScale, tilesAcross(0), tilesDown(0));
+        List<Callable<Void>> rows = new ArrayList<Callable<Void>>();
+        for (int ty=0; ty<tilesDown(0); ty++){
+            final int tileY = ty;
+            rows.add(new Callable<Void>() {
+                @Override
+                public Void call(){
+                    for (int tx=0; tx<tilesAcross(0); tx++){
+                        refineTile(field, tx, tileY);
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(rows);
+        return field;
+    }
+
+
+    private int tilesAcross(int level){
+        return Math.max(1, mReference.getWidth(level)/mTile);
+    }
+    private int tilesDown(int level){
+        return Math.max(1, mReference.getHeight(level)/mTile);
+    }
+
+
+    /* Search for a tile of a level around where the level above put it. */
+    private void searchTile(int level, int tx, int ty){
+        int width = mReference.getWidth(level);
+        int height = mReference.getHeight(level);
+        int x0 = tx*mTile;
+        int y0 = ty*mTile;
+        int tileWidth = Math.min(mTile, width);
+        int tileHeight = Math.min(mTile, height);
+
+        int guessX = 0;
+        int guessY = 0;
+        if (level<mReference.getLevels() - 1){
+            // The tile of the level above its centre is in.
+            int across = tilesAcross(level + 1);
+            int coarseX = Math.min(across - 1, ((x0 + tileWidth/2)/2)/mTile);
+            int coarseY = Math.min(tilesDown(level + 1) - 1, ((y0 + tileHeight/2)/2)/mTile);
+            guessX = 2*mVectorX[level + 1][coarseY*across + coarseX];
+            guessY = 2*mVectorY[level + 1][coarseY*across + coarseX];
+        }
+
+        float[] reference = mReference.getLevel(level);
+        float[] alternate = mAlternate.getLevel(level);
+        int bestX = guessX;
+        int bestY = guessY;
+        float best = difference(reference, alternate, width, height, x0, y0, tileWidth, tileHeight,
+                guessX, guessY, Float.MAX_VALUE);
+        for (int dy=guessY - mRadius; dy<=guessY + mRadius; dy++){
+            for (int dx=guessX - mRadius; dx<=guessX + mRadius; dx++){
+                float d = difference(reference, alternate, width, height, x0, y0, tileWidth, tileHeight, dx, dy, best);
+                if (d<best){
+                    best = d;
+                    bestX = dx;
+                    bestY = dy;
+                }
+            }
+        }
+        int t = ty*tilesAcross(level) + tx;
+        mVectorX[level][t] = bestX;
+        mVectorY[level][t] = bestY;
+    }
+
+
+    /* Refine a tile of level 0 to a fraction of a pixel, into the field in pixels of the frame. */
+    private void refineTile(MotionField field, int tx, int ty){
+        int width = mReference.getWidth(0);
+        int height = mReference.getHeight(0);
+        int x0 = tx*mTile;
+        int y0 = ty*mTile;
+        int tileWidth = Math.min(mTile, width);
+        int tileHeight = Math.min(mTile, height);
+        float[] reference = mReference.getLevel(0);
+        float[] alternate = mAlternate.getLevel(0);
+        int t = ty*tilesAcross(0) + tx;
+        int vx = mVectorX[0][t];
+        int vy = mVectorY[0][t];
+
+        float here = difference(reference, alternate, width, height, x0, y0, tileWidth, tileHeight, vx, vy, Float.MAX_VALUE);
+        float left = difference(reference, alternate, width, height, x0, y0, tileWidth, tileHeight, vx - 1, vy, Float.MAX_VALUE);
+        float right = difference(reference, alternate, width, height, x0, y0, tileWidth, tileHeight, vx + 1, vy, Float.MAX_VALUE);
+        float up = difference(reference, alternate, width, height, x0, y0, tileWidth, tileHeight, vx, vy - 1, Float.MAX_VALUE);
+        float down = difference(reference, alternate, width, height, x0, y0, tileWidth, tileHeight, vx, vy + 1, Float.MAX_VALUE);
+        field.set(tx, ty, mScale*(vx + vertex(left, here, right)), mScale*(vy + vertex(up, here, down)));
+    }
+
+    /* The vertex of the parabola through (-1, before), (0, at), (1, after), within half a pixel. */
+    static float vertex(float before, float at, float after){
+        float curvature = before - 2*at + after;
+        if (curvature<=0){
+            return 0f;
+        }
+        return Math.max(-0.5f, Math.min(0.5f, 0.5f*(before - after)/curvature));
+    }
+
+
+    /* static float difference(float[], float[], int, int, int, int, int, int, int, int, float)
+     *
+     * The sum of squared differences between the tile at (x0,y0) of the reference and the same
+     * tile moved by (dx,dy) in the alternate, whose edges are repeated beyond it. Stops, at the end
+     * of a row, once the sum is past the bound, since it can only be of use below it.
+     */
+    static float difference(float[] reference, float[] alternate, int width, int height, int x0, int y0,
+            int tileWidth, int tileHeight, int dx, int dy, float bound){
+        float sum = 0f;
+        boolean inside = (x0 + dx>=0 && x0 + dx + tileWidth<=width && y0 + dy>=0 && y0 + dy + tileHeight<=height);
+        for (int y=y0; y<y0 + tileHeight; y++){
+            int r = y*width;
+            if (inside){
+                int a = (y + dy)*width + dx;
+                for (int x=x0; x<x0 + tileWidth; x++){
+                    float d = reference[r + x] - alternate[a + x];
+                    sum += d*d;
+                }
+            } else {
+                int a = Math.max(0, Math.min(height - 1, y + dy))*width;
+                for (int x=x0; x<x0 + tileWidth; x++){
+                    float d = reference[r + x] - alternate[a + Math.max(0, Math.min(width - 1, x + dx))];
+                    sum += d*d;
+                }
+            }
+            if (sum>=bound){
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+
+    /* void load(LinearFrame, ImagePyramid)
+     *
+     * Read the frame into level 0 of the pyramid, band by band on the pool, and build the rest.
+     */
+    void load(final LinearFrame frame, final ImagePyramid pyramid) throws IOException, InterruptedException {
+        final int height = pyramid.getHeight(0);
+        List<Callable<Void>> bands = new ArrayList<Callable<Void>>();
+        for (int row=0; row<height; row+=BAND_ROWS){
+            final int row0 = row;
+            final int rows = Math.min(BAND_ROWS, height - row);
+            bands.add(new Callable<Void>() {
+                @Override
+                public Void call(){
+                    readLevel0(frame, pyramid.getLevel(0), pyramid.getWidth(0), row0, rows, sScratch.get());
+                    return null;
+                }
+            });
+        }
+        runAll(bands);
+        pyramid.build(mPool);
+    }
+
+
+    /* static void readLevel0(LinearFrame, float[], int, int, int, Scratch)
+     *
+     * Read rows [row0, row0 + rows) of a frame's level 0: the luma of a YUV frame, the mean of the
+     * 2x2 cells of a raw one, or the luma of RGB.
+     */
+    static void readLevel0(LinearFrame frame, float[] level, int width, int row0, int rows, Scratch scratch){
+        if (frame instanceof LinearFrame.Yuv){
+            MappedYuvFrame.Plane luma = ((LinearFrame.Yuv) frame).getFrame().getPlane(0);
+            if (scratch.samples.length<luma.getWidth()){
+                scratch.samples = new byte[luma.getWidth()];
+            }
+            for (int r=row0; r<row0 + rows; r++){
+                luma.copyRow(r, scratch.samples, 0);
+                for (int x=0; x<width; x++){
+                    level[r*width + x] = (scratch.samples[x] & 0xFF)/255f;
+                }
+            }
+        } else if (frame.getChannels()==1){
+            int frameWidth = frame.getWidth();
+            if (scratch.values.length<2*frameWidth){
+                scratch.values = new float[2*frameWidth];
+            }
+            float[] values = scratch.values;
+            for (int r=row0; r<row0 + rows; r++){
+                frame.readRows(2*r, 2, values);
+                for (int x=0; x<width; x++){
+                    int i = 2*x;
+                    level[r*width + x] = 0.25f*(values[i] + values[i + 1] + values[frameWidth + i] + values[frameWidth + i + 1]);
+                }
+            }
+        } else {
+            if (scratch.values.length<3*width){
+                scratch.values = new float[3*width];
+            }
+            float[] values = scratch.values;
+            for (int r=row0; r<row0 + rows; r++){
+                frame.readRows(r, 1, values);
+                for (int x=0, v=0; x<width; x++, v+=3){
+                    level[r*width + x] = 0.299f*values[v] + 0.587f*values[v + 1] + 0.114f*values[v + 2];
+                }
+            }
+        }
+    }
+
+
+    /* Run the tasks on the pool and wait for them all. */
+    private void runAll(List<Callable<Void>> tasks) throws IOException, InterruptedException {
+        List<Future<Void>> futures = mPool.invokeAll(tasks);
+        for (Future<Void> future : futures){
+            try {
+                future.get();
+            } catch (ExecutionException ee){
+                throw new IOException(ee.getCause());
+            }
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File dir = null;
+        String type = null;
+        File out = null;
+        int reference = 0;
+        int tile = DEFAULT_TILE;
+        int radius = DEFAULT_RADIUS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-type") && i+1<args.length){
+                type = "." + args[++i].toLowerCase();
+            } else if (args[i].equals("-reference") && i+1<args.length){
+                reference = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-tile") && i+1<args.length){
+                tile = Math.max(4, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-radius") && i+1<args.length){
+                radius = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-out") && i+1<args.length){
+                out = new File(args[++i]);
+            } else if (args[i].equals("-threads") && i+1<args.length){
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                dir = new File(args[i]);
+            }
+        }
+        if (dir==null || !dir.isDirectory()){
+            System.err.println("Usage: BurstAlign <design dir> [-type dng|praw|yuv] [-reference N] [-tile N] [-radius N] [-out file.json] [-threads N]");
+            System.exit(2);
+        }
+
+        List<Map<String,Object>> records = CaptureMetadataReader.readAll(CaptureMetadataReader.find(dir));
+        if (reference<0 || reference>=records.size()){
+            System.err.println("No frame " + reference + " among the design's " + records.size() + ".");
+            System.exit(2);
+        }
+        if (type==null){
+            for (String linear : HdrMerge.LINEAR_TYPES){
+                if (CaptureMetadataReader.filenameOfType(records.get(0), linear)!=null){
+                    type = linear;
+                    break;
+                }
+            }
+            if (type==null){
+                System.err.println("No .dng, .praw or .yuv frames in the design.");
+                System.exit(2);
+            }
+        }
+        List<String> names = new ArrayList<String>();
+        for (Map<String,Object> record : records){
+            String name = CaptureMetadataReader.filenameOfType(record, type);
+            if (name==null){
+                System.err.println("A frame lacks a " + type + " file: " + record.get(CaptureMetadataReader.FILENAME_KEY));
+                System.exit(2);
+            }
+            names.add(name);
+        }
+        if (out==null){
+            out = new File(dir, dir.getName() + MotionField.FILE_SUFFIX);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            long t0 = System.nanoTime();
+            BurstAlign align = new BurstAlign(pool, tile, radius);
+            LinearFrame first = LinearFrame.open(new File(dir, names.get(reference)));
+            align.setReference(first, names.get(reference));
+            List<MotionField> fields = new ArrayList<MotionField>();
+            for (int f=0; f<names.size(); f++){
+                if (f==reference){
+                    fields.add(new MotionField(names.get(f), names.get(f), tile*(first.getChannels()==1 ? 2 : 1),
+                            align.tilesAcross(0), align.tilesDown(0)));
+                    continue;
+                }
+                MotionField field = align.align(LinearFrame.open(new File(dir, names.get(f))), names.get(f));
+                fields.add(field);
+                // The median motion, as a summary of the frame's.
+                int count = field.getTilesAcross()*field.getTilesDown();
+                float[] dx = new float[count];
+                float[] dy = new float[count];
+                for (int t=0; t<count; t++){
+                    dx[t] = field.getDx(t%field.getTilesAcross(), t/field.getTilesAcross());
+                    dy[t] = field.getDy(t%field.getTilesAcross(), t/field.getTilesAcross());
+                }
+                Arrays.sort(dx);
+                Arrays.sort(dy);
+                System.out.println(String.format("%-24s median motion %6.2f, %6.2f", names.get(f), dx[count/2], dy[count/2]));
+            }
+            MotionField.write(out, fields);
+            long t1 = System.nanoTime();
+            System.out.println(String.format("Aligned %d frames of %dx%d in %.2f s (%.1f MP/s), tiles of %d pixels, to %s",
+                    names.size(), first.getWidth(), first.getHeight(), (t1 - t0)/1e9,
+                    (double) first.getWidth()*first.getHeight()*names.size()/1e6/((t1 - t0)/1e9),
+                    fields.get(0).getTileSize(), out));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+/* BurstAlignBenchmark, for measuring how fast and how well BurstAlign aligns a burst of full-size
+ * frames.
+ *
+ *   java com.devcam.host.BurstAlignBenchmark [-frames N] [-size WxH] [-reps N]
+ *
+ * Aligns a synthetic raw burst, 8 frames of 4000x3000 by default, each the same textured scene
+ * moved by a known amount, up to some 40 pixels and to a fraction of one, on 1, 2, 4... threads up
+ * to the number of processors, and reports the megapixels aligned per second. The scene is made
+ * once, and the frames interpolated from it as they are read, so they take no memory or disk of
+ * their own, and what is measured is the alignment, pyramids included. Each figure is the best of
+ * the reps, after warming up.
+ *
+ * Every tile whose content stays in the frame is checked against the known motion: the mean error
+ * is reported, and the run fails if over 1% of tiles are off by more than a pixel.
+ */
+
+package com.devcam.host;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class BurstAlignBenchmark {
+
+    static final int WARMUP_RUNS = 1;
+    static final double WRONG_BY = 1.0; // pixels
+    static final double WRONG_ALLOWED = 0.01; // of tiles
+    static final int MARGIN = 64; // of the scene around the frame, beyond the largest motion
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mReps;
+    private float[] mScene = null;
+
+
+    // - - - Constructor - - -
+    public BurstAlignBenchmark(int width, int height, int reps){
+        mWidth = width;
+        mHeight = height;
+        mReps = reps;
+    }
+
+
+    /* static double motionX(int), motionY(int)
+     *
+     * How far frame f of the burst is moved from frame 0, a handheld drift with some wobble.
+     */
+    static double motionX(int f){
+        return 4.75*f + 3*Math.sin(f);
+    }
+    static double motionY(int f){
+        return -2.5*f + 2*Math.cos(1.7*f) - 2;
+    }
+
+
+    /* static float scene(double, double)
+     *
+     * The synthetic scene at a point: smoothly interpolated noise at a few scales, which has detail
+     * everywhere for tiles to be found by.
+     */
+    static float scene(double x, double y){
+        return 0.5f*noise(x/3, y/3, 1) + 0.3f*noise(x/11, y/11, 2) + 0.2f*noise(x/37, y/37, 3);
+    }
+
+    private static float noise(double x, double y, int seed){
+        int x0 = (int) Math.floor(x);
+        int y0 = (int) Math.floor(y);
+        float fx = (float) (x - x0);
+        float fy = (float) (y - y0);
+        float top = lattice(x0, y0, seed)*(1 - fx) + lattice(x0 + 1, y0, seed)*fx;
+        float bottom = lattice(x0, y0 + 1, seed)*(1 - fx) + lattice(x0 + 1, y0 + 1, seed)*fx;
+        return top*(1 - fy) + bottom*fy;
+    }
+
+    private static float lattice(int x, int y, int seed){
+        int hash = x*0x27D4EB2D + y*0x165667B1 + seed*0x9E3779B9;
+        hash = (hash ^ (hash >>> 15))*0x2C1B3C6D;
+        hash ^= hash >>> 13;
+        return (hash >>> 8)/(float) (1 << 24);
+    }
+
+
+    /* A raw frame of the scene, moved by (dx,dy), interpolated from it as it is read. */
+    class ShiftedFrame extends LinearFrame {
+
+        private final int mX0;
+        private final int mY0;
+        private final float mFx;
+        private final float mFy;
+
+        ShiftedFrame(double dx, double dy){
+            // What the reference saw at (x - dx, y - dy) is here at (x,y).
+            mX0 = (int) Math.floor(MARGIN - dx);
+            mY0 = (int) Math.floor(MARGIN - dy);
+            mFx = (float) (MARGIN - dx - mX0);
+            mFy = (float) (MARGIN - dy - mY0);
+        }
+
+        @Override
+        public int getWidth(){
+            return mWidth;
+        }
+        @Override
+        public int getHeight(){
+            return mHeight;
+        }
+        @Override
+        public int getChannels(){
+            return 1;
+        }
+
+        @Override
+        public void readRows(int row0, int rows, float[] values){
+            int stride = mWidth + 2*MARGIN;
+            for (int r=0; r<rows; r++){
+                int top = (mY0 + row0 + r)*stride + mX0;
+                int bottom = top + stride;
+                for (int x=0; x<mWidth; x++){
+                    float upper = mScene[top + x]*(1 - mFx) + mScene[top + x + 1]*mFx;
+                    float lower = mScene[bottom + x]*(1 - mFx) + mScene[bottom + x + 1]*mFx;
+                    values[r*mWidth + x] = upper*(1 - mFy) + lower*mFy;
+                }
+            }
+        }
+    }
+
+
+    /* void run(int)
+     *
+     * Measure and print the figures for a burst of the given number of frames.
+     */
+    public void run(int frameCount) throws IOException, InterruptedException {
+        int stride = mWidth + 2*MARGIN;
+        mScene = new float[stride*(mHeight + 2*MARGIN)];
+        for (int y=0; y<mHeight + 2*MARGIN; y++){
+            for (int x=0; x<stride; x++){
+                mScene[y*stride + x] = scene(x, y);
+            }
+        }
+        LinearFrame[] frames = new LinearFrame[frameCount];
+        for (int f=0; f<frameCount; f++){
+            if (Math.abs(motionX(f))>=MARGIN - 1 || Math.abs(motionY(f))>=MARGIN - 1){
+                throw new IllegalArgumentException("Too many frames: frame " + f + " moves out of the scene.");
+            }
+            frames[f] = new ShiftedFrame(motionX(f), motionY(f));
+        }
+        double megapixels = (double) mWidth*mHeight/1e6;
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads=1; ; threads=Math.min(2*threads, processors)){
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                BurstAlign align = new BurstAlign(pool, BurstAlign.DEFAULT_TILE, BurstAlign.DEFAULT_RADIUS);
+                long best = Long.MAX_VALUE;
+                MotionField[] fields = new MotionField[frameCount];
+                for (int r=0; r<WARMUP_RUNS+mReps; r++){
+                    long t0 = System.nanoTime();
+                    align.setReference(frames[0], "0");
+                    for (int f=1; f<frameCount; f++){
+                        fields[f] = align.align(frames[f], Integer.toString(f));
+                    }
+                    long t1 = System.nanoTime();
+                    if (r>=WARMUP_RUNS){
+                        best = Math.min(best, t1-t0);
+                    }
+                }
+
+                int checked = 0;
+                int wrong = 0;
+                double error = 0;
+                for (int f=1; f<frameCount; f++){
+                    MotionField field = fields[f];
+                    int size = field.getTileSize();
+                    double dx = motionX(f);
+                    double dy = motionY(f);
+                    for (int ty=0; ty<field.getTilesDown(); ty++){
+                        for (int tx=0; tx<field.getTilesAcross(); tx++){
+                            if (tx*size + dx<0 || (tx + 1)*size + dx>mWidth || ty*size + dy<0 || (ty + 1)*size + dy>mHeight){
+                                continue; // moved out of the frame, so not to be found
+                            }
+                            double e = Math.hypot(field.getDx(tx, ty) - dx, field.getDy(tx, ty) - dy);
+                            checked++;
+                            error += e;
+                            if (e>WRONG_BY){
+                                wrong++;
+                            }
+                        }
+                    }
+                }
+                if (wrong>WRONG_ALLOWED*checked){
+                    throw new IOException(wrong + " of " + checked + " tiles checked are off by over " + WRONG_BY + " pixels.");
+                }
+
+                double seconds = best/1e9;
+                System.out.println(String.format("%dx%d x %d frames  %2d threads  %8.1f ms  %7.1f MP/s  mean error %.3f px, %d of %d tiles wrong",
+                        mWidth, mHeight, frameCount, threads, seconds*1e3, megapixels*frameCount/seconds,
+                        error/checked, wrong, checked));
+            } finally {
+                pool.shutdown();
+            }
+            if (threads==processors){
+                break;
+            }
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int frames = 8;
+        int width = 4000;
+        int height = 3000;
+        int reps = 3;
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-frames") && i+1<args.length){
+                frames = Math.max(2, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-size") && i+1<args.length){
+                String[] size = args[++i].split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else if (args[i].equals("-reps") && i+1<args.length){
+                reps = Integer.parseInt(args[++i]);
+            }
+        }
+        new BurstAlignBenchmark(width, height, reps).run(frames);
+    }
+
+}
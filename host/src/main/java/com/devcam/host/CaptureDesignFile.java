@@ -0,0 +1,190 @@
+/* CaptureDesignFile class, a capture design as the JSON file the app reads it from (see
+ * CaptureDesign.Creator.loadDesignFromJson()), for making and checking designs on the host.
+ *
+ * The file is an array of one object per exposure, with any of the fields exposureTime (ns),
+ * sensitivity (or iso), aperture, focalLength and focusDistance (diopters), each either a number or
+ * a variable, "AUTO" or a multiple of it like "0.5*AUTO". Field names are matched ignoring case.
+ * A field that is missing, or that is neither a number nor a string, as MATLAB's savejson writes the
+ * empty fields of a struct array, is AUTO, as it is in the app.
+ *
+ * Values are kept as read, a Long or Double for a number and a String for a variable, so that
+ * DesignValidator can say what the app would make of them; nothing is checked here.
+ */
+
+package com.devcam.host;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class CaptureDesignFile {
+
+    public static final String AUTO = "AUTO";
+
+    // The parameters of an exposure, in the order of its values.
+    public static final int EXPOSURE_TIME = 0;
+    public static final int SENSITIVITY = 1;
+    public static final int APERTURE = 2;
+    public static final int FOCAL_LENGTH = 3;
+    public static final int FOCUS_DISTANCE = 4;
+    public static final String[] PARAMETERS = {"exposureTime", "sensitivity", "aperture", "focalLength", "focusDistance"};
+
+    private final List<Object[]> mExposures = new ArrayList<Object[]>();
+    private final List<String> mIgnoredFields = new ArrayList<String>();
+
+
+    /* static Object[] allAuto()
+     *
+     * The values of an exposure with every parameter AUTO, to set some of.
+     */
+    public static Object[] allAuto(){
+        Object[] values = new Object[PARAMETERS.length];
+        for (int p=0; p<values.length; p++){
+            values[p] = AUTO;
+        }
+        return values;
+    }
+
+    /* static String variable(double)
+     *
+     * The variable for the given multiple of the AUTO value, in a form the app accepts.
+     */
+    public static String variable(double multiplier){
+        if (Math.abs(multiplier - 1)<1e-6){
+            return AUTO;
+        }
+        // Plain digits, as the app wants a leading 0 and no exponent.
+        String digits = String.format(Locale.US, "%.6f", multiplier).replaceAll("0+$", "").replaceAll("\\.$", "");
+        return digits + "*" + AUTO;
+    }
+
+
+    /* static CaptureDesignFile read(File)
+     *
+     * Read a design file. Throws an IOException if it is not JSON, or is not an array of objects,
+     * which the app can not read either.
+     */
+    public static CaptureDesignFile read(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        StringBuilder text = new StringBuilder((int) Math.min(file.length(), 1 << 20));
+        try {
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = in.read(buffer))>0){
+                text.append(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return parse(CaptureMetadataReader.parse(text.toString()));
+    }
+
+    /* static CaptureDesignFile parse(Object)
+     *
+     * A design from its parsed JSON (see CaptureMetadataReader.parse()).
+     */
+    @SuppressWarnings("unchecked")
+    public static CaptureDesignFile parse(Object json) throws IOException {
+        if (!(json instanceof List)){
+            throw new IOException("A design must be a JSON array of exposures, e.g. [{...}] even for one.");
+        }
+        CaptureDesignFile design = new CaptureDesignFile();
+        for (Object element : (List<Object>) json){
+            if (!(element instanceof Map)){
+                throw new IOException("Exposure " + (design.mExposures.size() + 1) + " is not a JSON object.");
+            }
+            Object[] values = allAuto();
+            for (Map.Entry<String,Object> field : ((Map<String,Object>) element).entrySet()){
+                int p = parameterOf(field.getKey());
+                if (p<0){
+                    if (!design.mIgnoredFields.contains(field.getKey())){
+                        design.mIgnoredFields.add(field.getKey());
+                    }
+                } else if (field.getValue() instanceof Number || field.getValue() instanceof String){
+                    values[p] = field.getValue();
+                }
+            }
+            design.mExposures.add(values);
+        }
+        return design;
+    }
+
+    private static int parameterOf(String field){
+        String name = field.toLowerCase();
+        if (name.equals("iso")){
+            return SENSITIVITY;
+        }
+        for (int p=0; p<PARAMETERS.length; p++){
+            if (name.equals(PARAMETERS[p].toLowerCase())){
+                return p;
+            }
+        }
+        return -1;
+    }
+
+
+    /* void write(File)
+     *
+     * Write the design as a file the app and MATLAB can read, every parameter of every exposure
+     * given.
+     */
+    public void write(File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.write("[\n");
+            for (int e=0; e<mExposures.size(); e++){
+                out.write("    {");
+                Object[] values = mExposures.get(e);
+                for (int p=0; p<PARAMETERS.length; p++){
+                    out.write((p==0 ? "" : ", ") + "\"" + PARAMETERS[p] + "\": " + jsonOf(values[p]));
+                }
+                out.write((e<mExposures.size() - 1) ? "},\n" : "}\n");
+            }
+            out.write("]\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String jsonOf(Object value){
+        if (value instanceof String){
+            return "\"" + value + "\"";
+        } else if (value instanceof Double || value instanceof Float){
+            double d = ((Number) value).doubleValue();
+            return (d==Math.rint(d) && Math.abs(d)<1e15) ? Long.toString((long) d) : Float.toString((float) d);
+        }
+        return String.valueOf(value);
+    }
+
+
+
+    // - - Setters and Getters - -
+    public void addExposure(Object[] values){
+        if (values.length!=PARAMETERS.length){
+            throw new IllegalArgumentException("An exposure has " + PARAMETERS.length + " values.");
+        }
+        mExposures.add(values.clone());
+    }
+    public int getExposureCount(){
+        return mExposures.size();
+    }
+    /* The value of the parameter of the exposure: a Long or Double, or a String variable. */
+    public Object getValue(int exposure, int parameter){
+        return mExposures.get(exposure)[parameter];
+    }
+    /* The fields of the file the app will skip, as they are not any of the parameters. */
+    public List<String> getIgnoredFields(){
+        return mIgnoredFields;
+    }
+
+}
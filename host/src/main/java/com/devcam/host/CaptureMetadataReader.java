@@ -0,0 +1,435 @@
+/* CaptureMetadataReader, for reading the records of a design's *_capture_metadata.json one at a
+ * time, as they are asked for, rather than parsing the whole file up front.
+ *
+ * The file is a JSON array of one object per frame (see CameraReport.writeCaptureResultsToFile),
+ * which for long designs gets to tens of megabytes. Each next() parses just the next object, into a
+ * Map from field name to value, in the order of the file. Values are Strings, Booleans, Longs for
+ * whole numbers and Doubles for the rest, Lists for arrays, Maps for objects, and null. A record
+ * can also be skipped without being built at all.
+ *
+ * Not thread-safe; use one reader per thread.
+ */
+
+package com.devcam.host;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+public class CaptureMetadataReader implements Iterator<Map<String,Object>>, Closeable {
+
+    public static final String FILE_SUFFIX = "_capture_metadata.json";
+    public static final String FILENAME_KEY = "Filename";
+
+    private final Reader mReader;
+    private int mPeeked = -2; // none peeked
+    private boolean mStarted = false;
+    private boolean mFinished = false;
+    private int mIndex = 0;
+
+
+    // - - - Constructors - - -
+    public CaptureMetadataReader(File file) throws IOException {
+        this(new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 64*1024));
+    }
+
+    public CaptureMetadataReader(Reader reader){
+        mReader = reader;
+    }
+
+
+    /* static Object parse(String)
+     *
+     * Parse a single JSON value, e.g. the metadata of a frame in a container, see
+     * BurstContainerReader.readMetadata().
+     */
+    public static Object parse(String json) throws IOException {
+        CaptureMetadataReader reader = new CaptureMetadataReader(new StringReader(json));
+        Object value = reader.readValue();
+        if (reader.skipWhitespace()!=-1){
+            throw new IOException("Unexpected text after the JSON value.");
+        }
+        return value;
+    }
+
+
+    /* static File find(File)
+     *
+     * The _capture_metadata.json of the design in the given directory.
+     */
+    public static File find(File designDir) throws IOException {
+        File named = new File(designDir, designDir.getName() + FILE_SUFFIX);
+        if (named.isFile()){
+            return named;
+        }
+        File[] files = designDir.listFiles();
+        if (files!=null){
+            for (File file : files){
+                if (file.getName().endsWith(FILE_SUFFIX)){
+                    return file;
+                }
+            }
+        }
+        throw new IOException("No " + FILE_SUFFIX + " in " + designDir);
+    }
+
+
+    /* static List<Map<String,Object>> readAll(File)
+     *
+     * All the records of the file at once, for designs small enough to keep them in memory.
+     */
+    public static List<Map<String,Object>> readAll(File file) throws IOException {
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        CaptureMetadataReader reader = new CaptureMetadataReader(file);
+        try {
+            Map<String,Object> record;
+            while ((record = reader.readNext())!=null){
+                records.add(record);
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+
+    /* static String filenameOfType(Map<String,Object>, String)
+     *
+     * The name of the record's file of the given type, e.g. ".dng", from its "Filename" field,
+     * which lists one file per output stream separated by commas. Null if it has none.
+     */
+    public static String filenameOfType(Map<String,Object> record, String type){
+        Object filenames = record.get(FILENAME_KEY);
+        if (filenames!=null){
+            for (String name : filenames.toString().split(",")){
+                if (name.trim().endsWith(type)){
+                    return name.trim();
+                }
+            }
+        }
+        return null;
+    }
+
+
+    @Override
+    public boolean hasNext(){
+        try {
+            return advance();
+        } catch (IOException ioe){
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    /* Map<String,Object> next()
+     *
+     * The next record. IOExceptions from reading or parsing it are thrown wrapped in an
+     * IllegalStateException, as Iterator allows no others; use readNext() to get them as they are.
+     */
+    @Override
+    public Map<String,Object> next(){
+        try {
+            Map<String,Object> record = readNext();
+            if (record==null){
+                throw new NoSuchElementException();
+            }
+            return record;
+        } catch (IOException ioe){
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    @Override
+    public void remove(){
+        throw new UnsupportedOperationException();
+    }
+
+
+    /* Map<String,Object> readNext()
+     *
+     * The next record, or null at the end of the array.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String,Object> readNext() throws IOException {
+        if (!advance()){
+            return null;
+        }
+        if (skipWhitespace()!='{'){
+            throw new IOException("Record " + mIndex + " is not a JSON object.");
+        }
+        mIndex++;
+        return (Map<String,Object>) readValue();
+    }
+
+
+    /* boolean skip()
+     *
+     * Pass over the next record without building it. False at the end of the array.
+     */
+    public boolean skip() throws IOException {
+        if (!advance()){
+            return false;
+        }
+        mIndex++;
+        skipValue();
+        return true;
+    }
+
+
+    /* The number of records read or skipped so far. */
+    public int getIndex(){
+        return mIndex;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+
+
+    // - - - Parsing - - -
+
+    // Move to the start of the next record; false if the array is done.
+    private boolean advance() throws IOException {
+        if (mFinished){
+            return false;
+        }
+        int c = skipWhitespace();
+        if (!mStarted){
+            if (c!='['){
+                throw new IOException("Capture metadata is not a JSON array.");
+            }
+            mStarted = true;
+            read();
+            c = skipWhitespace();
+        } else if (c==','){
+            read();
+            c = skipWhitespace();
+        }
+        if (c==']'){
+            mFinished = true;
+            return false;
+        }
+        if (c==-1){
+            throw new IOException("Capture metadata ends inside its array.");
+        }
+        return true;
+    }
+
+    private Object readValue() throws IOException {
+        int c = skipWhitespace();
+        switch (c){
+            case '{':
+                read();
+                Map<String,Object> object = new LinkedHashMap<String,Object>();
+                if (skipWhitespace()=='}'){
+                    read();
+                    return object;
+                }
+                while (true){
+                    if (skipWhitespace()!='"'){
+                        throw new IOException("Expected a field name.");
+                    }
+                    String name = readString();
+                    expect(':');
+                    object.put(name, readValue());
+                    if (endOf('}')){
+                        return object;
+                    }
+                }
+            case '[':
+                read();
+                List<Object> array = new ArrayList<Object>();
+                if (skipWhitespace()==']'){
+                    read();
+                    return array;
+                }
+                while (true){
+                    array.add(readValue());
+                    if (endOf(']')){
+                        return array;
+                    }
+                }
+            case '"':
+                return readString();
+            case 't':
+                readWord("true");
+                return Boolean.TRUE;
+            case 'f':
+                readWord("false");
+                return Boolean.FALSE;
+            case 'n':
+                readWord("null");
+                return null;
+            default:
+                return readNumber();
+        }
+    }
+
+    // Like readValue(), building nothing but the nesting depth.
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            int c = skipWhitespace();
+            if (c=='"'){
+                skipString();
+                continue;
+            }
+            read();
+            if (c=='{' || c=='['){
+                depth++;
+            } else if (c=='}' || c==']'){
+                depth--;
+            } else if (c==-1){
+                throw new IOException("Capture metadata ends inside a record.");
+            }
+        } while (depth>0);
+    }
+
+    // After a member or element: true at the closing character, past a comma otherwise.
+    private boolean endOf(char close) throws IOException {
+        int c = skipWhitespace();
+        read();
+        if (c==close){
+            return true;
+        }
+        if (c!=','){
+            throw new IOException("Expected ',' or '" + close + "'.");
+        }
+        return false;
+    }
+
+    private void expect(char expected) throws IOException {
+        if (skipWhitespace()!=expected){
+            throw new IOException("Expected '" + expected + "'.");
+        }
+        read();
+    }
+
+    private void readWord(String word) throws IOException {
+        for (int i=0; i<word.length(); i++){
+            if (read()!=word.charAt(i)){
+                throw new IOException("Expected " + word + ".");
+            }
+        }
+    }
+
+    private Object readNumber() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        boolean whole = true;
+        int c = peek();
+        while (c=='-' || c=='+' || c=='.' || c=='e' || c=='E' || (c>='0' && c<='9')){
+            if (c=='.' || c=='e' || c=='E'){
+                whole = false;
+            }
+            sb.append((char) read());
+            c = peek();
+        }
+        if (sb.length()==0){
+            throw new IOException("Unexpected " + ((c==-1) ? "end of file" : "'" + (char) c + "'") + ".");
+        }
+        try {
+            if (whole){
+                try {
+                    return Long.parseLong(sb.toString());
+                } catch (NumberFormatException tooLong){
+                    // fall through to a double
+                }
+            }
+            return Double.parseDouble(sb.toString());
+        } catch (NumberFormatException nfe){
+            throw new IOException("Bad number " + sb + ".");
+        }
+    }
+
+    private String readString() throws IOException {
+        read(); // the opening quote
+        StringBuilder sb = new StringBuilder();
+        while (true){
+            int c = read();
+            if (c=='"'){
+                return sb.toString();
+            }
+            if (c=='\\'){
+                c = read();
+                switch (c){
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i=0; i<4; i++){
+                            hex[i] = (char) read();
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException nfe){
+                            throw new IOException("Bad escape \\u" + new String(hex) + ".");
+                        }
+                        break;
+                    case -1:
+                        throw new IOException("Capture metadata ends inside a string.");
+                    default: sb.append((char) c); // \" \\ \/
+                }
+            } else if (c==-1){
+                throw new IOException("Capture metadata ends inside a string.");
+            } else {
+                sb.append((char) c);
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        read(); // the opening quote
+        while (true){
+            int c = read();
+            if (c=='"'){
+                return;
+            }
+            if (c=='\\'){
+                c = read();
+            }
+            if (c==-1){
+                throw new IOException("Capture metadata ends inside a string.");
+            }
+        }
+    }
+
+    // The next character that is not whitespace, left unread, or -1 at the end.
+    private int skipWhitespace() throws IOException {
+        int c = peek();
+        while (c==' ' || c=='\n' || c=='\r' || c=='\t'){
+            read();
+            c = peek();
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (mPeeked==-2){
+            mPeeked = mReader.read();
+        }
+        return mPeeked;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        mPeeked = -2;
+        return c;
+    }
+
+}
@@ -0,0 +1,635 @@
+/* CaptureReplay, for replaying a capture recorded on a device (see CaptureEventLog) through the
+ * pairing and saving of frames on this computer, so changes to them can be timed against the order
+ * and timing of real captures, without the phone.
+ *
+ *   java com.devcam.host.CaptureReplay <design>_events.bin [-out dir] [-speed X] [-container]
+ *           [-packedRaw] [-yuvLayout N] [-buffers N] [-camera cameraReport.json] [-keepJournal]
+ *
+ * The events are delivered as the app receives them: capture results on the thread the replay
+ * runs on, standing in for the camera's callback thread, and images on a single saver thread,
+ * standing in for the ImageSaver thread. Their results and images are paired by the same
+ * FramePairing DesignResult uses, and each pair is saved on the saver thread as ImageSaver saves
+ * it: written by YuvWriter, PackedRawWriter or as it is, to a file of its own or into a container
+ * (see BurstContainer), with its CRC-32C and statistics gathered on the way, and recorded in the
+ * design's manifest, statistics and journal, which are written out at the end. The frames are
+ * synthetic, of the recorded format, size and number of bytes; RAW_SENSOR frames not packed are
+ * written as their plain samples, in place of a DNG.
+ *
+ * Each event is delivered at its recorded time after the first, divided by -speed (1 by default).
+ * With -speed 0 they are delivered as fast as they can be, all on the saver thread, in the
+ * recorded order, so the frames, manifest and journal come out the same on every run. Frames are
+ * saved to -out, or to a temporary directory deleted afterwards. The journal is deleted once the
+ * design is finished, as on the device, unless -keepJournal is given.
+ *
+ * Reported are the time the replay took, how long each Image was held from its arrival until it
+ * was saved (and its buffer could have been freed), how long it waited to be paired, the most
+ * Images of one stream held at once, and the MB/s saved. The exit status is 1 if more Images of a
+ * stream were held at once than its ImageReader has buffers, -buffers (by default as many as
+ * RemoteCaptureActivity gives a design of this length), since the device would have had to hold
+ * back frames.
+ */
+
+package com.devcam.host;
+
+import com.devcam.io.BurstContainer;
+import com.devcam.io.BurstContainerWriter;
+import com.devcam.io.CaptureEventLog;
+import com.devcam.io.Crc32c;
+import com.devcam.io.DesignJournal;
+import com.devcam.io.DesignManifest;
+import com.devcam.io.DesignStatistics;
+import com.devcam.io.FramePairing;
+import com.devcam.io.FrameStatistics;
+import com.devcam.io.PackedRawFormat;
+import com.devcam.io.PackedRawWriter;
+import com.devcam.io.YuvFormat;
+import com.devcam.io.YuvWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CheckedOutputStream;
+
+public class CaptureReplay {
+
+    static final String WHITE_LEVEL_KEY = "android.sensor.info.whiteLevel";
+    static final int DEFAULT_WHITE_LEVEL = 1023;
+    // Bytes reserved for a frame's file beyond its samples, for the header of its format.
+    static final int HEADER_ALLOWANCE = 4096;
+
+
+    /* A frame's CaptureResult, as far as the log knows it. */
+    static class Result {
+        final long timestamp;
+        final long frameNumber;
+        final int index; // place in the design, in the order the results came in
+
+        Result(long timestamp, long frameNumber, int index){
+            this.timestamp = timestamp;
+            this.frameNumber = frameNumber;
+            this.index = index;
+        }
+
+        // Stands in for CameraReport.captureResultToJson().
+        String toJson(){
+            return "{\"android.sensor.timestamp\":\"" + timestamp + "\",\"frameNumber\":\"" + frameNumber + "\"}";
+        }
+    }
+
+    /* An Image, as far as the log knows it, and when it arrived. */
+    static class Arrival {
+        final CaptureEventLog.Event event;
+        final long arrived; // System.nanoTime()
+
+        Arrival(CaptureEventLog.Event event, long arrived){
+            this.event = event;
+            this.arrived = arrived;
+        }
+    }
+
+
+    private final String mDesignName;
+    private final File mDir;
+    private final boolean mUseContainer;
+    private final boolean mPackRaw;
+    private final int mYuvFlags;
+    private final int mWhiteLevel;
+    private boolean mKeepJournal = false;
+    // With -speed 0 pairing happens on the saver thread, and pairs are saved there straight away.
+    private boolean mSaveOnPairing = false;
+
+    private final ExecutorService mSaver = Executors.newSingleThreadExecutor();
+    // Reused for every frame, as ImageSaver reuses them on its thread.
+    private final PackedRawWriter mPackedRawWriter = new PackedRawWriter();
+    private YuvWriter mYuvWriter;
+    // One synthetic frame for each format and size, shared by all the frames like it.
+    private final Map<String,ByteBuffer[]> mFrames = new HashMap<String,ByteBuffer[]>();
+
+    private BurstContainerWriter mContainer;
+    private DesignManifest mManifest;
+    private DesignStatistics mStatistics;
+    private DesignJournal mJournal;
+    private FramePairing<Result,Arrival> mPairing;
+    private CountDownLatch mUnsaved;
+
+    // Measurements of a replay.
+    private final TimingReport.Samples mHeld = new TimingReport.Samples(); // ms from arrival to saved
+    private final TimingReport.Samples mUnpaired = new TimingReport.Samples(); // ms from arrival to paired
+    // Images held of each stream, keyed by ImageFormat, as each ImageReader has buffers of its own.
+    private final Map<Integer,AtomicInteger> mNumHeld = new HashMap<Integer,AtomicInteger>();
+    private int mMostHeld = 0;
+    private long mBytesSaved = 0;
+    private int mFailed = 0;
+
+
+    // - - - Constructor - - -
+    public CaptureReplay(String designName, File dir, boolean useContainer, boolean packRaw, int yuvFlags, int whiteLevel){
+        mDesignName = designName;
+        mDir = dir;
+        mUseContainer = useContainer;
+        mPackRaw = packRaw;
+        mYuvFlags = yuvFlags;
+        mWhiteLevel = whiteLevel;
+    }
+
+    /* Leave the journal in place when the design is finished, rather than delete it. */
+    public void setKeepJournal(boolean keepJournal){
+        mKeepJournal = keepJournal;
+    }
+
+
+    /* static int countFrames(List<CaptureEventLog.Event>)
+     *
+     * The number of frames of the design: of the results it got.
+     */
+    static int countFrames(List<CaptureEventLog.Event> events){
+        int frames = 0;
+        for (CaptureEventLog.Event event : events){
+            frames += (event.type==CaptureEventLog.COMPLETED) ? 1 : 0;
+        }
+        return frames;
+    }
+
+    /* static int countStreams(List<CaptureEventLog.Event>)
+     *
+     * The number of output streams of the design: of the formats of its images.
+     */
+    static int countStreams(List<CaptureEventLog.Event> events){
+        Set<Integer> formats = new HashSet<Integer>();
+        for (CaptureEventLog.Event event : events){
+            if (event.type==CaptureEventLog.IMAGE){
+                formats.add(event.format);
+            }
+        }
+        return formats.size();
+    }
+
+    /* static int countPairable(List<CaptureEventLog.Event>)
+     *
+     * The number of images that have a result to be paired with.
+     */
+    static int countPairable(List<CaptureEventLog.Event> events){
+        Set<Long> completed = new HashSet<Long>();
+        for (CaptureEventLog.Event event : events){
+            if (event.type==CaptureEventLog.COMPLETED){
+                completed.add(event.timestamp);
+            }
+        }
+        int pairable = 0;
+        for (CaptureEventLog.Event event : events){
+            pairable += (event.type==CaptureEventLog.IMAGE && completed.contains(event.timestamp)) ? 1 : 0;
+        }
+        return pairable;
+    }
+
+
+    /* long replay(List<CaptureEventLog.Event>, double)
+     *
+     * Deliver the events at their recorded times divided by the speed, or as fast as possible if it
+     * is 0, and wait until every frame that can be paired is saved and the design's files written.
+     * Returns the ns the events were delivered late by, at most.
+     */
+    public long replay(List<CaptureEventLog.Event> events, double speed) throws IOException, InterruptedException {
+        mDir.mkdirs();
+        mManifest = new DesignManifest();
+        mStatistics = new DesignStatistics();
+        mContainer = null;
+        mSaveOnPairing = (speed<=0);
+        if (mUseContainer){
+            long bytes = 0;
+            for (CaptureEventLog.Event event : events){
+                bytes += (event.type==CaptureEventLog.IMAGE) ? event.size + HEADER_ALLOWANCE : 0;
+            }
+            mContainer = new BurstContainerWriter(new File(mDir, mDesignName + BurstContainer.EXTENSION), bytes);
+        }
+        mJournal = new DesignJournal(new File(mDir, mDesignName + DesignJournal.FILE_SUFFIX),
+                (mContainer!=null) ? mContainer.getFile().getName() : null);
+        mPairing = new FramePairing<Result,Arrival>(countFrames(events), countStreams(events), mPairingListener);
+        mUnsaved = new CountDownLatch(countPairable(events));
+        for (CaptureEventLog.Event event : events){
+            if (event.type==CaptureEventLog.IMAGE && !mNumHeld.containsKey(event.format)){
+                mNumHeld.put(event.format, new AtomicInteger());
+            }
+        }
+
+        long late = 0;
+        int numResults = 0;
+        long t0 = System.nanoTime();
+        for (final CaptureEventLog.Event event : events){
+            if (speed>0){
+                long due = t0 + (long) (event.time/speed);
+                long now;
+                while ((now = System.nanoTime())<due){
+                    LockSupport.parkNanos(due - now);
+                }
+                late = Math.max(late, now - due);
+            }
+            switch (event.type){
+                case CaptureEventLog.COMPLETED:
+                    final Result result = new Result(event.timestamp, event.frameNumber, numResults++);
+                    if (speed>0){
+                        mPairing.recordResult(result, event.timestamp);
+                    } else {
+                        // In the order of the images, so frames are paired and saved the same way every time.
+                        mSaver.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                mPairing.recordResult(result, result.timestamp);
+                            }
+                        });
+                    }
+                    break;
+                case CaptureEventLog.IMAGE:
+                    final long arrived = System.nanoTime();
+                    mMostHeld = Math.max(mMostHeld, mNumHeld.get(event.format).incrementAndGet());
+                    mSaver.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            mPairing.recordImage(new Arrival(event, arrived), event.timestamp, event.format);
+                        }
+                    });
+                    break;
+                default:
+                    // The start of a frame only counts for DesignResult's list of timestamps.
+            }
+        }
+
+        mUnsaved.await();
+        mSaver.submit(new Runnable() {
+            @Override
+            public void run() {
+                finishDesign();
+            }
+        });
+        mSaver.shutdown();
+        mSaver.awaitTermination(1, TimeUnit.DAYS);
+        return late;
+    }
+
+
+    private final FramePairing.Listener<Result,Arrival> mPairingListener = new FramePairing.Listener<Result,Arrival>() {
+        @Override
+        public void onPaired(final Arrival image, final Result result, int format){
+            synchronized (mUnpaired){
+                mUnpaired.add((System.nanoTime() - image.arrived)/1e6);
+            }
+            final String filename = mDesignName + "-" + (result.index + 1) + fileType(format);
+            mJournal.framePaired(result.index, result.timestamp, filename, result.toJson());
+            if (mSaveOnPairing){
+                // Queued again, the save would land among the events still being queued wherever
+                // the replay thread had got to, and the journal would differ from run to run.
+                save(image, result, filename);
+                return;
+            }
+            mSaver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    save(image, result, filename);
+                }
+            });
+        }
+    };
+
+    private String fileType(int format){
+        switch (format){
+            case BurstContainer.FORMAT_JPEG:
+                return ".jpg";
+            case BurstContainer.FORMAT_YUV_420_888:
+                return ".yuv";
+            case BurstContainer.FORMAT_RAW_SENSOR:
+                return mPackRaw ? PackedRawFormat.EXTENSION : ".dng";
+            default:
+                return ".bin";
+        }
+    }
+
+
+    /* void save(Arrival, Result, String)
+     *
+     * Save a paired frame, as ImageSaver.run() does. This is a copy of it, since ImageSaver can't
+     * run off the device, so it has to be kept in step with it.
+     */
+    private void save(Arrival image, Result result, String filename){
+        CaptureEventLog.Event event = image.event;
+        try {
+            Crc32c crc = new Crc32c();
+            FrameStatistics statistics = (event.format==BurstContainer.FORMAT_YUV_420_888) ? new FrameStatistics()
+                    : (event.format==BurstContainer.FORMAT_RAW_SENSOR) ? new FrameStatistics(0, mWhiteLevel) : null;
+            DesignManifest.Entry saved;
+            BurstContainer.Entry entry = null;
+            if (mContainer!=null){
+                int containerFormat = (mPackRaw && event.format==BurstContainer.FORMAT_RAW_SENSOR)
+                        ? BurstContainer.FORMAT_PACKED_RAW : event.format;
+                writeFrame(new CheckedOutputStream(mContainer.beginFrame(containerFormat, event.timestamp), crc), event, statistics);
+                String metadata = DesignStatistics.withStatistics(result.toJson(), statistics);
+                entry = mContainer.endFrame(metadata.getBytes("UTF-8"));
+                saved = new DesignManifest.Entry(mContainer.getFile().getName(), entry.getOffset(),
+                        entry.getLength(), crc.getValue(), event.timestamp);
+            } else {
+                RandomAccessFile file = new RandomAccessFile(new File(mDir, filename), "rw");
+                boolean written = false;
+                try {
+                    file.setLength(event.size + HEADER_ALLOWANCE);
+                    OutputStream output = new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), 64*1024);
+                    writeFrame(new CheckedOutputStream(output, crc), event, statistics);
+                    output.flush();
+                    long length = file.getChannel().position();
+                    file.setLength(length);
+                    saved = new DesignManifest.Entry(filename, DesignManifest.WHOLE_FILE, length, crc.getValue(), event.timestamp);
+                    written = true;
+                } finally {
+                    file.close();
+                    // Don't leave a preallocated file behind, padded with zeros past what was written.
+                    if (!written){
+                        new File(mDir, filename).delete();
+                    }
+                }
+            }
+            mManifest.add(saved);
+            mJournal.frameSaved(filename, saved, entry);
+            if (statistics!=null){
+                mStatistics.add(filename, statistics);
+            }
+            mBytesSaved += saved.getLength();
+        } catch (IOException ioe){
+            ioe.printStackTrace();
+            mFailed++;
+            if (mContainer!=null){
+                try {
+                    mContainer.abortFrame();
+                } catch (IOException aioe){
+                    aioe.printStackTrace();
+                }
+            }
+        } finally {
+            mHeld.add((System.nanoTime() - image.arrived)/1e6);
+            mNumHeld.get(event.format).decrementAndGet();
+            mUnsaved.countDown();
+        }
+    }
+
+    /* void writeFrame(OutputStream, CaptureEventLog.Event, FrameStatistics)
+     *
+     * Write a synthetic frame like the Image of the event, as ImageSaver.writeImage() would write it.
+     */
+    private void writeFrame(OutputStream output, CaptureEventLog.Event event, FrameStatistics statistics) throws IOException {
+        ByteBuffer[] planes = syntheticFrame(event);
+        switch (event.format){
+            case BurstContainer.FORMAT_YUV_420_888:
+                if (mYuvWriter==null){
+                    mYuvWriter = new YuvWriter(mYuvFlags);
+                }
+                mYuvWriter.setStatistics(statistics);
+                try {
+                    mYuvWriter.write(output, event.width, event.height, planes,
+                            new int[]{1, 2, 2}, new int[]{event.width, event.width, event.width});
+                } finally {
+                    mYuvWriter.setStatistics(null);
+                }
+                break;
+            case BurstContainer.FORMAT_RAW_SENSOR:
+                int rowStride = rawRowStride(event);
+                if (mPackRaw){
+                    PackedRawFormat.Header header = new PackedRawFormat.Header();
+                    header.width = event.width;
+                    header.height = event.height;
+                    header.timestamp = event.timestamp;
+                    header.whiteLevel = mWhiteLevel;
+                    mPackedRawWriter.setStatistics(statistics);
+                    try {
+                        mPackedRawWriter.write(output, header, planes[0], 2, rowStride);
+                    } finally {
+                        mPackedRawWriter.setStatistics(null);
+                    }
+                    break;
+                }
+                writeBytes(output, planes[0]);
+                statistics.addRawPlane(planes[0], 2, rowStride, event.width, event.height);
+                break;
+            default:
+                writeBytes(output, planes[0]);
+        }
+    }
+
+    private static void writeBytes(OutputStream output, ByteBuffer buffer) throws IOException {
+        output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    // Bytes per row of the RAW_SENSOR plane: the recorded size spread over the rows, if that fits.
+    private static int rawRowStride(CaptureEventLog.Event event){
+        long stride = event.size/Math.max(1, event.height);
+        return (int) Math.max(2L*event.width, stride);
+    }
+
+
+    /* ByteBuffer[] syntheticFrame(CaptureEventLog.Event)
+     *
+     * The planes of a frame of the event's format and size: a smooth gradient plus noise, so the
+     * writers and statistics have something like a real frame to go through. A YUV_420_888 frame
+     * has its chroma planes interleaved, as most devices give them; other formats have one plane of
+     * the recorded number of bytes.
+     */
+    private ByteBuffer[] syntheticFrame(CaptureEventLog.Event event){
+        String key = event.format + ":" + event.width + "x" + event.height + ":" + event.size;
+        ByteBuffer[] planes = mFrames.get(key);
+        if (planes!=null){
+            return planes;
+        }
+        Random random = new Random(event.format);
+        int w = event.width;
+        int h = event.height;
+        if (event.format==BurstContainer.FORMAT_YUV_420_888){
+            byte[] y = new byte[w*h];
+            for (int r=0; r<h; r++){
+                for (int c=0; c<w; c++){
+                    y[r*w + c] = (byte) Math.min(255, (c*200)/Math.max(1, w) + 20 + random.nextInt(8));
+                }
+            }
+            // Both chroma planes come from one buffer of interleaved samples, V one byte after U.
+            byte[] uv = new byte[w*(h/2)];
+            for (int i=0; i<uv.length; i++){
+                uv[i] = (byte) (128 + random.nextInt(4));
+            }
+            ByteBuffer u = ByteBuffer.wrap(uv, 0, Math.max(0, uv.length - 1)).slice();
+            ByteBuffer v = ByteBuffer.wrap(uv, Math.min(1, uv.length), Math.max(0, uv.length - 1)).slice();
+            planes = new ByteBuffer[]{ByteBuffer.wrap(y), u, v};
+        } else if (event.format==BurstContainer.FORMAT_RAW_SENSOR){
+            int rowStride = rawRowStride(event);
+            ByteBuffer raw = ByteBuffer.allocate(rowStride*h).order(ByteOrder.LITTLE_ENDIAN);
+            for (int r=0; r<h; r++){
+                for (int c=0; c<w; c++){
+                    int sample = (c*(mWhiteLevel - 64))/Math.max(1, w) + 64 + random.nextInt(16);
+                    raw.putShort(r*rowStride + 2*c, (short) Math.min(mWhiteLevel, sample));
+                }
+            }
+            planes = new ByteBuffer[]{raw};
+        } else {
+            byte[] bytes = new byte[(int) Math.min(Integer.MAX_VALUE - 8, event.size)];
+            random.nextBytes(bytes);
+            planes = new ByteBuffer[]{ByteBuffer.wrap(bytes)};
+        }
+        mFrames.put(key, planes);
+        return planes;
+    }
+
+
+    /* void finishDesign()
+     *
+     * Write out the design's files once all its frames are saved, as RemoteCaptureActivity does.
+     */
+    private void finishDesign(){
+        try {
+            if (mContainer!=null){
+                mContainer.close();
+            }
+            mManifest.writeOut(new File(mDir, mDesignName + DesignManifest.FILE_SUFFIX));
+            mStatistics.writeOut(new File(mDir, mDesignName + DesignStatistics.FILE_SUFFIX));
+            if (mKeepJournal){
+                mJournal.close();
+            } else {
+                mJournal.complete();
+            }
+        } catch (IOException ioe){
+            ioe.printStackTrace();
+            mJournal.close();
+        }
+    }
+
+
+    private static void delete(File file){
+        File[] children = file.listFiles();
+        if (children!=null){
+            for (File child : children){
+                delete(child);
+            }
+        }
+        if (!file.delete()){
+            System.err.println("Could not delete " + file);
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File log = null;
+        File out = null;
+        File camera = null;
+        double speed = 1;
+        boolean container = false;
+        boolean packRaw = false;
+        boolean keepJournal = false;
+        int yuvFlags = YuvFormat.FLAG_COMPACT_ROWS;
+        int buffers = -1;
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-out") && i+1<args.length){
+                out = new File(args[++i]);
+            } else if (args[i].equals("-speed") && i+1<args.length){
+                speed = Math.max(0, Double.parseDouble(args[++i]));
+            } else if (args[i].equals("-container")){
+                container = true;
+            } else if (args[i].equals("-packedRaw")){
+                packRaw = true;
+            } else if (args[i].equals("-keepJournal")){
+                keepJournal = true;
+            } else if (args[i].equals("-yuvLayout") && i+1<args.length){
+                yuvFlags = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-buffers") && i+1<args.length){
+                buffers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-camera") && i+1<args.length){
+                camera = new File(args[++i]);
+            } else if (log==null){
+                log = new File(args[i]);
+            }
+        }
+        if (log==null || !log.isFile()){
+            System.err.println("Usage: CaptureReplay <design>_events.bin [-out dir] [-speed X] [-container]"
+                    + " [-packedRaw] [-yuvLayout N] [-buffers N] [-camera cameraReport.json] [-keepJournal]");
+            System.exit(2);
+        }
+
+        List<CaptureEventLog.Event> events = CaptureEventLog.read(log);
+        String designName = log.getName();
+        if (designName.endsWith(CaptureEventLog.FILE_SUFFIX)){
+            designName = designName.substring(0, designName.length() - CaptureEventLog.FILE_SUFFIX.length());
+        }
+        int frames = countFrames(events);
+        int streams = countStreams(events);
+        int images = 0;
+        for (CaptureEventLog.Event event : events){
+            images += (event.type==CaptureEventLog.IMAGE) ? 1 : 0;
+        }
+        int pairable = countPairable(events);
+        if (buffers<0){
+            // As RemoteCaptureActivity.imageBufferSizer().
+            buffers = Math.min(30, frames) + 2;
+        }
+        int whiteLevel = DEFAULT_WHITE_LEVEL;
+        if (camera!=null){
+            double[] level = DeviceCharacteristics.read(camera).getNumbers(WHITE_LEVEL_KEY);
+            if (level!=null){
+                whiteLevel = (int) level[0];
+            }
+        }
+
+        boolean temporary = (out==null);
+        File dir = temporary ? Files.createTempDirectory("devcam-replay").toFile() : new File(out, designName);
+        CaptureReplay replay = new CaptureReplay(designName, dir, container, packRaw, yuvFlags, whiteLevel);
+        replay.setKeepJournal(keepJournal);
+        long recorded = events.isEmpty() ? 0 : events.get(events.size() - 1).time;
+        long t0 = System.nanoTime();
+        long late;
+        try {
+            late = replay.replay(events, speed);
+        } finally {
+            if (temporary){
+                delete(dir);
+            }
+        }
+        long t1 = System.nanoTime();
+
+        System.out.println(String.format("Replayed %s: %d frames, %d streams, %d images, recorded over %.3f s,"
+                + " in %.3f s at %s.", designName, frames, streams, images, recorded/1e9, (t1 - t0)/1e9,
+                (speed>0) ? "speed " + speed : "full speed"));
+        if (pairable<images){
+            System.out.println((images - pairable) + " images had no result to be paired with.");
+        }
+        if (replay.mFailed>0){
+            System.out.println(replay.mFailed + " frames could not be saved.");
+        }
+        double[] held = replay.mHeld.percentiles(0.5, 0.9, 1);
+        double[] unpaired = replay.mUnpaired.percentiles(0.5, 0.9, 1);
+        System.out.println(String.format("Images held until saved:     p50 %8.2f ms, p90 %8.2f ms, max %8.2f ms",
+                held[0], held[1], held[2]));
+        System.out.println(String.format("Images waiting to be paired: p50 %8.2f ms, p90 %8.2f ms, max %8.2f ms",
+                unpaired[0], unpaired[1], unpaired[2]));
+        System.out.println(String.format("Most images of a stream held at once: %d, of %d buffers. Saved %.1f MB at %.1f MB/s.",
+                replay.mMostHeld, buffers, replay.mBytesSaved/1e6, replay.mBytesSaved/1e6/((t1 - t0)/1e9)));
+        if (speed>0){
+            System.out.println(String.format("Events were delivered late by at most %.2f ms.", late/1e6));
+        }
+        if (speed>0 && replay.mMostHeld>buffers){
+            System.out.println("More images were held than the ImageReader has buffers: the device would have"
+                    + " had to hold back frames.");
+            System.exit(1);
+        }
+    }
+
+}
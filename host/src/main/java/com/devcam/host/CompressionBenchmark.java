@@ -0,0 +1,262 @@
+/* CompressionBenchmark, for weighing up the lossless compression of frames (see CompressedFrame)
+ * against writing them plainly.
+ *
+ *   java com.devcam.host.CompressionBenchmark [-threads N] [-reps N] [.dng | .yuv file]...
+ *
+ * Runs on synthetic frames, a 12 MP RAW_SENSOR frame of 10-bit samples and a 12 MP YUV_420_888
+ * frame, each a smooth gradient plus sensor-like noise, and on any real frames given. For each
+ * frame it reports the compression ratio, and the throughput in MB/s of the original bytes of
+ *   - the plain writer, copying the bytes through the same buffered stream ImageSaver uses,
+ *   - the compressing writer on 1 thread and on N threads (default: all cores),
+ *   - decompressing on N threads, from and to temporary files.
+ * Compressed and plain frames are written to memory, so those figures are of the work on the CPU,
+ * not of the disk.
+ * Each measurement is the best of several runs, after warming up.
+ */
+
+package com.devcam.host;
+
+import com.devcam.io.BurstContainer;
+import com.devcam.io.CompressedFrame;
+import com.devcam.io.CompressedFrameReader;
+import com.devcam.io.ParallelCompressingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class CompressionBenchmark {
+
+    static final int WIDTH = 4000;
+    static final int HEIGHT = 3000;
+    static final int WARMUP_RUNS = 2;
+
+    private final int mThreads;
+    private final int mReps;
+    private final ExecutorService mSinglePool = Executors.newSingleThreadExecutor();
+    private final ExecutorService mPool;
+
+
+    // - - - Constructor - - -
+    public CompressionBenchmark(int threads, int reps){
+        mThreads = threads;
+        mReps = reps;
+        mPool = Executors.newFixedThreadPool(threads);
+    }
+
+
+    /* static byte[] syntheticRaw(int, int, long)
+     *
+     * A Bayer frame of 10-bit samples stored as 16-bit little-endian values, like RAW_SENSOR image
+     * data: a gradient per color channel, plus a few codes of noise.
+     */
+    static byte[] syntheticRaw(int width, int height, long seed){
+        Random random = new Random(seed);
+        byte[] frame = new byte[2*width*height];
+        int[] channelGain = {3, 4, 4, 2}; // R, G, G, B
+        for (int y=0; y<height; y++){
+            for (int x=0; x<width; x++){
+                int channel = 2*(y & 1) + (x & 1);
+                double base = 64 + channelGain[channel]*(80.0*x/width + 60.0*y/height);
+                int v = (int) Math.round(base + 3*random.nextGaussian());
+                v = Math.max(0, Math.min(1023, v));
+                int i = 2*(y*width + x);
+                frame[i] = (byte) v;
+                frame[i+1] = (byte) (v >> 8);
+            }
+        }
+        return frame;
+    }
+
+    /* static byte[] syntheticYuv(int, int, long)
+     *
+     * The planes of a YUV_420_888 frame with compact rows: full size Y, then quarter size U and V.
+     */
+    static byte[] syntheticYuv(int width, int height, long seed){
+        Random random = new Random(seed);
+        int cw = (width+1)/2;
+        int ch = (height+1)/2;
+        byte[] frame = new byte[width*height + 2*cw*ch];
+        int i = 0;
+        for (int y=0; y<height; y++){
+            for (int x=0; x<width; x++){
+                frame[i++] = clampByte(40 + 160.0*x/width + 30.0*y/height + 2*random.nextGaussian());
+            }
+        }
+        for (int p=0; p<2; p++){
+            for (int y=0; y<ch; y++){
+                for (int x=0; x<cw; x++){
+                    frame[i++] = clampByte(128 + (p==0 ? 20 : -15)*(double) y/ch + random.nextGaussian());
+                }
+            }
+        }
+        return frame;
+    }
+
+    private static byte clampByte(double v){
+        return (byte) Math.max(0, Math.min(255, Math.round(v)));
+    }
+
+
+    /* void run(String, byte[], int)
+     *
+     * Measure and print the figures for one frame.
+     */
+    public void run(String name, byte[] frame, int filterDistance) throws IOException {
+        double mb = frame.length/(1024.0*1024.0);
+
+        long plain = Long.MAX_VALUE;
+        long single = Long.MAX_VALUE;
+        long multi = Long.MAX_VALUE;
+        long decompress = Long.MAX_VALUE;
+        byte[] compressed = null;
+        for (int r=0; r<WARMUP_RUNS+mReps; r++){
+            boolean timed = (r>=WARMUP_RUNS);
+
+            long t0 = System.nanoTime();
+            writePlain(frame);
+            long t1 = System.nanoTime();
+            compress(frame, filterDistance, mSinglePool, 1);
+            long t2 = System.nanoTime();
+            compressed = compress(frame, filterDistance, mPool, mThreads);
+            long t3 = System.nanoTime();
+            byte[] restored = decompress(compressed);
+            long t4 = System.nanoTime();
+
+            if (!Arrays.equals(restored, frame)){
+                throw new IOException(name + ": decompressed frame differs from the original.");
+            }
+            if (timed){
+                plain = Math.min(plain, t1-t0);
+                single = Math.min(single, t2-t1);
+                multi = Math.min(multi, t3-t2);
+                decompress = Math.min(decompress, t4-t3);
+            }
+        }
+
+        System.out.println(String.format("%-28s %8.1f MB  ratio %5.2fx   plain %7.0f MB/s   compress 1 thread %6.0f MB/s   %d threads %6.0f MB/s   decompress %6.0f MB/s",
+                name, mb, (double) frame.length/compressed.length,
+                rate(mb, plain), rate(mb, single), mThreads, rate(mb, multi), rate(mb, decompress)));
+    }
+
+    private static double rate(double mb, long nanos){
+        return mb/(nanos/1e9);
+    }
+
+
+    private static void writePlain(byte[] frame) throws IOException {
+        OutputStream output = new BufferedOutputStream(new ByteArrayOutputStream(frame.length), 64*1024);
+        // Written in row-sized pieces, as the frame writers do.
+        for (int off=0; off<frame.length; off+=8192){
+            output.write(frame, off, Math.min(8192, frame.length-off));
+        }
+        output.close();
+    }
+
+    private static byte[] compress(byte[] frame, int filterDistance, ExecutorService pool, int threads) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream(frame.length/2);
+        OutputStream output = new ParallelCompressingOutputStream(new BufferedOutputStream(sink, 64*1024),
+                pool, threads, filterDistance);
+        for (int off=0; off<frame.length; off+=8192){
+            output.write(frame, off, Math.min(8192, frame.length-off));
+        }
+        output.close();
+        return sink.toByteArray();
+    }
+
+    private byte[] decompress(byte[] compressed) throws IOException {
+        File in = File.createTempFile("bench", CompressedFrame.EXTENSION);
+        File out = File.createTempFile("bench", ".out");
+        try {
+            OutputStream o = new FileOutputStream(in);
+            o.write(compressed);
+            o.close();
+            CompressedFrameReader.decompress(in, out, mPool, mThreads);
+            return readAll(new FileInputStream(out), (int) out.length());
+        } finally {
+            in.delete();
+            out.delete();
+        }
+    }
+
+    private static byte[] readAll(InputStream input, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        try {
+            int n = 0;
+            while (n<length){
+                int k = input.read(bytes, n, length-n);
+                if (k<0){
+                    throw new IOException("File ended early.");
+                }
+                n += k;
+            }
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+
+    public void shutdown(){
+        mSinglePool.shutdown();
+        mPool.shutdown();
+    }
+
+
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int reps = 5;
+        List<File> files = new ArrayList<File>();
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-threads") && i+1<args.length){
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-reps") && i+1<args.length){
+                reps = Integer.parseInt(args[++i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+
+        CompressionBenchmark bench = new CompressionBenchmark(threads, reps);
+        try {
+            bench.run("synthetic RAW_SENSOR", syntheticRaw(WIDTH, HEIGHT, 1),
+                    CompressedFrame.filterDistance(BurstContainer.FORMAT_RAW_SENSOR));
+            bench.run("synthetic YUV_420_888", syntheticYuv(WIDTH, HEIGHT, 2),
+                    CompressedFrame.filterDistance(BurstContainer.FORMAT_YUV_420_888));
+            for (File f : files){
+                byte[] frame;
+                if (f.getName().endsWith(CompressedFrame.EXTENSION)){
+                    ByteArrayOutputStream original = new ByteArrayOutputStream();
+                    InputStream input = CompressedFrameReader.openStream(new ByteArrayInputStream(
+                            readAll(new FileInputStream(f), (int) f.length())));
+                    byte[] buffer = new byte[64*1024];
+                    int n;
+                    while ((n = input.read(buffer))>=0){
+                        original.write(buffer, 0, n);
+                    }
+                    frame = original.toByteArray();
+                } else {
+                    frame = readAll(new FileInputStream(f), (int) f.length());
+                }
+                String name = f.getName().replace(CompressedFrame.EXTENSION, "");
+                int format = name.endsWith(".yuv") ? BurstContainer.FORMAT_YUV_420_888 : BurstContainer.FORMAT_RAW_SENSOR;
+                bench.run(f.getName(), frame, CompressedFrame.filterDistance(format));
+            }
+        } finally {
+            bench.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/* Decompress, for turning the losslessly compressed frames of a design (.dcz files, see
+ * CompressedFrame) back into the .dng and .yuv files they were.
+ *
+ *   java com.devcam.host.Decompress <.dcz file | design dir | Captured dir>... [-threads N] [-keep]
+ *
+ * Given a directory, every .dcz file in it and in its immediate subdirectories is decompressed. The
+ * chunks of each file are decompressed in parallel. The original is written next to the .dcz file,
+ * which is then deleted unless -keep is given. Note the design's manifest lists the .dcz files, so
+ * run ManifestVerifier before decompressing, or with -keep.
+ */
+
+package com.devcam.host;
+
+import com.devcam.io.CompressedFrame;
+import com.devcam.io.CompressedFrameReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class Decompress {
+
+    private Decompress(){}
+
+
+    /* static List<File> findCompressed(File)
+     *
+     * The .dcz file itself, or those in the directory and its immediate subdirectories.
+     */
+    static List<File> findCompressed(File path){
+        List<File> found = new ArrayList<File>();
+        if (path.isFile()){
+            found.add(path);
+            return found;
+        }
+        List<File> dirs = new ArrayList<File>();
+        dirs.add(path);
+        File[] children = path.listFiles();
+        if (children!=null){
+            for (File child : children){
+                if (child.isDirectory()){
+                    dirs.add(child);
+                }
+            }
+        }
+        for (File dir : dirs){
+            File[] files = dir.listFiles();
+            if (files==null){
+                continue;
+            }
+            for (File f : files){
+                if (f.isFile() && f.getName().endsWith(CompressedFrame.EXTENSION)){
+                    found.add(f);
+                }
+            }
+        }
+        return found;
+    }
+
+
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean keep = false;
+        List<File> files = new ArrayList<File>();
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-threads") && i+1<args.length){
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-keep")){
+                keep = true;
+            } else {
+                files.addAll(findCompressed(new File(args[i])));
+            }
+        }
+        if (files.isEmpty()){
+            System.err.println("Usage: Decompress <.dcz file | design dir | Captured dir>... [-threads N] [-keep]");
+            System.exit(2);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        boolean allOk = true;
+        try {
+            for (File compressed : files){
+                File original = CompressedFrameReader.originalFile(compressed);
+                try {
+                    long length = CompressedFrameReader.decompress(compressed, original, pool, threads);
+                    System.out.println(compressed + " -> " + original.getName() + " (" + length + " bytes, "
+                            + String.format("%.2f", (double) length/compressed.length()) + "x)");
+                    if (!keep && !compressed.delete()){
+                        System.err.println("Could not delete " + compressed);
+                    }
+                } catch (IOException ioe){
+                    System.err.println(compressed + ": " + ioe.getMessage());
+                    original.delete();
+                    allOk = false;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        System.exit(allOk ? 0 : 1);
+    }
+
+}
@@ -0,0 +1,292 @@
+/* DesignTemplates, for generating patterned capture designs on the host: the app's templates (see
+ * CaptureDesign.Creator) and a few more, written as design files the app reads.
+ *
+ *   java com.devcam.host.DesignTemplates <template> <args...> -out design.json [-camera cameraReport.json]
+ *
+ * The templates and their args are
+ *
+ *   burst n                                  n AUTO exposures
+ *   splitExposureTime n                      n exposures of 1/n the AUTO exposure time
+ *   exposureTimeBracketAroundAuto lo hi n    exposure times from lo to hi stops about AUTO
+ *   isoBracketAroundAuto lo hi n             ISOs from lo to hi stops about AUTO
+ *   exposureTimeBracketAbsolute lo hi n      exposure times in ns, linear from lo to hi
+ *   isoBracketAbsolute lo hi n               ISOs, linear from lo to hi
+ *   focusBracketAbsolute near far n          focus distances in m, linear from near to far
+ *   exposureTimeBracketStops lo hi n         exposure times in ns, evenly in stops from lo to hi
+ *   focusBracketDiopters n                   n focus distances evenly in diopters over the lens's range
+ *   noiseGrid t1,t2,... iso1,iso2,...        every pair of the exposure times (ns) and ISOs
+ *
+ * As in the app, the absolute templates leave out exposures the device can not take, when they are
+ * given its characteristics (-camera), which focusBracketDiopters needs. The first four are
+ * relative to the device's auto exposure at capture time, so need none.
+ */
+
+package com.devcam.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DesignTemplates {
+
+    // The value of step i of n from lower to upper, linearly.
+    private static double step(double lower, double upper, int i, int n){
+        return (n<2) ? lower : lower + (upper - lower)*i/(n - 1);
+    }
+
+    private static boolean within(double[] range, double value){
+        return range==null || (value>=range[0] && value<=range[1]);
+    }
+
+
+    /* static CaptureDesignFile burst(int)
+     *
+     * A burst of n auto-exposed/focused frames.
+     */
+    public static CaptureDesignFile burst(int n){
+        CaptureDesignFile design = new CaptureDesignFile();
+        for (int i=0; i<n; i++){
+            design.addExposure(CaptureDesignFile.allAuto());
+        }
+        return design;
+    }
+
+    /* static CaptureDesignFile splitExposureTime(int)
+     *
+     * n exposures each of 1/n the auto exposure time, to be added up into one.
+     */
+    public static CaptureDesignFile splitExposureTime(int n){
+        CaptureDesignFile design = new CaptureDesignFile();
+        for (int i=0; i<n; i++){
+            Object[] values = CaptureDesignFile.allAuto();
+            values[CaptureDesignFile.EXPOSURE_TIME] = CaptureDesignFile.variable(1.0/n);
+            design.addExposure(values);
+        }
+        return design;
+    }
+
+    /* static CaptureDesignFile exposureTimeBracketAroundAuto(double, double, int)
+     *
+     * n exposure times from lowerStops to upperStops about the auto exposure time, linear in stops.
+     */
+    public static CaptureDesignFile exposureTimeBracketAroundAuto(double lowerStops, double upperStops, int n){
+        return bracketAroundAuto(CaptureDesignFile.EXPOSURE_TIME, lowerStops, upperStops, n);
+    }
+
+    /* static CaptureDesignFile isoBracketAroundAuto(double, double, int)
+     *
+     * n ISOs from lowerStops to upperStops about the auto ISO, linear in stops.
+     */
+    public static CaptureDesignFile isoBracketAroundAuto(double lowerStops, double upperStops, int n){
+        return bracketAroundAuto(CaptureDesignFile.SENSITIVITY, lowerStops, upperStops, n);
+    }
+
+    private static CaptureDesignFile bracketAroundAuto(int parameter, double lowerStops, double upperStops, int n){
+        CaptureDesignFile design = new CaptureDesignFile();
+        for (int i=0; i<n; i++){
+            Object[] values = CaptureDesignFile.allAuto();
+            values[parameter] = CaptureDesignFile.variable(Math.pow(2, step(lowerStops, upperStops, i, n)));
+            design.addExposure(values);
+        }
+        return design;
+    }
+
+    /* static CaptureDesignFile exposureTimeBracketAbsolute(DeviceCharacteristics, long, long, int)
+     *
+     * n exposure times in ns from lower to upper, linearly, leaving out any the device can not take.
+     */
+    public static CaptureDesignFile exposureTimeBracketAbsolute(DeviceCharacteristics device,
+                                                                long lower, long upper, int n){
+        double[] range = (device==null) ? null : device.getExposureTimeRange();
+        CaptureDesignFile design = new CaptureDesignFile();
+        for (int i=0; i<n; i++){
+            long time = Math.round(step(lower, upper, i, n));
+            if (within(range, time)){
+                Object[] values = CaptureDesignFile.allAuto();
+                values[CaptureDesignFile.EXPOSURE_TIME] = time;
+                design.addExposure(values);
+            }
+        }
+        return design;
+    }
+
+    /* static CaptureDesignFile isoBracketAbsolute(DeviceCharacteristics, int, int, int)
+     *
+     * n ISOs from lower to upper, linearly, leaving out any the device can not take.
+     */
+    public static CaptureDesignFile isoBracketAbsolute(DeviceCharacteristics device, int lower, int upper, int n){
+        double[] range = (device==null) ? null : device.getSensitivityRange();
+        CaptureDesignFile design = new CaptureDesignFile();
+        for (int i=0; i<n; i++){
+            long iso = Math.round(step(lower, upper, i, n));
+            if (within(range, iso)){
+                Object[] values = CaptureDesignFile.allAuto();
+                values[CaptureDesignFile.SENSITIVITY] = iso;
+                design.addExposure(values);
+            }
+        }
+        return design;
+    }
+
+    /* static CaptureDesignFile focusBracketAbsolute(DeviceCharacteristics, double, double, int)
+     *
+     * n focus distances from near to far meters, linearly, leaving out any nearer than the lens
+     * can focus.
+     */
+    public static CaptureDesignFile focusBracketAbsolute(DeviceCharacteristics device, double near, double far, int n){
+        double nearest = (device==null) ? Double.NaN : device.getMinimumFocusDistance();
+        CaptureDesignFile design = new CaptureDesignFile();
+        for (int i=0; i<n; i++){
+            double diopters = 1/step(near, far, i, n);
+            if (Double.isNaN(nearest) || diopters<=nearest){
+                Object[] values = CaptureDesignFile.allAuto();
+                values[CaptureDesignFile.FOCUS_DISTANCE] = diopters;
+                design.addExposure(values);
+            }
+        }
+        return design;
+    }
+
+    /* static CaptureDesignFile exposureTimeBracketStops(DeviceCharacteristics, long, long, int)
+     *
+     * n exposure times in ns from lower to upper, evenly in stops, so each is the same factor
+     * longer than the last, leaving out any the device can not take. An HDR bracket (see HdrMerge)
+     * that does not depend on what auto exposure settles on.
+     */
+    public static CaptureDesignFile exposureTimeBracketStops(DeviceCharacteristics device,
+                                                             long lower, long upper, int n){
+        double[] range = (device==null) ? null : device.getExposureTimeRange();
+        CaptureDesignFile design = new CaptureDesignFile();
+        double stops = Math.log((double) upper/lower)/Math.log(2);
+        for (int i=0; i<n; i++){
+            long time = Math.round(lower*Math.pow(2, step(0, stops, i, n)));
+            if (within(range, time)){
+                Object[] values = CaptureDesignFile.allAuto();
+                values[CaptureDesignFile.EXPOSURE_TIME] = time;
+                design.addExposure(values);
+            }
+        }
+        return design;
+    }
+
+    /* static CaptureDesignFile focusBracketDiopters(DeviceCharacteristics, int)
+     *
+     * n focus distances from infinity to the nearest the lens can focus, evenly in diopters, which
+     * is evenly in depth of field, for a focus stack (see FocusStack).
+     */
+    public static CaptureDesignFile focusBracketDiopters(DeviceCharacteristics device, int n) throws IOException {
+        double nearest = device.getMinimumFocusDistance();
+        if (!(nearest>0)){
+            throw new IOException("The device's lens has no focus range to bracket.");
+        }
+        CaptureDesignFile design = new CaptureDesignFile();
+        for (int i=0; i<n; i++){
+            Object[] values = CaptureDesignFile.allAuto();
+            values[CaptureDesignFile.FOCUS_DISTANCE] = step(0, nearest, i, n);
+            design.addExposure(values);
+        }
+        return design;
+    }
+
+    /* static CaptureDesignFile noiseGrid(DeviceCharacteristics, long[], int[])
+     *
+     * An exposure for every pair of the exposure times in ns and ISOs, e.g. of a flat field, for
+     * measuring the sensor's noise at each. Pairs the device can not take are left out.
+     */
+    public static CaptureDesignFile noiseGrid(DeviceCharacteristics device, long[] times, int[] isos){
+        double[] timeRange = (device==null) ? null : device.getExposureTimeRange();
+        double[] isoRange = (device==null) ? null : device.getSensitivityRange();
+        CaptureDesignFile design = new CaptureDesignFile();
+        for (int iso : isos){
+            for (long time : times){
+                if (within(timeRange, time) && within(isoRange, iso)){
+                    Object[] values = CaptureDesignFile.allAuto();
+                    values[CaptureDesignFile.EXPOSURE_TIME] = time;
+                    values[CaptureDesignFile.SENSITIVITY] = (long) iso;
+                    design.addExposure(values);
+                }
+            }
+        }
+        return design;
+    }
+
+
+
+    private static CaptureDesignFile generate(String template, String[] a, DeviceCharacteristics device) throws IOException {
+        if (template.equals("burst") && a.length==1){
+            return burst(Integer.parseInt(a[0]));
+        } else if (template.equals("splitExposureTime") && a.length==1){
+            return splitExposureTime(Integer.parseInt(a[0]));
+        } else if (template.equals("exposureTimeBracketAroundAuto") && a.length==3){
+            return exposureTimeBracketAroundAuto(Double.parseDouble(a[0]), Double.parseDouble(a[1]), Integer.parseInt(a[2]));
+        } else if (template.equals("isoBracketAroundAuto") && a.length==3){
+            return isoBracketAroundAuto(Double.parseDouble(a[0]), Double.parseDouble(a[1]), Integer.parseInt(a[2]));
+        } else if (template.equals("exposureTimeBracketAbsolute") && a.length==3){
+            return exposureTimeBracketAbsolute(device, Long.parseLong(a[0]), Long.parseLong(a[1]), Integer.parseInt(a[2]));
+        } else if (template.equals("isoBracketAbsolute") && a.length==3){
+            return isoBracketAbsolute(device, Integer.parseInt(a[0]), Integer.parseInt(a[1]), Integer.parseInt(a[2]));
+        } else if (template.equals("focusBracketAbsolute") && a.length==3){
+            return focusBracketAbsolute(device, Double.parseDouble(a[0]), Double.parseDouble(a[1]), Integer.parseInt(a[2]));
+        } else if (template.equals("exposureTimeBracketStops") && a.length==3){
+            return exposureTimeBracketStops(device, Long.parseLong(a[0]), Long.parseLong(a[1]), Integer.parseInt(a[2]));
+        } else if (template.equals("focusBracketDiopters") && a.length==1){
+            if (device==null){
+                throw new IOException("focusBracketDiopters needs the device's -camera report.");
+            }
+            return focusBracketDiopters(device, Integer.parseInt(a[0]));
+        } else if (template.equals("noiseGrid") && a.length==2){
+            String[] t = a[0].split(",");
+            String[] s = a[1].split(",");
+            long[] times = new long[t.length];
+            int[] isos = new int[s.length];
+            for (int i=0; i<t.length; i++){
+                times[i] = Long.parseLong(t[i].trim());
+            }
+            for (int i=0; i<s.length; i++){
+                isos[i] = Integer.parseInt(s[i].trim());
+            }
+            return noiseGrid(device, times, isos);
+        }
+        return null;
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        String template = null;
+        List<String> templateArgs = new ArrayList<String>();
+        File out = null;
+        File camera = null;
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-out") && i+1<args.length){
+                out = new File(args[++i]);
+            } else if (args[i].equals("-camera") && i+1<args.length){
+                camera = new File(args[++i]);
+            } else if (template==null){
+                template = args[i];
+            } else {
+                templateArgs.add(args[i]);
+            }
+        }
+        CaptureDesignFile design = null;
+        if (template!=null && out!=null){
+            try {
+                DeviceCharacteristics device = (camera==null) ? null : DeviceCharacteristics.read(camera);
+                design = generate(template, templateArgs.toArray(new String[templateArgs.size()]), device);
+            } catch (NumberFormatException nfe){
+                design = null;
+            }
+        }
+        if (design==null){
+            System.err.println("Usage: DesignTemplates <template> <args...> -out design.json [-camera cameraReport.json]");
+            System.exit(2);
+        }
+        if (design.getExposureCount()==0){
+            System.err.println("No exposures of the " + template + " are within the device's limits.");
+            System.exit(1);
+        }
+        design.write(out);
+        System.out.println("Wrote " + design.getExposureCount() + " exposures to " + out);
+    }
+
+}
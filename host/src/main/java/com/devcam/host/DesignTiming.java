@@ -0,0 +1,325 @@
+/* DesignTiming class, when the frames of a captured design were exposed, and how that compares with
+ * what was asked for, from its _capture_metadata.json and _design_request.txt (see TimingReport).
+ *
+ * The frames are put in order of their SENSOR_TIMESTAMP, the start of their exposure, and each gap
+ * between one frame's start and the next compared with the SENSOR_FRAME_DURATION the first of them
+ * was given, which is the least the gap can be. A gap of about k frame durations, for k of 2 or
+ * more, means k - 1 frames were dropped between the two; one over a frame duration by more than
+ * LATE of it, but not enough for a dropped frame, means the second frame was late.
+ *
+ * Each frame's SENSOR_EXPOSURE_TIME is compared with the exposure time of the design's exposure it
+ * was captured for: the i'th exposure for the file numbered i (or else the i'th frame of the
+ * metadata), or, when the design was repeated, the i'th modulo their number. The request file only
+ * has those to 3 significant digits of whole ns, us or ms (see CameraReport.nsToString()), so an
+ * exposure is only counted as off if it is outside all the times that could have been written that
+ * way, by over EXPOSURE_TOLERANCE.
+ * Exposures given as variables, e.g. from auto exposure, can not be compared.
+ */
+
+package com.devcam.host;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class DesignTiming {
+
+    public static final String REQUEST_SUFFIX = "_design_request.txt";
+
+    static final String TIMESTAMP_KEY = "android.sensor.timestamp";
+    static final String FRAME_DURATION_KEY = "android.sensor.frameDuration";
+
+    static final Pattern FRAME_NUMBER = Pattern.compile("(.*)-(\\d{1,9})\\.[^.]*");
+
+    static final double LATE = 0.1; // of a frame duration
+    static final double DROPPED = 1.5; // frame durations
+    static final double EXPOSURE_TOLERANCE = 0.01; // relative
+
+    private final String mName;
+    private final File mFile;
+    private final int mFrames;
+
+    // Of each frame, in order of timestamp; missing values are -1.
+    private final String[] mFilenames;
+    private final long[] mTimestamps;
+    private final long[] mExposures;
+    private final long[] mFrameDurations;
+    private final long[] mRequested;     // requested exposure time, as written
+    private final long[] mRequestedLow;  // the least and most it could have been
+    private final long[] mRequestedHigh;
+
+    // Of each gap between a frame and the next.
+    private final int[] mDropped;
+    private final boolean[] mLate;
+
+
+    private DesignTiming(String name, File file, int frames){
+        mName = name;
+        mFile = file;
+        mFrames = frames;
+        mFilenames = new String[frames];
+        mTimestamps = new long[frames];
+        mExposures = new long[frames];
+        mFrameDurations = new long[frames];
+        mRequested = new long[frames];
+        mRequestedLow = new long[frames];
+        mRequestedHigh = new long[frames];
+        mDropped = new int[Math.max(0, frames - 1)];
+        mLate = new boolean[Math.max(0, frames - 1)];
+    }
+
+
+    /* static DesignTiming read(File)
+     *
+     * Read the timing of a design from its capture metadata file, and the request file next to it,
+     * if there is one.
+     */
+    public static DesignTiming read(File metadataFile) throws IOException {
+        String name = metadataFile.getName();
+        if (name.endsWith(CaptureMetadataReader.FILE_SUFFIX)){
+            name = name.substring(0, name.length() - CaptureMetadataReader.FILE_SUFFIX.length());
+        }
+
+        // Just the fields needed, a record at a time.
+        List<long[]> frames = new ArrayList<long[]>();
+        List<String> filenames = new ArrayList<String>();
+        CaptureMetadataReader reader = new CaptureMetadataReader(metadataFile);
+        try {
+            Map<String,Object> record;
+            int index = 0;
+            while ((record = reader.readNext())!=null){
+                long timestamp = longOf(record.get(TIMESTAMP_KEY));
+                if (timestamp>=0){
+                    Object filename = record.get(CaptureMetadataReader.FILENAME_KEY);
+                    filenames.add((filename==null) ? null : filename.toString());
+                    frames.add(new long[]{timestamp, longOf(record.get(HdrMerge.EXPOSURE_TIME_KEY)),
+                            longOf(record.get(FRAME_DURATION_KEY)), frameIndex(filename, name, index)});
+                }
+                index++;
+            }
+        } finally {
+            reader.close();
+        }
+        List<long[]> requests = readRequest(new File(metadataFile.getParentFile(), name + REQUEST_SUFFIX));
+        int records = 0;
+        for (long[] frame : frames){
+            records = Math.max(records, (int) frame[3] + 1);
+        }
+
+        // In order of timestamp.
+        Integer[] order = new Integer[frames.size()];
+        for (int i=0; i<order.length; i++){
+            order[i] = i;
+        }
+        final List<long[]> byIndex = frames;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b){
+                return Long.compare(byIndex.get(a)[0], byIndex.get(b)[0]);
+            }
+        });
+
+        DesignTiming timing = new DesignTiming(name, metadataFile, frames.size());
+        for (int f=0; f<order.length; f++){
+            long[] frame = frames.get(order[f]);
+            timing.mFilenames[f] = filenames.get(order[f]);
+            timing.mTimestamps[f] = frame[0];
+            timing.mExposures[f] = frame[1];
+            timing.mFrameDurations[f] = frame[2];
+            long[] request = null;
+            int index = (int) frame[3];
+            if (!requests.isEmpty() && records%requests.size()==0){
+                request = requests.get(index%requests.size());
+            }
+            timing.mRequested[f] = (request==null) ? -1 : request[0];
+            timing.mRequestedLow[f] = (request==null) ? -1 : request[1];
+            timing.mRequestedHigh[f] = (request==null) ? -1 : request[2];
+        }
+        timing.findLateFrames();
+        return timing;
+    }
+
+    /* The frame's index in the design, from the number its file is given, <design>-<n>.<type>, or else
+     * its place in the metadata.
+     */
+    private static int frameIndex(Object filename, String name, int index){
+        if (filename!=null){
+            Matcher m = FRAME_NUMBER.matcher(filename.toString());
+            if (m.matches() && m.group(1).equals(name)){
+                return Integer.parseInt(m.group(2)) - 1;
+            }
+        }
+        return index;
+    }
+
+    private static long longOf(Object value){
+        if (value instanceof Number){
+            return ((Number) value).longValue();
+        } else if (value==null){
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException nfe){
+            return -1;
+        }
+    }
+
+
+    private void findLateFrames(){
+        for (int g=0; g<mFrames - 1; g++){
+            long duration = mFrameDurations[g];
+            if (duration<=0){
+                continue;
+            }
+            double gap = (double) (mTimestamps[g + 1] - mTimestamps[g])/duration;
+            if (gap>=DROPPED){
+                mDropped[g] = (int) Math.round(gap) - 1;
+            } else if (gap>1 + LATE){
+                mLate[g] = true;
+            }
+        }
+    }
+
+
+    /* static List<long[]> readRequest(File)
+     *
+     * The requested exposure time of each of the design's exposures, from its request file, as
+     * {written, least, most} in ns, or {-1, -1, -1} where it was a variable. Empty if there is no
+     * request file.
+     */
+    static List<long[]> readRequest(File file) throws IOException {
+        List<long[]> exposures = new ArrayList<long[]>();
+        if (!file.exists()){
+            return exposures;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            boolean table = false;
+            String line;
+            while ((line = in.readLine())!=null){
+                if (line.startsWith("Exposure Time |")){
+                    table = true;
+                } else if (table && !line.trim().isEmpty()){
+                    int comma = line.indexOf(',');
+                    exposures.add(parseDuration((comma<0) ? line : line.substring(0, comma)));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return exposures;
+    }
+
+    /* static long[] parseDuration(String)
+     *
+     * A time as CameraReport.nsToString() writes it, e.g. "33ms", as {written, least, most} in ns:
+     * the value was cut to whole units, then rounded to 3 significant digits.
+     */
+    static long[] parseDuration(String text){
+        String s = text.trim();
+        long unit;
+        if (s.endsWith("ms")){
+            unit = 1000000L;
+        } else if (s.endsWith("\u03bcs") || s.endsWith("us")){
+            unit = 1000L;
+        } else if (s.endsWith("ns")){
+            unit = 1L;
+        } else {
+            return new long[]{-1, -1, -1};
+        }
+        String digits = s.substring(0, s.length() - 2).trim();
+        double value;
+        try {
+            value = Double.parseDouble(digits.replace(',', '.'));
+        } catch (NumberFormatException nfe){
+            return new long[]{-1, -1, -1};
+        }
+        // Places of the whole part beyond the 3 significant digits, which were rounded away.
+        int places = Math.max(0, Long.toString((long) value).length() - 3);
+        double rounding = 0.5*Math.pow(10, places);
+        long written = Math.round(value*unit);
+        return new long[]{written, Math.round((value - rounding)*unit), Math.round((value + rounding + 1)*unit)};
+    }
+
+
+
+    // - - Getters - -
+    public String getName(){
+        return mName;
+    }
+    public File getFile(){
+        return mFile;
+    }
+    public int getFrameCount(){
+        return mFrames;
+    }
+    public String getFilename(int frame){
+        return mFilenames[frame];
+    }
+    public long getTimestamp(int frame){
+        return mTimestamps[frame];
+    }
+    public long getExposureTime(int frame){
+        return mExposures[frame];
+    }
+    public long getFrameDuration(int frame){
+        return mFrameDurations[frame];
+    }
+    /* The exposure time requested for the frame, as written in the request file, or -1. */
+    public long getRequestedExposureTime(int frame){
+        return mRequested[frame];
+    }
+
+    /* The gap from the start of frame to the start of the next. */
+    public long getGap(int frame){
+        return mTimestamps[frame + 1] - mTimestamps[frame];
+    }
+    /* The number of frames dropped after the frame. */
+    public int getDropped(int frame){
+        return mDropped[frame];
+    }
+    /* Whether the frame after this one was late. */
+    public boolean isLate(int frame){
+        return mLate[frame];
+    }
+
+    /* Whether the frame's exposure time can be compared with its requested one. */
+    public boolean hasRequest(int frame){
+        return mRequested[frame]>=0 && mExposures[frame]>=0;
+    }
+    /* Whether the frame's exposure time was outside what could have been requested. */
+    public boolean isExposureOff(int frame){
+        return hasRequest(frame) && (mExposures[frame]<mRequestedLow[frame]*(1 - EXPOSURE_TOLERANCE)
+                || mExposures[frame]>mRequestedHigh[frame]*(1 + EXPOSURE_TOLERANCE));
+    }
+    /* The exposure time over the requested one, less 1. */
+    public double getExposureError(int frame){
+        return (double) mExposures[frame]/Math.max(1, mRequested[frame]) - 1;
+    }
+
+    public int getDroppedCount(){
+        int count = 0;
+        for (int dropped : mDropped){
+            count += dropped;
+        }
+        return count;
+    }
+    public int getLateCount(){
+        int count = 0;
+        for (boolean late : mLate){
+            count += late ? 1 : 0;
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,301 @@
+/* DesignValidator, for checking capture design files on the host before they are pushed to a phone:
+ * that the app can read them, and that the device can take their exposures.
+ *
+ *   java com.devcam.host.DesignValidator <design.json or dir>... [-camera cameraReport.json] [-threads N]
+ *
+ * Every .json under the given directories, at any depth, is checked, other than devCam's own
+ * outputs (camera reports, capture metadata and alignments), on -threads threads (all processors
+ * by default). The problems of each design are printed, and a count of them all at the end; the
+ * exit status is 1 if any design has errors.
+ *
+ * Errors are what would stop the app reading the design (see
+ * CaptureDesign.Creator.loadDesignFromJson()), e.g. a variable not of the form "x*AUTO", or a
+ * number it reads as a whole one that is not, and, given the device's cameraReport.json (see
+ * DeviceCharacteristics), explicit values outside its ranges, focus distances nearer than its
+ * lens can focus, and apertures or focal lengths its lens does not have. Warnings are fields the
+ * app will skip, so are probably misspelled, and explicit exposure times or ISOs on a device
+ * without the MANUAL_SENSOR capability. Variable values depend on auto exposure at capture time,
+ * so only their form is checked.
+ */
+
+package com.devcam.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DesignValidator {
+
+    // As ExposureParameterVariable.checkFeasibleInput() in the app.
+    static final String VARIABLE_FORM = "([0-9]+?(\\.[0-9]+?)?\\*)?[Aa]((UTO)|(uto))?";
+
+    // How near a value must be to one of a list the lens has.
+    static final double LIST_TOLERANCE = 0.005;
+
+
+    /* A problem with a design, or with one of its exposures. */
+    public static class Problem {
+        public final boolean error;
+        public final int exposure; // from 0, or -1 for the design as a whole
+        public final String message;
+
+        Problem(boolean error, int exposure, String message){
+            this.error = error;
+            this.exposure = exposure;
+            this.message = message;
+        }
+
+        @Override
+        public String toString(){
+            return (error ? "error: " : "warning: ") + ((exposure<0) ? "" : "exposure " + (exposure + 1) + ": ")
+                    + message;
+        }
+    }
+
+
+    private final DeviceCharacteristics mDevice;
+
+
+    // - - - Constructor - - -
+    /* Checks against the device's characteristics, or only that the app can read the designs if null. */
+    public DesignValidator(DeviceCharacteristics device){
+        mDevice = device;
+    }
+
+
+    /* List<Problem> validate(CaptureDesignFile)
+     *
+     * The problems with the design; none if it is fine.
+     */
+    public List<Problem> validate(CaptureDesignFile design){
+        List<Problem> problems = new ArrayList<Problem>();
+        if (design.getExposureCount()==0){
+            problems.add(new Problem(true, -1, "the design has no exposures"));
+        }
+        for (String field : design.getIgnoredFields()){
+            problems.add(new Problem(false, -1, "the field \"" + field + "\" is not an exposure parameter and is skipped"));
+        }
+
+        double[] timeRange = null;
+        double[] isoRange = null;
+        double nearest = Double.NaN;
+        double[] apertures = null;
+        double[] focalLengths = null;
+        boolean manual = true;
+        if (mDevice!=null){
+            timeRange = mDevice.getExposureTimeRange();
+            isoRange = mDevice.getSensitivityRange();
+            nearest = mDevice.getMinimumFocusDistance();
+            apertures = mDevice.getApertures();
+            focalLengths = mDevice.getFocalLengths();
+            manual = mDevice.hasCapability("MANUAL_SENSOR");
+        }
+
+        for (int e=0; e<design.getExposureCount(); e++){
+            for (int p=0; p<CaptureDesignFile.PARAMETERS.length; p++){
+                Object value = design.getValue(e, p);
+                String name = CaptureDesignFile.PARAMETERS[p];
+                if (value instanceof String){
+                    String variable = (String) value;
+                    if (!variable.matches(VARIABLE_FORM)){
+                        problems.add(new Problem(true, e, name + " \"" + variable + "\" is neither a number nor of the form x*AUTO"));
+                    } else if (variable.contains("*") && Double.parseDouble(variable.substring(0, variable.indexOf('*')))==0){
+                        problems.add(new Problem(true, e, name + " \"" + variable + "\" is always 0"));
+                    }
+                    continue;
+                }
+                double number = ((Number) value).doubleValue();
+                switch (p){
+                    case CaptureDesignFile.EXPOSURE_TIME:
+                        if (number!=Math.rint(number)){
+                            problems.add(new Problem(true, e, name + " " + value + " is not a whole number of ns"));
+                        } else if (!within(timeRange, number)){
+                            problems.add(new Problem(true, e, name + " " + value + " ns is outside the device's "
+                                    + rangeString(timeRange)));
+                        }
+                        if (!manual){
+                            problems.add(new Problem(false, e, name + " is set, but the device has no MANUAL_SENSOR capability"));
+                        }
+                        break;
+                    case CaptureDesignFile.SENSITIVITY:
+                        if (number!=Math.rint(number) || Math.abs(number)>Integer.MAX_VALUE){
+                            problems.add(new Problem(true, e, name + " " + value + " is not a whole number"));
+                        } else if (!within(isoRange, number)){
+                            problems.add(new Problem(true, e, name + " " + value + " is outside the device's "
+                                    + rangeString(isoRange)));
+                        }
+                        if (!manual){
+                            problems.add(new Problem(false, e, name + " is set, but the device has no MANUAL_SENSOR capability"));
+                        }
+                        break;
+                    case CaptureDesignFile.APERTURE:
+                        if (!listed(apertures, number)){
+                            problems.add(new Problem(true, e, name + " f/" + value + " is not one of the lens's "
+                                    + Arrays.toString(apertures)));
+                        }
+                        break;
+                    case CaptureDesignFile.FOCAL_LENGTH:
+                        if (!listed(focalLengths, number)){
+                            problems.add(new Problem(true, e, name + " " + value + " mm is not one of the lens's "
+                                    + Arrays.toString(focalLengths)));
+                        }
+                        break;
+                    default:
+                        if (number<0){
+                            problems.add(new Problem(true, e, name + " " + value + " diopters is negative"));
+                        } else if (number>nearest){
+                            problems.add(new Problem(true, e, name + " " + value + " diopters is nearer than the lens can focus, "
+                                    + ((nearest==0) ? "as it is fixed-focus" : nearest + " diopters")));
+                        }
+                }
+            }
+        }
+        return problems;
+    }
+
+    private static boolean within(double[] range, double value){
+        return range==null || (value>=range[0] && value<=range[1]);
+    }
+
+    private static String rangeString(double[] range){
+        return "[" + (long) range[0] + ", " + (long) range[1] + "]";
+    }
+
+    private static boolean listed(double[] values, double value){
+        if (values==null){
+            return true;
+        }
+        for (double listed : values){
+            if (Math.abs(listed - value)<=LIST_TOLERANCE){
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /* static List<File> findDesigns(File)
+     *
+     * The design files under the directory, in order, leaving out devCam's other JSON outputs.
+     */
+    public static List<File> findDesigns(File dir){
+        List<File> designs = new ArrayList<File>();
+        findDesigns(dir, designs);
+        return designs;
+    }
+
+    private static void findDesigns(File dir, List<File> designs){
+        File[] files = dir.listFiles();
+        if (files==null){
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files){
+            String name = file.getName();
+            if (file.isDirectory()){
+                findDesigns(file, designs);
+            } else if (name.endsWith(".json") && !name.equals(TimingReport.CAMERA_REPORT)
+                    && !name.endsWith(CaptureMetadataReader.FILE_SUFFIX) && !name.endsWith(MotionField.FILE_SUFFIX)
+                    && !name.startsWith("Failed_CaptureRequest_")){
+                designs.add(file);
+            }
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<File> sources = new ArrayList<File>();
+        File camera = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-camera") && i+1<args.length){
+                camera = new File(args[++i]);
+            } else if (args[i].equals("-threads") && i+1<args.length){
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                sources.add(new File(args[i]));
+            }
+        }
+        List<File> files = new ArrayList<File>();
+        for (File source : sources){
+            if (source.isDirectory()){
+                files.addAll(findDesigns(source));
+            } else if (source.isFile()){
+                files.add(source);
+            }
+        }
+        if (files.isEmpty()){
+            System.err.println("Usage: DesignValidator <design.json or dir>... [-camera cameraReport.json] [-threads N]");
+            System.exit(2);
+        }
+
+        final DesignValidator validator = new DesignValidator((camera==null) ? null : DeviceCharacteristics.read(camera));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int invalid = 0;
+        int warned = 0;
+        long exposures = 0;
+        try {
+            long t0 = System.nanoTime();
+            List<Future<List<Problem>>> checks = new ArrayList<Future<List<Problem>>>();
+            final long[] counts = new long[files.size()];
+            for (int i=0; i<files.size(); i++){
+                final File file = files.get(i);
+                final int index = i;
+                checks.add(pool.submit(new Callable<List<Problem>>() {
+                    @Override
+                    public List<Problem> call() throws IOException {
+                        CaptureDesignFile design;
+                        try {
+                            design = CaptureDesignFile.read(file);
+                        } catch (IOException ioe){
+                            List<Problem> unreadable = new ArrayList<Problem>();
+                            unreadable.add(new Problem(true, -1, "the app can not read it: " + ioe.getMessage()));
+                            return unreadable;
+                        }
+                        counts[index] = design.getExposureCount();
+                        return validator.validate(design);
+                    }
+                }));
+            }
+            for (int i=0; i<files.size(); i++){
+                List<Problem> problems;
+                try {
+                    problems = checks.get(i).get();
+                } catch (ExecutionException ee){
+                    throw new IOException(ee.getCause());
+                }
+                exposures += counts[i];
+                boolean error = false;
+                for (Problem problem : problems){
+                    error |= problem.error;
+                }
+                invalid += error ? 1 : 0;
+                warned += (!error && !problems.isEmpty()) ? 1 : 0;
+                if (!problems.isEmpty()){
+                    System.out.println(files.get(i));
+                    for (Problem problem : problems){
+                        System.out.println("    " + problem);
+                    }
+                }
+            }
+            long t1 = System.nanoTime();
+            System.out.println(String.format("Checked %d designs, %d exposures, in %.2f s: %d fine, %d with warnings,"
+                    + " %d with errors.", files.size(), exposures, (t1 - t0)/1e9, files.size() - invalid - warned,
+                    warned, invalid));
+        } finally {
+            pool.shutdown();
+        }
+        if (invalid>0){
+            System.exit(1);
+        }
+    }
+
+}
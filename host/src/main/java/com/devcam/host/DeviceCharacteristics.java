@@ -0,0 +1,142 @@
+/* DeviceCharacteristics class, the limits of a camera device that designs have to keep to, from
+ * the cameraReport.json devCam writes of its CameraCharacteristics (see
+ * CameraReport.writeCharacteristicsToFile()).
+ *
+ * Every value in that file is a string: Ranges as "[lower, upper]", arrays as their elements
+ * separated by ", ", and keys the device did not fill in as "Null". A limit the file does not have
+ * is reported as missing, and not checked against.
+ */
+
+package com.devcam.host;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Map;
+
+public class DeviceCharacteristics {
+
+    static final String EXPOSURE_TIME_RANGE_KEY = "android.sensor.info.exposureTimeRange";
+    static final String SENSITIVITY_RANGE_KEY = "android.sensor.info.sensitivityRange";
+    static final String MAX_FRAME_DURATION_KEY = "android.sensor.info.maxFrameDuration";
+    static final String MINIMUM_FOCUS_DISTANCE_KEY = "android.lens.info.minimumFocusDistance";
+    static final String APERTURES_KEY = "android.lens.info.availableApertures";
+    static final String FOCAL_LENGTHS_KEY = "android.lens.info.availableFocalLengths";
+    static final String CAPABILITIES_KEY = "android.request.availableCapabilities";
+
+    private final Map<String,Object> mFields;
+
+
+    private DeviceCharacteristics(Map<String,Object> fields){
+        mFields = fields;
+    }
+
+
+    /* static DeviceCharacteristics read(File)
+     *
+     * Read a device's cameraReport.json.
+     */
+    @SuppressWarnings("unchecked")
+    public static DeviceCharacteristics read(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        StringBuilder text = new StringBuilder();
+        try {
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = in.read(buffer))>0){
+                text.append(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        Object json = CaptureMetadataReader.parse(text.toString());
+        if (!(json instanceof Map)){
+            throw new IOException(file + " is not a camera report.");
+        }
+        return new DeviceCharacteristics((Map<String,Object>) json);
+    }
+
+
+    /* String getString(String)
+     *
+     * The field as it was written, or null if the device did not give it.
+     */
+    public String getString(String key){
+        Object value = mFields.get(key);
+        if (value==null || value.toString().equals("Null")){
+            return null;
+        }
+        return value.toString();
+    }
+
+    /* double[] getNumbers(String)
+     *
+     * The numbers of the field, e.g. both ends of a Range, or null if it has none.
+     */
+    public double[] getNumbers(String key){
+        String value = getString(key);
+        if (value==null){
+            return null;
+        }
+        String[] parts = value.replace("[", "").replace("]", "").split(",");
+        double[] numbers = new double[parts.length];
+        try {
+            for (int i=0; i<parts.length; i++){
+                numbers[i] = Double.parseDouble(parts[i].trim());
+            }
+        } catch (NumberFormatException nfe){
+            return null;
+        }
+        return numbers;
+    }
+
+    private double[] getRange(String key){
+        double[] range = getNumbers(key);
+        return (range==null || range.length!=2) ? null : range;
+    }
+
+
+    // - - Getters - -
+    /* {shortest, longest} exposure time in ns, or null. */
+    public double[] getExposureTimeRange(){
+        return getRange(EXPOSURE_TIME_RANGE_KEY);
+    }
+    /* {least, most} sensitivity, or null. */
+    public double[] getSensitivityRange(){
+        return getRange(SENSITIVITY_RANGE_KEY);
+    }
+    /* The longest frame duration in ns, or NaN. */
+    public double getMaxFrameDuration(){
+        double[] value = getNumbers(MAX_FRAME_DURATION_KEY);
+        return (value==null) ? Double.NaN : value[0];
+    }
+    /* The nearest focus distance in diopters, 0 for a fixed-focus lens, or NaN. */
+    public double getMinimumFocusDistance(){
+        double[] value = getNumbers(MINIMUM_FOCUS_DISTANCE_KEY);
+        return (value==null) ? Double.NaN : value[0];
+    }
+    /* The f-numbers the lens can be set to, or null. */
+    public double[] getApertures(){
+        return getNumbers(APERTURES_KEY);
+    }
+    /* The focal lengths in mm the lens can be set to, or null. */
+    public double[] getFocalLengths(){
+        return getNumbers(FOCAL_LENGTHS_KEY);
+    }
+    /* Whether the device lists the capability, e.g. "MANUAL_SENSOR"; true if it lists none. */
+    public boolean hasCapability(String capability){
+        String capabilities = getString(CAPABILITIES_KEY);
+        if (capabilities==null){
+            return true;
+        }
+        for (String listed : capabilities.split(",")){
+            if (listed.trim().equals(capability)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,189 @@
+/* DeviceStorage class, the files devCam has written on a device, as DeviceSync reads them: a listing
+ * of a directory, and a stream of a file from any byte on.
+ *
+ * There are two kinds: Adb, the device itself, through adb run as the app (as devCam.py and the
+ * MATLAB scripts do), and Local, a directory on this computer standing in for the device's
+ * storage, e.g. for trying DeviceSync out, or for a device's card copied off whole.
+ *
+ * Paths are relative to the storage's root, with '/' between directories.
+ */
+
+package com.devcam.host;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public abstract class DeviceStorage {
+
+    /* A file or directory on the device. */
+    public static class RemoteFile {
+        public final String name;
+        public final boolean directory;
+        public final long length;
+        public final long lastModified; // in s
+
+        public RemoteFile(String name, boolean directory, long length, long lastModified){
+            this.name = name;
+            this.directory = directory;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+
+    /* List<RemoteFile> list(String)
+     *
+     * The files and directories in the directory, in order of name; empty if there is no such
+     * directory.
+     */
+    public abstract List<RemoteFile> list(String dir) throws IOException;
+
+    /* InputStream open(String, long)
+     *
+     * A stream of the file, from the given byte to its end.
+     */
+    public abstract InputStream open(String path, long offset) throws IOException;
+
+
+    /* static DeviceStorage of(String)
+     *
+     * The storage a command line names: "adb", or "adb:<serial>" for one of several devices, for the
+     * device's Captured directory, or else a local directory.
+     */
+    public static DeviceStorage of(String name) throws IOException {
+        if (name.equals("adb")){
+            return new Adb(null, Adb.CAPTURED_DIR);
+        } else if (name.startsWith("adb:")){
+            return new Adb(name.substring(4), Adb.CAPTURED_DIR);
+        }
+        File dir = new File(name);
+        if (!dir.isDirectory()){
+            throw new IOException("No such directory: " + name);
+        }
+        return new Local(dir);
+    }
+
+
+
+    /* Local class, a directory standing in for the device's storage. */
+    public static class Local extends DeviceStorage {
+        private final File mRoot;
+
+        public Local(File root){
+            mRoot = root;
+        }
+
+        @Override
+        public List<RemoteFile> list(String dir){
+            List<RemoteFile> files = new ArrayList<RemoteFile>();
+            File[] children = new File(mRoot, dir).listFiles();
+            if (children==null){
+                return files;
+            }
+            Arrays.sort(children);
+            for (File child : children){
+                files.add(new RemoteFile(child.getName(), child.isDirectory(), child.isDirectory() ? 0 : child.length(),
+                        child.lastModified()/1000));
+            }
+            return files;
+        }
+
+        @Override
+        public InputStream open(String path, long offset) throws IOException {
+            FileInputStream input = new FileInputStream(new File(mRoot, path));
+            input.getChannel().position(offset);
+            return input;
+        }
+    }
+
+
+
+    /* Adb class, the device's storage through adb, run as the app so its files can be read. Needs
+     * the device's shell to have toybox's stat and tail, as Android 6 and later do.
+     */
+    public static class Adb extends DeviceStorage {
+        static final String ADB = "adb";
+        static final String PACKAGE = "com.devcam";
+        static final String CAPTURED_DIR = "/storage/emulated/0/Pictures/devCam/Captured";
+
+        private final String mSerial;
+        private final String mRoot;
+
+        public Adb(String serial, String root){
+            mSerial = serial;
+            mRoot = root;
+        }
+
+        // The adb command for running the shell command on the device as the app.
+        private ProcessBuilder command(String adbCommand, String shellCommand){
+            List<String> command = new ArrayList<String>();
+            command.add(ADB);
+            if (mSerial!=null){
+                command.add("-s");
+                command.add(mSerial);
+            }
+            command.add(adbCommand);
+            command.add("run-as " + PACKAGE + " sh -c '" + shellCommand + "'");
+            return new ProcessBuilder(command);
+        }
+
+        private String quoted(String path) throws IOException {
+            if (path.indexOf('\'')>=0 || path.indexOf('"')>=0){
+                throw new IOException("Can not pass a path with quotes through adb: " + path);
+            }
+            return "\"" + mRoot + (path.isEmpty() ? "" : "/" + path) + "\"";
+        }
+
+        @Override
+        public List<RemoteFile> list(String dir) throws IOException {
+            // "length/time/type/path" for each; the path is last, as it has '/'s of its own.
+            Process process = command("shell", "stat -c %s/%Y/%F/%n " + quoted(dir) + "/* 2>/dev/null")
+                    .redirectErrorStream(true).start();
+            List<RemoteFile> files = new ArrayList<RemoteFile>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine())!=null){
+                    String[] fields = line.trim().split("/", 4);
+                    if (fields.length<4){
+                        continue;
+                    }
+                    try {
+                        String name = fields[3].substring(fields[3].lastIndexOf('/') + 1);
+                        files.add(new RemoteFile(name, fields[2].equals("directory"),
+                                Long.parseLong(fields[0]), Long.parseLong(fields[1])));
+                    } catch (NumberFormatException nfe){
+                        // Not a stat line, e.g. the unexpanded '*' of an empty directory.
+                    }
+                }
+            } finally {
+                reader.close();
+                process.destroy();
+            }
+            return files;
+        }
+
+        @Override
+        public InputStream open(String path, long offset) throws IOException {
+            // exec-out, unlike shell, passes the bytes through as they are.
+            final Process process = command("exec-out", "tail -c +" + (offset + 1) + " " + quoted(path)).start();
+            process.getErrorStream().close();
+            return new FilterInputStream(process.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    process.destroy();
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,392 @@
+/* DeviceSync, for copying captured designs off a device, only what is new or changed since the last
+ * time, in place of pulling whole directories with adbpull or devCam.py.
+ *
+ *   java com.devcam.host.DeviceSync <device> <local dir> [design...] [-streams N]
+ *
+ * The device is "adb" (or "adb:<serial>") for its Captured directory, or a directory standing in
+ * for it (see DeviceStorage). Each design there, or just those named, is synced into a directory
+ * of the same name in the local directory, its files copied on -streams concurrent streams (4 by
+ * default). The MB/s reported is of the bytes copied over the whole time the sync took.
+ *
+ * A file is copied if the local directory has no copy, or the device's file has a different length
+ * or modification time than it did when it was last copied, as recorded in the design's .devcam_sync
+ * log. Files that are in the design's manifest (see DesignManifest), which is copied first, are
+ * checked against it as they arrive, and copied again once if they do not match, so a sync is also a
+ * ManifestVerifier run for everything it copies. Files listed in the manifest but missing from the
+ * device are reported.
+ *
+ * Each file is copied into <file>.<length>-<time>.partial, and only renamed to its name and logged
+ * once complete and checked. So a sync cut short, by the cable or by Ctrl-C, is just run again: it
+ * carries on each partial file from where it stopped, as long as the device's file is the same as
+ * it was, and copies nothing that already arrived whole.
+ */
+
+package com.devcam.host;
+
+import com.devcam.io.DesignManifest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DeviceSync {
+
+    public static final String SYNC_LOG = ".devcam_sync";
+    static final String PARTIAL_SUFFIX = ".partial";
+    static final int COPY_BUFFER_SIZE = 256*1024;
+    static final int DEFAULT_STREAMS = 4;
+    static final int ATTEMPTS = 2;
+
+    private final DeviceStorage mDevice;
+    private final File mLocalRoot;
+    private final ExecutorService mPool;
+
+    // Totals over all the designs synced.
+    private int mCopied = 0;
+    private int mUpToDate = 0;
+    private int mFailed = 0;
+    private long mBytes = 0; // copied, not counting what partial files already had
+
+    // Each thread reuses one copy buffer for all the files it copies.
+    private static final ThreadLocal<byte[]> sCopyBuffer = new ThreadLocal<byte[]>(){
+        @Override
+        protected byte[] initialValue(){
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+
+
+    // - - - Constructor - - -
+    public DeviceSync(DeviceStorage device, File localRoot, ExecutorService pool){
+        mDevice = device;
+        mLocalRoot = localRoot;
+        mPool = pool;
+    }
+
+    public int getCopiedCount(){
+        return mCopied;
+    }
+    public int getUpToDateCount(){
+        return mUpToDate;
+    }
+    public int getFailedCount(){
+        return mFailed;
+    }
+    public long getCopiedBytes(){
+        return mBytes;
+    }
+
+
+    /* List<String> findDesigns()
+     *
+     * The names of the designs on the device.
+     */
+    public List<String> findDesigns() throws IOException {
+        List<String> designs = new ArrayList<String>();
+        for (DeviceStorage.RemoteFile file : mDevice.list("")){
+            if (file.directory){
+                designs.add(file.name);
+            }
+        }
+        return designs;
+    }
+
+
+    /* static Map<String,long[]> readLog(File)
+     *
+     * The length and modification time each file of the design had on the device when it was last
+     * copied, from its sync log. Later lines for a file replace earlier ones.
+     */
+    static Map<String,long[]> readLog(File log) throws IOException {
+        Map<String,long[]> synced = new HashMap<String,long[]>();
+        if (!log.isFile()){
+            return synced;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine())!=null){
+                String[] fields = line.split("\t", 3);
+                if (fields.length<3){
+                    continue; // e.g. the end of a line cut short
+                }
+                try {
+                    synced.put(fields[2], new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1])});
+                } catch (NumberFormatException nfe){
+                    // as above
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return synced;
+    }
+
+
+    /* List<String> sync(String)
+     *
+     * Bring the local copy of the design up to date. Returns the problems found, if any.
+     */
+    public List<String> sync(final String design) throws IOException, InterruptedException {
+        List<String> problems = new ArrayList<String>();
+        final File dir = new File(mLocalRoot, design);
+        if (!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("Can not make " + dir);
+        }
+        File logFile = new File(dir, SYNC_LOG);
+        Map<String,long[]> synced = readLog(logFile);
+        final Writer log = new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8");
+        try {
+            List<DeviceStorage.RemoteFile> files = new ArrayList<DeviceStorage.RemoteFile>();
+            DeviceStorage.RemoteFile manifestFile = null;
+            for (DeviceStorage.RemoteFile file : mDevice.list(design)){
+                if (file.directory){
+                    continue;
+                }
+                if (file.name.endsWith(DesignManifest.FILE_SUFFIX)){
+                    manifestFile = file;
+                } else {
+                    files.add(file);
+                }
+            }
+
+            // The manifest first, to check the rest against.
+            final Map<String,List<DesignManifest.Entry>> entries = new HashMap<String,List<DesignManifest.Entry>>();
+            if (manifestFile!=null){
+                if (upToDate(dir, manifestFile, synced)){
+                    mUpToDate++;
+                } else {
+                    String problem = copy(design, dir, manifestFile, null, log);
+                    if (problem!=null){
+                        throw new IOException(problem);
+                    }
+                }
+                for (DesignManifest.Entry entry : DesignManifest.read(new File(dir, manifestFile.name)).getEntries()){
+                    List<DesignManifest.Entry> ofFile = entries.get(entry.getFilename());
+                    if (ofFile==null){
+                        ofFile = new ArrayList<DesignManifest.Entry>();
+                        entries.put(entry.getFilename(), ofFile);
+                    }
+                    ofFile.add(entry);
+                }
+            }
+
+            Set<String> onDevice = new HashSet<String>();
+            List<Future<String>> copies = new ArrayList<Future<String>>();
+            for (final DeviceStorage.RemoteFile file : files){
+                onDevice.add(file.name);
+                if (file.name.endsWith(PARTIAL_SUFFIX) || file.name.equals(SYNC_LOG)){
+                    continue;
+                }
+                if (upToDate(dir, file, synced)){
+                    mUpToDate++;
+                    continue;
+                }
+                copies.add(mPool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return copy(design, dir, file, entries.get(file.name), log);
+                    }
+                }));
+            }
+            for (Future<String> copy : copies){
+                String problem;
+                try {
+                    problem = copy.get();
+                } catch (ExecutionException ee){
+                    problem = String.valueOf(ee.getCause());
+                }
+                if (problem!=null){
+                    problems.add(problem);
+                }
+            }
+            for (String filename : entries.keySet()){
+                if (!onDevice.contains(filename)){
+                    problems.add(filename + ": in the manifest, but not on the device");
+                }
+            }
+        } finally {
+            log.close();
+        }
+        return problems;
+    }
+
+    private static boolean upToDate(File dir, DeviceStorage.RemoteFile file, Map<String,long[]> synced){
+        long[] last = synced.get(file.name);
+        return last!=null && last[0]==file.length && last[1]==file.lastModified
+                && new File(dir, file.name).length()==file.length;
+    }
+
+
+    /* String copy(String, File, RemoteFile, List<DesignManifest.Entry>, Writer)
+     *
+     * Copy the file into the design's local directory, carrying on from a partial copy of it if
+     * there is one, and check it against its manifest entries, if any. A copy cut short is carried
+     * on from where it stopped, and only one that does not match is started again from nothing.
+     * Returns the problem if it could not be copied whole.
+     */
+    private String copy(String design, File dir, DeviceStorage.RemoteFile file, List<DesignManifest.Entry> entries,
+                        Writer log) throws IOException {
+        File partial = new File(dir, file.name + "." + file.length + "-" + file.lastModified + PARTIAL_SUFFIX);
+        removeOtherPartials(dir, file.name, partial);
+        String problem = null;
+        for (int attempt=0; attempt<ATTEMPTS; attempt++){
+            long offset = partial.isFile() ? partial.length() : 0;
+            if (offset>file.length){
+                offset = 0;
+                partial.delete();
+            }
+            long copied = 0;
+            try {
+                InputStream in = mDevice.open(design + "/" + file.name, offset);
+                try {
+                    OutputStream out = new FileOutputStream(partial, true);
+                    try {
+                        byte[] buffer = sCopyBuffer.get();
+                        int n;
+                        while (offset + copied<file.length && (n = in.read(buffer, 0,
+                                (int) Math.min(buffer.length, file.length - offset - copied)))>0){
+                            out.write(buffer, 0, n);
+                            copied += n;
+                        }
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                    addCopied(copied);
+                }
+            } catch (IOException ioe){
+                // Cut off, e.g. by the cable: the next attempt carries on from what arrived.
+                problem = "copy cut short: " + ioe.getMessage();
+                continue;
+            }
+            if (partial.length()<file.length){
+                problem = partial.length() + " bytes copied of " + file.length;
+                continue;
+            }
+
+            problem = check(partial, file, entries);
+            if (problem==null){
+                File whole = new File(dir, file.name);
+                if ((whole.exists() && !whole.delete()) || !partial.renameTo(whole)){
+                    throw new IOException("Can not rename " + partial + " to " + whole);
+                }
+                synchronized (log){
+                    log.write(file.length + "\t" + file.lastModified + "\t" + file.name + "\n");
+                    log.flush();
+                }
+                synchronized (this){
+                    mCopied++;
+                }
+                return null;
+            }
+            // Start again from nothing: the bytes copied do not match, so can not be trusted.
+            partial.delete();
+        }
+        synchronized (this){
+            mFailed++;
+        }
+        return design + "/" + file.name + ": " + problem;
+    }
+
+    private synchronized void addCopied(long bytes){
+        mBytes += bytes;
+    }
+
+    // Partial copies of earlier versions of the file, which can not be carried on from.
+    private static void removeOtherPartials(File dir, String name, File keep){
+        File[] files = dir.listFiles();
+        if (files==null){
+            return;
+        }
+        for (File file : files){
+            String other = file.getName();
+            if (other.startsWith(name + ".") && other.endsWith(PARTIAL_SUFFIX) && !file.equals(keep)
+                    && other.substring(name.length() + 1).matches("\\d+-\\d+\\" + PARTIAL_SUFFIX)){
+                file.delete();
+            }
+        }
+    }
+
+    // The problem with the copy, or null if it is whole and matches the manifest.
+    private static String check(File copy, DeviceStorage.RemoteFile file, List<DesignManifest.Entry> entries){
+        if (copy.length()!=file.length){
+            return copy.length() + " bytes copied of " + file.length;
+        }
+        if (entries!=null){
+            for (DesignManifest.Entry entry : entries){
+                ManifestVerifier.Result result = ManifestVerifier.check(copy, entry);
+                if (!result.isOk()){
+                    return result.toString();
+                }
+            }
+        }
+        return null;
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> names = new ArrayList<String>();
+        int streams = DEFAULT_STREAMS;
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-streams") && i+1<args.length){
+                streams = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                names.add(args[i]);
+            }
+        }
+        if (names.size()<2){
+            System.err.println("Usage: DeviceSync <device> <local dir> [design...] [-streams N]");
+            System.exit(2);
+        }
+        DeviceStorage device = DeviceStorage.of(names.get(0));
+        File localRoot = new File(names.get(1));
+
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        boolean allOk = true;
+        try {
+            long t0 = System.nanoTime();
+            DeviceSync sync = new DeviceSync(device, localRoot, pool);
+            List<String> designs = (names.size()>2) ? names.subList(2, names.size()) : sync.findDesigns();
+            for (String design : designs){
+                int copiedBefore = sync.getCopiedCount();
+                List<String> problems = sync.sync(design);
+                for (String problem : problems){
+                    System.out.println(problem);
+                }
+                System.out.println(design + ": " + (sync.getCopiedCount() - copiedBefore) + " files copied"
+                        + (problems.isEmpty() ? "." : ", " + problems.size() + " problems."));
+                allOk &= problems.isEmpty();
+            }
+            long t1 = System.nanoTime();
+            System.out.println(String.format("Synced %d designs in %.2f s: %d files copied, %d up to date, %d failed;"
+                    + " %.1f MB at %.1f MB/s.", designs.size(), (t1 - t0)/1e9, sync.getCopiedCount(),
+                    sync.getUpToDateCount(), sync.getFailedCount(), sync.getCopiedBytes()/1e6,
+                    sync.getCopiedBytes()/((t1 - t0)/1e9)/1e6));
+        } finally {
+            pool.shutdown();
+        }
+        System.exit(allOk ? 0 : 1);
+    }
+
+}
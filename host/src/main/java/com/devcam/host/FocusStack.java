@@ -0,0 +1,526 @@
+/* FocusStack, for fusing the frames of a focus rack (e.g. a design made by focusBracketAbsolute)
+ * into one image sharp everywhere, and a map of how far away each part of the scene is.
+ *
+ *   java com.devcam.host.FocusStack <design dir> [-type dng|praw|yuv] [-out prefix] [-radius N]
+ *                                   [-threads N]
+ *
+ * Each frame's sharpness at a pixel is the energy of the Laplacian of its luma over the
+ * (2*radius+1)^2 pixels around it (radius 4 by default). The luma of YUV frames is that of their RGB;
+ * of raw frames, the mean of the 2x2 samples from the pixel, which always holds each color of the
+ * CFA, so no demosaicing is needed. Frames are taken in order of the LENS_FOCUS_DISTANCE in their
+ * capture metadata, in diopters, and every pixel is taken from the frame in which it is sharpest.
+ * Its depth is that frame's focus distance, refined between it and its neighbours in the rack by
+ * fitting a parabola to the three sharpnesses.
+ *
+ * The frames are gone through one at a time, each in bands of rows in parallel on -threads threads
+ * (all processors by default), keeping only per-pixel state: the best sharpness so far and whose it
+ * is, the sharpness of the frame before and after it, and the last frame's sharpness. A frame's
+ * values are read from its mapping, band by band, and let go of when it is done, so the memory
+ * needed is some 18 bytes a pixel however long the rack: about 220 MB at 12 MP. A second pass then
+ * reads, for each band, just the frames it takes pixels from.
+ *
+ * Writes, with the design's name as the prefix unless -out says otherwise:
+ *   <prefix>_focused.ppm   The all-in-focus image, 8-bit RGB, from YUV frames, or
+ *   <prefix>_focused.pfm   from raw frames, the all-in-focus CFA samples, 0-1 from black to white.
+ *   <prefix>_depth.pfm     The focus distance of each pixel in diopters (1/meters).
+ *   <prefix>_index.pgm     The index of each pixel's frame, in focus distance order, 16-bit.
+ */
+
+package com.devcam.host;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class FocusStack {
+
+    // Rows of a frame worked on at a time by one thread.
+    static final int TILE_ROWS = 32;
+    static final int DEFAULT_RADIUS = 4;
+
+    static final String FOCUS_DISTANCE_KEY = "android.lens.focusDistance";
+
+    private final ExecutorService mPool;
+    private final int mRadius;
+    private final int mWidth;
+    private final int mHeight;
+
+    // Per-pixel state, kept while the frames are gone through.
+    private final float[] mBest;      // highest sharpness so far
+    private final short[] mIndex;     // index of the frame it is of
+    private final float[] mBefore;    // sharpness of the frame before that one
+    private final float[] mAfter;     // and after it, once seen
+    private final float[] mLast;      // sharpness of the last frame gone through
+    private int mFrames = 0;
+
+    // Each thread reuses its band buffers.
+    private static final ThreadLocal<Band> sBand = new ThreadLocal<Band>(){
+        @Override
+        protected Band initialValue(){
+            return new Band();
+        }
+    };
+
+
+    // - - - Constructor - - -
+    /**
+     * @param pool Pool to work on the bands of frames on.
+     * @param width Width of the frames.
+     * @param height Height of the frames.
+     * @param radius Radius of the window sharpness is measured over.
+     */
+    public FocusStack(ExecutorService pool, int width, int height, int radius){
+        mPool = pool;
+        mRadius = radius;
+        mWidth = width;
+        mHeight = height;
+        int pixels = width*height;
+        mBest = new float[pixels];
+        mIndex = new short[pixels];
+        mBefore = new float[pixels];
+        mAfter = new float[pixels];
+        mLast = new float[pixels];
+        Arrays.fill(mBest, -1f);
+    }
+
+
+    /* A band's buffers. */
+    static final class Band {
+        float[] values = new float[0];
+        float[] luma = new float[0];
+        float[] energy = new float[0];
+        float[] sharpness = new float[0];
+
+        float[] ensure(float[] buffer, int count){
+            return (buffer.length<count) ? new float[count] : buffer;
+        }
+    }
+
+
+    /* void add(LinearFrame)
+     *
+     * Go through the next frame of the rack, in order of focus distance.
+     */
+    public void add(final LinearFrame frame) throws IOException, InterruptedException {
+        if (frame.getWidth()!=mWidth || frame.getHeight()!=mHeight){
+            throw new IOException("Frame is " + frame.getWidth() + "x" + frame.getHeight() + ", not "
+                    + mWidth + "x" + mHeight);
+        }
+        if (mFrames>Short.MAX_VALUE){
+            throw new IOException("Too many frames.");
+        }
+        final int index = mFrames++;
+        runBands(new BandTask() {
+            @Override
+            public void run(int row0, int rows, Band band){
+                sharpness(frame, row0, rows, band);
+                update(index, row0, rows, band.sharpness);
+            }
+        });
+    }
+
+
+    /* Something done to each band of rows, on the pool. */
+    abstract static class BandTask {
+        abstract void run(int row0, int rows, Band band) throws IOException;
+    }
+
+    private void runBands(final BandTask task) throws IOException, InterruptedException {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int row=0; row<mHeight; row+=TILE_ROWS){
+            final int row0 = row;
+            futures.add(mPool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    task.run(row0, Math.min(TILE_ROWS, mHeight - row0), sBand.get());
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures){
+            try {
+                future.get();
+            } catch (ExecutionException ee){
+                for (Future<Void> other : futures){
+                    other.cancel(false);
+                }
+                throw new IOException(ee.getCause());
+            }
+        }
+    }
+
+
+    /* void sharpness(LinearFrame, int, int, Band)
+     *
+     * The sharpness of rows [row0, row0 + rows) of the frame, into the band's sharpness.
+     */
+    void sharpness(LinearFrame frame, int row0, int rows, Band band){
+        int width = mWidth;
+        int channels = frame.getChannels();
+        // Rows needed around the band: the window, the Laplacian's neighbours, and for raw frames
+        // the second row of the 2x2 luma.
+        int top = Math.max(0, row0 - mRadius - 1);
+        int bottom = Math.min(mHeight, row0 + rows + mRadius + 2);
+        int read = bottom - top;
+
+        band.values = band.ensure(band.values, read*width*channels);
+        band.luma = band.ensure(band.luma, read*width);
+        band.energy = band.ensure(band.energy, read*width);
+        band.sharpness = band.ensure(band.sharpness, rows*width);
+        float[] values = band.values;
+        float[] luma = band.luma;
+        float[] energy = band.energy;
+        float[] sharpness = band.sharpness;
+        frame.readRows(top, read, values);
+
+        if (channels==3){
+            for (int i=0, v=0; i<read*width; i++, v+=3){
+                luma[i] = 0.299f*values[v] + 0.587f*values[v + 1] + 0.114f*values[v + 2];
+            }
+        } else {
+            for (int r=0; r<read; r++){
+                int below = (r + 1<read) ? r + 1 : r - 1; // a 2x2 cell at the bottom edge too
+                for (int x=0; x<width; x++){
+                    int right = (x + 1<width) ? x + 1 : x - 1;
+                    luma[r*width + x] = 0.25f*(values[r*width + x] + values[r*width + right]
+                            + values[below*width + x] + values[below*width + right]);
+                }
+            }
+        }
+
+        // Squared Laplacian, with edges repeated; the rows read go one beyond the window either way.
+        for (int r=0; r<read; r++){
+            int up = (r>0) ? r - 1 : r;
+            int down = (r + 1<read) ? r + 1 : r;
+            for (int x=0; x<width; x++){
+                int i = r*width + x;
+                float l = 4f*luma[i] - luma[up*width + x] - luma[down*width + x]
+                        - luma[i - ((x>0) ? 1 : 0)] - luma[i + ((x<width - 1) ? 1 : 0)];
+                energy[i] = l*l;
+            }
+        }
+
+        // Summed over the window: along rows in place, then down columns into the band.
+        for (int r=0; r<read; r++){
+            boxRow(energy, r*width, width, mRadius, luma);
+        }
+        for (int r=0; r<rows; r++){
+            int y = row0 + r;
+            int r0 = Math.max(top, y - mRadius) - top;
+            int r1 = Math.min(bottom - 1, y + mRadius) - top;
+            int out = r*width;
+            for (int x=0; x<width; x++){
+                sharpness[out + x] = 0f;
+            }
+            for (int rr=r0; rr<=r1; rr++){
+                int in = rr*width;
+                for (int x=0; x<width; x++){
+                    sharpness[out + x] += energy[in + x];
+                }
+            }
+        }
+    }
+
+    // Replace row [start, start + width) of the array by its sums over +-radius, using scratch.
+    private static void boxRow(float[] row, int start, int width, int radius, float[] scratch){
+        float sum = 0f;
+        for (int x=0; x<=Math.min(radius, width - 1); x++){
+            sum += row[start + x];
+        }
+        for (int x=0; x<width; x++){
+            scratch[x] = sum;
+            int add = x + radius + 1;
+            int drop = x - radius;
+            if (add<width){
+                sum += row[start + add];
+            }
+            if (drop>=0){
+                sum -= row[start + drop];
+            }
+        }
+        System.arraycopy(scratch, 0, row, start, width);
+    }
+
+
+    /* Fold frame index's sharpness of rows [row0, row0 + rows) into the state. */
+    private void update(int index, int row0, int rows, float[] sharpness){
+        int start = row0*mWidth;
+        int count = rows*mWidth;
+        short previous = (short) (index - 1);
+        for (int i=0; i<count; i++){
+            int p = start + i;
+            float s = sharpness[i];
+            if (mIndex[p]==previous && index>0){
+                mAfter[p] = s;
+            }
+            if (s>mBest[p]){
+                mBest[p] = s;
+                mIndex[p] = (short) index;
+                mBefore[p] = (index>0) ? mLast[p] : s;
+                mAfter[p] = s; // until the next frame is seen
+            }
+            mLast[p] = s;
+        }
+    }
+
+
+    /* float depthAt(int, double[])
+     *
+     * The focus distance at pixel p, between those of the frames, given in the order added.
+     */
+    float depthAt(int p, double[] distances){
+        int i = mIndex[p];
+        double before = mBefore[p];
+        double best = mBest[p];
+        double after = mAfter[p];
+        // Vertex of the parabola through (-1, before), (0, best), (1, after).
+        double curvature = before - 2*best + after;
+        double offset = (curvature<0) ? 0.5*(before - after)/curvature : 0;
+        offset = Math.max(-0.5, Math.min(0.5, offset));
+        int next = (offset<0) ? Math.max(0, i - 1) : Math.min(distances.length - 1, i + 1);
+        return (float) (distances[i] + Math.abs(offset)*(distances[next] - distances[i]));
+    }
+
+
+    /* void compose(List<LinearFrame>, HdrMerge.Sink)
+     *
+     * Write the all-in-focus image, taking each pixel from its sharpest frame, of those added, in
+     * the same order, band by band.
+     */
+    public void compose(final List<LinearFrame> frames, final HdrMerge.Sink sink)
+            throws IOException, InterruptedException {
+        final int channels = frames.get(0).getChannels();
+        runBands(new BandTask() {
+            @Override
+            public void run(int row0, int rows, Band band) throws IOException {
+                int count = rows*mWidth;
+                band.values = band.ensure(band.values, count*channels);
+                band.sharpness = band.ensure(band.sharpness, count*channels);
+                float[] values = band.values;
+                float[] out = band.sharpness;
+                int start = row0*mWidth;
+                int first = Integer.MAX_VALUE;
+                int last = -1;
+                for (int i=0; i<count; i++){
+                    first = Math.min(first, mIndex[start + i]);
+                    last = Math.max(last, mIndex[start + i]);
+                }
+                for (int f=first; f<=last; f++){
+                    boolean used = false;
+                    for (int i=0; i<count && !used; i++){
+                        used = (mIndex[start + i]==f);
+                    }
+                    if (!used){
+                        continue;
+                    }
+                    frames.get(f).readRows(row0, rows, values);
+                    for (int i=0; i<count; i++){
+                        if (mIndex[start + i]==f){
+                            System.arraycopy(values, i*channels, out, i*channels, channels);
+                        }
+                    }
+                }
+                sink.writeRows(row0, rows, out);
+            }
+        });
+    }
+
+
+    /* void writeDepth(File, double[])
+     *
+     * Write the depth map, in diopters, as a PFM.
+     */
+    public void writeDepth(File file, double[] distances) throws IOException {
+        HdrMerge.PfmSink sink = new HdrMerge.PfmSink(file, mWidth, mHeight, 1);
+        float[] row = new float[mWidth];
+        for (int y=0; y<mHeight; y++){
+            for (int x=0; x<mWidth; x++){
+                row[x] = depthAt(y*mWidth + x, distances);
+            }
+            sink.writeRows(y, 1, row);
+        }
+        sink.close();
+    }
+
+
+    /* void writeIndex(File)
+     *
+     * Write each pixel's frame index as a 16-bit binary PGM.
+     */
+    public void writeIndex(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 256*1024));
+        try {
+            out.write(("P5\n" + mWidth + " " + mHeight + "\n65535\n").getBytes("US-ASCII"));
+            for (short index : mIndex){
+                out.writeShort(index);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+
+
+    /* An 8-bit binary PPM, written through a mapping as bands of 0-1 RGB values are finished. */
+    static final class PpmSink extends HdrMerge.Sink {
+
+        private final MappedByteBuffer mData;
+        private final int mHeaderSize;
+        private final int mWidth;
+
+        PpmSink(File file, int width, int height) throws IOException {
+            byte[] header = ("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII");
+            long length = header.length + 3L*width*height;
+            if (length>Integer.MAX_VALUE){
+                throw new IOException("Image too large for one mapping: " + length + " bytes.");
+            }
+            mHeaderSize = header.length;
+            mWidth = width;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+                mData = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            } finally {
+                raf.close();
+            }
+            mData.put(header);
+        }
+
+        @Override
+        public void writeRows(int row0, int rows, float[] rgb){
+            int at = mHeaderSize + 3*row0*mWidth;
+            for (int i=0; i<3*rows*mWidth; i++){
+                mData.put(at + i, (byte) Math.round(255f*Math.max(0f, Math.min(1f, rgb[i]))));
+            }
+        }
+
+        void close(){
+            mData.force();
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File dir = null;
+        String type = null;
+        String prefix = null;
+        int radius = DEFAULT_RADIUS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-type") && i+1<args.length){
+                type = "." + args[++i].toLowerCase();
+            } else if (args[i].equals("-out") && i+1<args.length){
+                prefix = args[++i];
+            } else if (args[i].equals("-radius") && i+1<args.length){
+                radius = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-threads") && i+1<args.length){
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                dir = new File(args[i]);
+            }
+        }
+        if (dir==null || !dir.isDirectory()){
+            System.err.println("Usage: FocusStack <design dir> [-type dng|praw|yuv] [-out prefix] [-radius N] [-threads N]");
+            System.exit(2);
+        }
+
+        List<Map<String,Object>> records = CaptureMetadataReader.readAll(CaptureMetadataReader.find(dir));
+        if (records.isEmpty()){
+            System.err.println("No frames in the capture metadata.");
+            System.exit(2);
+        }
+        if (type==null){
+            for (String linear : HdrMerge.LINEAR_TYPES){
+                if (CaptureMetadataReader.filenameOfType(records.get(0), linear)!=null){
+                    type = linear;
+                    break;
+                }
+            }
+            if (type==null){
+                System.err.println("No .dng, .praw or .yuv frames in the design.");
+                System.exit(2);
+            }
+        }
+
+        // In order of focus distance, far to near.
+        List<Map<String,Object>> rack = new ArrayList<Map<String,Object>>(records);
+        for (Map<String,Object> record : rack){
+            if (record.get(FOCUS_DISTANCE_KEY)==null || CaptureMetadataReader.filenameOfType(record, type)==null){
+                System.err.println("A frame lacks a focus distance or " + type + " file: "
+                        + record.get(CaptureMetadataReader.FILENAME_KEY));
+                System.exit(2);
+            }
+        }
+        Collections.sort(rack, new Comparator<Map<String,Object>>() {
+            @Override
+            public int compare(Map<String,Object> a, Map<String,Object> b){
+                return Double.compare(Double.parseDouble(a.get(FOCUS_DISTANCE_KEY).toString()),
+                        Double.parseDouble(b.get(FOCUS_DISTANCE_KEY).toString()));
+            }
+        });
+
+        List<LinearFrame> frames = new ArrayList<LinearFrame>();
+        double[] distances = new double[rack.size()];
+        for (Map<String,Object> record : rack){
+            distances[frames.size()] = Double.parseDouble(record.get(FOCUS_DISTANCE_KEY).toString());
+            frames.add(LinearFrame.open(new File(dir, CaptureMetadataReader.filenameOfType(record, type))));
+        }
+        LinearFrame first = frames.get(0);
+        if (prefix==null){
+            prefix = new File(dir, dir.getName()).getPath();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            long t0 = System.nanoTime();
+            FocusStack stack = new FocusStack(pool, first.getWidth(), first.getHeight(), radius);
+            for (int f=0; f<frames.size(); f++){
+                stack.add(frames.get(f));
+                System.out.println(String.format("%-24s %8.3f diopters",
+                        CaptureMetadataReader.filenameOfType(rack.get(f), type), distances[f]));
+            }
+            long t1 = System.nanoTime();
+
+            if (first.getChannels()==3){
+                PpmSink sink = new PpmSink(new File(prefix + "_focused.ppm"), first.getWidth(), first.getHeight());
+                stack.compose(frames, sink);
+                sink.close();
+            } else {
+                HdrMerge.PfmSink sink = new HdrMerge.PfmSink(new File(prefix + "_focused.pfm"),
+                        first.getWidth(), first.getHeight(), 1);
+                stack.compose(frames, sink);
+                sink.close();
+            }
+            stack.writeDepth(new File(prefix + "_depth.pfm"), distances);
+            stack.writeIndex(new File(prefix + "_index.pgm"));
+            long t2 = System.nanoTime();
+
+            double megapixels = (double) first.getWidth()*first.getHeight()/1e6;
+            System.out.println(String.format("Stacked %d frames of %dx%d in %.2f s (%.1f MP/s measuring sharpness,"
+                    + " %.2f s composing), peak heap %.0f MB",
+                    frames.size(), first.getWidth(), first.getHeight(), (t2 - t0)/1e9,
+                    megapixels*frames.size()/((t1 - t0)/1e9), (t2 - t1)/1e9,
+                    (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/1e6));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
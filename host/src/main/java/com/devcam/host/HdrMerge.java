@@ -0,0 +1,364 @@
+/* HdrMerge, for merging the frames of an exposure bracket (e.g. a design made by
+ * exposureTimeBracketAroundAuto or isoBracketAroundAuto) into one radiance map.
+ *
+ *   java com.devcam.host.HdrMerge <design dir> [-type dng|praw|yuv] [-out file.pfm] [-threads N]
+ *
+ * The exposure each frame really got is taken from the design's _capture_metadata.json, not from
+ * the request: SENSOR_EXPOSURE_TIME times SENSOR_SENSITIVITY/100. Each frame's values (see
+ * LinearFrame) divided by its exposure are then averaged, pixel by pixel, weighted by
+ *
+ *   w = exposure * hat(value)
+ *
+ * where hat() is 1 over most of the range and falls to 0 at the black level and at SATURATED, so
+ * clipped values count for nothing and noisy dark ones for little, and longer exposures, whose
+ * values have less shot noise for the same light, count for more. A pixel clipped in every frame
+ * gets the value of the shortest exposure, which is as bright as can be told.
+ *
+ * Raw frames (.dng or .praw) are merged sample by sample in their CFA pattern, giving a CFA radiance
+ * map to demosaic; YUV frames into an RGB one. By default the first of these types among the
+ * design's files is used. The map is written as a little-endian PFM (Portable Float Map), in units
+ * of the white level per second at ISO 100, to <design>_hdr.pfm in the design's directory unless
+ * -out says otherwise.
+ *
+ * The frames are merged a band of rows at a time, in parallel on -threads threads (all processors
+ * by default): each band of each frame is read from its mapping, folded into the band's sums, and
+ * the finished band written into a mapping of the output file. Memory is a few bands per thread,
+ * however large the frames or long the bracket. The megapixels per second are reported at the end.
+ */
+
+package com.devcam.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class HdrMerge {
+
+    // Rows merged at a time by one thread.
+    static final int TILE_ROWS = 32;
+
+    // Where the weight of values starts falling to 0: below DARK, and above BRIGHT up to SATURATED.
+    static final float DARK = 0.02f;
+    static final float BRIGHT = 0.9f;
+
+    static final String EXPOSURE_TIME_KEY = "android.sensor.exposureTime";
+    static final String SENSITIVITY_KEY = "android.sensor.sensitivity";
+    static final String[] LINEAR_TYPES = {".dng", ".praw", ".yuv"};
+
+    private final ExecutorService mPool;
+
+    // Each thread reuses its band buffers for all the bands it merges.
+    private static final ThreadLocal<Band> sBand = new ThreadLocal<Band>(){
+        @Override
+        protected Band initialValue(){
+            return new Band();
+        }
+    };
+
+
+    // - - - Constructor - - -
+    public HdrMerge(ExecutorService pool){
+        mPool = pool;
+    }
+
+
+    /* Where merged rows go, as they are finished, from several threads at once. */
+    public static abstract class Sink {
+        /* Rows [row0, row0 + rows) of the radiance map, row after row, the values of a pixel together. */
+        public abstract void writeRows(int row0, int rows, float[] radiance) throws IOException;
+    }
+
+
+    /* void merge(List<LinearFrame>, double[], Sink)
+     *
+     * Merge the frames, of the given exposures, into the sink. The frames must all be the same size
+     * and have the same number of channels.
+     */
+    public void merge(final List<LinearFrame> frames, final double[] exposures, final Sink sink)
+            throws IOException, InterruptedException {
+        if (frames.isEmpty() || frames.size()!=exposures.length){
+            throw new IllegalArgumentException("Need one exposure for each of at least one frame.");
+        }
+        LinearFrame first = frames.get(0);
+        for (LinearFrame frame : frames){
+            if (frame.getWidth()!=first.getWidth() || frame.getHeight()!=first.getHeight()
+                    || frame.getChannels()!=first.getChannels()){
+                throw new IOException("Frames differ in size or channels.");
+            }
+        }
+        for (double exposure : exposures){
+            if (!(exposure>0)){
+                throw new IOException("Exposures must be positive.");
+            }
+        }
+
+        final int height = first.getHeight();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int row=0; row<height; row+=TILE_ROWS){
+            final int row0 = row;
+            futures.add(mPool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    int rows = Math.min(TILE_ROWS, height - row0);
+                    Band band = sBand.get();
+                    mergeRows(frames, exposures, row0, rows, band);
+                    sink.writeRows(row0, rows, band.radiance);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures){
+            try {
+                future.get();
+            } catch (ExecutionException ee){
+                for (Future<Void> other : futures){
+                    other.cancel(false);
+                }
+                throw new IOException(ee.getCause());
+            }
+        }
+    }
+
+
+    /* A band's buffers. */
+    static final class Band {
+        float[] values = new float[0];
+        float[] sums = new float[0];
+        float[] weights = new float[0];
+        float[] radiance = new float[0];
+
+        void ensure(int count){
+            if (values.length<count){
+                values = new float[count];
+                sums = new float[count];
+                weights = new float[count];
+                radiance = new float[count];
+            }
+        }
+    }
+
+
+    /* static void mergeRows(List<LinearFrame>, double[], int, int, Band)
+     *
+     * Merge rows [row0, row0 + rows) of the frames into the band's radiance.
+     */
+    static void mergeRows(List<LinearFrame> frames, double[] exposures, int row0, int rows, Band band){
+        LinearFrame first = frames.get(0);
+        int count = rows*first.getWidth()*first.getChannels();
+        band.ensure(count);
+        float[] values = band.values;
+        float[] sums = band.sums;
+        float[] weights = band.weights;
+        float[] radiance = band.radiance;
+        Arrays.fill(sums, 0, count, 0f);
+        Arrays.fill(weights, 0, count, 0f);
+
+        int shortest = 0;
+        for (int f=1; f<exposures.length; f++){
+            if (exposures[f]<exposures[shortest]){
+                shortest = f;
+            }
+        }
+
+        for (int f=0; f<frames.size(); f++){
+            frames.get(f).readRows(row0, rows, values);
+            float exposure = (float) exposures[f];
+            // The weight is exposure*hat(v), and what is summed is weight*v/exposure = hat(v)*v.
+            for (int i=0; i<count; i++){
+                float v = values[i];
+                float hat = hat(v);
+                sums[i] += hat*v;
+                weights[i] += hat*exposure;
+            }
+            if (f==shortest){
+                // What pixels with no weight at all get, clipped in every frame.
+                float inverse = 1f/exposure;
+                for (int i=0; i<count; i++){
+                    radiance[i] = values[i]*inverse;
+                }
+            }
+        }
+        for (int i=0; i<count; i++){
+            if (weights[i]>0f){
+                radiance[i] = sums[i]/weights[i];
+            }
+        }
+    }
+
+
+    /* static float hat(float)
+     *
+     * How far a value is to be trusted: 1 between DARK and BRIGHT, falling linearly to 0 at 0 and at
+     * SATURATED.
+     */
+    static float hat(float v){
+        if (v>=LinearFrame.SATURATED){
+            return 0f;
+        } else if (v>BRIGHT){
+            return (LinearFrame.SATURATED - v)/(LinearFrame.SATURATED - BRIGHT);
+        } else if (v<DARK){
+            return Math.max(0f, v/DARK);
+        }
+        return 1f;
+    }
+
+
+
+    /* A PFM file, written through a mapping as rows are finished, in any order. PFM rows run from
+     * the bottom of the image up.
+     */
+    public static final class PfmSink extends Sink {
+
+        private final MappedByteBuffer mData;
+        private final int mHeaderSize;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mChannels;
+
+        public PfmSink(File file, int width, int height, int channels) throws IOException {
+            byte[] header = (((channels==3) ? "PF" : "Pf") + "\n" + width + " " + height + "\n-1.0\n").getBytes("US-ASCII");
+            long length = header.length + 4L*width*height*channels;
+            if (length>Integer.MAX_VALUE){
+                throw new IOException("Radiance map too large for one mapping: " + length + " bytes.");
+            }
+            mHeaderSize = header.length;
+            mWidth = width;
+            mHeight = height;
+            mChannels = channels;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+                mData = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            } finally {
+                raf.close();
+            }
+            mData.put(header);
+        }
+
+        @Override
+        public void writeRows(int row0, int rows, float[] radiance){
+            int rowValues = mWidth*mChannels;
+            ByteBuffer data = mData.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            for (int r=0; r<rows; r++){
+                data.position(mHeaderSize + 4*(mHeight - 1 - (row0 + r))*rowValues);
+                data.asFloatBuffer().put(radiance, r*rowValues, rowValues);
+            }
+        }
+
+        public void close(){
+            mData.force();
+        }
+    }
+
+
+
+    /* static double exposureOf(Map<String,Object>)
+     *
+     * The exposure a frame got, from its capture metadata: the exposure time in seconds times the
+     * sensitivity/100.
+     */
+    static double exposureOf(Map<String,Object> record) throws IOException {
+        Object time = record.get(EXPOSURE_TIME_KEY);
+        Object iso = record.get(SENSITIVITY_KEY);
+        if (time==null || iso==null){
+            throw new IOException("Capture metadata of " + record.get(CaptureMetadataReader.FILENAME_KEY)
+                    + " lacks the exposure time or sensitivity.");
+        }
+        try {
+            return Double.parseDouble(time.toString())/1e9*Double.parseDouble(iso.toString())/100.0;
+        } catch (NumberFormatException nfe){
+            throw new IOException("Bad exposure time or sensitivity for " + record.get(CaptureMetadataReader.FILENAME_KEY));
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File dir = null;
+        String type = null;
+        File out = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-type") && i+1<args.length){
+                type = "." + args[++i].toLowerCase();
+            } else if (args[i].equals("-out") && i+1<args.length){
+                out = new File(args[++i]);
+            } else if (args[i].equals("-threads") && i+1<args.length){
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                dir = new File(args[i]);
+            }
+        }
+        if (dir==null || !dir.isDirectory()){
+            System.err.println("Usage: HdrMerge <design dir> [-type dng|praw|yuv] [-out file.pfm] [-threads N]");
+            System.exit(2);
+        }
+
+        // The frames and their exposures, in the order of the metadata.
+        List<Map<String,Object>> records = CaptureMetadataReader.readAll(CaptureMetadataReader.find(dir));
+        if (records.isEmpty()){
+            System.err.println("No frames in the capture metadata.");
+            System.exit(2);
+        }
+        if (type==null){
+            for (String linear : LINEAR_TYPES){
+                if (CaptureMetadataReader.filenameOfType(records.get(0), linear)!=null){
+                    type = linear;
+                    break;
+                }
+            }
+            if (type==null){
+                System.err.println("No .dng, .praw or .yuv frames in the design.");
+                System.exit(2);
+            }
+        }
+
+        List<LinearFrame> frames = new ArrayList<LinearFrame>();
+        double[] exposures = new double[records.size()];
+        for (Map<String,Object> record : records){
+            String name = CaptureMetadataReader.filenameOfType(record, type);
+            if (name==null){
+                System.err.println("A frame has no " + type + " file: " + record.get(CaptureMetadataReader.FILENAME_KEY));
+                System.exit(2);
+            }
+            exposures[frames.size()] = exposureOf(record);
+            frames.add(LinearFrame.open(new File(dir, name)));
+            System.out.println(String.format("%-24s %10.3f ms  ISO %-5s  exposure %.6g",
+                    name, Double.parseDouble(record.get(EXPOSURE_TIME_KEY).toString())/1e6,
+                    record.get(SENSITIVITY_KEY), exposures[frames.size() - 1]));
+        }
+
+        LinearFrame first = frames.get(0);
+        if (out==null){
+            out = new File(dir, dir.getName() + "_hdr.pfm");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            PfmSink sink = new PfmSink(out, first.getWidth(), first.getHeight(), first.getChannels());
+            long t0 = System.nanoTime();
+            new HdrMerge(pool).merge(frames, exposures, sink);
+            sink.close();
+            double seconds = (System.nanoTime() - t0)/1e9;
+            double megapixels = (double) first.getWidth()*first.getHeight()/1e6;
+            System.out.println(String.format("Merged %d frames of %dx%d into %s in %.2f s: %.1f MP/s out, %.1f MP/s in",
+                    frames.size(), first.getWidth(), first.getHeight(), out, seconds,
+                    megapixels/seconds, megapixels*frames.size()/seconds));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
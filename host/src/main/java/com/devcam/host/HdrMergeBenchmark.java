@@ -0,0 +1,197 @@
+/* HdrMergeBenchmark, for measuring how fast HdrMerge merges a bracket of full-size frames.
+ *
+ *   java com.devcam.host.HdrMergeBenchmark [-frames N] [-size WxH] [-reps N]
+ *
+ * Merges a synthetic raw bracket, 5 frames of 4000x3000 two stops apart by default, on 1, 2, 4...
+ * threads up to the number of processors, and reports the megapixels of radiance map made per
+ * second and of frames merged per second. The frames are made up as they are read, a scene spanning
+ * four decades of radiance seen through each exposure with a little noise and clipped, so they take
+ * no memory or disk, and what is measured is the merging. Each figure is the best of the reps, after
+ * warming up, and the merged radiance is checked against the scene wherever some frame saw it
+ * unclipped and well above the noise.
+ */
+
+package com.devcam.host;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HdrMergeBenchmark {
+
+    static final int WARMUP_RUNS = 1;
+    static final double STOPS_APART = 2;
+    static final float NOISE = 0.002f;
+    static final double TOLERANCE = 0.05; // relative
+    static final double CHECKED_ABOVE = 0.1; // in the longest exposure, where the noise is 2% at most
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mReps;
+
+
+    // - - - Constructor - - -
+    public HdrMergeBenchmark(int width, int height, int reps){
+        mWidth = width;
+        mHeight = height;
+        mReps = reps;
+    }
+
+
+    /* static double radiance(int, int, int, int)
+     *
+     * The synthetic scene: from 1e-3 at the left to 10 at the right, with some rows brighter.
+     */
+    static double radiance(int x, int y, int width, int height){
+        return Math.pow(10, -3 + 4.0*x/width)*(1 + 0.2*Math.sin(y/50.0));
+    }
+
+
+    /* A raw frame of the scene, through the given exposure, made up as it is read. */
+    static class SyntheticFrame extends LinearFrame {
+
+        private final int mWidth;
+        private final int mHeight;
+        private final double mExposure;
+        private final int mSeed;
+
+        SyntheticFrame(int width, int height, double exposure, int seed){
+            mWidth = width;
+            mHeight = height;
+            mExposure = exposure;
+            mSeed = seed;
+        }
+
+        @Override
+        public int getWidth(){
+            return mWidth;
+        }
+        @Override
+        public int getHeight(){
+            return mHeight;
+        }
+        @Override
+        public int getChannels(){
+            return 1;
+        }
+
+        @Override
+        public void readRows(int row0, int rows, float[] values){
+            for (int r=0; r<rows; r++){
+                int y = row0 + r;
+                // The scene along a row is a geometric series, so step it by multiplying.
+                double v = radiance(0, y, mWidth, mHeight)*mExposure;
+                double step = Math.pow(10, 4.0/mWidth);
+                int hash = mSeed*0x9E3779B9 + y*0x85EBCA6B;
+                for (int x=0; x<mWidth; x++, v*=step){
+                    hash = hash*0x2C1B3C6D + 0x297A2D39;
+                    float noise = NOISE*((hash >>> 8)/(float) (1 << 24) - 0.5f)*2f;
+                    values[r*mWidth + x] = (float) Math.max(0, Math.min(1, v + noise));
+                }
+            }
+        }
+    }
+
+
+    /* Checks some of the merged radiance against the scene, and throws the rest away. */
+    class CheckingSink extends HdrMerge.Sink {
+
+        private final double mLongest;
+        final AtomicInteger mChecked = new AtomicInteger();
+        final AtomicInteger mWrong = new AtomicInteger();
+
+        CheckingSink(double longest){
+            mLongest = longest;
+        }
+
+        @Override
+        public void writeRows(int row0, int rows, float[] radiance){
+            for (int r=0; r<rows; r++){
+                for (int x=r%97; x<mWidth; x+=97){
+                    double truth = radiance(x, row0 + r, mWidth, mHeight);
+                    if (truth*mLongest<CHECKED_ABOVE){
+                        continue; // too close to the noise
+                    }
+                    mChecked.incrementAndGet();
+                    if (Math.abs(radiance[r*mWidth + x] - truth)>TOLERANCE*truth){
+                        mWrong.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+
+    /* void run(int)
+     *
+     * Measure and print the figures for a bracket of the given number of frames.
+     */
+    public void run(int frameCount) throws IOException, InterruptedException {
+        // Centred on an exposure that just clips the brightest part of the scene.
+        List<LinearFrame> frames = new ArrayList<LinearFrame>();
+        double[] exposures = new double[frameCount];
+        for (int f=0; f<frameCount; f++){
+            exposures[f] = 0.1*Math.pow(2, STOPS_APART*(f - (frameCount - 1)/2.0));
+            frames.add(new SyntheticFrame(mWidth, mHeight, exposures[f], f + 1));
+        }
+        double megapixels = (double) mWidth*mHeight/1e6;
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads=1; ; threads=Math.min(2*threads, processors)){
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                HdrMerge merge = new HdrMerge(pool);
+                long best = Long.MAX_VALUE;
+                CheckingSink sink = null;
+                for (int r=0; r<WARMUP_RUNS+mReps; r++){
+                    sink = new CheckingSink(exposures[frameCount - 1]);
+                    long t0 = System.nanoTime();
+                    merge.merge(frames, exposures, sink);
+                    long t1 = System.nanoTime();
+                    if (r>=WARMUP_RUNS){
+                        best = Math.min(best, t1-t0);
+                    }
+                }
+                if (sink.mWrong.get()>0){
+                    throw new IOException(sink.mWrong + " of " + sink.mChecked + " radiance values checked are off by over "
+                            + (int) (100*TOLERANCE) + "%.");
+                }
+
+                double seconds = best/1e9;
+                System.out.println(String.format("%dx%d x %d frames  %2d threads  %8.1f ms  %7.1f MP/s out  %7.1f MP/s in",
+                        mWidth, mHeight, frameCount, threads, seconds*1e3, megapixels/seconds,
+                        megapixels*frameCount/seconds));
+            } finally {
+                pool.shutdown();
+            }
+            if (threads==processors){
+                break;
+            }
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int frames = 5;
+        int width = 4000;
+        int height = 3000;
+        int reps = 3;
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-frames") && i+1<args.length){
+                frames = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size") && i+1<args.length){
+                String[] size = args[++i].split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else if (args[i].equals("-reps") && i+1<args.length){
+                reps = Integer.parseInt(args[++i]);
+            }
+        }
+        new HdrMergeBenchmark(width, height, reps).run(frames);
+    }
+
+}
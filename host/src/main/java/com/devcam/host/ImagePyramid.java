@@ -0,0 +1,118 @@
+/* ImagePyramid class, a grayscale image and its successive halvings, for finding the motion between
+ * frames coarse to fine (see BurstAlign).
+ *
+ * Level 0 is the image itself, filled in by the caller; each level after it is half the width and
+ * height of the one before, each value the mean of the 2x2 values under it. The levels' buffers are
+ * allocated once and reused every time the pyramid is rebuilt, so going through a burst of any
+ * length takes no new memory per frame.
+ */
+
+package com.devcam.host;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class ImagePyramid {
+
+    // Rows of a level made at a time by one thread.
+    static final int BAND_ROWS = 64;
+
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private final float[][] mLevels;
+
+
+    // - - - Constructor - - -
+    /**
+     * @param width Width of level 0.
+     * @param height Height of level 0.
+     * @param levels Number of levels, including level 0, at most while each is at least 1x1.
+     */
+    public ImagePyramid(int width, int height, int levels){
+        List<float[]> made = new ArrayList<float[]>();
+        int[] widths = new int[levels];
+        int[] heights = new int[levels];
+        for (int l=0; l<levels && width>0 && height>0; l++){
+            widths[l] = width;
+            heights[l] = height;
+            made.add(new float[width*height]);
+            width /= 2;
+            height /= 2;
+        }
+        mLevels = made.toArray(new float[made.size()][]);
+        mWidths = widths;
+        mHeights = heights;
+    }
+
+
+    public int getLevels(){
+        return mLevels.length;
+    }
+    public int getWidth(int level){
+        return mWidths[level];
+    }
+    public int getHeight(int level){
+        return mHeights[level];
+    }
+    /* The values of a level, row after row. */
+    public float[] getLevel(int level){
+        return mLevels[level];
+    }
+
+
+    /* void build(ExecutorService)
+     *
+     * Make levels 1 on from level 0, as it is now, each in bands of rows on the pool.
+     */
+    public void build(ExecutorService pool) throws IOException, InterruptedException {
+        for (int l=1; l<mLevels.length; l++){
+            final float[] in = mLevels[l - 1];
+            final int inWidth = mWidths[l - 1];
+            final float[] out = mLevels[l];
+            final int outWidth = mWidths[l];
+            int outHeight = mHeights[l];
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int row=0; row<outHeight; row+=BAND_ROWS){
+                final int row0 = row;
+                final int rows = Math.min(BAND_ROWS, outHeight - row);
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call(){
+                        halve(in, inWidth, out, outWidth, row0, rows);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures){
+                try {
+                    future.get();
+                } catch (ExecutionException ee){
+                    throw new IOException(ee.getCause());
+                }
+            }
+        }
+    }
+
+
+    /* static void halve(float[], int, float[], int, int, int)
+     *
+     * Make rows [row0, row0 + rows) of the level after one, each value the mean of 2x2 under it.
+     */
+    static void halve(float[] in, int inWidth, float[] out, int outWidth, int row0, int rows){
+        for (int y=row0; y<row0 + rows; y++){
+            int top = 2*y*inWidth;
+            int bottom = top + inWidth;
+            int o = y*outWidth;
+            for (int x=0; x<outWidth; x++){
+                int i = 2*x;
+                out[o + x] = 0.25f*(in[top + i] + in[top + i + 1] + in[bottom + i] + in[bottom + i + 1]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+/* LinearFrame class, a captured frame read as values linear in the light that reached the sensor,
+ * for merging frames of different exposures on the host (see HdrMerge).
+ *
+ * Values run from 0 at the black level to 1 at the white level, and are read a band of rows at a
+ * time, straight from a memory mapping of the file, so frames of any size take no memory of their
+ * own. Values at or above SATURATED were clipped by the sensor, or the output, and say only that the
+ * light was at least that much.
+ *
+ * Raw frames (.dng, .praw) have one value per pixel, in the sensor's CFA pattern. YUV frames (.yuv)
+ * have three, R, G and B, converted as YuvToRgb does; they are only linear if the design was
+ * captured with NONE processing and the device's tonemap left them so, which is up to the user.
+ */
+
+package com.devcam.host;
+
+import com.devcam.io.PackedRawFormat;
+import com.devcam.io.PackedRawReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public abstract class LinearFrame {
+
+    // Values at or above this were clipped.
+    public static final float SATURATED = 0.98f;
+
+
+    /* static LinearFrame open(File)
+     *
+     * Map a .dng, .praw or .yuv file.
+     */
+    public static LinearFrame open(File file) throws IOException {
+        String name = file.getName();
+        if (name.endsWith(".dng")){
+            return new Dng(MappedDng.map(file));
+        } else if (name.endsWith(PackedRawFormat.EXTENSION)){
+            return new PackedRaw(file);
+        } else if (name.endsWith(".yuv")){
+            return new Yuv(MappedYuvFrame.map(file));
+        }
+        throw new IOException("Not a linear frame format: " + name);
+    }
+
+
+    public abstract int getWidth();
+    public abstract int getHeight();
+    /* Values per pixel: 1 for raw CFA frames, 3 for RGB. */
+    public abstract int getChannels();
+
+    /* void readRows(int, int, float[])
+     *
+     * Read rows [row0, row0 + rows) into the array, row after row, the values of a pixel together.
+     * Must be safe to call from several threads at once.
+     */
+    public abstract void readRows(int row0, int rows, float[] values);
+
+
+
+    /* A DNG's raw CFA samples. */
+    public static class Dng extends LinearFrame {
+
+        private final MappedDng mDng;
+
+        public Dng(MappedDng dng){
+            mDng = dng;
+        }
+
+        public MappedDng getDng(){
+            return mDng;
+        }
+
+        @Override
+        public int getWidth(){
+            return mDng.getWidth();
+        }
+        @Override
+        public int getHeight(){
+            return mDng.getHeight();
+        }
+        @Override
+        public int getChannels(){
+            return 1;
+        }
+
+        @Override
+        public void readRows(int row0, int rows, float[] values){
+            int width = mDng.getWidth();
+            float white = mDng.getWhiteLevel();
+            for (int r=0; r<rows; r++){
+                int y = row0 + r;
+                float black0 = mDng.blackLevelAt(0, y);
+                float black1 = mDng.blackLevelAt(1, y);
+                float scale0 = 1f/Math.max(1f, white - black0);
+                float scale1 = 1f/Math.max(1f, white - black1);
+                int out = r*width;
+                for (int x=0; x<width; x++){
+                    float v = ((x & 1)==0) ? (mDng.get(x, y) - black0)*scale0 : (mDng.get(x, y) - black1)*scale1;
+                    values[out + x] = Math.max(0f, v);
+                }
+            }
+        }
+    }
+
+
+
+    /* A .praw file's CFA samples, unpacked from the mapping as PackedRawReader would. */
+    public static class PackedRaw extends LinearFrame {
+
+        private final PackedRawFormat.Header mHeader;
+        private final ByteBuffer mRows;
+
+        public PackedRaw(File file) throws IOException {
+            InputStream input = new FileInputStream(file);
+            try {
+                mHeader = new PackedRawReader(input).getHeader();
+            } finally {
+                input.close();
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long length = (long) mHeader.rowBytes*mHeader.height;
+                if (PackedRawFormat.HEADER_SIZE + length>raf.length()){
+                    throw new IOException(file + " is too short for its rows.");
+                }
+                mRows = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, PackedRawFormat.HEADER_SIZE, length);
+            } finally {
+                raf.close();
+            }
+        }
+
+        public PackedRawFormat.Header getHeader(){
+            return mHeader;
+        }
+
+        @Override
+        public int getWidth(){
+            return mHeader.width;
+        }
+        @Override
+        public int getHeight(){
+            return mHeader.height;
+        }
+        @Override
+        public int getChannels(){
+            return 1;
+        }
+
+        @Override
+        public void readRows(int row0, int rows, float[] values){
+            int width = mHeader.width;
+            int bits = mHeader.bitsPerSample;
+            int mask = (1 << bits) - 1;
+            int last = mRows.limit() - 1;
+            for (int r=0; r<rows; r++){
+                int y = row0 + r;
+                int rowStart = y*mHeader.rowBytes;
+                float black0 = mHeader.blackLevelAt(0, y);
+                float black1 = mHeader.blackLevelAt(1, y);
+                float scale0 = 1f/Math.max(1f, mHeader.whiteLevel - black0);
+                float scale1 = 1f/Math.max(1f, mHeader.whiteLevel - black1);
+                int out = r*width;
+                long bit = 0;
+                for (int x=0; x<width; x++, bit+=bits){
+                    // A sample of up to 16 bits spans at most 3 bytes, least significant first.
+                    int at = rowStart + (int) (bit >>> 3);
+                    int word = (mRows.get(at) & 0xFF) | ((mRows.get(Math.min(at + 1, last)) & 0xFF) << 8)
+                            | ((mRows.get(Math.min(at + 2, last)) & 0xFF) << 16);
+                    int sample = (word >>> (int) (bit & 7)) & mask;
+                    float v = ((x & 1)==0) ? (sample - black0)*scale0 : (sample - black1)*scale1;
+                    values[out + x] = Math.max(0f, v);
+                }
+            }
+        }
+    }
+
+
+
+    /* A .yuv frame as RGB. */
+    public static class Yuv extends LinearFrame {
+
+        private final MappedYuvFrame mFrame;
+
+        public Yuv(MappedYuvFrame frame){
+            mFrame = frame;
+        }
+
+        public MappedYuvFrame getFrame(){
+            return mFrame;
+        }
+
+        @Override
+        public int getWidth(){
+            return mFrame.getWidth();
+        }
+        @Override
+        public int getHeight(){
+            return mFrame.getHeight();
+        }
+        @Override
+        public int getChannels(){
+            return 3;
+        }
+
+        @Override
+        public void readRows(int row0, int rows, float[] values){
+            MappedYuvFrame.Plane y = mFrame.getPlane(0);
+            MappedYuvFrame.Plane u = mFrame.getPlane(1);
+            MappedYuvFrame.Plane v = mFrame.getPlane(2);
+            int width = mFrame.getWidth();
+            for (int r=0; r<rows; r++){
+                int row = row0 + r;
+                int out = 3*r*width;
+                for (int x=0; x<width; x++, out+=3){
+                    int rgb = YuvToRgb.pack(y.get(x, row), u.get(x >> 1, row >> 1) - 128, v.get(x >> 1, row >> 1) - 128);
+                    values[out] = ((rgb >> 16) & 0xFF)/255f;
+                    values[out + 1] = ((rgb >> 8) & 0xFF)/255f;
+                    values[out + 2] = (rgb & 0xFF)/255f;
+                }
+            }
+        }
+    }
+
+}
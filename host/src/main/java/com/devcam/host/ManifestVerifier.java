@@ -0,0 +1,242 @@
+/* ManifestVerifier, for checking that the frames of a design came off the device intact.
+ *
+ * Reads the design's manifest (see DesignManifest) and checks every frame listed in it against the
+ * copy on this computer: that the file is there, has the right length, and has the right CRC-32C
+ * checksum. Frames are checked in parallel, one file per thread at a time, since reading them back
+ * is what takes the time.
+ *
+ *   java com.devcam.host.ManifestVerifier <design dir | manifest | Captured dir> [threads]
+ *
+ * Given a directory, every manifest in it and in its immediate subdirectories is checked, so a
+ * whole pulled Captured directory can be checked at once. Prints one line per problem and a
+ * summary per design, and exits with status 1 if any frame failed.
+ */
+
+package com.devcam.host;
+
+import com.devcam.io.Crc32c;
+import com.devcam.io.DesignManifest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ManifestVerifier {
+
+    static final int READ_BUFFER_SIZE = 1024*1024;
+
+    public enum Status {OK, MISSING, WRONG_LENGTH, WRONG_CHECKSUM, READ_ERROR}
+
+    private final ExecutorService mPool;
+
+    // Each thread reuses one read buffer for all the frames it checks.
+    private static final ThreadLocal<ByteBuffer> sReadBuffer = new ThreadLocal<ByteBuffer>(){
+        @Override
+        protected ByteBuffer initialValue(){
+            return ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+    };
+
+
+    // - - - Constructor - - -
+    public ManifestVerifier(ExecutorService pool){
+        mPool = pool;
+    }
+
+
+    /* List<Result> verify(File)
+     *
+     * Check every frame of the manifest, in parallel. Results are in the order of the manifest.
+     */
+    public List<Result> verify(File manifestFile) throws IOException, InterruptedException {
+        final File dir = manifestFile.getAbsoluteFile().getParentFile();
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (final DesignManifest.Entry entry : DesignManifest.read(manifestFile).getEntries()){
+            futures.add(mPool.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return check(new File(dir, entry.getFilename()), entry);
+                }
+            }));
+        }
+
+        List<Result> results = new ArrayList<Result>(futures.size());
+        for (Future<Result> future : futures){
+            try {
+                results.add(future.get());
+            } catch (ExecutionException ee){
+                throw new IOException(ee.getCause());
+            }
+        }
+        return results;
+    }
+
+
+    /* static Result check(File, DesignManifest.Entry)
+     *
+     * Check one frame against its manifest entry.
+     */
+    static Result check(File file, DesignManifest.Entry entry){
+        if (!file.isFile()){
+            return new Result(entry, Status.MISSING, "no such file");
+        }
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            long offset = entry.isWholeFile() ? 0 : entry.getOffset();
+            if (entry.isWholeFile() ? size!=entry.getLength() : size<offset + entry.getLength()){
+                return new Result(entry, Status.WRONG_LENGTH, size + " bytes, expected "
+                        + (entry.isWholeFile() ? "" : "at least ") + (offset + entry.getLength()));
+            }
+
+            Crc32c crc = new Crc32c();
+            ByteBuffer buffer = sReadBuffer.get();
+            long position = offset;
+            long end = offset + entry.getLength();
+            while (position<end){
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int n = channel.read(buffer, position);
+                if (n<0){
+                    return new Result(entry, Status.WRONG_LENGTH, "file ended early");
+                }
+                position += n;
+                buffer.flip();
+                crc.update(buffer);
+            }
+            if (crc.getValue()!=entry.getCrc32c()){
+                return new Result(entry, Status.WRONG_CHECKSUM, "crc32c " + Crc32c.toHex(crc.getValue())
+                        + ", expected " + Crc32c.toHex(entry.getCrc32c()));
+            }
+            return new Result(entry, Status.OK, "");
+        } catch (IOException ioe){
+            return new Result(entry, Status.READ_ERROR, ioe.getMessage());
+        } finally {
+            if (input!=null){
+                try {
+                    input.close();
+                } catch (IOException ioe){
+                    ioe.printStackTrace();
+                }
+            }
+        }
+    }
+
+
+    /* static List<File> findManifests(File)
+     *
+     * The manifest itself, or all manifests in the directory and its immediate subdirectories.
+     */
+    static List<File> findManifests(File path){
+        List<File> manifests = new ArrayList<File>();
+        if (path.isFile()){
+            manifests.add(path);
+            return manifests;
+        }
+        File[] children = path.listFiles();
+        if (children==null){
+            return manifests;
+        }
+        for (File child : children){
+            if (child.isDirectory()){
+                File[] grandchildren = child.listFiles();
+                if (grandchildren!=null){
+                    for (File grandchild : grandchildren){
+                        if (isManifest(grandchild)){
+                            manifests.add(grandchild);
+                        }
+                    }
+                }
+            } else if (isManifest(child)){
+                manifests.add(child);
+            }
+        }
+        return manifests;
+    }
+
+    private static boolean isManifest(File file){
+        return file.isFile() && file.getName().endsWith(DesignManifest.FILE_SUFFIX);
+    }
+
+
+
+    /**
+     * Outcome of checking one frame.
+     */
+    public static final class Result {
+        private final DesignManifest.Entry mEntry;
+        private final Status mStatus;
+        private final String mDetail;
+
+        Result(DesignManifest.Entry entry, Status status, String detail){
+            mEntry = entry;
+            mStatus = status;
+            mDetail = detail;
+        }
+
+        public DesignManifest.Entry getEntry(){
+            return mEntry;
+        }
+        public Status getStatus(){
+            return mStatus;
+        }
+        public boolean isOk(){
+            return mStatus==Status.OK;
+        }
+
+        @Override
+        public String toString(){
+            return mEntry + ": " + mStatus + (mDetail.isEmpty() ? "" : " (" + mDetail + ")");
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length<1){
+            System.err.println("Usage: ManifestVerifier <design dir | manifest | Captured dir> [threads]");
+            System.exit(2);
+        }
+        int threads = (args.length>1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        List<File> manifests = findManifests(new File(args[0]));
+        if (manifests.isEmpty()){
+            System.err.println("No manifests found in " + args[0]);
+            System.exit(2);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        boolean allOk = true;
+        try {
+            ManifestVerifier verifier = new ManifestVerifier(pool);
+            for (File manifest : manifests){
+                List<Result> results = verifier.verify(manifest);
+                int failed = 0;
+                for (Result result : results){
+                    if (!result.isOk()){
+                        System.out.println(manifest.getParentFile().getName() + "/" + result);
+                        failed++;
+                    }
+                }
+                System.out.println(manifest.getName() + ": " + (results.size() - failed) + " of "
+                        + results.size() + " frames OK.");
+                allOk &= (failed==0);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        System.exit(allOk ? 0 : 1);
+    }
+
+}
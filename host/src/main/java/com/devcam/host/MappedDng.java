@@ -0,0 +1,292 @@
+/* MappedDng class, for reading the raw CFA samples of the DNG files devCam saves (through
+ * android.hardware.camera2.DngCreator) from a memory mapping of the file.
+ *
+ * DngCreator writes the samples uncompressed, 16 bits each, in strips, in the IFD whose
+ * PhotometricInterpretation is CFA: IFD0, or one of its SubIFDs when a thumbnail is in IFD0. Only
+ * that IFD, and what is needed to make sense of its samples, is parsed: the size, the strips, the
+ * black and white levels, and the CFA pattern. Either byte order is read, and 8- as well as 16-bit
+ * samples, but nothing compressed.
+ *
+ * Samples are read straight from the mapping, so a frame can be read from several threads at once.
+ */
+
+package com.devcam.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public class MappedDng {
+
+    // TIFF and DNG tags
+    static final int TAG_NEW_SUBFILE_TYPE = 0x00FE;
+    static final int TAG_IMAGE_WIDTH = 0x0100;
+    static final int TAG_IMAGE_LENGTH = 0x0101;
+    static final int TAG_BITS_PER_SAMPLE = 0x0102;
+    static final int TAG_COMPRESSION = 0x0103;
+    static final int TAG_PHOTOMETRIC = 0x0106;
+    static final int TAG_STRIP_OFFSETS = 0x0111;
+    static final int TAG_SAMPLES_PER_PIXEL = 0x0115;
+    static final int TAG_ROWS_PER_STRIP = 0x0116;
+    static final int TAG_STRIP_BYTE_COUNTS = 0x0117;
+    static final int TAG_SUB_IFDS = 0x014A;
+    static final int TAG_CFA_REPEAT_PATTERN_DIM = 0x828D;
+    static final int TAG_CFA_PATTERN = 0x828E;
+    static final int TAG_BLACK_LEVEL_REPEAT_DIM = 0xC619;
+    static final int TAG_BLACK_LEVEL = 0xC61A;
+    static final int TAG_WHITE_LEVEL = 0xC61D;
+
+    static final int PHOTOMETRIC_CFA = 32803;
+
+    // Colors in the CFA pattern
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+
+    private final ByteBuffer mData;
+    private int mWidth;
+    private int mHeight;
+    private int mBitsPerSample;
+    private int mRowsPerStrip;
+    private long[] mStripOffsets;
+    private int mWhiteLevel;
+    private final float[] mBlackLevel = new float[4]; // for the 2x2 CFA cell in reading order
+    private final int[] mCfaPattern = {RED, GREEN, GREEN, BLUE};
+
+
+    // - - - Constructor - - -
+    /* Parse the DNG from a buffer holding the whole file, from its position to its limit. */
+    public MappedDng(ByteBuffer data) throws IOException {
+        mData = data.slice();
+        int order = mData.getShort(0) & 0xFFFF;
+        if (order==0x4949){
+            mData.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (order!=0x4D4D){
+            throw new IOException("Not a TIFF file.");
+        }
+        if ((mData.getShort(2) & 0xFFFF)!=42){
+            throw new IOException("Not a TIFF file.");
+        }
+        if (!findRaw(mData.getInt(4) & 0xFFFFFFFFL, 0)){
+            throw new IOException("No uncompressed CFA image in the DNG.");
+        }
+    }
+
+
+    /* static MappedDng map(File)
+     *
+     * Map a .dng file.
+     */
+    public static MappedDng map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new MappedDng(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    // - - Setters and Getters - -
+    public int getWidth(){
+        return mWidth;
+    }
+    public int getHeight(){
+        return mHeight;
+    }
+    public int getWhiteLevel(){
+        return mWhiteLevel;
+    }
+    /* Black level of the sample at (x,y). */
+    public float blackLevelAt(int x, int y){
+        return mBlackLevel[2*(y & 1) + (x & 1)];
+    }
+    /* Color, RED, GREEN or BLUE, of the sample at (x,y). */
+    public int colorAt(int x, int y){
+        return mCfaPattern[2*(y & 1) + (x & 1)];
+    }
+
+
+    /* int get(int, int)
+     *
+     * The raw sample at (x,y).
+     */
+    public int get(int x, int y){
+        int strip = y/mRowsPerStrip;
+        long at = mStripOffsets[strip] + ((long) (y - strip*mRowsPerStrip)*mWidth + x)*(mBitsPerSample/8);
+        return (mBitsPerSample==16) ? (mData.getShort((int) at) & 0xFFFF) : (mData.get((int) at) & 0xFF);
+    }
+
+
+    /* void readRow(int, int[], int)
+     *
+     * Copy the raw samples of row y into the array, starting at the given index.
+     */
+    public void readRow(int y, int[] samples, int start){
+        int strip = y/mRowsPerStrip;
+        int at = (int) (mStripOffsets[strip] + (long) (y - strip*mRowsPerStrip)*mWidth*(mBitsPerSample/8));
+        if (mBitsPerSample==16){
+            for (int x=0; x<mWidth; x++, at+=2){
+                samples[start + x] = mData.getShort(at) & 0xFFFF;
+            }
+        } else {
+            for (int x=0; x<mWidth; x++, at++){
+                samples[start + x] = mData.get(at) & 0xFF;
+            }
+        }
+    }
+
+
+
+    // Look through the IFD at the offset, its SubIFDs and the IFDs after it for the raw image.
+    private boolean findRaw(long ifd, int depth) throws IOException {
+        while (ifd!=0 && depth<8){
+            if (ifd + 2>mData.limit()){
+                throw new IOException("DNG IFD out of bounds.");
+            }
+            int at = (int) ifd;
+            int entries = mData.getShort(at) & 0xFFFF;
+            if (at + 2 + 12L*entries + 4>mData.limit()){
+                throw new IOException("DNG IFD out of bounds.");
+            }
+            if (readRaw(at, entries)){
+                return true;
+            }
+            long[] subIfds = values(at, entries, TAG_SUB_IFDS);
+            if (subIfds!=null){
+                for (long sub : subIfds){
+                    if (findRaw(sub, depth + 1)){
+                        return true;
+                    }
+                }
+            }
+            ifd = mData.getInt(at + 2 + 12*entries) & 0xFFFFFFFFL;
+            depth++;
+        }
+        return false;
+    }
+
+    // Take the image of this IFD, if it is the raw one.
+    private boolean readRaw(int at, int entries) throws IOException {
+        if (value(at, entries, TAG_PHOTOMETRIC, -1)!=PHOTOMETRIC_CFA || value(at, entries, TAG_NEW_SUBFILE_TYPE, 0)!=0){
+            return false;
+        }
+        if (value(at, entries, TAG_COMPRESSION, 1)!=1){
+            throw new IOException("Compressed DNGs are not supported.");
+        }
+        if (value(at, entries, TAG_SAMPLES_PER_PIXEL, 1)!=1){
+            throw new IOException("DNG raw image has more than one sample per pixel.");
+        }
+        mWidth = (int) value(at, entries, TAG_IMAGE_WIDTH, 0);
+        mHeight = (int) value(at, entries, TAG_IMAGE_LENGTH, 0);
+        mBitsPerSample = (int) value(at, entries, TAG_BITS_PER_SAMPLE, 16);
+        if (mBitsPerSample!=16 && mBitsPerSample!=8){
+            throw new IOException("Unsupported DNG bits per sample " + mBitsPerSample);
+        }
+        mRowsPerStrip = (int) Math.min(mHeight, value(at, entries, TAG_ROWS_PER_STRIP, mHeight));
+        mStripOffsets = values(at, entries, TAG_STRIP_OFFSETS);
+        long[] counts = values(at, entries, TAG_STRIP_BYTE_COUNTS);
+        if (mWidth<=0 || mHeight<=0 || mRowsPerStrip<=0 || mStripOffsets==null || counts==null
+                || mStripOffsets.length<(mHeight + mRowsPerStrip - 1)/mRowsPerStrip){
+            throw new IOException("Corrupt DNG raw image.");
+        }
+        for (int s=0; s<mStripOffsets.length; s++){
+            if (mStripOffsets[s] + counts[s]>mData.limit()){
+                throw new IOException("DNG strip " + s + " runs past the end of the file.");
+            }
+        }
+        mWhiteLevel = (int) value(at, entries, TAG_WHITE_LEVEL, (1L << mBitsPerSample) - 1);
+
+        // One black level, or one per sample of a repeating cell, 2x2 at most here.
+        double[] black = doubles(at, entries, TAG_BLACK_LEVEL);
+        long[] blackDim = values(at, entries, TAG_BLACK_LEVEL_REPEAT_DIM);
+        int blackRows = (blackDim!=null && blackDim.length==2) ? (int) blackDim[0] : 1;
+        int blackCols = (blackDim!=null && blackDim.length==2) ? (int) blackDim[1] : 1;
+        for (int i=0; i<4; i++){
+            int index = ((i/2)%blackRows)*blackCols + (i%2)%blackCols;
+            mBlackLevel[i] = (black==null) ? 0f : (float) black[Math.min(index, black.length - 1)];
+        }
+
+        long[] cfaDim = values(at, entries, TAG_CFA_REPEAT_PATTERN_DIM);
+        long[] cfa = values(at, entries, TAG_CFA_PATTERN);
+        if (cfa!=null && cfa.length>=4 && (cfaDim==null || (cfaDim[0]==2 && cfaDim[1]==2))){
+            for (int i=0; i<4; i++){
+                mCfaPattern[i] = (int) cfa[i];
+            }
+        }
+        return true;
+    }
+
+
+    private int find(int at, int entries, int tag){
+        for (int i=0; i<entries; i++){
+            int entry = at + 2 + 12*i;
+            if ((mData.getShort(entry) & 0xFFFF)==tag){
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private long value(int at, int entries, int tag, long missing) throws IOException {
+        long[] values = values(at, entries, tag);
+        return (values==null || values.length==0) ? missing : values[0];
+    }
+
+    // The whole-number values of the tag, or null if it is not there.
+    private long[] values(int at, int entries, int tag) throws IOException {
+        double[] values = doubles(at, entries, tag);
+        if (values==null){
+            return null;
+        }
+        long[] longs = new long[values.length];
+        for (int i=0; i<values.length; i++){
+            longs[i] = (long) values[i];
+        }
+        return longs;
+    }
+
+    private double[] doubles(int at, int entries, int tag) throws IOException {
+        int entry = find(at, entries, tag);
+        if (entry<0){
+            return null;
+        }
+        int type = mData.getShort(entry + 2) & 0xFFFF;
+        long count = mData.getInt(entry + 4) & 0xFFFFFFFFL;
+        int size;
+        switch (type){
+            case 1: case 2: case 6: case 7: size = 1; break; // BYTE, ASCII, SBYTE, UNDEFINED
+            case 3: case 8: size = 2; break;                 // SHORT, SSHORT
+            case 4: case 9: case 13: size = 4; break;        // LONG, SLONG, IFD
+            case 5: case 10: size = 8; break;                // RATIONAL, SRATIONAL
+            default: throw new IOException("Unsupported TIFF type " + type + " of tag " + tag);
+        }
+        long offset = (count*size<=4) ? entry + 8 : (mData.getInt(entry + 8) & 0xFFFFFFFFL);
+        if (count>Integer.MAX_VALUE/8 || offset + count*size>mData.limit()){
+            throw new IOException("TIFF tag " + tag + " out of bounds.");
+        }
+        double[] values = new double[(int) count];
+        for (int i=0; i<count; i++){
+            int v = (int) offset + i*size;
+            switch (type){
+                case 1: case 2: case 7: values[i] = mData.get(v) & 0xFF; break;
+                case 6: values[i] = mData.get(v); break;
+                case 3: values[i] = mData.getShort(v) & 0xFFFF; break;
+                case 8: values[i] = mData.getShort(v); break;
+                case 4: case 13: values[i] = mData.getInt(v) & 0xFFFFFFFFL; break;
+                case 9: values[i] = mData.getInt(v); break;
+                case 5: values[i] = ratio(mData.getInt(v) & 0xFFFFFFFFL, mData.getInt(v + 4) & 0xFFFFFFFFL); break;
+                default: values[i] = ratio(mData.getInt(v), mData.getInt(v + 4)); break;
+            }
+        }
+        return values;
+    }
+
+    private static double ratio(long numerator, long denominator){
+        return (denominator==0) ? 0 : (double) numerator/denominator;
+    }
+
+}
@@ -0,0 +1,279 @@
+/* MappedReadBenchmark, for comparing ways of getting through a large batch of .yuv frames on a
+ * computer: reading each file whole into arrays (YuvReader.read), as analysis code has done so far,
+ * against mapping it (MappedYuvFrame) and reading the samples in place, one frame at a time and in
+ * parallel with BatchLoader.
+ *
+ *   java com.devcam.host.MappedReadBenchmark [-frames N] [-size WxH] [-reps N] [-dir D]
+ *
+ * Writes N synthetic frames (1000 of 640x480 by default) to D (a temporary directory by default,
+ * deleted afterwards) as the camera saves them, with padded rows and interleaved chroma, and then
+ * times each loader finding the mean luma of every frame, which reads every Y sample once. Each
+ * figure is the best of the reps, after a warm-up pass, so the files are in the page cache and what
+ * is measured is the cost of the loading, not of the disk. The loaders' means are checked against
+ * each other.
+ */
+
+package com.devcam.host;
+
+import com.devcam.io.YuvFrame;
+import com.devcam.io.YuvReader;
+import com.devcam.io.YuvWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MappedReadBenchmark {
+
+    static final int ROW_PADDING = 64; // bytes
+    static final int WARMUP_RUNS = 1;
+
+    private final List<BatchLoader.Source> mSources;
+    private final int mReps;
+    private final double mMegabytes;
+
+
+    // - - - Constructor - - -
+    public MappedReadBenchmark(List<BatchLoader.Source> sources, int reps){
+        mSources = sources;
+        mReps = reps;
+        long bytes = 0;
+        for (BatchLoader.Source source : sources){
+            bytes += source.getFile().length();
+        }
+        mMegabytes = bytes/(1024.0*1024.0);
+    }
+
+
+    /* A way of finding the mean luma of every frame. */
+    static abstract class Loader {
+        final String name;
+
+        Loader(String name){
+            this.name = name;
+        }
+
+        abstract double[] meanLuma(List<BatchLoader.Source> sources) throws Exception;
+    }
+
+
+    /* static void writeFrames(File, int, int, int)
+     *
+     * Write the synthetic frames, each a gradient plus noise that differs from frame to frame.
+     */
+    static void writeFrames(File dir, int count, int width, int height) throws IOException {
+        Random random = new Random(0);
+        int rowStride = width + ROW_PADDING;
+        ByteBuffer y = ByteBuffer.allocate(rowStride*height);
+        ByteBuffer uv = ByteBuffer.allocate(rowStride*height/2);
+        YuvWriter writer = new YuvWriter(0);
+        for (int i=0; i<count; i++){
+            int offset = random.nextInt(64);
+            for (int r=0; r<height; r++){
+                for (int x=0; x<width; x++){
+                    y.put(r*rowStride + x, (byte) (offset + 160*x/width + random.nextInt(8)));
+                }
+            }
+            random.nextBytes(uv.array());
+            ByteBuffer u = uv.duplicate();
+            u.limit(uv.capacity() - 1);
+            ByteBuffer v = uv.duplicate();
+            v.position(1);
+
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                    new File(dir, String.format("frame-%05d.yuv", i))), 64*1024);
+            try {
+                writer.write(out, width, height, new ByteBuffer[]{y.duplicate(), u.slice(), v.slice()},
+                        new int[]{1, 2, 2}, new int[]{rowStride, rowStride, rowStride});
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+
+    static double meanLuma(YuvFrame frame){
+        long sum = 0;
+        for (byte b : frame.getY()){
+            sum += b & 0xFF;
+        }
+        return (double) sum/frame.getY().length;
+    }
+
+    static double meanLuma(MappedYuvFrame frame){
+        MappedYuvFrame.Plane plane = frame.getPlane(0);
+        long sum = 0;
+        for (int row=0; row<plane.getHeight(); row++){
+            for (int col=0; col<plane.getWidth(); col++){
+                sum += plane.get(col, row);
+            }
+        }
+        return (double) sum/(plane.getWidth()*plane.getHeight());
+    }
+
+
+    /* static Loader readAll(ExecutorService)
+     *
+     * Read each file whole with YuvReader, on the pool's threads, or on this one if it is null.
+     */
+    static Loader readAll(final ExecutorService pool){
+        return new Loader((pool==null) ? "read-all" : "read-all, pool") {
+            @Override
+            double[] meanLuma(List<BatchLoader.Source> sources) throws Exception {
+                double[] means = new double[sources.size()];
+                if (pool==null){
+                    for (int i=0; i<sources.size(); i++){
+                        means[i] = MappedReadBenchmark.meanLuma(YuvReader.read(sources.get(i).getFile()));
+                    }
+                    return means;
+                }
+                List<Future<Double>> futures = new ArrayList<Future<Double>>();
+                for (final BatchLoader.Source source : sources){
+                    futures.add(pool.submit(new Callable<Double>() {
+                        @Override
+                        public Double call() throws IOException {
+                            return MappedReadBenchmark.meanLuma(YuvReader.read(source.getFile()));
+                        }
+                    }));
+                }
+                for (int i=0; i<means.length; i++){
+                    means[i] = futures.get(i).get();
+                }
+                return means;
+            }
+        };
+    }
+
+
+    /* static Loader mapped(ExecutorService)
+     *
+     * Map each file and read its samples in place, with BatchLoader on the pool's threads, or on
+     * this one if it is null.
+     */
+    static Loader mapped(final ExecutorService pool){
+        return new Loader((pool==null) ? "mapped" : "mapped, BatchLoader") {
+            @Override
+            double[] meanLuma(List<BatchLoader.Source> sources) throws Exception {
+                double[] means = new double[sources.size()];
+                if (pool==null){
+                    for (int i=0; i<sources.size(); i++){
+                        means[i] = MappedReadBenchmark.meanLuma(sources.get(i).map());
+                    }
+                    return means;
+                }
+                List<Double> results = new BatchLoader(pool).run(sources, new BatchLoader.FrameFunction<Double>() {
+                    @Override
+                    public Double apply(BatchLoader.Source source, MappedYuvFrame frame){
+                        return MappedReadBenchmark.meanLuma(frame);
+                    }
+                });
+                for (int i=0; i<means.length; i++){
+                    means[i] = results.get(i);
+                }
+                return means;
+            }
+        };
+    }
+
+
+    /* double[] run(Loader, double[])
+     *
+     * Time the loader and print its figures. The means it finds are checked against the expected
+     * ones, if any, and returned.
+     */
+    public double[] run(Loader loader, double[] expected) throws Exception {
+        long best = Long.MAX_VALUE;
+        double[] means = null;
+        for (int r=0; r<WARMUP_RUNS+mReps; r++){
+            long t0 = System.nanoTime();
+            means = loader.meanLuma(mSources);
+            long t1 = System.nanoTime();
+            if (r>=WARMUP_RUNS){
+                best = Math.min(best, t1-t0);
+            }
+        }
+        if (expected!=null){
+            for (int i=0; i<means.length; i++){
+                if (Math.abs(means[i] - expected[i])>1e-9){
+                    throw new IOException(loader.name + ": mean luma of " + mSources.get(i) + " is " + means[i]
+                            + ", not " + expected[i]);
+                }
+            }
+        }
+
+        double seconds = best/1e9;
+        System.out.println(String.format("%-20s %6d frames  %8.1f ms  %8.0f frames/s  %7.0f MB/s",
+                loader.name, mSources.size(), seconds*1e3, mSources.size()/seconds, mMegabytes/seconds));
+        return means;
+    }
+
+
+
+    public static void main(String[] args) throws Exception {
+        int frames = 1000;
+        int width = 640;
+        int height = 480;
+        int reps = 3;
+        File dir = null;
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-frames") && i+1<args.length){
+                frames = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size") && i+1<args.length){
+                String[] size = args[++i].split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else if (args[i].equals("-reps") && i+1<args.length){
+                reps = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-dir") && i+1<args.length){
+                dir = new File(args[++i]);
+            }
+        }
+
+        boolean temporary = (dir==null);
+        if (temporary){
+            dir = File.createTempFile("devcam-frames", "");
+            dir.delete();
+        }
+        if (!(dir.mkdirs() || dir.isDirectory())){
+            throw new IOException("Could not create " + dir);
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(processors);
+        try {
+            writeFrames(dir, frames, width, height);
+            MappedReadBenchmark bench = new MappedReadBenchmark(BatchLoader.findFrames(dir), reps);
+            System.out.println(String.format("%d frames of %dx%d, %.0f MB, %d threads in the pools",
+                    frames, width, height, bench.mMegabytes, processors));
+            double[] expected = bench.run(readAll(null), null);
+            bench.run(mapped(null), expected);
+            bench.run(readAll(pool), expected);
+            bench.run(mapped(pool), expected);
+        } catch (ExecutionException ee){
+            throw new IOException(ee.getCause());
+        } finally {
+            pool.shutdown();
+            if (temporary){
+                File[] files = dir.listFiles();
+                if (files!=null){
+                    for (File file : files){
+                        file.delete();
+                    }
+                }
+                dir.delete();
+            }
+        }
+    }
+
+}
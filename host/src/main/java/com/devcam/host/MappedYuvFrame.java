@@ -0,0 +1,223 @@
+/* MappedYuvFrame class, a devCam .yuv frame (see YuvFormat) read through a memory mapping of its
+ * file, or of its place in a container, rather than copied into arrays.
+ *
+ * The header is parsed when the frame is mapped, by YuvReader, and each plane is then a read-only
+ * view of the mapped bytes, with the pixel and row strides of the file, so nothing of the frame is
+ * read from disk until its samples are looked at, and then only the pages they are on. Sample
+ * (col,row) of a plane is at byte row*rowStride + col*pixelStride of its view. Samples a plane is
+ * missing at its end, as YUV_420_888 does not guarantee the last pixel, read as the last sample
+ * present, as YuvReader fills them in.
+ *
+ * A mapping lasts as long as the frame, or any of its planes, is referenced. Frames and planes can
+ * be read from several threads at once.
+ */
+
+package com.devcam.host;
+
+import com.devcam.io.BurstContainer;
+import com.devcam.io.BurstContainerReader;
+import com.devcam.io.YuvFormat;
+import com.devcam.io.YuvFrame;
+import com.devcam.io.YuvReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MappedYuvFrame {
+
+    private final int mVersion;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFlags;
+    private final Plane[] mPlanes = new Plane[YuvFormat.NUM_PLANES];
+
+
+    // - - - Constructor - - -
+    /* Parse the frame from a buffer holding exactly its .yuv bytes, from its position to its limit. */
+    public MappedYuvFrame(ByteBuffer data) throws IOException {
+        ByteBuffer bytes = data.slice();
+        byte[] header = new byte[Math.min(bytes.remaining(), YuvFormat.HEADER_SIZE)];
+        bytes.duplicate().get(header);
+        YuvReader reader = new YuvReader(new ByteArrayInputStream(header), bytes.remaining());
+        mVersion = reader.getVersion();
+        mWidth = reader.getWidth();
+        mHeight = reader.getHeight();
+        mFlags = reader.getFlags();
+
+        int offset = (mVersion==1) ? YuvFormat.V1_HEADER_SIZE : YuvFormat.HEADER_SIZE;
+        for (int p=0; p<YuvFormat.NUM_PLANES; p++){
+            int count = reader.getByteCount(p);
+            if (offset + (long) count>bytes.remaining()){
+                throw new IOException("Plane " + p + " runs past the end of the frame.");
+            }
+            ByteBuffer view = bytes.duplicate();
+            view.position(offset);
+            view.limit(offset + count);
+            mPlanes[p] = new Plane(view.slice().asReadOnlyBuffer(), YuvFormat.planeWidth(p, mWidth),
+                    YuvFormat.planeHeight(p, mHeight), reader.getPixelStride(p), reader.getRowStride(p));
+            offset += count;
+        }
+    }
+
+
+    /* static MappedYuvFrame map(File)
+     *
+     * Map a .yuv file.
+     */
+    public static MappedYuvFrame map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid once the file is closed.
+            return new MappedYuvFrame(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /* static List<MappedYuvFrame> mapContainer(File)
+     *
+     * Map every YUV_420_888 frame of a container file, in the order they were written.
+     */
+    public static List<MappedYuvFrame> mapContainer(File file) throws IOException {
+        List<MappedYuvFrame> frames = new ArrayList<MappedYuvFrame>();
+        BurstContainerReader reader = new BurstContainerReader(file);
+        try {
+            for (int i=0; i<reader.getFrameCount(); i++){
+                if (reader.getEntry(i).getFormat()==BurstContainer.FORMAT_YUV_420_888){
+                    frames.add(new MappedYuvFrame(reader.mapFrame(i)));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return frames;
+    }
+
+
+    // - - Setters and Getters - -
+    public int getVersion(){
+        return mVersion;
+    }
+    public int getWidth(){
+        return mWidth;
+    }
+    public int getHeight(){
+        return mHeight;
+    }
+    public int getFlags(){
+        return mFlags;
+    }
+    /* Plane p: 0 = Y, 1 = U, 2 = V. */
+    public Plane getPlane(int p){
+        return mPlanes[p];
+    }
+
+
+    /* YuvFrame toYuvFrame()
+     *
+     * Copy the samples out into unpadded arrays.
+     */
+    public YuvFrame toYuvFrame(){
+        YuvFrame frame = new YuvFrame(mWidth, mHeight);
+        for (int p=0; p<YuvFormat.NUM_PLANES; p++){
+            Plane plane = mPlanes[p];
+            byte[] samples = frame.getPlane(p);
+            for (int row=0; row<plane.getHeight(); row++){
+                plane.copyRow(row, samples, row*plane.getWidth());
+            }
+        }
+        return frame;
+    }
+
+
+
+    /* One plane of the frame, as a strided view of the mapped bytes.
+     */
+    public static final class Plane {
+
+        private final ByteBuffer mBuffer;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mPixelStride;
+        private final int mRowStride;
+        private final int mLastOffset;
+
+        Plane(ByteBuffer buffer, int width, int height, int pixelStride, int rowStride){
+            mBuffer = buffer;
+            mWidth = width;
+            mHeight = height;
+            mPixelStride = pixelStride;
+            mRowStride = rowStride;
+            int count = buffer.limit();
+            int lastRow = (rowStride>0) ? Math.min(height - 1, (count - 1)/rowStride) : 0;
+            int lastCol = Math.min(width - 1, (count - 1 - lastRow*rowStride)/pixelStride);
+            mLastOffset = Math.max(0, lastRow*rowStride + lastCol*pixelStride);
+        }
+
+        /* The plane's bytes, read-only, exactly as in the file. Absolute gets are safe from any
+         * number of threads, so take a duplicate() before moving its position. */
+        public ByteBuffer getBuffer(){
+            return mBuffer;
+        }
+        public int getWidth(){
+            return mWidth;
+        }
+        public int getHeight(){
+            return mHeight;
+        }
+        public int getPixelStride(){
+            return mPixelStride;
+        }
+        public int getRowStride(){
+            return mRowStride;
+        }
+        public int getByteCount(){
+            return mBuffer.limit();
+        }
+
+        /* int get(int, int)
+         *
+         * Sample (col,row), 0-255.
+         */
+        public int get(int col, int row){
+            int offset = row*mRowStride + col*mPixelStride;
+            if (offset>=mBuffer.limit()){
+                // Missing at the end: the last sample present.
+                offset = mLastOffset;
+            }
+            return mBuffer.get(offset) & 0xFF;
+        }
+
+        /* The offset of the last sample present, which samples missing at the end of the plane
+         * read as. Where the pixel stride is over 1 this need not be the last byte of the plane. */
+        public int getLastOffset(){
+            return mLastOffset;
+        }
+
+        /* void copyRow(int, byte[], int)
+         *
+         * Copy the samples of a row into the array, without padding, starting at the given index.
+         */
+        public void copyRow(int row, byte[] samples, int start){
+            int rowStart = row*mRowStride;
+            int count = mBuffer.limit();
+            if (mPixelStride==1 && rowStart + mWidth<=count){
+                ByteBuffer view = mBuffer.duplicate();
+                view.position(rowStart);
+                view.get(samples, start, mWidth);
+                return;
+            }
+            for (int col=0; col<mWidth; col++){
+                samples[start + col] = (byte) get(col, row);
+            }
+        }
+    }
+
+}
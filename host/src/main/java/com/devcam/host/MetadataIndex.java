@@ -0,0 +1,637 @@
+/* MetadataIndex class, the capture metadata of many designs in one file, a column per field, for
+ * finding frames by their metadata without opening every design (see MetadataIndexer, which
+ * makes it, and MetadataQuery).
+ *
+ * Every frame of every indexed _capture_metadata.json is a row. Each field is a column of one of
+ * three types, found from the values CameraReport wrote, which are all strings:
+ *
+ *   LONG     whole numbers, e.g. android.sensor.sensitivity "800"
+ *   DOUBLE   other numbers, and rationals "1/30" as their value, e.g. android.lens.focusDistance
+ *   STRING   anything else, e.g. android.control.aeMode "ON", or arrays "1, 2, 3", each distinct
+ *            value stored once and the rows holding its number
+ *
+ * with a field some values of which are not numbers being STRING throughout. "Null" values, and
+ * fields a frame has not got, are missing. Objects and arrays of JSON, like the frame statistics,
+ * are not indexed. Two more columns say where each row came from: devcam.design, the directory of
+ * its metadata file relative to the indexed directory, and devcam.frame, its index in that file.
+ *
+ * The file is little-endian: the magic number and version, then each column's values, and last a
+ * directory of the sources (metadata files, each with the length and modification time it had when
+ * indexed, so unchanged ones can be skipped next time, and its rows) and of the columns, found by
+ * the file's last 8 bytes. Columns are mapped as they are first used, so opening an index of
+ * millions of rows takes no time, and a query reads only the columns it filters on.
+ */
+
+package com.devcam.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MetadataIndex {
+
+    public static final String DEFAULT_NAME = "metadata.index";
+
+    public static final byte LONG = 1;
+    public static final byte DOUBLE = 2;
+    public static final byte STRING = 3;
+
+    public static final long MISSING_LONG = Long.MIN_VALUE;
+    public static final int MISSING_CODE = -1;
+
+    public static final String DESIGN_COLUMN = "devcam.design";
+    public static final String FRAME_COLUMN = "devcam.frame";
+
+    static final int MAGIC = 0x58494344; // "DCIX", little-endian
+    static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<Source> mSources;
+    private final int mRows;
+    private final Map<String,Column> mColumns;
+
+
+    private MetadataIndex(List<Source> sources, int rows, Map<String,Column> columns){
+        mSources = sources;
+        mRows = rows;
+        mColumns = columns;
+    }
+
+
+    public int getRowCount(){
+        return mRows;
+    }
+    public List<Source> getSources(){
+        return Collections.unmodifiableList(mSources);
+    }
+    public List<String> getColumnNames(){
+        return new ArrayList<String>(mColumns.keySet());
+    }
+    /* The column of the field, or null if no frame had it. */
+    public Column getColumn(String name){
+        return mColumns.get(name);
+    }
+
+
+
+    /* A metadata file that was indexed, and its rows. */
+    public static final class Source {
+        public final String path; // relative to the indexed directory, with '/' between names
+        public final long length;
+        public final long lastModified;
+        public final int firstRow;
+        public final int rows;
+
+        public Source(String path, long length, long lastModified, int firstRow, int rows){
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.firstRow = firstRow;
+            this.rows = rows;
+        }
+    }
+
+
+
+    /* A field's values, one per row, read from the index's mapping when first used. */
+    public static final class Column {
+
+        private final String mName;
+        private final byte mType;
+        private final int mRows;
+        private final ByteBuffer mData;
+
+        private LongBuffer mLongs;
+        private DoubleBuffer mDoubles;
+        private IntBuffer mCodes;
+        private String[] mDictionary;
+
+        Column(String name, byte type, int rows, ByteBuffer data){
+            mName = name;
+            mType = type;
+            mRows = rows;
+            mData = data;
+        }
+
+        public String getName(){
+            return mName;
+        }
+        public byte getType(){
+            return mType;
+        }
+
+        /* Decode the column's mapping, the first time it is used. */
+        private synchronized void load(){
+            if (mLongs!=null || mDoubles!=null || mCodes!=null){
+                return;
+            }
+            ByteBuffer data = mData.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            if (mType==LONG){
+                mLongs = data.asLongBuffer();
+            } else if (mType==DOUBLE){
+                mDoubles = data.asDoubleBuffer();
+            } else {
+                String[] dictionary = new String[data.getInt()];
+                for (int i=0; i<dictionary.length; i++){
+                    dictionary[i] = readString(data);
+                }
+                data.position((data.position() + 3) & ~3);
+                mDictionary = dictionary;
+                mCodes = data.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+        }
+
+        /* For LONG columns. */
+        public LongBuffer getLongs(){
+            load();
+            return mLongs;
+        }
+        /* For DOUBLE columns. */
+        public DoubleBuffer getDoubles(){
+            load();
+            return mDoubles;
+        }
+        /* For STRING columns: each row's index into the dictionary of distinct values. */
+        public IntBuffer getCodes(){
+            load();
+            return mCodes;
+        }
+        public String[] getDictionary(){
+            load();
+            return mDictionary;
+        }
+
+        public boolean isMissing(int row){
+            load();
+            if (mType==LONG){
+                return mLongs.get(row)==MISSING_LONG;
+            } else if (mType==DOUBLE){
+                return Double.isNaN(mDoubles.get(row));
+            }
+            return mCodes.get(row)==MISSING_CODE;
+        }
+
+        /* Object get(int)
+         *
+         * The row's value, as a Long, Double or String, or null if missing.
+         */
+        public Object get(int row){
+            load();
+            if (mType==LONG){
+                long value = mLongs.get(row);
+                return (value==MISSING_LONG) ? null : Long.valueOf(value);
+            } else if (mType==DOUBLE){
+                double value = mDoubles.get(row);
+                return Double.isNaN(value) ? null : Double.valueOf(value);
+            }
+            int code = mCodes.get(row);
+            return (code==MISSING_CODE) ? null : mDictionary[code];
+        }
+
+        /* The row's value as text, or "" if missing. */
+        public String getString(int row){
+            Object value = get(row);
+            return (value==null) ? "" : value.toString();
+        }
+
+        /* The number of rows that have a value. */
+        public int countPresent(){
+            int count = 0;
+            for (int r=0; r<mRows; r++){
+                if (!isMissing(r)){
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+
+
+    /* static Object typed(Object)
+     *
+     * A metadata value as it goes in a column: a Long, Double or String, or null if it is missing or
+     * not indexed. Values written by CameraReport are strings, and read as numbers where they are.
+     */
+    public static Object typed(Object value){
+        if (value instanceof Long || value instanceof Double){
+            return value;
+        } else if (value instanceof Boolean){
+            return value.toString();
+        } else if (!(value instanceof String)){
+            return null; // objects and arrays
+        }
+        String string = ((String) value).trim();
+        if (string.isEmpty() || string.equals("Null")){
+            return null;
+        }
+        char first = string.charAt(0);
+        if ((first>='0' && first<='9') || first=='-' || first=='.'){
+            try {
+                return Long.valueOf(string);
+            } catch (NumberFormatException notLong){
+                // a number with a fraction, a rational or not a number
+            }
+            try {
+                return Double.valueOf(string);
+            } catch (NumberFormatException notDouble){
+                // a rational or not a number
+            }
+            int slash = string.indexOf('/');
+            if (slash>0 && string.indexOf('/', slash + 1)<0){
+                try {
+                    double ratio = Double.parseDouble(string.substring(0, slash))/Double.parseDouble(string.substring(slash + 1));
+                    return Double.isNaN(ratio) ? null : Double.valueOf(ratio);
+                } catch (NumberFormatException notRational){
+                    // not a number
+                }
+            }
+        }
+        return string;
+    }
+
+
+
+    /* static MetadataIndex open(File)
+     *
+     * Open an index file, mapping its directory; the columns are mapped as they are used.
+     */
+    public static MetadataIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size<16){
+                throw new IOException(file + " is not a metadata index.");
+            }
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8).order(ByteOrder.LITTLE_ENDIAN);
+            if (head.getInt()!=MAGIC){
+                throw new IOException(file + " is not a metadata index.");
+            }
+            int version = head.getInt();
+            if (version!=VERSION){
+                throw new IOException(file + " is a metadata index of version " + version + ", not " + VERSION + ".");
+            }
+            long directoryAt = channel.map(FileChannel.MapMode.READ_ONLY, size - 8, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+            if (directoryAt<8 || directoryAt>size - 8){
+                throw new IOException(file + " is truncated or corrupt.");
+            }
+            ByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryAt, size - 8 - directoryAt)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            int rows = directory.getInt();
+            int sourceCount = directory.getInt();
+            List<Source> sources = new ArrayList<Source>(sourceCount);
+            for (int s=0; s<sourceCount; s++){
+                String path = readString(directory);
+                long length = directory.getLong();
+                long lastModified = directory.getLong();
+                int firstRow = directory.getInt();
+                sources.add(new Source(path, length, lastModified, firstRow, directory.getInt()));
+            }
+            int columnCount = directory.getInt();
+            Map<String,Column> columns = new LinkedHashMap<String,Column>();
+            for (int c=0; c<columnCount; c++){
+                String name = readString(directory);
+                byte type = directory.get();
+                long offset = directory.getLong();
+                long length = directory.getLong();
+                if (offset + length>directoryAt){
+                    throw new IOException(file + " is truncated or corrupt.");
+                }
+                columns.put(name, new Column(name, type, rows, channel.map(FileChannel.MapMode.READ_ONLY, offset, length)));
+            }
+            return new MetadataIndex(sources, rows, columns);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String readString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+
+
+    /* Gathers rows, a metadata file at a time, and writes them as an index. */
+    public static final class Builder {
+
+        private final List<Source> mSources = new ArrayList<Source>();
+        private final Map<String,ColumnBuilder> mColumns = new LinkedHashMap<String,ColumnBuilder>();
+        private int mRows = 0;
+
+        public Builder(){
+            column(DESIGN_COLUMN);
+            column(FRAME_COLUMN);
+        }
+
+        public int getRowCount(){
+            return mRows;
+        }
+        public int getSourceCount(){
+            return mSources.size();
+        }
+
+        private ColumnBuilder column(String name){
+            ColumnBuilder column = mColumns.get(name);
+            if (column==null){
+                column = new ColumnBuilder();
+                mColumns.put(name, column);
+            }
+            return column;
+        }
+
+        /* void add(String, long, long, List<Map<String,Object>>)
+         *
+         * Add the frames of a metadata file, at the given path relative to the indexed directory.
+         */
+        public void add(String path, long length, long lastModified, List<Map<String,Object>> records){
+            int slash = path.lastIndexOf('/');
+            String design = (slash<0) ? "" : path.substring(0, slash);
+            mSources.add(new Source(path, length, lastModified, mRows, records.size()));
+            for (int i=0; i<records.size(); i++){
+                int row = mRows++;
+                column(DESIGN_COLUMN).set(row, design);
+                column(FRAME_COLUMN).set(row, Long.valueOf(i));
+                for (Map.Entry<String,Object> field : records.get(i).entrySet()){
+                    Object value = typed(field.getValue());
+                    if (value!=null){
+                        column(field.getKey()).set(row, value);
+                    }
+                }
+            }
+        }
+
+        /* void copy(MetadataIndex, Source)
+         *
+         * Add the frames of a metadata file as they are in another index, e.g. when the file has not
+         * changed since that index was made.
+         */
+        public void copy(MetadataIndex index, Source source){
+            mSources.add(new Source(source.path, source.length, source.lastModified, mRows, source.rows));
+            for (Column from : index.mColumns.values()){
+                ColumnBuilder to = column(from.getName());
+                // Read as they would be from the file, as a STRING column may be numbers here.
+                boolean retype = (from.getType()==STRING && !from.getName().equals(DESIGN_COLUMN));
+                for (int r=0; r<source.rows; r++){
+                    Object value = from.get(source.firstRow + r);
+                    if (value!=null){
+                        to.set(mRows + r, retype ? typed(value) : value);
+                    }
+                }
+            }
+            mRows += source.rows;
+        }
+
+        /* void write(File)
+         *
+         * Write the index, to a file next to the given one first, so a reader of the old index never
+         * sees a partial one.
+         */
+        public void write(File file) throws IOException {
+            File partial = new File(file.getPath() + ".partial");
+            RandomAccessFile raf = new RandomAccessFile(partial, "rw");
+            try {
+                raf.setLength(0);
+                Output out = new Output(raf.getChannel());
+                out.putInt(MAGIC);
+                out.putInt(VERSION);
+
+                List<String> names = new ArrayList<String>(mColumns.keySet());
+                long[] offsets = new long[names.size()];
+                long[] lengths = new long[names.size()];
+                for (int c=0; c<names.size(); c++){
+                    out.pad(8);
+                    offsets[c] = out.position();
+                    mColumns.get(names.get(c)).write(out, mRows);
+                    lengths[c] = out.position() - offsets[c];
+                }
+
+                long directoryAt = out.position();
+                out.putInt(mRows);
+                out.putInt(mSources.size());
+                for (Source source : mSources){
+                    out.putString(source.path);
+                    out.putLong(source.length);
+                    out.putLong(source.lastModified);
+                    out.putInt(source.firstRow);
+                    out.putInt(source.rows);
+                }
+                out.putInt(names.size());
+                for (int c=0; c<names.size(); c++){
+                    out.putString(names.get(c));
+                    out.put(mColumns.get(names.get(c)).mType);
+                    out.putLong(offsets[c]);
+                    out.putLong(lengths[c]);
+                }
+                out.putLong(directoryAt);
+                out.flush();
+                raf.getChannel().force(false);
+            } finally {
+                raf.close();
+            }
+            if (!partial.renameTo(file)){
+                // Where a file can not be renamed over another.
+                if (!file.delete() || !partial.renameTo(file)){
+                    throw new IOException("Could not replace " + file + " by " + partial);
+                }
+            }
+        }
+    }
+
+
+
+    /* A column being gathered, whose type widens from LONG to DOUBLE to STRING as values need. */
+    static final class ColumnBuilder {
+
+        private byte mType = LONG;
+        private long[] mLongs = new long[0];
+        private double[] mDoubles = null;
+        private int[] mCodes = null;
+        private List<String> mDictionary = null;
+        private Map<String,Integer> mCodeOf = null;
+
+        void set(int row, Object value){
+            if (value instanceof String){
+                if (mType!=STRING){
+                    toStrings();
+                }
+            } else if (value instanceof Double){
+                if (mType==LONG){
+                    toDoubles();
+                }
+            }
+            ensure(row + 1);
+            if (mType==LONG){
+                mLongs[row] = (Long) value;
+            } else if (mType==DOUBLE){
+                mDoubles[row] = ((Number) value).doubleValue();
+            } else {
+                mCodes[row] = codeOf(value.toString());
+            }
+        }
+
+        private int codeOf(String value){
+            Integer code = mCodeOf.get(value);
+            if (code==null){
+                code = mDictionary.size();
+                mDictionary.add(value);
+                mCodeOf.put(value, code);
+            }
+            return code;
+        }
+
+        /* Make room for rows [0, rows), those not set missing. */
+        private void ensure(int rows){
+            int capacity = (mType==LONG) ? mLongs.length : (mType==DOUBLE) ? mDoubles.length : mCodes.length;
+            if (rows<=capacity){
+                return;
+            }
+            int grown = Math.max(rows, Math.max(1024, 2*capacity));
+            if (mType==LONG){
+                mLongs = Arrays.copyOf(mLongs, grown);
+                Arrays.fill(mLongs, capacity, grown, MISSING_LONG);
+            } else if (mType==DOUBLE){
+                mDoubles = Arrays.copyOf(mDoubles, grown);
+                Arrays.fill(mDoubles, capacity, grown, Double.NaN);
+            } else {
+                mCodes = Arrays.copyOf(mCodes, grown);
+                Arrays.fill(mCodes, capacity, grown, MISSING_CODE);
+            }
+        }
+
+        private void toDoubles(){
+            mDoubles = new double[mLongs.length];
+            for (int r=0; r<mLongs.length; r++){
+                mDoubles[r] = (mLongs[r]==MISSING_LONG) ? Double.NaN : mLongs[r];
+            }
+            mLongs = null;
+            mType = DOUBLE;
+        }
+
+        private void toStrings(){
+            mDictionary = new ArrayList<String>();
+            mCodeOf = new HashMap<String,Integer>();
+            if (mType==LONG){
+                mCodes = new int[mLongs.length];
+                for (int r=0; r<mLongs.length; r++){
+                    mCodes[r] = (mLongs[r]==MISSING_LONG) ? MISSING_CODE : codeOf(Long.toString(mLongs[r]));
+                }
+                mLongs = null;
+            } else {
+                mCodes = new int[mDoubles.length];
+                for (int r=0; r<mDoubles.length; r++){
+                    mCodes[r] = Double.isNaN(mDoubles[r]) ? MISSING_CODE : codeOf(Double.toString(mDoubles[r]));
+                }
+                mDoubles = null;
+            }
+            mType = STRING;
+        }
+
+        void write(Output out, int rows) throws IOException {
+            ensure(rows);
+            if (mType==LONG){
+                for (int r=0; r<rows; r++){
+                    out.putLong(mLongs[r]);
+                }
+            } else if (mType==DOUBLE){
+                for (int r=0; r<rows; r++){
+                    out.putDouble(mDoubles[r]);
+                }
+            } else {
+                long start = out.position();
+                out.putInt(mDictionary.size());
+                for (String value : mDictionary){
+                    out.putString(value);
+                }
+                out.pad(4, start);
+                for (int r=0; r<rows; r++){
+                    out.putInt(mCodes[r]);
+                }
+            }
+        }
+    }
+
+
+
+    /* Little-endian output to a file channel, through a buffer. */
+    static final class Output {
+
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private long mFlushed = 0;
+
+        Output(FileChannel channel){
+            mChannel = channel;
+        }
+
+        long position(){
+            return mFlushed + mBuffer.position();
+        }
+
+        private void room(int bytes) throws IOException {
+            if (mBuffer.remaining()<bytes){
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()){
+                mFlushed += mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        void put(byte value) throws IOException {
+            room(1);
+            mBuffer.put(value);
+        }
+        void putInt(int value) throws IOException {
+            room(4);
+            mBuffer.putInt(value);
+        }
+        void putLong(long value) throws IOException {
+            room(8);
+            mBuffer.putLong(value);
+        }
+        void putDouble(double value) throws IOException {
+            room(8);
+            mBuffer.putDouble(value);
+        }
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(UTF8);
+            putInt(bytes.length);
+            for (byte b : bytes){
+                put(b);
+            }
+        }
+
+        /* Pad with zeros to a multiple of the alignment, from the start of the file or the given offset. */
+        void pad(int alignment) throws IOException {
+            pad(alignment, 0);
+        }
+        void pad(int alignment, long from) throws IOException {
+            while ((position() - from)%alignment!=0){
+                put((byte) 0);
+            }
+        }
+    }
+
+}
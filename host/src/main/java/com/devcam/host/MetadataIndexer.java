@@ -0,0 +1,209 @@
+/* MetadataIndexer, for gathering the capture metadata of every design under a directory into one
+ * MetadataIndex, to be searched with MetadataQuery.
+ *
+ *   java com.devcam.host.MetadataIndexer <capture dir> [-index file] [-threads N]
+ *
+ * Every _capture_metadata.json under the directory, at any depth, is indexed, into metadata.index
+ * in the directory unless -index says otherwise. If the index is there already, the files that
+ * have the length and modification time they had when it was made are not read again, but their
+ * rows copied from it, so updating the index of a lab's worth of designs after a day's captures
+ * reads just that day's; files gone since are dropped, and if nothing changed, the index is left
+ * as it is. The files that are read are parsed in parallel on -threads threads (all processors by
+ * default), a few at a time per thread ahead of their rows being added, in order.
+ */
+
+package com.devcam.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MetadataIndexer {
+
+    // Files parsed ahead of the one being added, per thread.
+    static final int AHEAD_PER_THREAD = 4;
+
+    private final ExecutorService mPool;
+    private final int mAhead;
+
+    private int mRead = 0;
+    private int mCopied = 0;
+    private int mDropped = 0;
+
+
+    // - - - Constructor - - -
+    public MetadataIndexer(ExecutorService pool, int threads){
+        mPool = pool;
+        mAhead = AHEAD_PER_THREAD*threads;
+    }
+
+    public int getReadCount(){
+        return mRead;
+    }
+    public int getCopiedCount(){
+        return mCopied;
+    }
+    public int getDroppedCount(){
+        return mDropped;
+    }
+
+
+    /* static List<String> findSources(File)
+     *
+     * The paths, relative to the directory and in order, of the capture metadata files under it.
+     */
+    public static List<String> findSources(File dir){
+        List<String> paths = new ArrayList<String>();
+        findSources(dir, "", paths);
+        return paths;
+    }
+
+    private static void findSources(File dir, String prefix, List<String> paths){
+        File[] files = dir.listFiles();
+        if (files==null){
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files){
+            if (file.isDirectory()){
+                findSources(file, prefix + file.getName() + "/", paths);
+            } else if (file.getName().endsWith(CaptureMetadataReader.FILE_SUFFIX)){
+                paths.add(prefix + file.getName());
+            }
+        }
+    }
+
+
+    /* MetadataIndex.Builder index(File, MetadataIndex)
+     *
+     * Gather the metadata under the directory, copying the rows of files unchanged since the given
+     * index, if any, was made. Returns null if there is nothing new to index.
+     */
+    public MetadataIndex.Builder index(final File dir, MetadataIndex previous) throws IOException, InterruptedException {
+        Map<String,MetadataIndex.Source> known = new HashMap<String,MetadataIndex.Source>();
+        if (previous!=null){
+            for (MetadataIndex.Source source : previous.getSources()){
+                known.put(source.path, source);
+            }
+        }
+        List<String> paths = findSources(dir);
+        mRead = 0;
+        mCopied = 0;
+
+        // What each file needs: its rows copied from the previous index, or it read.
+        List<MetadataIndex.Source> unchanged = new ArrayList<MetadataIndex.Source>();
+        for (String path : paths){
+            File file = new File(dir, path);
+            MetadataIndex.Source source = known.remove(path);
+            boolean same = (source!=null && source.length==file.length() && source.lastModified==file.lastModified());
+            unchanged.add(same ? source : null);
+        }
+        mDropped = known.size();
+        boolean changed = (mDropped>0 || previous==null);
+        for (MetadataIndex.Source source : unchanged){
+            changed |= (source==null);
+        }
+        if (!changed){
+            mCopied = paths.size();
+            return null;
+        }
+
+        MetadataIndex.Builder builder = new MetadataIndex.Builder();
+        Deque<Future<List<Map<String,Object>>>> ahead = new ArrayDeque<Future<List<Map<String,Object>>>>();
+        int next = 0; // the next file to start reading
+        for (int i=0; i<paths.size(); i++){
+            // Keep up to mAhead files being read beyond this one.
+            for (; next<paths.size() && ahead.size()<mAhead; next++){
+                if (unchanged.get(next)==null){
+                    final File file = new File(dir, paths.get(next));
+                    ahead.add(mPool.submit(new Callable<List<Map<String,Object>>>() {
+                        @Override
+                        public List<Map<String,Object>> call() throws IOException {
+                            return CaptureMetadataReader.readAll(file);
+                        }
+                    }));
+                }
+            }
+            if (unchanged.get(i)!=null){
+                builder.copy(previous, unchanged.get(i));
+                mCopied++;
+                continue;
+            }
+            File file = new File(dir, paths.get(i));
+            // Its length and time from before it is read, so a change while reading is seen next time.
+            long length = file.length();
+            long lastModified = file.lastModified();
+            try {
+                builder.add(paths.get(i), length, lastModified, ahead.remove().get());
+                mRead++;
+            } catch (ExecutionException ee){
+                System.err.println("Skipping " + file + ": " + ee.getCause());
+            }
+        }
+        return builder;
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File dir = null;
+        File indexFile = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-index") && i+1<args.length){
+                indexFile = new File(args[++i]);
+            } else if (args[i].equals("-threads") && i+1<args.length){
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                dir = new File(args[i]);
+            }
+        }
+        if (dir==null || !dir.isDirectory()){
+            System.err.println("Usage: MetadataIndexer <capture dir> [-index file] [-threads N]");
+            System.exit(2);
+        }
+        if (indexFile==null){
+            indexFile = new File(dir, MetadataIndex.DEFAULT_NAME);
+        }
+
+        MetadataIndex previous = null;
+        if (indexFile.exists()){
+            try {
+                previous = MetadataIndex.open(indexFile);
+            } catch (IOException ioe){
+                System.err.println("Making a new index, as the old one can not be read: " + ioe.getMessage());
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            long t0 = System.nanoTime();
+            MetadataIndexer indexer = new MetadataIndexer(pool, threads);
+            MetadataIndex.Builder builder = indexer.index(dir, previous);
+            if (builder==null){
+                System.out.println(String.format("%s is up to date: %d metadata files, %d frames.", indexFile,
+                        previous.getSources().size(), previous.getRowCount()));
+                return;
+            }
+            builder.write(indexFile);
+            long t1 = System.nanoTime();
+            System.out.println(String.format("Indexed %d frames of %d metadata files (%d read, %d unchanged, %d gone)"
+                    + " into %s in %.2f s", builder.getRowCount(), builder.getSourceCount(), indexer.getReadCount(),
+                    indexer.getCopiedCount(), indexer.getDroppedCount(), indexFile, (t1 - t0)/1e9));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,463 @@
+/* MetadataQuery, for finding the frames in a MetadataIndex whose metadata meet some conditions.
+ *
+ *   java com.devcam.host.MetadataQuery <index file or capture dir> [condition ...] [-show field,...]
+ *                                      [-limit N] [-count] [-columns] [-threads N]
+ *
+ * A condition is a field, an operator and a value, all in one argument, and quoted for the shell:
+ *
+ *   'android.sensor.sensitivity>800' 'android.sensor.exposureTime>33333333' 'android.control.aeMode=OFF'
+ *
+ * The operators are = != < <= > >=, and ~ for text containing the value. Numbers are compared as
+ * numbers, and rationals like 1/30 can be given for them, even in fields with some values that are
+ * not numbers, which are then only = or != to them; other values are compared as text. A frame
+ * missing the field never meets the condition. The frames meeting them all are listed, one per
+ * line, with their design, frame index and file names and the -show fields, tab-separated, up to
+ * -limit of them, or just counted with -count. -columns lists the fields of the index instead,
+ * with their types and how many frames have them.
+ *
+ * The rows are gone through in chunks of 64K, in parallel on -threads threads (all processors by
+ * default), each condition on a chunk copying that part of its column from the index's mapping, and
+ * skipping the words of 64 rows none of which met the conditions before it. The time taken is
+ * reported.
+ */
+
+package com.devcam.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MetadataQuery {
+
+    // Rows gone through at a time by one thread, a multiple of 64.
+    static final int CHUNK_ROWS = 1 << 16;
+
+    static final String[] OPERATORS = {"<=", ">=", "!=", "=", "<", ">", "~"};
+
+    private final MetadataIndex mIndex;
+    private final List<Condition> mConditions = new ArrayList<Condition>();
+
+
+    // - - - Constructor - - -
+    public MetadataQuery(MetadataIndex index){
+        mIndex = index;
+    }
+
+
+    /* MetadataQuery where(String)
+     *
+     * Add a condition, e.g. "android.sensor.sensitivity>800".
+     */
+    public MetadataQuery where(String condition){
+        for (int i=0; i<condition.length(); i++){
+            for (String operator : OPERATORS){
+                if (condition.startsWith(operator, i)){
+                    return where(condition.substring(0, i).trim(), operator, condition.substring(i + operator.length()).trim());
+                }
+            }
+        }
+        throw new IllegalArgumentException("No operator in condition: " + condition);
+    }
+
+    /* MetadataQuery where(String, String, String)
+     *
+     * Add a condition on a field.
+     */
+    public MetadataQuery where(String field, String operator, String value){
+        MetadataIndex.Column column = mIndex.getColumn(field);
+        if (column==null){
+            mConditions.add(new Never());
+        } else if (column.getType()==MetadataIndex.STRING){
+            mConditions.add(new TextCondition(column, operator, value));
+        } else {
+            if (operator.equals("~")){
+                throw new IllegalArgumentException(field + " is a field of numbers; ~ is for text.");
+            }
+            Object number = MetadataIndex.typed(value);
+            if (!(number instanceof Number)){
+                throw new IllegalArgumentException(field + " is a field of numbers, and " + value + " is not one.");
+            }
+            mConditions.add(new NumberCondition(column, operator, ((Number) number).doubleValue()));
+        }
+        return this;
+    }
+
+
+    /* int[] run(ExecutorService)
+     *
+     * The rows meeting every condition, in order.
+     */
+    public int[] run(ExecutorService pool) throws IOException, InterruptedException {
+        long[] words = select(pool);
+        int count = 0;
+        for (long word : words){
+            count += Long.bitCount(word);
+        }
+        int[] rows = new int[count];
+        int n = 0;
+        for (int w=0; w<words.length; w++){
+            long word = words[w];
+            while (word!=0){
+                rows[n++] = 64*w + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return rows;
+    }
+
+    /* The rows meeting every condition, as a bit per row. */
+    long[] select(ExecutorService pool) throws IOException, InterruptedException {
+        final int rows = mIndex.getRowCount();
+        final long[] words = new long[(rows + 63)/64];
+        List<Callable<Void>> chunks = new ArrayList<Callable<Void>>();
+        for (int row=0; row<rows; row+=CHUNK_ROWS){
+            final int row0 = row;
+            final int row1 = Math.min(rows, row + CHUNK_ROWS);
+            chunks.add(new Callable<Void>() {
+                @Override
+                public Void call(){
+                    for (int w=row0/64; w<(row1 + 63)/64; w++){
+                        int left = row1 - 64*w;
+                        words[w] = (left>=64) ? -1L : (1L << left) - 1;
+                    }
+                    for (Condition condition : mConditions){
+                        condition.apply(words, row0/64, (row1 + 63)/64, rows);
+                    }
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> future : pool.invokeAll(chunks)){
+            try {
+                future.get();
+            } catch (ExecutionException ee){
+                throw new IOException(ee.getCause());
+            }
+        }
+        return words;
+    }
+
+
+
+    /* A condition on a column, clearing the bits of the rows not meeting it. */
+    abstract static class Condition {
+
+        /* void apply(long[], int, int, int)
+         *
+         * Clear the bits of words [word0, word1), of the rows [0, rows), whose rows do not meet the
+         * condition.
+         */
+        abstract void apply(long[] words, int word0, int word1, int rows);
+
+        static boolean anySet(long[] words, int word0, int word1){
+            for (int w=word0; w<word1; w++){
+                if (words[w]!=0){
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class Never extends Condition {
+        @Override
+        void apply(long[] words, int word0, int word1, int rows){
+            for (int w=word0; w<word1; w++){
+                words[w] = 0;
+            }
+        }
+    }
+
+
+    // Each thread's copy of a chunk of a column, for going through it as an array.
+    private static final ThreadLocal<long[]> sLongs = new ThreadLocal<long[]>(){
+        @Override
+        protected long[] initialValue(){
+            return new long[CHUNK_ROWS];
+        }
+    };
+    private static final ThreadLocal<double[]> sDoubles = new ThreadLocal<double[]>(){
+        @Override
+        protected double[] initialValue(){
+            return new double[CHUNK_ROWS];
+        }
+    };
+    private static final ThreadLocal<int[]> sCodes = new ThreadLocal<int[]>(){
+        @Override
+        protected int[] initialValue(){
+            return new int[CHUNK_ROWS];
+        }
+    };
+
+
+    /* A comparison of a LONG or DOUBLE column with a number, as a range of values it keeps, or with
+     * != those it drops. */
+    static final class NumberCondition extends Condition {
+
+        private final LongBuffer mLongs;
+        private final DoubleBuffer mDoubles;
+        private final boolean mOutside;
+        private final long mLow;
+        private final long mHigh;
+        private final double mLowDouble;
+        private final double mHighDouble;
+
+        NumberCondition(MetadataIndex.Column column, String operator, double value){
+            mLongs = (column.getType()==MetadataIndex.LONG) ? column.getLongs() : null;
+            mDoubles = (column.getType()==MetadataIndex.DOUBLE) ? column.getDoubles() : null;
+            mOutside = operator.equals("!=");
+            double low = Double.NEGATIVE_INFINITY;
+            double high = Double.POSITIVE_INFINITY;
+            if (operator.equals("=") || operator.equals("!=")){
+                low = value;
+                high = value;
+            } else if (operator.equals(">")){
+                low = Math.nextUp(value);
+            } else if (operator.equals(">=")){
+                low = value;
+            } else if (operator.equals("<")){
+                high = -Math.nextUp(-value);
+            } else {
+                high = value;
+            }
+            mLowDouble = low;
+            mHighDouble = high;
+            // The whole numbers in the range; MISSING_LONG is below them all.
+            mLow = (long) Math.max(MetadataIndex.MISSING_LONG + 1, Math.ceil(low));
+            mHigh = (long) Math.floor(high);
+        }
+
+        @Override
+        void apply(long[] words, int word0, int word1, int rows){
+            if (!anySet(words, word0, word1)){
+                return;
+            }
+            int row0 = 64*word0;
+            int count = Math.min(rows, 64*word1) - row0;
+            if (mLongs!=null){
+                long[] values = sLongs.get();
+                LongBuffer view = mLongs.duplicate();
+                view.position(row0);
+                view.get(values, 0, count);
+                for (int w=word0; w<word1; w++){
+                    if (words[w]==0){
+                        continue;
+                    }
+                    int base = 64*(w - word0);
+                    int n = Math.min(64, count - base);
+                    long bits = 0;
+                    for (int i=0; i<n; i++){
+                        long v = values[base + i];
+                        boolean meets = ((v>=mLow & v<=mHigh) ^ mOutside) & (v!=MetadataIndex.MISSING_LONG);
+                        bits |= (meets ? 1L : 0L) << i;
+                    }
+                    words[w] &= bits;
+                }
+            } else {
+                double[] values = sDoubles.get();
+                DoubleBuffer view = mDoubles.duplicate();
+                view.position(row0);
+                view.get(values, 0, count);
+                for (int w=word0; w<word1; w++){
+                    if (words[w]==0){
+                        continue;
+                    }
+                    int base = 64*(w - word0);
+                    int n = Math.min(64, count - base);
+                    long bits = 0;
+                    for (int i=0; i<n; i++){
+                        double v = values[base + i];
+                        boolean meets = ((v>=mLowDouble & v<=mHighDouble) ^ mOutside) & (v==v); // not NaN
+                        bits |= (meets ? 1L : 0L) << i;
+                    }
+                    words[w] &= bits;
+                }
+            }
+        }
+    }
+
+
+    /* A comparison of a STRING column with text, worked out once for each distinct value. Where the
+     * value and the column's text are both numbers, e.g. in a field of numbers with a few values
+     * that are not, they are compared as numbers, and text that is not a number is never less or
+     * greater than a number. */
+    static final class TextCondition extends Condition {
+
+        private final IntBuffer mCodes;
+        private final boolean[] mMeets;
+
+        TextCondition(MetadataIndex.Column column, String operator, String value){
+            mCodes = column.getCodes();
+            String[] dictionary = column.getDictionary();
+            // One more, first, for missing values, which never meet it.
+            mMeets = new boolean[dictionary.length + 1];
+            int op = indexOf(operator);
+            Object number = MetadataIndex.typed(value);
+            boolean ordering = (op==0 || op==1 || op==4 || op==5);
+            for (int c=0; c<dictionary.length; c++){
+                boolean meets;
+                if (op<0){
+                    meets = dictionary[c].contains(value);
+                } else if (number instanceof Number){
+                    Object entry = MetadataIndex.typed(dictionary[c]);
+                    if (entry instanceof Number){
+                        meets = compare(Double.compare(((Number) entry).doubleValue(), ((Number) number).doubleValue()), op);
+                    } else {
+                        meets = !ordering && compare(dictionary[c].compareTo(value), op);
+                    }
+                } else {
+                    meets = compare(dictionary[c].compareTo(value), op);
+                }
+                mMeets[c + 1] = meets;
+            }
+        }
+
+        @Override
+        void apply(long[] words, int word0, int word1, int rows){
+            if (!anySet(words, word0, word1)){
+                return;
+            }
+            int row0 = 64*word0;
+            int count = Math.min(rows, 64*word1) - row0;
+            int[] codes = sCodes.get();
+            IntBuffer view = mCodes.duplicate();
+            view.position(row0);
+            view.get(codes, 0, count);
+            for (int w=word0; w<word1; w++){
+                if (words[w]==0){
+                    continue;
+                }
+                int base = 64*(w - word0);
+                int n = Math.min(64, count - base);
+                long bits = 0;
+                for (int i=0; i<n; i++){
+                    bits |= (mMeets[codes[base + i] + 1] ? 1L : 0L) << i;
+                }
+                words[w] &= bits;
+            }
+        }
+    }
+
+
+    // The operators but ~, by index in OPERATORS, as the comparison they make.
+    private static int indexOf(String operator){
+        for (int i=0; i<OPERATORS.length - 1; i++){
+            if (OPERATORS[i].equals(operator)){
+                return i;
+            }
+        }
+        if (operator.equals("~")){
+            return -1;
+        }
+        throw new IllegalArgumentException("No such operator: " + operator);
+    }
+
+    private static boolean compare(int order, int operator){
+        switch (operator){
+            case 0: return order<=0;
+            case 1: return order>=0;
+            case 2: return order!=0;
+            case 3: return order==0;
+            case 4: return order<0;
+            default: return order>0;
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File file = null;
+        List<String> conditions = new ArrayList<String>();
+        List<String> show = new ArrayList<String>();
+        int limit = Integer.MAX_VALUE;
+        boolean countOnly = false;
+        boolean listColumns = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-show") && i+1<args.length){
+                for (String field : args[++i].split(",")){
+                    show.add(field.trim());
+                }
+            } else if (args[i].equals("-limit") && i+1<args.length){
+                limit = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-count")){
+                countOnly = true;
+            } else if (args[i].equals("-columns")){
+                listColumns = true;
+            } else if (args[i].equals("-threads") && i+1<args.length){
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (file==null){
+                file = new File(args[i]);
+            } else {
+                conditions.add(args[i]);
+            }
+        }
+        if (file==null){
+            System.err.println("Usage: MetadataQuery <index file or capture dir> [condition ...] [-show field,...] [-limit N] [-count] [-columns] [-threads N]");
+            System.exit(2);
+        }
+        if (file.isDirectory()){
+            file = new File(file, MetadataIndex.DEFAULT_NAME);
+        }
+        MetadataIndex index = MetadataIndex.open(file);
+
+        if (listColumns){
+            String[] types = {"", "LONG", "DOUBLE", "STRING"};
+            for (String name : index.getColumnNames()){
+                MetadataIndex.Column column = index.getColumn(name);
+                System.out.println(String.format("%-60s %-7s %d", name, types[column.getType()], column.countPresent()));
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            long t0 = System.nanoTime();
+            MetadataQuery query = new MetadataQuery(index);
+            try {
+                for (String condition : conditions){
+                    query.where(condition);
+                }
+            } catch (IllegalArgumentException iae){
+                System.err.println(iae.getMessage());
+                System.exit(2);
+            }
+            int[] rows = query.run(pool);
+            long t1 = System.nanoTime();
+
+            if (!countOnly){
+                List<MetadataIndex.Column> columns = new ArrayList<MetadataIndex.Column>();
+                columns.add(index.getColumn(MetadataIndex.DESIGN_COLUMN));
+                columns.add(index.getColumn(MetadataIndex.FRAME_COLUMN));
+                columns.add(index.getColumn(CaptureMetadataReader.FILENAME_KEY));
+                for (String field : show){
+                    columns.add(index.getColumn(field));
+                }
+                StringBuilder line = new StringBuilder();
+                for (int i=0; i<rows.length && i<limit; i++){
+                    line.setLength(0);
+                    for (MetadataIndex.Column column : columns){
+                        if (line.length()>0){
+                            line.append('\t');
+                        }
+                        line.append((column==null) ? "" : column.getString(rows[i]));
+                    }
+                    System.out.println(line);
+                }
+            }
+            System.out.println(String.format("%d of %d frames in %.2f ms", rows.length, index.getRowCount(), (t1 - t0)/1e6));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
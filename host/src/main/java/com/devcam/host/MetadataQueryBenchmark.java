@@ -0,0 +1,191 @@
+/* MetadataQueryBenchmark, for measuring how fast MetadataQuery finds frames in a large MetadataIndex.
+ *
+ *   java com.devcam.host.MetadataQueryBenchmark [-rows N] [-reps N]
+ *
+ * Indexes synthetic metadata for 2 million frames by default, 100 to a design, with the fields and
+ * string forms CameraReport writes, to a temporary file, reporting how long that takes. Then runs a
+ * few queries on 1, 2, 4... threads up to the number of processors, and reports the milliseconds
+ * each took and the millions of rows gone through per second, the best of the reps after warming
+ * up. The number of frames each query finds is checked against a count made directly.
+ */
+
+package com.devcam.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class MetadataQueryBenchmark {
+
+    static final int WARMUP_RUNS = 1;
+    static final int FRAMES_PER_DESIGN = 100;
+
+    static final String[] AE_MODES = {"OFF", "ON", "ON_AUTO_FLASH", "ON_ALWAYS_FLASH"};
+    static final long[] ISOS = {50, 100, 200, 400, 800, 1600, 3200};
+
+    static final String[][] QUERIES = {
+            {"android.sensor.sensitivity>800", "android.sensor.exposureTime>33333333"},
+            {"android.control.aeMode=OFF", "android.lens.focusDistance<=0.5"},
+            {"android.sensor.sensitivity=100"},
+            {"android.control.aeMode~FLASH", "android.sensor.exposureTime<1000000", "android.lens.aperture>=2"},
+    };
+
+    private final int mRows;
+    private final int mReps;
+
+
+    // - - - Constructor - - -
+    public MetadataQueryBenchmark(int rows, int reps){
+        mRows = rows;
+        mReps = reps;
+    }
+
+
+    /* The synthetic frame's fields, from its row. */
+    static int hash(int row, int field){
+        int h = row*0x9E3779B1 + field*0x85EBCA6B;
+        h ^= h >>> 16;
+        h *= 0x7FEB352D;
+        return (h ^ (h >>> 15)) & 0x7FFFFFFF;
+    }
+    static long iso(int row){
+        return ISOS[hash(row, 1)%ISOS.length];
+    }
+    static long exposureTime(int row){
+        return 100000L + (hash(row, 2)%1000)*100000L; // 0.1 to 100 ms
+    }
+    static String aeMode(int row){
+        return AE_MODES[hash(row, 3)%AE_MODES.length];
+    }
+    static double focusDistance(int row){
+        return (hash(row, 4)%1000)/100.0;
+    }
+    static double aperture(int row){
+        return new double[]{1.7, 1.8, 2.2, 2.4}[hash(row, 5)%4];
+    }
+
+    /* Whether the synthetic frame meets the query's conditions, worked out directly. */
+    static boolean meets(int query, int row){
+        switch (query){
+            case 0: return iso(row)>800 && exposureTime(row)>33333333L;
+            case 1: return aeMode(row).equals("OFF") && focusDistance(row)<=0.5;
+            case 2: return iso(row)==100;
+            default: return aeMode(row).contains("FLASH") && exposureTime(row)<1000000L && aperture(row)>=2;
+        }
+    }
+
+
+    /* The records of a design, as CaptureMetadataReader reads them from CameraReport's JSON. */
+    static List<Map<String,Object>> design(int firstRow, int frames){
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        for (int row=firstRow; row<firstRow + frames; row++){
+            Map<String,Object> record = new LinkedHashMap<String,Object>();
+            record.put("Filename", "design-" + (row - firstRow + 1) + ".yuv");
+            record.put("android.sensor.sensitivity", Long.toString(iso(row)));
+            record.put("android.sensor.exposureTime", Long.toString(exposureTime(row)));
+            record.put("android.sensor.frameDuration", "33333333");
+            record.put("android.sensor.timestamp", Long.toString(1000000000000L + 33333333L*row));
+            record.put("android.control.aeMode", aeMode(row));
+            record.put("android.control.afMode", "OFF");
+            record.put("android.lens.focusDistance", Double.toString(focusDistance(row)));
+            record.put("android.lens.aperture", Double.toString(aperture(row)));
+            record.put("android.sensor.neutralColorPoint", "128/256, 1/1, 100/256");
+            record.put("android.statistics.faceDetectMode", "OFF");
+            records.add(record);
+        }
+        return records;
+    }
+
+
+    /* void run()
+     *
+     * Make the index, and measure and print the figures for the queries.
+     */
+    public void run() throws IOException, InterruptedException {
+        File file = File.createTempFile("metadata", ".index");
+        file.deleteOnExit();
+        long t0 = System.nanoTime();
+        MetadataIndex.Builder builder = new MetadataIndex.Builder();
+        for (int row=0; row<mRows; row+=FRAMES_PER_DESIGN){
+            int frames = Math.min(FRAMES_PER_DESIGN, mRows - row);
+            builder.add("design" + row/FRAMES_PER_DESIGN + "/design" + CaptureMetadataReader.FILE_SUFFIX,
+                    0, 0, design(row, frames));
+        }
+        builder.write(file);
+        builder = null;
+        long t1 = System.nanoTime();
+        System.out.println(String.format("Indexed %d frames in %.2f s, %.1f MB", mRows, (t1 - t0)/1e9, file.length()/1e6));
+
+        MetadataIndex index = MetadataIndex.open(file);
+        int[] expected = new int[QUERIES.length];
+        for (int q=0; q<QUERIES.length; q++){
+            for (int row=0; row<mRows; row++){
+                if (meets(q, row)){
+                    expected[q]++;
+                }
+            }
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads=1; ; threads=Math.min(2*threads, processors)){
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                for (int q=0; q<QUERIES.length; q++){
+                    long best = Long.MAX_VALUE;
+                    int found = 0;
+                    for (int r=0; r<WARMUP_RUNS+mReps; r++){
+                        long start = System.nanoTime();
+                        MetadataQuery query = new MetadataQuery(index);
+                        for (String condition : QUERIES[q]){
+                            query.where(condition);
+                        }
+                        found = query.run(pool).length;
+                        long end = System.nanoTime();
+                        if (r>=WARMUP_RUNS){
+                            best = Math.min(best, end - start);
+                        }
+                    }
+                    if (found!=expected[q]){
+                        throw new IOException("Query " + q + " found " + found + " frames, not " + expected[q] + ".");
+                    }
+                    System.out.println(String.format("%2d threads  %-100s %8d found  %8.2f ms  %7.1f M rows/s",
+                            threads, joined(QUERIES[q]), found, best/1e6, mRows/(best/1e9)/1e6));
+                }
+            } finally {
+                pool.shutdown();
+            }
+            if (threads==processors){
+                break;
+            }
+        }
+    }
+
+    private static String joined(String[] conditions){
+        StringBuilder joined = new StringBuilder();
+        for (String condition : conditions){
+            joined.append((joined.length()>0) ? " " : "").append(condition);
+        }
+        return joined.toString();
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int rows = 2000000;
+        int reps = 5;
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-rows") && i+1<args.length){
+                rows = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-reps") && i+1<args.length){
+                reps = Integer.parseInt(args[++i]);
+            }
+        }
+        new MetadataQueryBenchmark(rows, reps).run();
+    }
+
+}
@@ -0,0 +1,172 @@
+/* MotionField class, how far each tile of a frame moved from a burst's reference frame, as found by
+ * BurstAlign, and its sidecar file for merge tools to read.
+ *
+ * The frame is cut into tiles of getTileSize() pixels square, from the top left; the last column
+ * and row of tiles also take any pixels left over at the right and bottom. The vector of a tile,
+ * in pixels of the frame, and to a fraction of one, says where its content is in this frame: the
+ * reference's pixel (x,y) shows at (x + dx, y + dy).
+ *
+ * The sidecar, <design>_alignment.json, is a JSON array with one object per frame, in the style of
+ * the design's _capture_metadata.json, so CaptureMetadataReader reads it:
+ *
+ *   {"Filename":"burst-2.yuv", "Reference":"burst-1.yuv", "TileSize":16,
+ *    "TilesAcross":250, "TilesDown":188, "Dx":[...], "Dy":[...]}
+ *
+ * with the vectors a row of tiles after another.
+ */
+
+package com.devcam.host;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class MotionField {
+
+    public static final String FILE_SUFFIX = "_alignment.json";
+
+    private final String mFilename;
+    private final String mReference;
+    private final int mTileSize;
+    private final int mTilesAcross;
+    private final int mTilesDown;
+    private final float[] mDx;
+    private final float[] mDy;
+
+
+    // - - - Constructor - - -
+    public MotionField(String filename, String reference, int tileSize, int tilesAcross, int tilesDown){
+        mFilename = filename;
+        mReference = reference;
+        mTileSize = tileSize;
+        mTilesAcross = tilesAcross;
+        mTilesDown = tilesDown;
+        mDx = new float[tilesAcross*tilesDown];
+        mDy = new float[tilesAcross*tilesDown];
+    }
+
+
+    public String getFilename(){
+        return mFilename;
+    }
+    public String getReference(){
+        return mReference;
+    }
+    public int getTileSize(){
+        return mTileSize;
+    }
+    public int getTilesAcross(){
+        return mTilesAcross;
+    }
+    public int getTilesDown(){
+        return mTilesDown;
+    }
+
+    public float getDx(int tileX, int tileY){
+        return mDx[tileY*mTilesAcross + tileX];
+    }
+    public float getDy(int tileX, int tileY){
+        return mDy[tileY*mTilesAcross + tileX];
+    }
+    public void set(int tileX, int tileY, float dx, float dy){
+        mDx[tileY*mTilesAcross + tileX] = dx;
+        mDy[tileY*mTilesAcross + tileX] = dy;
+    }
+
+    /* The tile pixel (x,y) of the frame is in. */
+    public int tileX(int x){
+        return Math.max(0, Math.min(mTilesAcross - 1, x/mTileSize));
+    }
+    public int tileY(int y){
+        return Math.max(0, Math.min(mTilesDown - 1, y/mTileSize));
+    }
+
+
+
+    /* static void write(File, List<MotionField>)
+     *
+     * Write the fields of a burst's frames to a sidecar file.
+     */
+    public static void write(File file, List<MotionField> fields) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 256*1024);
+        try {
+            out.write("[\n");
+            for (int f=0; f<fields.size(); f++){
+                MotionField field = fields.get(f);
+                out.write("{\"Filename\":\"" + field.mFilename + "\",\"Reference\":\"" + field.mReference
+                        + "\",\"TileSize\":" + field.mTileSize + ",\"TilesAcross\":" + field.mTilesAcross
+                        + ",\"TilesDown\":" + field.mTilesDown + ",\"Dx\":");
+                writeArray(out, field.mDx);
+                out.write(",\"Dy\":");
+                writeArray(out, field.mDy);
+                out.write((f<fields.size() - 1) ? "},\n" : "}\n");
+            }
+            out.write("]\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeArray(Writer out, float[] values) throws IOException {
+        out.write('[');
+        for (int i=0; i<values.length; i++){
+            if (i>0){
+                out.write(',');
+            }
+            // Quarter pixels are as fine as alignment gets; whole numbers are written as such.
+            float v = Math.round(values[i]*100f)/100f;
+            out.write((v==(int) v) ? Integer.toString((int) v) : Float.toString(v));
+        }
+        out.write(']');
+    }
+
+
+    /* static List<MotionField> read(File)
+     *
+     * Read the fields of a burst's frames from a sidecar file.
+     */
+    public static List<MotionField> read(File file) throws IOException {
+        List<MotionField> fields = new ArrayList<MotionField>();
+        CaptureMetadataReader reader = new CaptureMetadataReader(file);
+        try {
+            Map<String,Object> record;
+            while ((record = reader.readNext())!=null){
+                MotionField field = new MotionField((String) record.get(CaptureMetadataReader.FILENAME_KEY),
+                        (String) record.get("Reference"), intOf(record, "TileSize"), intOf(record, "TilesAcross"),
+                        intOf(record, "TilesDown"));
+                readArray(record, "Dx", field.mDx);
+                readArray(record, "Dy", field.mDy);
+                fields.add(field);
+            }
+        } finally {
+            reader.close();
+        }
+        return fields;
+    }
+
+    private static int intOf(Map<String,Object> record, String key) throws IOException {
+        Object value = record.get(key);
+        if (!(value instanceof Number)){
+            throw new IOException("Alignment record lacks " + key + ".");
+        }
+        return ((Number) value).intValue();
+    }
+
+    private static void readArray(Map<String,Object> record, String key, float[] values) throws IOException {
+        Object value = record.get(key);
+        if (!(value instanceof List) || ((List<?>) value).size()!=values.length){
+            throw new IOException("Alignment record's " + key + " is not " + values.length + " numbers.");
+        }
+        List<?> list = (List<?>) value;
+        for (int i=0; i<values.length; i++){
+            values[i] = ((Number) list.get(i)).floatValue();
+        }
+    }
+
+}
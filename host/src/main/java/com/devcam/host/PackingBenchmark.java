@@ -0,0 +1,174 @@
+/* PackingBenchmark, for measuring how fast RAW_SENSOR frames are bit-packed into .praw files (see
+ * PackedRawFormat) and unpacked again.
+ *
+ *   java com.devcam.host.PackingBenchmark [-reps N] [.praw file]...
+ *
+ * Runs on a synthetic 12 MP RAW_SENSOR buffer, with row padding like a camera's, at the bit depths
+ * sensors commonly have, and on any real .praw files given, which are unpacked and packed again at
+ * their own bit depth. For each it reports the size relative to the 16-bit buffer, and the
+ * throughput in MB/s of the 16-bit samples of
+ *   - copying the buffer out row by row unchanged, as a baseline,
+ *   - packing it with PackedRawWriter,
+ *   - unpacking it with PackedRawReader.
+ * Everything is written to memory, so the figures are of the work on the CPU, not of the disk.
+ * Each measurement is the best of several runs, after warming up.
+ */
+
+package com.devcam.host;
+
+import com.devcam.io.PackedRawFormat;
+import com.devcam.io.PackedRawReader;
+import com.devcam.io.PackedRawWriter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class PackingBenchmark {
+
+    static final int WIDTH = 4000;
+    static final int HEIGHT = 3000;
+    static final int ROW_PADDING = 64; // bytes
+    static final int WARMUP_RUNS = 2;
+
+    private final int mReps;
+    private final PackedRawWriter mWriter = new PackedRawWriter();
+
+
+    // - - - Constructor - - -
+    public PackingBenchmark(int reps){
+        mReps = reps;
+    }
+
+
+    /* static ByteBuffer syntheticRaw(int, int, int, int, long)
+     *
+     * A direct buffer of 16-bit little-endian Bayer samples up to the given white level, a gradient
+     * plus noise, with padding at the end of each row.
+     */
+    static ByteBuffer syntheticRaw(int width, int height, int rowStride, int whiteLevel, long seed){
+        Random random = new Random(seed);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride*height).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y=0; y<height; y++){
+            for (int x=0; x<width; x++){
+                double base = whiteLevel*(0.1 + 0.6*x/width + 0.2*y/height);
+                int v = (int) Math.round(base + 0.005*whiteLevel*random.nextGaussian());
+                buffer.putShort(y*rowStride + 2*x, (short) Math.max(0, Math.min(whiteLevel, v)));
+            }
+        }
+        return buffer;
+    }
+
+
+    /* void run(String, ByteBuffer, int, int, int, int)
+     *
+     * Measure and print the figures for one frame.
+     */
+    public void run(String name, ByteBuffer plane, int width, int height, int rowStride,
+                    int whiteLevel) throws IOException {
+        double mb = 2.0*width*height/(1024.0*1024.0);
+        PackedRawFormat.Header header = new PackedRawFormat.Header();
+        header.width = width;
+        header.height = height;
+        header.whiteLevel = whiteLevel;
+
+        long copy = Long.MAX_VALUE;
+        long pack = Long.MAX_VALUE;
+        long unpack = Long.MAX_VALUE;
+        byte[] packed = null;
+        short[] unpacked = null;
+        ByteArrayOutputStream sink = new ByteArrayOutputStream(2*width*height);
+        byte[] row = new byte[2*width];
+        for (int r=0; r<WARMUP_RUNS+mReps; r++){
+            boolean timed = (r>=WARMUP_RUNS);
+
+            sink.reset();
+            long t0 = System.nanoTime();
+            ByteBuffer view = plane.duplicate();
+            for (int y=0; y<height; y++){
+                view.position(y*rowStride);
+                view.get(row);
+                sink.write(row, 0, row.length);
+            }
+            long t1 = System.nanoTime();
+            sink.reset();
+            mWriter.write(sink, header, plane, 2, rowStride);
+            long t2 = System.nanoTime();
+            packed = sink.toByteArray();
+            long t3 = System.nanoTime();
+            unpacked = new PackedRawReader(new ByteArrayInputStream(packed)).readFrame();
+            long t4 = System.nanoTime();
+
+            if (timed){
+                copy = Math.min(copy, t1-t0);
+                pack = Math.min(pack, t2-t1);
+                unpack = Math.min(unpack, t4-t3);
+            }
+        }
+
+        // Clipping aside, unpacking gives back exactly the samples that were packed.
+        for (int y=0; y<height; y++){
+            for (int x=0; x<width; x++){
+                int v = Math.min(whiteLevel, plane.getShort(y*rowStride + 2*x) & 0xFFFF);
+                if ((unpacked[y*width + x] & 0xFFFF)!=v){
+                    throw new IOException(name + ": sample (" + x + "," + y + ") unpacked as "
+                            + (unpacked[y*width + x] & 0xFFFF) + ", not " + v);
+                }
+            }
+        }
+
+        System.out.println(String.format("%-28s %2d bits  %8.1f MB  size %5.1f%%   copy %7.0f MB/s   pack %6.0f MB/s   unpack %6.0f MB/s",
+                name, header.bitsPerSample, mb, 100.0*packed.length/(2.0*width*height),
+                rate(mb, copy), rate(mb, pack), rate(mb, unpack)));
+    }
+
+    private static double rate(double mb, long nanos){
+        return mb/(nanos/1e9);
+    }
+
+
+
+    public static void main(String[] args) throws IOException {
+        int reps = 5;
+        List<File> files = new ArrayList<File>();
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-reps") && i+1<args.length){
+                reps = Integer.parseInt(args[++i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+
+        PackingBenchmark bench = new PackingBenchmark(reps);
+        int rowStride = 2*WIDTH + ROW_PADDING;
+        for (int whiteLevel : new int[]{1023, 4095, 16383, 65535}){
+            bench.run("synthetic RAW_SENSOR", syntheticRaw(WIDTH, HEIGHT, rowStride, whiteLevel, whiteLevel),
+                    WIDTH, HEIGHT, rowStride, whiteLevel);
+        }
+        for (File f : files){
+            InputStream input = new BufferedInputStream(new FileInputStream(f), 256*1024);
+            PackedRawFormat.Header header;
+            short[] samples;
+            try {
+                PackedRawReader reader = new PackedRawReader(input);
+                header = reader.getHeader();
+                samples = reader.readFrame();
+            } finally {
+                input.close();
+            }
+            ByteBuffer plane = ByteBuffer.allocateDirect(2*samples.length).order(ByteOrder.LITTLE_ENDIAN);
+            plane.asShortBuffer().put(samples);
+            bench.run(f.getName(), plane, header.width, header.height, 2*header.width, header.whiteLevel);
+        }
+    }
+
+}
@@ -0,0 +1,381 @@
+/* TimingReport, for how well the frames of many captured designs kept to time (see DesignTiming), in
+ * place of plotting them one at a time with viewDesignTiming.m.
+ *
+ *   java com.devcam.host.TimingReport <dir or metadata file>... [-trace file.json] [-csv file] [-threads N]
+ *
+ * Every _capture_metadata.json under the given directories, at any depth, is read, on -threads
+ * threads (all processors by default), a few at a time per thread ahead of the one being reported.
+ * A line is printed for each design: its frames and how long they took, the median and longest gap
+ * between frames and the median frame duration, the late and dropped frames, and how many of the
+ * frames' exposure times could be checked against the design's request, how many were off, and the
+ * median error. Then, for each device, the distribution of the gaps over their frame durations, the
+ * share of late frames, and the distribution of the exposure errors, over all its designs. A device
+ * is the directory with the cameraReport.json devCam writes beside Captured/, so copying each phone's
+ * devCam/ directory to its own place keeps them apart; without one, it is the design's parent.
+ *
+ * The exposures and frames are written as a Trace Event Format JSON, to timing_trace.json unless
+ * -trace says otherwise, which can be opened in chrome://tracing or ui.perfetto.dev to scroll and
+ * zoom through them: a process for each design, with a row of exposures and a row of frame durations,
+ * and marks where frames were late or dropped, in microseconds from its first frame. -csv writes a
+ * row for each frame too, for a spreadsheet.
+ */
+
+package com.devcam.host;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TimingReport {
+
+    public static final String DEFAULT_TRACE = "timing_trace.json";
+    static final String CAMERA_REPORT = "cameraReport.json";
+
+    // Designs read ahead of the one being reported, per thread.
+    static final int AHEAD_PER_THREAD = 4;
+
+    static final double[] PERCENTILES = {0.5, 0.9, 0.99, 1};
+
+
+    /* The figures gathered over all of a device's designs. */
+    static class Device {
+        final String name;
+        int designs = 0;
+        int frames = 0;
+        int gaps = 0;
+        int late = 0;
+        int dropped = 0;
+        int exposuresOff = 0;
+        Samples gapRatios = new Samples();
+        Samples exposureErrors = new Samples();
+        Samples exposureMagnitudes = new Samples();
+
+        Device(String name){
+            this.name = name;
+        }
+    }
+
+    /* A growing list of doubles, for their percentiles. */
+    static class Samples {
+        private double[] mValues = new double[64];
+        private int mCount = 0;
+
+        void add(double value){
+            if (mCount==mValues.length){
+                mValues = Arrays.copyOf(mValues, 2*mCount);
+            }
+            mValues[mCount++] = value;
+        }
+        int size(){
+            return mCount;
+        }
+        /* The values at the given fractions of the way through them in order, NaN if there are none. */
+        double[] percentiles(double... fractions){
+            double[] sorted = Arrays.copyOf(mValues, mCount);
+            Arrays.sort(sorted);
+            double[] values = new double[fractions.length];
+            for (int i=0; i<fractions.length; i++){
+                values[i] = (mCount==0) ? Double.NaN : sorted[(int) Math.round(fractions[i]*(mCount - 1))];
+            }
+            return values;
+        }
+    }
+
+
+    private final Map<String,Device> mDevices = new LinkedHashMap<String,Device>();
+    private final TraceWriter mTrace;
+    private final Writer mCsv;
+    private int mDesigns = 0;
+
+
+    // - - - Constructor - - -
+    public TimingReport(TraceWriter trace, Writer csv) throws IOException {
+        mTrace = trace;
+        mCsv = csv;
+        if (mCsv!=null){
+            mCsv.write("Device,Design,Filename,Timestamp,Gap,FrameDuration,ExposureTime,RequestedExposureTime,Late,Dropped\n");
+        }
+    }
+
+
+    /* static String deviceOf(File)
+     *
+     * The device a metadata file is from: the nearest directory above it with a cameraReport.json,
+     * or else the directory of its design's directory.
+     */
+    static String deviceOf(File metadataFile){
+        File design = metadataFile.getAbsoluteFile().getParentFile();
+        for (File dir = design; dir!=null; dir = dir.getParentFile()){
+            if (new File(dir, CAMERA_REPORT).isFile()){
+                return dir.getPath();
+            }
+        }
+        File parent = design.getParentFile();
+        return (parent==null) ? design.getPath() : parent.getPath();
+    }
+
+
+    /* void add(DesignTiming, String)
+     *
+     * Report on a design, from the given device.
+     */
+    public void add(DesignTiming timing, String deviceName) throws IOException {
+        Device device = mDevices.get(deviceName);
+        if (device==null){
+            device = new Device(deviceName);
+            mDevices.put(deviceName, device);
+        }
+        int frames = timing.getFrameCount();
+        Samples gaps = new Samples();
+        Samples durations = new Samples();
+        Samples errors = new Samples();
+        int checked = 0;
+        int off = 0;
+        for (int f=0; f<frames; f++){
+            if (timing.getFrameDuration(f)>0){
+                durations.add(timing.getFrameDuration(f));
+            }
+            if (f<frames - 1){
+                gaps.add(timing.getGap(f));
+                if (timing.getFrameDuration(f)>0){
+                    device.gapRatios.add((double) timing.getGap(f)/timing.getFrameDuration(f));
+                    device.gaps++;
+                }
+            }
+            if (timing.hasRequest(f)){
+                checked++;
+                off += timing.isExposureOff(f) ? 1 : 0;
+                errors.add(timing.getExposureError(f));
+                device.exposureErrors.add(timing.getExposureError(f));
+                device.exposureMagnitudes.add(Math.abs(timing.getExposureError(f)));
+            }
+        }
+        int late = timing.getLateCount();
+        int dropped = timing.getDroppedCount();
+        device.designs++;
+        device.frames += frames;
+        device.late += late;
+        device.dropped += dropped;
+        device.exposuresOff += off;
+
+        if (mDesigns++==0){
+            System.out.println(String.format("%-40s %6s %9s %9s %9s %9s %5s %7s %7s %5s %8s",
+                    "Design", "Frames", "Span ms", "Gap ms", "Max ms", "Frame ms", "Late", "Dropped",
+                    "Checked", "Off", "Exp err"));
+        }
+        long span = (frames==0) ? 0 : timing.getTimestamp(frames - 1) - timing.getTimestamp(0);
+        System.out.println(String.format("%-40s %6d %9.2f %9.2f %9.2f %9.2f %5d %7d %7d %5d %7.2f%%",
+                timing.getName(), frames, span/1e6, gaps.percentiles(0.5)[0]/1e6, gaps.percentiles(1)[0]/1e6,
+                durations.percentiles(0.5)[0]/1e6, late, dropped, checked, off, 100*errors.percentiles(0.5)[0]));
+
+        if (mTrace!=null){
+            mTrace.add(timing);
+        }
+        if (mCsv!=null){
+            for (int f=0; f<frames; f++){
+                boolean last = (f==frames - 1);
+                mCsv.write(csv(deviceName) + "," + csv(timing.getName()) + "," + csv(timing.getFilename(f)) + ","
+                        + timing.getTimestamp(f) + "," + (last ? "" : timing.getGap(f)) + ","
+                        + timing.getFrameDuration(f) + "," + timing.getExposureTime(f) + ","
+                        + timing.getRequestedExposureTime(f) + "," + (!last && timing.isLate(f)) + ","
+                        + (last ? 0 : timing.getDropped(f)) + "\n");
+            }
+        }
+    }
+
+    private static String csv(String value){
+        if (value==null){
+            return "";
+        }
+        return (value.indexOf(',')<0 && value.indexOf('"')<0) ? value : "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+
+    /* void printDevices()
+     *
+     * Print the distributions over each device's designs.
+     */
+    public void printDevices(){
+        System.out.println();
+        System.out.println(String.format("%-40s %7s %7s %7s %7s %7s %7s %7s %7s %7s %7s %7s",
+                "Device", "Designs", "Frames", "Gap/fd", "p90", "p99", "max", "Late %", "Dropped",
+                "Exp err", "p90 |e|", "Off"));
+        for (Device device : mDevices.values()){
+            double[] ratios = device.gapRatios.percentiles(PERCENTILES);
+            double[] errors = device.exposureErrors.percentiles(0.5);
+            System.out.println(String.format("%-40s %7d %7d %7.3f %7.3f %7.3f %7.3f %6.2f%% %7d %6.2f%% %6.2f%% %7d",
+                    device.name, device.designs, device.frames, ratios[0], ratios[1], ratios[2], ratios[3],
+                    100.0*device.late/Math.max(1, device.gaps), device.dropped, 100*errors[0],
+                    100*device.exposureMagnitudes.percentiles(0.9)[0], device.exposuresOff));
+        }
+    }
+
+
+
+    /* TraceWriter, for writing the designs as Trace Event Format JSON as they are added, so a trace
+     * of any number of them takes no more memory than one.
+     */
+    public static class TraceWriter {
+        static final int EXPOSURE_THREAD = 1;
+        static final int FRAME_THREAD = 2;
+
+        private final Writer mOut;
+        private int mProcess = 0;
+        private boolean mFirst = true;
+
+        public TraceWriter(File file) throws IOException {
+            mOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            mOut.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        }
+
+        public void add(DesignTiming timing) throws IOException {
+            int pid = ++mProcess;
+            metadata(pid, 0, "process_name", timing.getName());
+            metadata(pid, EXPOSURE_THREAD, "thread_name", "exposure");
+            metadata(pid, FRAME_THREAD, "thread_name", "frame");
+            if (timing.getFrameCount()==0){
+                return;
+            }
+            long start = timing.getTimestamp(0);
+            for (int f=0; f<timing.getFrameCount(); f++){
+                String name = (timing.getFilename(f)==null) ? "frame " + f : timing.getFilename(f);
+                double ts = (timing.getTimestamp(f) - start)/1e3;
+                String args = "{\"exposureTime\":" + timing.getExposureTime(f)
+                        + ",\"requestedExposureTime\":" + timing.getRequestedExposureTime(f)
+                        + ",\"frameDuration\":" + timing.getFrameDuration(f) + "}";
+                if (timing.getExposureTime(f)>0){
+                    event("{\"name\":" + quoted(name) + ",\"cat\":\"" + (timing.isExposureOff(f) ? "off" : "exposure")
+                            + "\",\"ph\":\"X\",\"pid\":" + pid + ",\"tid\":" + EXPOSURE_THREAD + ",\"ts\":" + ts
+                            + ",\"dur\":" + timing.getExposureTime(f)/1e3 + ",\"args\":" + args + "}");
+                }
+                if (timing.getFrameDuration(f)>0){
+                    event("{\"name\":" + quoted(name) + ",\"cat\":\"frame\",\"ph\":\"X\",\"pid\":" + pid
+                            + ",\"tid\":" + FRAME_THREAD + ",\"ts\":" + ts + ",\"dur\":" + timing.getFrameDuration(f)/1e3
+                            + ",\"args\":" + args + "}");
+                }
+                if (f<timing.getFrameCount() - 1 && (timing.isLate(f) || timing.getDropped(f)>0)){
+                    String mark = timing.isLate(f) ? "late" : timing.getDropped(f) + " dropped";
+                    double next = (timing.getTimestamp(f + 1) - start)/1e3;
+                    event("{\"name\":\"" + mark + "\",\"cat\":\"gap\",\"ph\":\"i\",\"s\":\"p\",\"pid\":" + pid
+                            + ",\"tid\":" + FRAME_THREAD + ",\"ts\":" + next + ",\"args\":{\"gap\":" + timing.getGap(f) + "}}");
+                }
+            }
+        }
+
+        private void metadata(int pid, int tid, String kind, String name) throws IOException {
+            event("{\"name\":\"" + kind + "\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":" + tid
+                    + ",\"args\":{\"name\":" + quoted(name) + "}}");
+        }
+
+        private void event(String json) throws IOException {
+            mOut.write(mFirst ? json : ",\n" + json);
+            mFirst = false;
+        }
+
+        private static String quoted(String value){
+            StringBuilder quoted = new StringBuilder("\"");
+            for (char c : value.toCharArray()){
+                if (c=='"' || c=='\\'){
+                    quoted.append('\\').append(c);
+                } else if (c<0x20){
+                    quoted.append(String.format("\\u%04x", (int) c));
+                } else {
+                    quoted.append(c);
+                }
+            }
+            return quoted.append('"').toString();
+        }
+
+        public void close() throws IOException {
+            mOut.write("\n]}\n");
+            mOut.close();
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<File> sources = new ArrayList<File>();
+        File traceFile = new File(DEFAULT_TRACE);
+        File csvFile = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-trace") && i+1<args.length){
+                traceFile = new File(args[++i]);
+            } else if (args[i].equals("-csv") && i+1<args.length){
+                csvFile = new File(args[++i]);
+            } else if (args[i].equals("-threads") && i+1<args.length){
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                sources.add(new File(args[i]));
+            }
+        }
+        List<File> files = new ArrayList<File>();
+        for (File source : sources){
+            if (source.isDirectory()){
+                for (String path : MetadataIndexer.findSources(source)){
+                    files.add(new File(source, path));
+                }
+            } else if (source.isFile()){
+                files.add(source);
+            }
+        }
+        if (files.isEmpty()){
+            System.err.println("Usage: TimingReport <dir or metadata file>... [-trace file.json] [-csv file] [-threads N]");
+            System.exit(2);
+        }
+
+        TraceWriter trace = new TraceWriter(traceFile);
+        Writer csv = (csvFile==null) ? null
+                : new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), "UTF-8"));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            long t0 = System.nanoTime();
+            TimingReport report = new TimingReport(trace, csv);
+            Deque<Future<DesignTiming>> ahead = new ArrayDeque<Future<DesignTiming>>();
+            int next = 0; // the next file to start reading
+            for (int i=0; i<files.size(); i++){
+                for (; next<files.size() && ahead.size()<AHEAD_PER_THREAD*threads; next++){
+                    final File file = files.get(next);
+                    ahead.add(pool.submit(new Callable<DesignTiming>() {
+                        @Override
+                        public DesignTiming call() throws IOException {
+                            return DesignTiming.read(file);
+                        }
+                    }));
+                }
+                try {
+                    report.add(ahead.remove().get(), deviceOf(files.get(i)));
+                } catch (ExecutionException ee){
+                    System.err.println("Skipping " + files.get(i) + ": " + ee.getCause());
+                }
+            }
+            report.printDevices();
+            long t1 = System.nanoTime();
+            System.out.println(String.format("%nReported %d designs in %.2f s; trace written to %s", files.size(),
+                    (t1 - t0)/1e9, traceFile));
+        } finally {
+            pool.shutdown();
+            trace.close();
+            if (csv!=null){
+                csv.close();
+            }
+        }
+    }
+
+}
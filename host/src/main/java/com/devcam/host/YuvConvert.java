@@ -0,0 +1,284 @@
+/* YuvConvert, for turning the .yuv frames of whole designs into images that anything can show, in
+ * place of yuvShow.m one frame at a time.
+ *
+ *   java com.devcam.host.YuvConvert <.yuv file | container | dir>... [-format png|ppm|rgb]
+ *                                   [-scale N] [-threads N] [-out dir] [-benchmark]
+ *
+ * Given a directory, every .yuv file and every YUV frame of a container in it and in all its
+ * subdirectories is converted. Each image is written next to its frame, or to the -out directory,
+ * named like the frame: design-3.yuv becomes design-3.png. Formats are PNG, binary PPM (P6), and
+ * raw interleaved 8-bit RGB with no header. -scale N scales frames down by the whole factor N.
+ *
+ * Frames are converted on one fork-join pool with -threads threads (all processors by default),
+ * each frame in parallel bands (see YuvToRgb) as well as many frames at once. The frames per second
+ * and megapixels per second are reported at the end. With -benchmark nothing is written: the frames
+ * are converted on 1, 2, 4... threads up to -threads, to show how the conversion scales.
+ *
+ * Exits with status 1 if any frame could not be converted.
+ */
+
+package com.devcam.host;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+public class YuvConvert {
+
+    public enum Format {PNG, PPM, RGB}
+
+    static final int[] RGB_MASKS = {0xFF0000, 0xFF00, 0xFF};
+
+    private final YuvToRgb mConverter;
+    private final Format mFormat;
+    private final File mOutDir;
+
+    // Pixel arrays done with, for the next frames to reuse, so memory is bounded by the number of
+    // frames in flight rather than the number converted.
+    private final Queue<int[]> mFreePixels = new ConcurrentLinkedQueue<int[]>();
+    private final Queue<String> mFailures = new ConcurrentLinkedQueue<String>();
+    private final AtomicLong mPixelsConverted = new AtomicLong();
+
+
+    // - - - Constructor - - -
+    /**
+     * @param converter Converter, whose pool the frames are converted on.
+     * @param format Format to write the images in, or null to write nothing.
+     * @param outDir Directory to write the images to, or null for next to their frames.
+     */
+    public YuvConvert(YuvToRgb converter, Format format, File outDir){
+        mConverter = converter;
+        mFormat = format;
+        mOutDir = outDir;
+    }
+
+
+    /* void convertAll(ForkJoinPool, List<BatchLoader.Source>)
+     *
+     * Convert and write all the frames. Failures are collected, see getFailures().
+     */
+    public void convertAll(ForkJoinPool pool, List<BatchLoader.Source> sources){
+        pool.invoke(new Frames(sources, 0, sources.size()));
+    }
+
+
+    // - - Setters and Getters - -
+    public List<String> getFailures(){
+        return new ArrayList<String>(mFailures);
+    }
+    public long getPixelsConverted(){
+        return mPixelsConverted.get();
+    }
+
+
+    /* Frames [mFrom, mTo) of the list, split until there is one. */
+    private class Frames extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<BatchLoader.Source> mSources;
+        private final int mFrom;
+        private final int mTo;
+
+        Frames(List<BatchLoader.Source> sources, int from, int to){
+            mSources = sources;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute(){
+            if (mTo - mFrom>1){
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new Frames(mSources, mFrom, middle), new Frames(mSources, middle, mTo));
+                return;
+            }
+            if (mTo>mFrom){
+                BatchLoader.Source source = mSources.get(mFrom);
+                try {
+                    convert(source);
+                } catch (IOException ioe){
+                    mFailures.add(source + ": " + ioe.getMessage());
+                } catch (RuntimeException re){
+                    mFailures.add(source + ": " + re);
+                }
+            }
+        }
+    }
+
+
+    /* void convert(BatchLoader.Source)
+     *
+     * Convert one frame and write its image.
+     */
+    void convert(BatchLoader.Source source) throws IOException {
+        MappedYuvFrame frame = source.map();
+        int width = mConverter.outputWidth(frame);
+        int height = mConverter.outputHeight(frame);
+        int[] pixels = takePixels(width*height);
+        try {
+            mConverter.convert(frame, pixels);
+            if (mFormat!=null){
+                File dir = (mOutDir!=null) ? mOutDir : source.getFile().getAbsoluteFile().getParentFile();
+                write(pixels, width, height, mFormat,
+                        new File(dir, source.getName() + "." + mFormat.name().toLowerCase()));
+            }
+            mPixelsConverted.addAndGet((long) width*height);
+        } finally {
+            mFreePixels.add(pixels);
+        }
+    }
+
+    private int[] takePixels(int count){
+        Iterator<int[]> free = mFreePixels.iterator();
+        while (free.hasNext()){
+            int[] pixels = free.next();
+            if (pixels.length>=count && mFreePixels.remove(pixels)){
+                return pixels;
+            }
+        }
+        return new int[count];
+    }
+
+
+    /* static void write(int[], int, int, Format, File)
+     *
+     * Write 0xRRGGBB pixels as an image file of the given format.
+     */
+    static void write(int[] pixels, int width, int height, Format format, File file) throws IOException {
+        if (format==Format.PNG){
+            // An image over the pixels themselves, rather than a copy of them.
+            WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, width*height),
+                    width, height, width, RGB_MASKS, null);
+            BufferedImage image = new BufferedImage(new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]),
+                    raster, false, null);
+            if (!ImageIO.write(image, "png", file)){
+                throw new IOException("No PNG writer available.");
+            }
+            return;
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 256*1024);
+        try {
+            if (format==Format.PPM){
+                out.write(("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII"));
+            }
+            byte[] row = new byte[3*width];
+            for (int r=0; r<height; r++){
+                for (int x=0, i=r*width; x<width; x++, i++){
+                    int pixel = pixels[i];
+                    row[3*x] = (byte) (pixel >> 16);
+                    row[3*x + 1] = (byte) (pixel >> 8);
+                    row[3*x + 2] = (byte) pixel;
+                }
+                out.write(row);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+
+    /* static long run(List<BatchLoader.Source>, int, int, Format, File)
+     *
+     * Convert all the frames on a new pool of the given number of threads and print the figures.
+     * Returns the number of frames that failed.
+     */
+    static int run(List<BatchLoader.Source> sources, int threads, int scale, Format format, File outDir){
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            YuvConvert convert = new YuvConvert(new YuvToRgb(pool, scale), format, outDir);
+            long t0 = System.nanoTime();
+            convert.convertAll(pool, sources);
+            double seconds = (System.nanoTime() - t0)/1e9;
+
+            List<String> failures = convert.getFailures();
+            for (String failure : failures){
+                System.err.println(failure);
+            }
+            int converted = sources.size() - failures.size();
+            System.out.println(String.format("%6d frames  %3d threads  %8.2f s  %8.1f frames/s  %8.1f MP/s",
+                    converted, threads, seconds, converted/seconds, convert.getPixelsConverted()/1e6/seconds));
+            return failures.size();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+
+    public static void main(String[] args) throws IOException {
+        List<File> inputs = new ArrayList<File>();
+        Format format = Format.PNG;
+        int scale = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File outDir = null;
+        boolean benchmark = false;
+        for (int i=0; i<args.length; i++){
+            if (args[i].equals("-format") && i+1<args.length){
+                format = Format.valueOf(args[++i].toUpperCase());
+            } else if (args[i].equals("-scale") && i+1<args.length){
+                scale = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads") && i+1<args.length){
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-out") && i+1<args.length){
+                outDir = new File(args[++i]);
+            } else if (args[i].equals("-benchmark")){
+                benchmark = true;
+            } else {
+                inputs.add(new File(args[i]));
+            }
+        }
+        if (inputs.isEmpty()){
+            System.err.println("Usage: YuvConvert <.yuv file | container | dir>... [-format png|ppm|rgb]"
+                    + " [-scale N] [-threads N] [-out dir] [-benchmark]");
+            System.exit(2);
+        }
+        if (outDir!=null && !(outDir.mkdirs() || outDir.isDirectory())){
+            System.err.println("Could not create " + outDir);
+            System.exit(2);
+        }
+
+        List<BatchLoader.Source> sources = new ArrayList<BatchLoader.Source>();
+        for (File input : inputs){
+            sources.addAll(BatchLoader.findFrames(input));
+        }
+        if (sources.isEmpty()){
+            System.err.println("No .yuv frames found.");
+            System.exit(2);
+        }
+
+        int failed = 0;
+        if (benchmark){
+            // Once to warm up, then on ever more threads.
+            run(sources, threads, scale, null, null);
+            for (int t=1; ; t=Math.min(2*t, threads)){
+                failed = run(sources, t, scale, null, null);
+                if (t==threads){
+                    break;
+                }
+            }
+        } else {
+            failed = run(sources, threads, scale, format, outDir);
+        }
+        System.exit((failed==0) ? 0 : 1);
+    }
+
+}
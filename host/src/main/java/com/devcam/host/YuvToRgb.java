@@ -0,0 +1,233 @@
+/* YuvToRgb class, for converting mapped .yuv frames (see MappedYuvFrame) to RGB pixels on a
+ * fork-join pool, optionally scaled down by a whole factor on the way.
+ *
+ * A frame is split into bands of output rows, which the pool's threads convert in parallel and
+ * steal from each other as they finish, so one large frame uses all the cores as well as a batch
+ * of small ones does. Each band is converted straight from the planes' mapped bytes, following
+ * their pixel and row strides, into the caller's pixel array; nothing is allocated per frame or
+ * per band besides the fork-join tasks themselves.
+ *
+ * Colors are converted with the full-range (JFIF) BT.601 matrix cameras use, as ProxyFrame does,
+ * in 16-bit fixed point. Scaled down by f, each output pixel is the mean of the f x f block of Y
+ * samples it covers and of the chroma samples under that block, as yuvShow.m would show it before
+ * imresize. Unscaled, each chroma sample is used for the 2x2 Y samples it covers.
+ *
+ * Pixels are packed 0xRRGGBB ints, row after row, as java.awt.image.BufferedImage.TYPE_INT_RGB
+ * holds them.
+ */
+
+package com.devcam.host;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+public class YuvToRgb {
+
+    // Output rows converted by one task, at least. Small enough for all threads to get a share of
+    // a VGA frame, big enough that the tasks cost little next to the converting.
+    static final int TILE_ROWS = 16;
+
+    private final ForkJoinPool mPool;
+    private final int mScale;
+
+
+    // - - - Constructor - - -
+    /**
+     * @param pool Pool to convert on.
+     * @param scale Whole factor to scale frames down by, 1 for none.
+     */
+    public YuvToRgb(ForkJoinPool pool, int scale){
+        if (scale<1){
+            throw new IllegalArgumentException("Scale must be at least 1, not " + scale);
+        }
+        mPool = pool;
+        mScale = scale;
+    }
+
+
+    // - - Setters and Getters - -
+    public int getScale(){
+        return mScale;
+    }
+    public int outputWidth(MappedYuvFrame frame){
+        return Math.max(1, frame.getWidth()/mScale);
+    }
+    public int outputHeight(MappedYuvFrame frame){
+        return Math.max(1, frame.getHeight()/mScale);
+    }
+
+
+    /* void convert(MappedYuvFrame, int[])
+     *
+     * Convert the frame into the pixel array, which must hold outputWidth x outputHeight pixels.
+     * Can be called from a task already running in the pool, whose thread then helps with the
+     * bands, or from any other thread, which waits for them.
+     */
+    public void convert(MappedYuvFrame frame, int[] rgb){
+        int width = outputWidth(frame);
+        int height = outputHeight(frame);
+        if (rgb.length<width*height){
+            throw new IllegalArgumentException("Pixel array too small for " + width + "x" + height);
+        }
+        Band band = new Band(frame, rgb, 0, height);
+        if (ForkJoinTask.getPool()==mPool){
+            band.invoke();
+        } else {
+            mPool.invoke(band);
+        }
+    }
+
+
+    /* Output rows [mRow0, mRow1), split in half until they are few enough to convert. */
+    private class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final MappedYuvFrame mFrame;
+        private final int[] mRgb;
+        private final int mRow0;
+        private final int mRow1;
+
+        Band(MappedYuvFrame frame, int[] rgb, int row0, int row1){
+            mFrame = frame;
+            mRgb = rgb;
+            mRow0 = row0;
+            mRow1 = row1;
+        }
+
+        @Override
+        protected void compute(){
+            if (mRow1 - mRow0<=TILE_ROWS){
+                if (mScale==1){
+                    convertRows(mFrame, mRgb, mRow0, mRow1);
+                } else {
+                    convertRowsScaled(mFrame, mScale, mRgb, mRow0, mRow1);
+                }
+                return;
+            }
+            int middle = (mRow0 + mRow1) >>> 1;
+            invokeAll(new Band(mFrame, mRgb, mRow0, middle), new Band(mFrame, mRgb, middle, mRow1));
+        }
+    }
+
+
+    /* static void convertRows(MappedYuvFrame, int[], int, int)
+     *
+     * Convert rows [row0, row1) of the frame at full size.
+     */
+    static void convertRows(MappedYuvFrame frame, int[] rgb, int row0, int row1){
+        MappedYuvFrame.Plane yPlane = frame.getPlane(0);
+        MappedYuvFrame.Plane uPlane = frame.getPlane(1);
+        MappedYuvFrame.Plane vPlane = frame.getPlane(2);
+        ByteBuffer y = yPlane.getBuffer();
+        ByteBuffer u = uPlane.getBuffer();
+        ByteBuffer v = vPlane.getBuffer();
+        int yPixel = yPlane.getPixelStride();
+        int uPixel = uPlane.getPixelStride();
+        int vPixel = vPlane.getPixelStride();
+        // Samples missing at the ends of the planes are the last ones present.
+        int yLast = yPlane.getLastOffset();
+        int uLast = uPlane.getLastOffset();
+        int vLast = vPlane.getLastOffset();
+        int width = frame.getWidth();
+
+        for (int row=row0; row<row1; row++){
+            int yAt = row*yPlane.getRowStride();
+            int uRow = (row >> 1)*uPlane.getRowStride();
+            int vRow = (row >> 1)*vPlane.getRowStride();
+            int out = row*width;
+            for (int x=0; x<width; x++, yAt+=yPixel){
+                int cx = x >> 1;
+                int luma = y.get(Math.min(yAt, yLast)) & 0xFF;
+                int cb = (u.get(Math.min(uRow + cx*uPixel, uLast)) & 0xFF) - 128;
+                int cr = (v.get(Math.min(vRow + cx*vPixel, vLast)) & 0xFF) - 128;
+                rgb[out + x] = pack(luma, cb, cr);
+            }
+        }
+    }
+
+
+    /* static void convertRowsScaled(MappedYuvFrame, int, int[], int, int)
+     *
+     * Convert output rows [row0, row1) of the frame scaled down by the factor f.
+     */
+    static void convertRowsScaled(MappedYuvFrame frame, int f, int[] rgb, int row0, int row1){
+        MappedYuvFrame.Plane yPlane = frame.getPlane(0);
+        MappedYuvFrame.Plane uPlane = frame.getPlane(1);
+        MappedYuvFrame.Plane vPlane = frame.getPlane(2);
+        ByteBuffer y = yPlane.getBuffer();
+        ByteBuffer u = uPlane.getBuffer();
+        ByteBuffer v = vPlane.getBuffer();
+        int yPixel = yPlane.getPixelStride();
+        int uPixel = uPlane.getPixelStride();
+        int vPixel = vPlane.getPixelStride();
+        int yRowStride = yPlane.getRowStride();
+        int uRowStride = uPlane.getRowStride();
+        int vRowStride = vPlane.getRowStride();
+        int yLast = yPlane.getLastOffset();
+        int uLast = uPlane.getLastOffset();
+        int vLast = vPlane.getLastOffset();
+        int width = Math.max(1, frame.getWidth()/f);
+        int height = frame.getHeight();
+        int frameWidth = frame.getWidth();
+        int chromaWidth = uPlane.getWidth();
+        int chromaHeight = uPlane.getHeight();
+
+        for (int row=row0; row<row1; row++){
+            int y0 = row*f;
+            int y1 = Math.min(height, y0 + f);
+            // The chroma rows the block covers, at least one.
+            int cy0 = Math.min(chromaHeight - 1, y0 >> 1);
+            int cy1 = Math.min(chromaHeight, Math.max(cy0 + 1, y1 >> 1));
+            int out = row*width;
+            for (int x=0; x<width; x++){
+                int x0 = x*f;
+                int x1 = Math.min(frameWidth, x0 + f);
+                int cx0 = Math.min(chromaWidth - 1, x0 >> 1);
+                int cx1 = Math.min(chromaWidth, Math.max(cx0 + 1, x1 >> 1));
+
+                int ySum = 0;
+                for (int r=y0; r<y1; r++){
+                    int at = r*yRowStride + x0*yPixel;
+                    for (int c=x0; c<x1; c++, at+=yPixel){
+                        ySum += y.get(Math.min(at, yLast)) & 0xFF;
+                    }
+                }
+                int uSum = 0;
+                int vSum = 0;
+                for (int r=cy0; r<cy1; r++){
+                    int uAt = r*uRowStride + cx0*uPixel;
+                    int vAt = r*vRowStride + cx0*vPixel;
+                    for (int c=cx0; c<cx1; c++, uAt+=uPixel, vAt+=vPixel){
+                        uSum += u.get(Math.min(uAt, uLast)) & 0xFF;
+                        vSum += v.get(Math.min(vAt, vLast)) & 0xFF;
+                    }
+                }
+                int yCount = (y1 - y0)*(x1 - x0);
+                int cCount = (cy1 - cy0)*(cx1 - cx0);
+                rgb[out + x] = pack((ySum + yCount/2)/yCount,
+                        (uSum + cCount/2)/cCount - 128, (vSum + cCount/2)/cCount - 128);
+            }
+        }
+    }
+
+
+    /* static int pack(int, int, int)
+     *
+     * The 0xRRGGBB pixel of luma 0-255 and chroma -128-127, by the full-range BT.601 matrix in
+     * 16-bit fixed point: R = Y + 1.402 Cr, G = Y - 0.344136 Cb - 0.714136 Cr, B = Y + 1.772 Cb.
+     */
+    static int pack(int luma, int cb, int cr){
+        int r = clamp(luma + ((91881*cr + 32768) >> 16));
+        int g = clamp(luma - ((22554*cb + 46802*cr - 32768) >> 16));
+        int b = clamp(luma + ((116130*cb + 32768) >> 16));
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(int value){
+        return (value<0) ? 0 : ((value>255) ? 255 : value);
+    }
+
+}
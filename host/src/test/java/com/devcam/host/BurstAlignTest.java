@@ -0,0 +1,150 @@
+/* Checks that BurstAlign recovers the motion of frames moved by a known amount.
+ *
+ * The frames are the synthetic scene of BurstAlignBenchmark, moved by whole and fractional pixels,
+ * from none to more than twice the search radius, so the coarser levels have to be used. Only tiles
+ * whose content stays in the frame are checked, since the rest can't be found, and as in the
+ * benchmark, at most 1% of those may be off by over a pixel.
+ */
+
+package com.devcam.host;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BurstAlignTest {
+
+    static final int WIDTH = 320;
+    static final int HEIGHT = 240;
+    // Mean error allowed of a frame aligned at its own size, and of a raw one, aligned at half of it.
+    static final double MEAN_ERROR = 0.2;
+    static final double MEAN_ERROR_RAW = 0.4;
+
+    private ExecutorService mPool;
+
+
+    @Before
+    public void startPool(){
+        mPool = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void stopPool(){
+        mPool.shutdown();
+    }
+
+
+    @Test
+    public void unmovedFrameHasNoMotion() throws IOException, InterruptedException {
+        check(3, 0, 0, MEAN_ERROR);
+    }
+
+    @Test
+    public void wholePixelMotionIsFound() throws IOException, InterruptedException {
+        check(3, 3, -2, MEAN_ERROR);
+    }
+
+    @Test
+    public void fractionalMotionIsFound() throws IOException, InterruptedException {
+        check(3, 1.5, 0.25, MEAN_ERROR);
+        check(3, -2.75, 1.4, MEAN_ERROR);
+    }
+
+    @Test
+    public void motionBeyondTheSearchRadiusIsFound() throws IOException, InterruptedException {
+        // Over twice the radius, so only found by way of the coarser levels.
+        check(3, 13.3, -9.6, MEAN_ERROR);
+    }
+
+    @Test
+    public void rawMotionIsFound() throws IOException, InterruptedException {
+        check(1, 12.4, -7.7, MEAN_ERROR_RAW);
+        check(1, -3.5, 5.25, MEAN_ERROR_RAW);
+    }
+
+
+    /* Align a frame of the given channels moved by (dx,dy) to an unmoved one, and check the tiles
+     * that stay in the frame against the motion, as BurstAlignBenchmark does.
+     */
+    private void check(int channels, double dx, double dy, double meanError) throws IOException, InterruptedException {
+        MotionField field = align(new ShiftedFrame(0, 0, channels), new ShiftedFrame(dx, dy, channels));
+        int size = field.getTileSize();
+        assertEquals(BurstAlign.DEFAULT_TILE*((channels==1) ? 2 : 1), size);
+        int checked = 0;
+        int wrong = 0;
+        double total = 0;
+        for (int ty=0; ty<field.getTilesDown(); ty++){
+            for (int tx=0; tx<field.getTilesAcross(); tx++){
+                if (tx*size + dx<0 || (tx + 1)*size + dx>WIDTH || ty*size + dy<0 || (ty + 1)*size + dy>HEIGHT){
+                    continue; // moved out of the frame, so not to be found
+                }
+                double error = Math.hypot(field.getDx(tx, ty) - dx, field.getDy(tx, ty) - dy);
+                total += error;
+                checked++;
+                if (error>BurstAlignBenchmark.WRONG_BY){
+                    wrong++;
+                }
+            }
+        }
+        String motion = " moved " + dx + "," + dy + " in " + channels + " channels";
+        assertTrue(checked>0);
+        assertTrue(wrong + " of " + checked + " tiles wrong," + motion,
+                wrong<=BurstAlignBenchmark.WRONG_ALLOWED*checked);
+        assertTrue("mean error " + total/checked + " px," + motion, total/checked<=meanError);
+    }
+
+    private MotionField align(LinearFrame reference, LinearFrame frame) throws IOException, InterruptedException {
+        BurstAlign align = new BurstAlign(mPool, BurstAlign.DEFAULT_TILE, BurstAlign.DEFAULT_RADIUS);
+        align.setReference(reference, "reference");
+        return align.align(frame, "moved");
+    }
+
+    /* The scene moved by (dx,dy), in one channel like a raw frame or in three like an RGB one. */
+    static class ShiftedFrame extends LinearFrame {
+
+        private final double mDx;
+        private final double mDy;
+        private final int mChannels;
+
+        ShiftedFrame(double dx, double dy, int channels){
+            mDx = dx;
+            mDy = dy;
+            mChannels = channels;
+        }
+
+        @Override
+        public int getWidth(){
+            return WIDTH;
+        }
+        @Override
+        public int getHeight(){
+            return HEIGHT;
+        }
+        @Override
+        public int getChannels(){
+            return mChannels;
+        }
+
+        @Override
+        public void readRows(int row0, int rows, float[] values){
+            for (int r=0; r<rows; r++){
+                for (int x=0; x<WIDTH; x++){
+                    // What the reference saw at (x - dx, y - dy) is here at (x,y).
+                    float v = BurstAlignBenchmark.scene(x - mDx + BurstAlignBenchmark.MARGIN,
+                            row0 + r - mDy + BurstAlignBenchmark.MARGIN);
+                    for (int c=0; c<mChannels; c++){
+                        values[(r*WIDTH + x)*mChannels + c] = v;
+                    }
+                }
+            }
+        }
+    }
+
+}
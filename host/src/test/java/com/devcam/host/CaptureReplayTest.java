@@ -0,0 +1,128 @@
+/* Replays of a small capture event log through CaptureReplay, which saves frames as ImageSaver does.
+ *
+ * The log has two output streams, YUV_420_888 and RAW_SENSOR, with images arriving both before and
+ * after their results, and one image that never gets a result. At -speed 0 a replay must come out
+ * the same every time, frames, manifest and journal alike (the journal is kept for this), and every
+ * frame must match its manifest entry.
+ */
+
+package com.devcam.host;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.devcam.io.BurstContainer;
+import com.devcam.io.CaptureEventLog;
+import com.devcam.io.DesignJournal;
+import com.devcam.io.DesignManifest;
+import com.devcam.io.YuvFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CaptureReplayTest {
+
+    static final String DESIGN = "replayed";
+    static final int FRAMES = 5;
+    static final int WIDTH = 64;
+    static final int HEIGHT = 48;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+
+    @Test
+    public void replaysOfFilesAreIdentical() throws IOException, InterruptedException {
+        File log = writeLog();
+        File first = replay(log, "first", false, false);
+        File second = replay(log, "second", false, false);
+        assertSameFiles(first, second);
+        assertTrue(new File(first, DESIGN + "-1.yuv").isFile());
+        assertTrue(new File(first, DESIGN + "-" + FRAMES + ".dng").isFile());
+    }
+
+    @Test
+    public void replaysIntoAContainerAreIdentical() throws IOException, InterruptedException {
+        File log = writeLog();
+        File first = replay(log, "first", true, true);
+        File second = replay(log, "second", true, true);
+        assertSameFiles(first, second);
+        assertTrue(new File(first, DESIGN + BurstContainer.EXTENSION).isFile());
+    }
+
+    @Test
+    public void everyPairedFrameMatchesTheManifest() throws IOException, InterruptedException {
+        File log = writeLog();
+        for (boolean container : new boolean[]{false, true}){
+            File dir = replay(log, "checked" + container, container, false);
+            File manifest = new File(dir, DESIGN + DesignManifest.FILE_SUFFIX);
+            assertEquals(2*FRAMES, DesignManifest.read(manifest).size()); // not the unpaired image
+            ExecutorService pool = Executors.newFixedThreadPool(2);
+            try {
+                for (ManifestVerifier.Result result : new ManifestVerifier(pool).verify(manifest)){
+                    assertTrue(result.toString(), result.isOk());
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+
+    /* A log of FRAMES frames into both streams. The YUV image of every other frame comes in before
+     * its result, the RAW one always after, and a last YUV image has no result at all.
+     */
+    private File writeLog() throws IOException {
+        File file = mFolder.newFile(DESIGN + CaptureEventLog.FILE_SUFFIX);
+        CaptureEventLog.Writer log = new CaptureEventLog.Writer(file);
+        long yuvSize = WIDTH*HEIGHT*3/2;
+        long rawSize = 2*WIDTH*HEIGHT;
+        for (int i=0; i<FRAMES; i++){
+            long timestamp = 1000000000L + i*33333333L;
+            log.captureStarted(timestamp);
+            if (i%2==0){
+                log.imageAvailable(timestamp, BurstContainer.FORMAT_YUV_420_888, WIDTH, HEIGHT, yuvSize);
+                log.captureCompleted(timestamp, i);
+            } else {
+                log.captureCompleted(timestamp, i);
+                log.imageAvailable(timestamp, BurstContainer.FORMAT_YUV_420_888, WIDTH, HEIGHT, yuvSize);
+            }
+            log.imageAvailable(timestamp, BurstContainer.FORMAT_RAW_SENSOR, WIDTH, HEIGHT, rawSize);
+        }
+        log.imageAvailable(2000000000L, BurstContainer.FORMAT_YUV_420_888, WIDTH, HEIGHT, yuvSize);
+        log.close();
+        return file;
+    }
+
+    private File replay(File log, String name, boolean container, boolean packRaw) throws IOException, InterruptedException {
+        File dir = new File(mFolder.getRoot(), name);
+        CaptureReplay replay = new CaptureReplay(DESIGN, dir, container, packRaw, YuvFormat.FLAG_COMPACT_ROWS,
+                CaptureReplay.DEFAULT_WHITE_LEVEL);
+        replay.setKeepJournal(true);
+        replay.replay(CaptureEventLog.read(log), 0);
+        assertTrue(new File(dir, DESIGN + DesignJournal.FILE_SUFFIX).isFile());
+        return dir;
+    }
+
+    private static void assertSameFiles(File expected, File actual) throws IOException {
+        String[] names = expected.list();
+        String[] actualNames = actual.list();
+        Arrays.sort(names);
+        Arrays.sort(actualNames);
+        assertArrayEquals(names, actualNames);
+        for (String name : names){
+            assertArrayEquals(name, Files.readAllBytes(new File(expected, name).toPath()),
+                    Files.readAllBytes(new File(actual, name).toPath()));
+        }
+    }
+
+}